@@ -1,25 +1,43 @@
 package com.jadice.blog.l4j;
 
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Configuration;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * If enabled via application.yaml (ollama.model.auto-import=true), this will
- * auto-import missing models on startup.
+ * auto-import missing models on startup. The model inventory is fetched once
+ * (per ollama backend) and missing models are pulled in parallel.
+ * <p>
+ * With ollama.model.auto-import-background=true the import runs in the
+ * background and startup continues immediately; the
+ * {@link ModelAvailabilityHealthIndicator} reports DOWN until all models are
+ * present.
  */
 @Slf4j
 @Configuration
 @ConditionalOnProperty(name = "ollama.model.auto-import", havingValue = "true", matchIfMissing = false)
 public class ModelAutoImport {
+	public enum State {
+		RUNNING, DONE, FAILED
+	}
 
 	@Autowired
 	private OllamaRestClient ollama;
 
+	@Autowired
+	private MeterRegistry meterRegistry;
+
 	@Value("${ollama.model.chat}")
 	private String chatModelName;
 
@@ -29,18 +47,59 @@ public class ModelAutoImport {
 	@Value("${ollama.model.instruct}")
 	private String instructModelName;
 
+	@Value("${ollama.model.auto-import-background:false}")
+	private boolean background;
+
+	private volatile State state = State.RUNNING;
+	private volatile Duration duration;
+	private volatile Exception failure;
+
 	@PostConstruct
 	private void init() {
 		// We do this in @PostConstruct in an @Configuration class to be before the
 		// @Bean creation process where the tests start.
-		logger.info("Checking auto import");
+		logger.info("Checking auto import{}", background ? " (background)" : "");
 
+		if (background) {
+			Thread.ofVirtual().name("model-auto-import").start(this::importModels);
+		} else {
+			importModels();
+		}
+	}
+
+	private void importModels() {
+		long start = System.nanoTime();
+		int pulls = 0;
 		try {
-			ollama.ensureModelAvailable(chatModelName);
-			ollama.ensureModelAvailable(imageModelName);
-			ollama.ensureModelAvailable(instructModelName);
+			pulls = ollama.ensureModelsAvailable(List.of(chatModelName, imageModelName, instructModelName));
+			state = State.DONE;
 		} catch (Exception e) {
 			logger.error("Error initializing models", e);
+			failure = e;
+			state = State.FAILED;
+		} finally {
+			duration = Duration.ofNanos(System.nanoTime() - start);
+			// tagged by whether models had to be pulled, as those timings differ by
+			// orders of magnitude
+			Timer.builder("ollama.model.auto-import").tag("outcome", state.name().toLowerCase())
+					.tag("pulled", Boolean.toString(pulls > 0)).register(meterRegistry)
+					.record(duration.toNanos(), TimeUnit.NANOSECONDS);
+			logger.info("Auto import finished in {} ms: {}", duration.toMillis(), state);
 		}
 	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return the duration of the import, null while running
+	 */
+	public Duration getDuration() {
+		return duration;
+	}
+
+	public Exception getFailure() {
+		return failure;
+	}
 }
@@ -0,0 +1,40 @@
+package com.jadice.blog.l4j;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Health of the model auto import (health contributor "modelAvailability").
+ * Stays DOWN until all configured models are present, so it can be part of the
+ * readiness group while the import runs in the background. UP if auto import is
+ * disabled.
+ */
+@Component
+public class ModelAvailabilityHealthIndicator implements HealthIndicator {
+
+	@Autowired
+	private ObjectProvider<ModelAutoImport> autoImport;
+
+	@Override
+	public Health health() {
+		ModelAutoImport modelAutoImport = autoImport.getIfAvailable();
+		if (modelAutoImport == null) {
+			return Health.up().withDetail("autoImport", "disabled").build();
+		}
+
+		ModelAutoImport.State state = modelAutoImport.getState();
+		Health.Builder health = switch (state) {
+		case DONE -> Health.up();
+		case RUNNING -> Health.down();
+		case FAILED -> Health.down(modelAutoImport.getFailure());
+		};
+		health.withDetail("autoImport", state);
+		if (modelAutoImport.getDuration() != null) {
+			health.withDetail("durationMillis", modelAutoImport.getDuration().toMillis());
+		}
+		return health.build();
+	}
+}
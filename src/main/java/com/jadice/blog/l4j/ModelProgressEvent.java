@@ -0,0 +1,43 @@
+package com.jadice.blog.l4j;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+
+/**
+ * Progress of a streaming model pull or push, as reported line by line by
+ * ollama. Published as application event and passed to the optional listener
+ * of {@link OllamaRestClient#pullModel(String, java.util.function.Consumer)}.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+public class ModelProgressEvent {
+	public enum Operation {
+		PULL, PUSH
+	}
+
+	private Operation operation;
+	/** base URL of the ollama instance */
+	private String backend;
+	private String modelName;
+	/** ollama status, e.g. "pulling manifest", "pulling &lt;digest&gt;", "success" */
+	private String status;
+	/** layer digest the byte counts refer to, null for status-only lines */
+	private String digest;
+	private long total;
+	private long completed;
+
+	/**
+	 * @return the completed fraction (0..1) of the current layer, 0 if unknown
+	 */
+	public double getProgress() {
+		return total > 0 ? (double) completed / total : 0;
+	}
+
+	public boolean isSuccess() {
+		return "success".equals(status);
+	}
+}
@@ -0,0 +1,274 @@
+package com.jadice.blog.l4j;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import com.jadice.blog.l4j.OllamaBackendRouter.Backend;
+import com.jadice.blog.l4j.OllamaRestClient.ModelInfo;
+import com.jadice.blog.l4j.OllamaRestClient.RunningModelInfo;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * If enabled via application.yaml (ollama.residency.enabled=true), controls
+ * which models stay loaded in the memory of the ollama instances:
+ * <ul>
+ * <li>pinned and preload models are loaded at startup with an empty generate
+ * request; pinned ones with a negative <code>keep_alive</code> so they are never
+ * unloaded by ollama</li>
+ * <li>if loading a model would exceed <code>ollama.residency.memory-budget</code>
+ * (measured from the <code>/api/ps</code> sizes), the least recently used
+ * unpinned models are unloaded first (<code>keep_alive: 0</code>); the budget
+ * is also enforced periodically</li>
+ * </ul>
+ * The budget is a soft limit: only loads through {@link #ensureLoaded(String,
+ * String)} make room beforehand. Chat and embedding requests let ollama load
+ * their model on demand, which can exceed the budget until the next check
+ * (<code>ollama.residency.check-interval</code>) unloads models again.
+ * <p>
+ * Residency, memory use and load/unload timings are exported as
+ * <code>ollama.residency.*</code> metrics.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "ollama.residency.enabled", havingValue = "true", matchIfMissing = false)
+public class ModelResidencyManager {
+
+	@Autowired
+	private OllamaRestClient ollama;
+	@Autowired
+	private OllamaBackendRouter router;
+	@Autowired
+	private MeterRegistry meterRegistry;
+	@Autowired
+	private ObjectProvider<ModelAutoImport> autoImport;
+
+	@Value("${ollama.residency.pinned:}")
+	private String pinnedModels;
+	@Value("${ollama.residency.preload:}")
+	private String preloadModels;
+	@Value("${ollama.residency.keep-alive:30m}")
+	private String keepAlive;
+	@Value("${ollama.residency.memory-budget:0}")
+	private DataSize memoryBudget;
+	@Value("${ollama.residency.check-interval:10s}")
+	private Duration checkInterval;
+
+	private final Map<String, List<RunningModelInfo>> residency = new ConcurrentHashMap<>();
+	// locks instead of synchronized, so virtual threads don't pin their carrier during I/O
+	private final Map<String, ReentrantLock> backendLocks = new ConcurrentHashMap<>();
+	private ScheduledExecutorService scheduler;
+	private Counter evictions;
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void start() {
+		evictions = Counter.builder("ollama.residency.evictions").register(meterRegistry);
+		for (Backend backend : router.getBackends()) {
+			registerGauges(backend.getBaseUrl());
+		}
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("model-residency").factory());
+		scheduler.execute(this::warmUp);
+		scheduler.scheduleWithFixedDelay(this::enforceBudget, checkInterval.toMillis(), checkInterval.toMillis(),
+				TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	private void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Loads all pinned and preload models on all backends.
+	 */
+	public void warmUp() {
+		awaitAutoImport();
+
+		Set<String> models = new LinkedHashSet<>(split(pinnedModels));
+		models.addAll(split(preloadModels));
+		for (Backend backend : router.getBackends()) {
+			for (String model : models) {
+				try {
+					ensureLoaded(backend.getBaseUrl(), model);
+				} catch (Exception e) {
+					logger.warn("Warm-up of model {} on {} failed", model, backend, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes sure the model is loaded on the given backend, unloading least
+	 * recently used models first if the memory budget would be exceeded.
+	 *
+	 * @param baseUrl   the base URL of the ollama instance
+	 * @param modelName the model name
+	 * @throws Exception
+	 */
+	public void ensureLoaded(String baseUrl, String modelName) throws Exception {
+		boolean pinned = isPinned(modelName);
+		String normalized = OllamaBackendRouter.normalize(modelName);
+		ReentrantLock lock = lock(baseUrl);
+		lock.lock();
+		try {
+			List<RunningModelInfo> running = refresh(baseUrl);
+			boolean resident = running.stream()
+					.anyMatch(m -> OllamaBackendRouter.normalize(m.getName()).equals(normalized));
+			if (resident && !pinned) {
+				return;
+			}
+
+			if (!resident) {
+				// the download size is the best estimate we have before the model is loaded
+				long needed = ollama.getModels(baseUrl).stream().filter(m -> m.getName().equals(normalized))
+						.mapToLong(ModelInfo::getSizeBytes).findFirst().orElse(0);
+				makeRoom(baseUrl, running, needed);
+			}
+
+			// for resident pinned models this only renews keep_alive
+			long start = System.nanoTime();
+			ollama.loadModel(baseUrl, modelName, pinned ? "-1m" : keepAlive);
+			long nanos = System.nanoTime() - start;
+			Timer.builder("ollama.residency.load").tag("model", modelName).tag("backend", baseUrl)
+					.register(meterRegistry).record(nanos, TimeUnit.NANOSECONDS);
+			logger.info("Model {} loaded on {} in {} ms{}", modelName, baseUrl, nanos / 1_000_000,
+					pinned ? " (pinned)" : "");
+			refresh(baseUrl);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Unloads least recently used models on all backends until they fit into the
+	 * memory budget.
+	 */
+	public void enforceBudget() {
+		for (Backend backend : router.getBackends()) {
+			ReentrantLock lock = lock(backend.getBaseUrl());
+			lock.lock();
+			try {
+				makeRoom(backend.getBaseUrl(), refresh(backend.getBaseUrl()), 0);
+			} catch (Exception e) {
+				logger.debug("Residency check of {} failed: {}", backend, e.toString());
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @return the loaded models per backend base URL, as of the last check
+	 */
+	public Map<String, List<RunningModelInfo>> getResidency() {
+		return Map.copyOf(residency);
+	}
+
+	private void makeRoom(String baseUrl, List<RunningModelInfo> running, long needed) throws Exception {
+		long budget = memoryBudget.toBytes();
+		if (budget <= 0) {
+			return;
+		}
+
+		long used = running.stream().mapToLong(RunningModelInfo::getSize).sum();
+		if (used + needed <= budget) {
+			return;
+		}
+
+		Backend backend = router.getBackends().stream().filter(b -> b.getBaseUrl().equals(baseUrl)).findFirst()
+				.orElse(null);
+		List<RunningModelInfo> candidates = running.stream().filter(m -> !isPinned(m.getName()))
+				.sorted(Comparator.comparingLong(m -> backend != null ? backend.getLastUsedNanos(m.getName()) : 0))
+				.toList();
+		for (RunningModelInfo candidate : candidates) {
+			if (used + needed <= budget) {
+				break;
+			}
+			long start = System.nanoTime();
+			ollama.unloadModel(baseUrl, candidate.getName());
+			long nanos = System.nanoTime() - start;
+			Timer.builder("ollama.residency.unload").tag("model", candidate.getName()).tag("backend", baseUrl)
+					.register(meterRegistry).record(nanos, TimeUnit.NANOSECONDS);
+			evictions.increment();
+			used -= candidate.getSize();
+			logger.info("Unloaded least recently used model {} from {}", candidate.getName(), baseUrl);
+		}
+		if (used + needed > budget) {
+			logger.warn("Memory budget of {} exceeded on {} by pinned models", memoryBudget, baseUrl);
+		}
+		refresh(baseUrl);
+		router.refresh();
+	}
+
+	private List<RunningModelInfo> refresh(String baseUrl) throws Exception {
+		List<RunningModelInfo> running = ollama.getRunningModelInfos(baseUrl);
+		residency.put(baseUrl, running);
+		return running;
+	}
+
+	private void registerGauges(String baseUrl) {
+		Gauge.builder("ollama.residency.memory.used", residency,
+				r -> r.getOrDefault(baseUrl, List.of()).stream().mapToLong(RunningModelInfo::getSize).sum())
+				.tag("backend", baseUrl).baseUnit("bytes").register(meterRegistry);
+		Gauge.builder("ollama.residency.memory.budget", memoryBudget, DataSize::toBytes).tag("backend", baseUrl)
+				.baseUnit("bytes").register(meterRegistry);
+		Set<String> models = new LinkedHashSet<>(split(pinnedModels));
+		models.addAll(split(preloadModels));
+		for (String model : models) {
+			String normalized = OllamaBackendRouter.normalize(model);
+			Gauge.builder("ollama.residency.resident", residency, r -> r.getOrDefault(baseUrl, List.of()).stream()
+					.anyMatch(m -> OllamaBackendRouter.normalize(m.getName()).equals(normalized)) ? 1 : 0)
+					.tag("backend", baseUrl).tag("model", model).register(meterRegistry);
+		}
+	}
+
+	private boolean isPinned(String modelName) {
+		String normalized = OllamaBackendRouter.normalize(modelName);
+		return split(pinnedModels).stream().anyMatch(p -> OllamaBackendRouter.normalize(p).equals(normalized));
+	}
+
+	private ReentrantLock lock(String baseUrl) {
+		return backendLocks.computeIfAbsent(baseUrl, url -> new ReentrantLock());
+	}
+
+	private void awaitAutoImport() {
+		ModelAutoImport modelAutoImport = autoImport.getIfAvailable();
+		try {
+			while (modelAutoImport != null && modelAutoImport.getState() == ModelAutoImport.State.RUNNING) {
+				Thread.sleep(500);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static List<String> split(String models) {
+		return Arrays.stream(models.split(",")).map(String::trim).filter(m -> !m.isEmpty()).toList();
+	}
+}
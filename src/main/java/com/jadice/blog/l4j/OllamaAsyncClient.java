@@ -0,0 +1,227 @@
+package com.jadice.blog.l4j;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.jadice.blog.l4j.OllamaRestClient.ModelDetails;
+import com.jadice.blog.l4j.OllamaRestClient.ModelInfo;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Asynchronous counterpart of {@link OllamaRestClient}. Every operation runs on
+ * its own virtual thread and returns a {@link CompletableFuture}, so model
+ * checks, metadata lookups and embedding calls can be overlapped.
+ * <p>
+ * Cancelling a returned future, or its timeout
+ * (<code>ollama.async.timeout</code>, per call via
+ * {@link #withTimeout(Duration)}) expiring, interrupts the request thread, which
+ * aborts the blocking HTTP call. Model transfers (pull, push and
+ * {@link #ensureModelsAvailable(Collection)}) can take much longer and use
+ * <code>ollama.async.pull-timeout</code> instead, which is unlimited by default.
+ * Reactive callers can adapt the futures with <code>Mono.fromFuture(...)</code>.
+ */
+@Component
+public class OllamaAsyncClient {
+
+	@Autowired
+	private OllamaRestClient ollama;
+
+	@Value("${ollama.async.timeout:5m}")
+	private Duration timeout;
+
+	@Value("${ollama.async.pull-timeout:0s}")
+	private Duration pullTimeout;
+
+	private ExecutorService executor;
+
+	public OllamaAsyncClient() {
+	}
+
+	private OllamaAsyncClient(OllamaAsyncClient parent, Duration timeout) {
+		this.ollama = parent.ollama;
+		this.executor = parent.executor;
+		this.timeout = timeout;
+		this.pullTimeout = parent.pullTimeout;
+	}
+
+	@PostConstruct
+	private void init() {
+		executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ollama-async-", 0).factory());
+	}
+
+	@PreDestroy
+	private void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Returns a view of this client whose calls time out after the given
+	 * duration. Model transfers keep <code>ollama.async.pull-timeout</code>.
+	 *
+	 * @param timeout the timeout of each call, zero or negative for none
+	 * @return the client
+	 */
+	public OllamaAsyncClient withTimeout(Duration timeout) {
+		return new OllamaAsyncClient(this, timeout);
+	}
+
+	/**
+	 * @return the models available on the ollama instances, see
+	 *         {@link OllamaRestClient#getModels()}
+	 */
+	public CompletableFuture<List<ModelInfo>> getModels() {
+		return submit(ollama::getModels);
+	}
+
+	/**
+	 * @return the names of the models loaded on the ollama instances, see
+	 *         {@link OllamaRestClient#getRunningModels()}
+	 */
+	public CompletableFuture<List<String>> getRunningModels() {
+		return submit(ollama::getRunningModels);
+	}
+
+	/**
+	 * @param modelName the model name
+	 * @return the model details, see {@link OllamaRestClient#getModelDetails}
+	 */
+	public CompletableFuture<ModelDetails> getModelDetails(String modelName) {
+		return submit(() -> ollama.getModelDetails(modelName));
+	}
+
+	/**
+	 * @param modelName the model name
+	 * @return the complete <code>/api/show</code> response, see
+	 *         {@link OllamaRestClient#getModelDetailsJson}
+	 */
+	public CompletableFuture<JsonNode> getModelDetailsJson(String modelName) {
+		return submit(() -> ollama.getModelDetailsJson(modelName));
+	}
+
+	/**
+	 * @param modelName    the model name
+	 * @param newModelName the name of the copy
+	 * @return a future completing when the model was copied
+	 */
+	public CompletableFuture<Void> copyModel(String modelName, String newModelName) {
+		return run(() -> ollama.copyModel(modelName, newModelName));
+	}
+
+	/**
+	 * @param modelName the model name
+	 * @return a future completing when the model was deleted
+	 */
+	public CompletableFuture<Void> deleteModel(String modelName) {
+		return run(() -> ollama.deleteModel(modelName));
+	}
+
+	/**
+	 * Pulls missing models, see {@link OllamaRestClient#ensureModelsAvailable}.
+	 *
+	 * @param modelNames the model names
+	 * @return the number of pulls that were necessary
+	 */
+	public CompletableFuture<Integer> ensureModelsAvailable(Collection<String> modelNames) {
+		return submit(() -> ollama.ensureModelsAvailable(modelNames), pullTimeout);
+	}
+
+	/**
+	 * Pulls a model on all backends, see
+	 * {@link OllamaRestClient#pullModelAsync(String, Consumer)}.
+	 *
+	 * @param modelName the model name
+	 * @param listener  optional listener for progress events
+	 * @return a future completing when the pulls finished
+	 */
+	public CompletableFuture<Void> pullModel(String modelName, @Nullable Consumer<ModelProgressEvent> listener) {
+		return applyTimeout(ollama.pullModelAsync(modelName, listener), pullTimeout);
+	}
+
+	/**
+	 * Pushes a model, see {@link OllamaRestClient#pushModel(String, Consumer)}.
+	 *
+	 * @param modelName the model name
+	 * @param listener  optional listener for progress events
+	 * @return a future completing when the push finished
+	 */
+	public CompletableFuture<Void> pushModel(String modelName, @Nullable Consumer<ModelProgressEvent> listener) {
+		return submit(() -> {
+			ollama.pushModel(modelName, listener);
+			return null;
+		}, pullTimeout);
+	}
+
+	/**
+	 * @param modelName the embedding model
+	 * @param input     the text to embed
+	 * @return the embedding
+	 */
+	public CompletableFuture<float[]> generateEmbedding(String modelName, String input) {
+		return submit(() -> ollama.generateEmbedding(modelName, input));
+	}
+
+	/**
+	 * @param modelName the embedding model
+	 * @param inputs    the texts to embed
+	 * @return the embeddings, in input order
+	 */
+	public CompletableFuture<float[][]> generateEmbeddings(String modelName, List<String> inputs) {
+		return submit(() -> ollama.generateEmbeddings(modelName, inputs));
+	}
+
+	private interface Call {
+		void run() throws Exception;
+	}
+
+	private CompletableFuture<Void> run(Call call) {
+		return submit(() -> {
+			call.run();
+			return null;
+		});
+	}
+
+	private <T> CompletableFuture<T> submit(Callable<T> call) {
+		return submit(call, timeout);
+	}
+
+	private <T> CompletableFuture<T> submit(Callable<T> call, Duration timeout) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		Future<?> task = executor.submit(() -> {
+			try {
+				result.complete(call.call());
+			} catch (Throwable t) {
+				result.completeExceptionally(t);
+			}
+		});
+		// cancellation and timeout interrupt the request
+		result.whenComplete((r, t) -> {
+			if (t != null) {
+				task.cancel(true);
+			}
+		});
+		return applyTimeout(result, timeout);
+	}
+
+	private static <T> CompletableFuture<T> applyTimeout(CompletableFuture<T> future, Duration timeout) {
+		if (timeout.isPositive()) {
+			future.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+		}
+		return future;
+	}
+}
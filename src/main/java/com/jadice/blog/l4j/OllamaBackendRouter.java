@@ -0,0 +1,284 @@
+package com.jadice.blog.l4j;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Routes ollama requests over one or more ollama instances
+ * (<code>ollama.urls</code>, falls back to <code>ollama.url</code>).
+ * <p>
+ * A backend is chosen per request by its number of in-flight requests plus a
+ * penalty if the requested model is not loaded there (as reported by
+ * <code>/api/ps</code>), so requests stick to nodes where the model is already
+ * resident unless those are busy. Backends failing
+ * <code>ollama.routing.failure-threshold</code> times in a row are ejected for
+ * <code>ollama.routing.eject-duration</code>.
+ */
+@Slf4j
+@Component
+public class OllamaBackendRouter {
+
+	@Value("${ollama.url}")
+	private String ollamaBaseUrl;
+	@Value("${ollama.urls:}")
+	private String ollamaBaseUrls;
+	@Value("${ollama.routing.non-resident-penalty:4}")
+	private int nonResidentPenalty;
+	@Value("${ollama.routing.failure-threshold:3}")
+	private int failureThreshold;
+	@Value("${ollama.routing.eject-duration:30s}")
+	private Duration ejectDuration;
+	@Value("${ollama.routing.refresh-interval:5s}")
+	private Duration refreshInterval;
+
+	@Autowired
+	private ObjectProvider<OllamaRestClient> ollama;
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private volatile List<Backend> backends = List.of();
+	private final AtomicInteger roundRobin = new AtomicInteger();
+	private ScheduledExecutorService refresher;
+
+	/**
+	 * An ollama instance and its routing state.
+	 */
+	public static class Backend {
+		private final String baseUrl;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final AtomicInteger consecutiveFailures = new AtomicInteger();
+		private volatile boolean ejected;
+		private volatile long ejectedUntilNanos;
+		private volatile Set<String> residentModels = Set.of();
+		private final Map<String, Long> lastUsedNanos = new ConcurrentHashMap<>();
+		private final List<Meter> meters = new ArrayList<>();
+
+		private Backend(String baseUrl) {
+			this.baseUrl = baseUrl;
+		}
+
+		public String getBaseUrl() {
+			return baseUrl;
+		}
+
+		public int getInFlight() {
+			return inFlight.get();
+		}
+
+		public boolean isHealthy() {
+			return !ejected || System.nanoTime() - ejectedUntilNanos >= 0;
+		}
+
+		public Set<String> getResidentModels() {
+			return residentModels;
+		}
+
+		/**
+		 * @param modelName the model name
+		 * @return the {@link System#nanoTime()} of the last request routed here for
+		 *         the model, {@link Long#MIN_VALUE} if none
+		 */
+		public long getLastUsedNanos(String modelName) {
+			return lastUsedNanos.getOrDefault(normalize(modelName), Long.MIN_VALUE);
+		}
+
+		private boolean isResident(@Nullable String modelName) {
+			return modelName != null && residentModels.contains(normalize(modelName));
+		}
+
+		@Override
+		public String toString() {
+			return baseUrl;
+		}
+	}
+
+	/**
+	 * A routed request on a backend. Must be closed when the request finished;
+	 * call {@link #failed()} before if the backend did not respond properly.
+	 */
+	public class Lease implements AutoCloseable {
+		private final Backend backend;
+		private boolean failed;
+
+		private Lease(Backend backend) {
+			this.backend = backend;
+		}
+
+		public String getBaseUrl() {
+			return backend.baseUrl;
+		}
+
+		public void failed() {
+			failed = true;
+		}
+
+		@Override
+		public void close() {
+			backend.inFlight.decrementAndGet();
+			if (failed) {
+				recordFailure(backend);
+			} else {
+				backend.consecutiveFailures.set(0);
+			}
+		}
+	}
+
+	@PostConstruct
+	private void init() {
+		List<String> urls = Arrays.stream(ollamaBaseUrls.split(",")).map(String::trim).filter(u -> !u.isEmpty())
+				.toList();
+		setBackends(urls.isEmpty() ? List.of(ollamaBaseUrl) : urls);
+
+		refresher = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("ollama-router")
+				.factory());
+		refresher.scheduleWithFixedDelay(this::refresh, refreshInterval.toMillis(), refreshInterval.toMillis(),
+				TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	private void shutdown() {
+		refresher.shutdownNow();
+	}
+
+	/**
+	 * Replaces the set of backends. Routing state of backends that are kept is
+	 * preserved.
+	 *
+	 * @param baseUrls the base URLs of the ollama instances
+	 */
+	public synchronized void setBackends(List<String> baseUrls) {
+		if (baseUrls.isEmpty()) {
+			throw new IllegalArgumentException("At least one ollama backend is required");
+		}
+		List<Backend> updated = new ArrayList<>();
+		for (String baseUrl : baseUrls) {
+			Backend backend = backends.stream().filter(b -> b.baseUrl.equals(baseUrl)).findFirst()
+					.orElseGet(() -> newBackend(baseUrl));
+			updated.add(backend);
+		}
+		for (Backend backend : backends) {
+			if (!updated.contains(backend)) {
+				// the gauges would stay bound to this backend if its URL is added again
+				backend.meters.forEach(meterRegistry::remove);
+			}
+		}
+		backends = List.copyOf(updated);
+		logger.info("Ollama backends: {}", backends);
+	}
+
+	public List<Backend> getBackends() {
+		return backends;
+	}
+
+	/**
+	 * Selects a backend for a request on the given model and reserves an
+	 * in-flight slot on it.
+	 *
+	 * @param modelName the model the request is for, null for model independent
+	 *                  requests
+	 * @return the lease, to be closed after the request
+	 */
+	public Lease acquire(@Nullable String modelName) {
+		List<Backend> current = backends;
+		List<Backend> candidates = current.stream().filter(Backend::isHealthy).toList();
+		if (candidates.isEmpty()) {
+			// all ejected: rather try than fail without a request
+			candidates = current;
+		}
+
+		// start at a rotating offset so ties are spread over the backends
+		int offset = Math.floorMod(roundRobin.getAndIncrement(), candidates.size());
+		Backend best = null;
+		int bestScore = Integer.MAX_VALUE;
+		for (int i = 0; i < candidates.size(); i++) {
+			Backend backend = candidates.get((offset + i) % candidates.size());
+			int score = backend.inFlight.get() + (modelName == null || backend.isResident(modelName) ? 0
+					: nonResidentPenalty);
+			if (score < bestScore) {
+				best = backend;
+				bestScore = score;
+			}
+		}
+
+		best.inFlight.incrementAndGet();
+		if (modelName != null) {
+			best.lastUsedNanos.put(normalize(modelName), System.nanoTime());
+		}
+		if (modelName != null && !best.isResident(modelName)) {
+			// the request loads the model there, so route following requests the same way
+			Set<String> resident = new HashSet<>(best.residentModels);
+			resident.add(normalize(modelName));
+			best.residentModels = Set.copyOf(resident);
+		}
+		return new Lease(best);
+	}
+
+	/**
+	 * Updates residency and health of all backends via <code>/api/ps</code>.
+	 */
+	public void refresh() {
+		for (Backend backend : backends) {
+			try {
+				List<String> running = ollama.getObject().getRunningModels(backend.baseUrl);
+				backend.residentModels = Set.copyOf(running.stream().map(OllamaBackendRouter::normalize).toList());
+				if (!backend.isHealthy()) {
+					logger.info("Ollama backend {} is back", backend);
+				}
+				backend.consecutiveFailures.set(0);
+				backend.ejected = false;
+			} catch (Exception e) {
+				logger.debug("Refreshing ollama backend {} failed: {}", backend, e.toString());
+				recordFailure(backend);
+			}
+		}
+	}
+
+	private void recordFailure(Backend backend) {
+		if (backend.consecutiveFailures.incrementAndGet() >= failureThreshold && backend.isHealthy()) {
+			logger.warn("Ejecting ollama backend {} for {}", backend, ejectDuration);
+			backend.ejectedUntilNanos = System.nanoTime() + ejectDuration.toNanos();
+			backend.ejected = true;
+		}
+	}
+
+	private Backend newBackend(String baseUrl) {
+		Backend backend = new Backend(baseUrl);
+		backend.meters.add(Gauge.builder("ollama.backend.in-flight", backend, Backend::getInFlight)
+				.tag("backend", baseUrl).register(meterRegistry));
+		backend.meters.add(Gauge.builder("ollama.backend.healthy", backend, b -> b.isHealthy() ? 1 : 0)
+				.tag("backend", baseUrl).register(meterRegistry));
+		return backend;
+	}
+
+	/**
+	 * @param modelName a model name
+	 * @return the model name without the default ":latest" tag
+	 */
+	public static String normalize(String modelName) {
+		return modelName.endsWith(":latest") ? modelName.substring(0, modelName.length() - ":latest".length())
+				: modelName;
+	}
+}
@@ -0,0 +1,99 @@
+package com.jadice.blog.l4j;
+
+import java.time.Duration;
+
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.pool.PoolConcurrencyPolicy;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.hc5.PoolingHttpClientConnectionManagerMetricsBinder;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Pooled keep-alive HTTP transport for the {@link OllamaRestClient}, configured
+ * via <code>ollama.http.*</code> in application.yaml.
+ * <p>
+ * The connection pool is lock based (no <code>synchronized</code> on the hot
+ * path), so callers running on virtual threads park while waiting for a
+ * connection instead of pinning their carrier thread. Waiting is bounded by
+ * <code>connection-request-timeout</code>, reading by
+ * <code>read-timeout</code>.
+ */
+@Slf4j
+@Configuration
+public class OllamaHttpConfiguration {
+	public static final String OLLAMA_REST_TEMPLATE = "ollamaRestTemplate";
+
+	@Value("${ollama.http.max-connections:50}")
+	private int maxConnections;
+
+	@Value("${ollama.http.max-connections-per-route:20}")
+	private int maxConnectionsPerRoute;
+
+	@Value("${ollama.http.connect-timeout:5s}")
+	private Duration connectTimeout;
+
+	@Value("${ollama.http.read-timeout:10m}")
+	private Duration readTimeout;
+
+	@Value("${ollama.http.connection-request-timeout:30s}")
+	private Duration connectionRequestTimeout;
+
+	@Value("${ollama.http.keep-alive:60s}")
+	private Duration keepAlive;
+
+	@Bean(destroyMethod = "close")
+	public PoolingHttpClientConnectionManager ollamaConnectionManager(MeterRegistry meterRegistry) {
+		PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+				.setPoolConcurrencyPolicy(PoolConcurrencyPolicy.STRICT).setMaxConnTotal(maxConnections)
+				.setMaxConnPerRoute(maxConnectionsPerRoute)
+				.setDefaultConnectionConfig(ConnectionConfig.custom().setConnectTimeout(Timeout.of(connectTimeout))
+						.setSocketTimeout(Timeout.of(readTimeout)).setValidateAfterInactivity(TimeValue.ofSeconds(2))
+						.build())
+				.build();
+
+		// httpcomponents.httpclient.pool.total.{max,connections,pending} gauges
+		new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, "ollama").bindTo(meterRegistry);
+
+		logger.debug("Ollama connection pool: max {} connections, {} per route", maxConnections,
+				maxConnectionsPerRoute);
+		return connectionManager;
+	}
+
+	@Bean(destroyMethod = "close")
+	public CloseableHttpClient ollamaHttpClient(
+			@Qualifier("ollamaConnectionManager") PoolingHttpClientConnectionManager connectionManager) {
+		return HttpClients.custom().setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(RequestConfig.custom()
+						.setConnectionRequestTimeout(Timeout.of(connectionRequestTimeout))
+						.setResponseTimeout(Timeout.of(readTimeout)).build())
+				// ollama does not send Keep-Alive headers, so use our own idle time
+				.setKeepAliveStrategy((response, context) -> TimeValue.of(keepAlive))
+				.evictIdleConnections(TimeValue.of(keepAlive)).evictExpiredConnections().build();
+	}
+
+	/**
+	 * Rest template used by the {@link OllamaRestClient}. Built via the
+	 * {@link RestTemplateBuilder} so request timings are recorded as
+	 * <code>http.client.requests</code>.
+	 */
+	@Bean(OLLAMA_REST_TEMPLATE)
+	public RestTemplate ollamaRestTemplate(RestTemplateBuilder builder,
+			@Qualifier("ollamaHttpClient") CloseableHttpClient httpClient) {
+		return builder.requestFactory(() -> new HttpComponentsClientHttpRequestFactory(httpClient)).build();
+	}
+}
@@ -0,0 +1,274 @@
+package com.jadice.blog.l4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.jadice.blog.l4j.OllamaRestClient.ModelDetails;
+import com.jadice.blog.l4j.OllamaRestClient.ModelInfo;
+import com.jadice.blog.l4j.OllamaRestClient.RunningModelInfo;
+import com.jadice.blog.l4j.util.StringConverter;
+
+/**
+ * Decodes ollama responses straight from the response stream with Jackson's
+ * {@link JsonParser}, without reading the body into a String and without
+ * building a JsonNode tree. Unknown fields are skipped without being
+ * materialized, which matters for large <code>/api/show</code> responses.
+ */
+public class OllamaJsonDecoder {
+	private static final int INITIAL_VECTOR_CAPACITY = 1024;
+
+	private final JsonFactory factory;
+
+	/**
+	 * @param factory the factory to copy the settings from; the decoder uses the
+	 *                fast floating point parser, most of an embedding response
+	 *                is numbers
+	 */
+	public OllamaJsonDecoder(JsonFactory factory) {
+		this.factory = factory.rebuild().enable(StreamReadFeature.USE_FAST_DOUBLE_PARSER).build();
+	}
+
+	/**
+	 * Reads the <code>embedding</code> of an <code>/api/embeddings</code>
+	 * response.
+	 *
+	 * @param in the response body
+	 * @return the embedding vector
+	 * @throws IOException
+	 */
+	public float[] readEmbedding(InputStream in) throws IOException {
+		float[] result = null;
+		try (JsonParser parser = factory.createParser(in)) {
+			expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.currentName();
+				parser.nextToken();
+				if ("embedding".equals(field)) {
+					result = readVector(parser, 0);
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+		if (result == null) {
+			throw new IOException("No embedding in response");
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the <code>embeddings</code> of an <code>/api/embed</code> response.
+	 *
+	 * @param in the response body
+	 * @return the embedding vectors
+	 * @throws IOException
+	 */
+	public float[][] readEmbeddings(InputStream in) throws IOException {
+		float[][] result = null;
+		try (JsonParser parser = factory.createParser(in)) {
+			expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.currentName();
+				parser.nextToken();
+				if ("embeddings".equals(field)) {
+					expect(parser, parser.currentToken(), JsonToken.START_ARRAY);
+					List<float[]> vectors = new ArrayList<>();
+					int dimension = 0;
+					while (parser.nextToken() == JsonToken.START_ARRAY) {
+						float[] vector = readVector(parser, dimension);
+						dimension = vector.length;
+						vectors.add(vector);
+					}
+					result = vectors.toArray(float[][]::new);
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+		if (result == null) {
+			throw new IOException("No embeddings in response");
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the models of an <code>/api/tags</code> response.
+	 *
+	 * @param in the response body
+	 * @return the models, in response order
+	 * @throws IOException
+	 */
+	public List<ModelInfo> readModels(InputStream in) throws IOException {
+		List<ModelInfo> result = new ArrayList<>();
+		try (JsonParser parser = factory.createParser(in)) {
+			forEachModel(parser, () -> {
+				ModelInfo info = new ModelInfo();
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String field = parser.currentName();
+					parser.nextToken();
+					switch (field) {
+					case "name" -> info.setName(parser.getText().replace(":latest", ""));
+					case "modified_at" -> info.setModified_at(parser.getText());
+					case "size" -> {
+						info.setSizeBytes(parser.getLongValue());
+						info.setSize(StringConverter.getBytesString(info.getSizeBytes()));
+					}
+					case "digest" -> info.setDigest(parser.getText());
+					default -> parser.skipChildren();
+					}
+				}
+				result.add(info);
+			});
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the models of an <code>/api/ps</code> response.
+	 *
+	 * @param in the response body
+	 * @return the loaded models, in response order
+	 * @throws IOException
+	 */
+	public List<RunningModelInfo> readRunningModels(InputStream in) throws IOException {
+		List<RunningModelInfo> result = new ArrayList<>();
+		try (JsonParser parser = factory.createParser(in)) {
+			forEachModel(parser, () -> {
+				RunningModelInfo info = new RunningModelInfo();
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String field = parser.currentName();
+					parser.nextToken();
+					switch (field) {
+					case "name" -> info.setName(parser.getText());
+					case "size" -> info.setSize(parser.getLongValue());
+					case "size_vram" -> info.setSize_vram(parser.getLongValue());
+					case "expires_at" -> info.setExpires_at(parser.getText());
+					default -> parser.skipChildren();
+					}
+				}
+				result.add(info);
+			});
+		}
+		return result;
+	}
+
+	/**
+	 * Reads an <code>/api/show</code> response. Large parts like
+	 * <code>model_info</code> and <code>projector_info</code> are skipped.
+	 *
+	 * @param in the response body
+	 * @return the model details
+	 * @throws IOException
+	 */
+	public ModelDetails readModelDetails(InputStream in) throws IOException {
+		try (JsonParser parser = factory.createParser(in)) {
+			return readModelDetails(parser);
+		}
+	}
+
+	/**
+	 * Reads an already parsed <code>/api/show</code> response, e.g. a cached
+	 * one.
+	 *
+	 * @param node the response
+	 * @return the model details
+	 * @throws IOException
+	 */
+	public ModelDetails readModelDetails(JsonNode node) throws IOException {
+		try (JsonParser parser = node.traverse()) {
+			return readModelDetails(parser);
+		}
+	}
+
+	private ModelDetails readModelDetails(JsonParser parser) throws IOException {
+		ModelDetails details = new ModelDetails();
+		expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.currentName();
+			parser.nextToken();
+			switch (field) {
+			case "license" -> details.setLicense(parser.getText());
+			case "modelfile" -> details.setModelfile(parser.getText());
+			case "parameters" -> details.setParameters(parser.getText());
+			case "template" -> details.setTemplate(parser.getText());
+			case "system" -> details.setSystem(parser.getText());
+			case "details" -> {
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String detail = parser.currentName();
+					parser.nextToken();
+					switch (detail) {
+					case "format" -> details.setFormat(parser.getText());
+					case "family" -> details.setFamily(parser.getText());
+					case "parameter_size" -> details.setParameter_size(parser.getText());
+					case "quantization_level" -> details.setQuantization_level(parser.getText());
+					default -> parser.skipChildren();
+					}
+				}
+			}
+			default -> parser.skipChildren();
+			}
+		}
+		return details;
+	}
+
+	private interface ModelReader {
+		void read() throws IOException;
+	}
+
+	/**
+	 * Positions the parser at each object of the top level "models" array.
+	 */
+	private void forEachModel(JsonParser parser, ModelReader reader) throws IOException {
+		expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.currentName();
+			parser.nextToken();
+			if ("models".equals(field) && parser.currentToken() == JsonToken.START_ARRAY) {
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					reader.read();
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+	}
+
+	/**
+	 * Reads a number array the parser is positioned at. If the expected
+	 * dimension is right, e.g. for the further vectors of a batch, the buffer is
+	 * the result; otherwise it is grown as needed and trimmed at the end.
+	 *
+	 * @param dimension the expected dimension, 0 if unknown
+	 */
+	private float[] readVector(JsonParser parser, int dimension) throws IOException {
+		expect(parser, parser.currentToken(), JsonToken.START_ARRAY);
+		float[] buffer = new float[dimension > 0 ? dimension : INITIAL_VECTOR_CAPACITY];
+		int size = 0;
+		JsonToken token;
+		while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+			if (token != JsonToken.VALUE_NUMBER_FLOAT && token != JsonToken.VALUE_NUMBER_INT) {
+				throw new JsonParseException(parser, "Expected number in vector, got " + token);
+			}
+			if (size == buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			buffer[size++] = parser.getFloatValue();
+		}
+		return size == buffer.length ? buffer : Arrays.copyOf(buffer, size);
+	}
+
+	private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws IOException {
+		if (actual != expected) {
+			throw new JsonParseException(parser, "Expected " + expected + ", got " + actual);
+		}
+	}
+}
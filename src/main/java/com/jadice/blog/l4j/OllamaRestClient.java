@@ -1,29 +1,60 @@
 package com.jadice.blog.l4j;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
+import org.apache.hc.core5.http.io.EofSensorInputStream;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
 import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpServerErrorException;
 import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.jadice.blog.l4j.util.StringConverter;
+import com.jadice.blog.l4j.ModelProgressEvent.Operation;
+import com.jadice.blog.l4j.OllamaBackendRouter.Backend;
+import com.jadice.blog.l4j.OllamaBackendRouter.Lease;
+import com.jadice.blog.l4j.util.TtlCache;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -37,87 +68,229 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 @Component
 public class OllamaRestClient {
-	@Value("${ollama.url}")
-	private String ollamaBaseUrl;
-	private RestTemplate rest = new RestTemplate();
+	private static final String METADATA_CACHE_METRIC = "ollama.metadata.cache";
+
+	@Autowired
+	private OllamaBackendRouter router;
+	@Value("${ollama.embed.batch-size:64}")
+	private int embedBatchSize;
+	@Autowired
+	@Qualifier(OllamaHttpConfiguration.OLLAMA_REST_TEMPLATE)
+	private RestTemplate rest;
+	@Value("${ollama.pull.max-concurrent:3}")
+	private int maxConcurrentTransfers;
 	@Autowired
 	private ObjectMapper om;
+	@Value("${ollama.metadata-cache.ttl:30s}")
+	private Duration metadataCacheTtl;
+	@Value("${ollama.metadata-cache.running-ttl:2s}")
+	private Duration runningCacheTtl;
+	@Autowired
+	private ApplicationEventPublisher eventPublisher;
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private Semaphore transferPermits;
+	private ExecutorService transferExecutor;
+
+	private TtlCache<String, List<RunningModelInfo>> runningCache;
+	private TtlCache<String, List<ModelInfo>> modelsCache;
+	private TtlCache<String, JsonNode> detailsCache;
+	private OllamaJsonDecoder decoder;
+	private volatile boolean contextRefreshed;
+
+	@PostConstruct
+	private void init() {
+		if (embedBatchSize < 1) {
+			throw new IllegalArgumentException("ollama.embed.batch-size must be >= 1, is " + embedBatchSize);
+		}
+		if (maxConcurrentTransfers < 1) {
+			throw new IllegalArgumentException("ollama.pull.max-concurrent must be >= 1, is " + maxConcurrentTransfers);
+		}
+		transferPermits = new Semaphore(maxConcurrentTransfers, true);
+		transferExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+		runningCache = new TtlCache<>("ps", runningCacheTtl, meterRegistry, METADATA_CACHE_METRIC);
+		modelsCache = new TtlCache<>("tags", metadataCacheTtl, meterRegistry, METADATA_CACHE_METRIC);
+		detailsCache = new TtlCache<>("show", metadataCacheTtl, meterRegistry, METADATA_CACHE_METRIC);
+		decoder = new OllamaJsonDecoder(om.getFactory());
+	}
+
+	@PreDestroy
+	private void shutdown() {
+		transferExecutor.shutdownNow();
+	}
 
 	/**
-	 * Returns a list of models currently loaded into ollama's memory.
+	 * Progress events are published from the transfer threads. Publishing looks
+	 * up the listener beans, which blocks while another thread creates beans, e.g.
+	 * the startup model import waiting for these transfers. So events are only
+	 * published once the context is refreshed; the listener passed to a transfer
+	 * gets all events.
+	 */
+	@EventListener(ContextRefreshedEvent.class)
+	public void contextRefreshed() {
+		contextRefreshed = true;
+	}
+
+	/**
+	 * Returns a list of models currently loaded into ollama's memory, over all
+	 * healthy backends. Cached for <code>ollama.metadata-cache.running-ttl</code>.
 	 * 
-	 * @return the list of loaded models
-	 * @throws JsonMappingException
-	 * @throws JsonProcessingException
+	 * @return the unmodifiable list of loaded models
+	 * @throws Exception
 	 */
 	public List<String> getRunningModels() throws Exception {
-		List<String> result = new ArrayList<>();
-		String running = rest.getForObject(ollamaBaseUrl + "/api/ps", String.class);
-		JsonNode node = om.readTree(running);
-
-		JsonNode modelsNode = node.get("models");
-		for (int i = 0; i < modelsNode.size(); i++) {
-			JsonNode modelNode = modelsNode.get(i);
-			result.add(modelNode.get("name").asText());
+		Set<String> result = new LinkedHashSet<>();
+		for (Backend backend : router.getBackends()) {
+			if (backend.isHealthy()) {
+				result.addAll(getRunningModels(backend.getBaseUrl()));
+			}
 		}
-		return result;
+		return List.copyOf(result);
 	}
 
 	/**
-	 * Returns a list of local models.
+	 * Returns a list of models currently loaded into the memory of the given
+	 * ollama instance. Cached for <code>ollama.metadata-cache.running-ttl</code>.
 	 * 
-	 * @return the list of models
-	 * @throws JsonMappingException
-	 * @throws JsonProcessingException
+	 * @param baseUrl the base URL of the ollama instance
+	 * @return the unmodifiable list of loaded models
+	 * @throws Exception
 	 */
-	public List<ModelInfo> getModels() throws Exception {
-		List<ModelInfo> result = new ArrayList<>();
-		String running = rest.getForObject(ollamaBaseUrl + "/api/tags", String.class);
-		JsonNode node = om.readTree(running);
+	public List<String> getRunningModels(String baseUrl) throws Exception {
+		return getRunningModelInfos(baseUrl).stream().map(RunningModelInfo::getName).toList();
+	}
+
+	/**
+	 * Returns the models currently loaded into the memory of the given ollama
+	 * instance, including their memory size. Cached for
+	 * <code>ollama.metadata-cache.running-ttl</code>.
+	 * 
+	 * @param baseUrl the base URL of the ollama instance
+	 * @return the unmodifiable list of loaded models
+	 * @throws Exception
+	 */
+	public List<RunningModelInfo> getRunningModelInfos(String baseUrl) throws Exception {
+		return runningCache.get(baseUrl, this::fetchRunningModels);
+	}
 
-		JsonNode modelsNode = node.get("models");
-		for (int i = 0; i < modelsNode.size(); i++) {
-			JsonNode modelNode = modelsNode.get(i);
+	private List<RunningModelInfo> fetchRunningModels(String baseUrl) throws Exception {
+		List<RunningModelInfo> result = rest.execute(baseUrl + "/api/ps", HttpMethod.GET, null,
+				response -> decoder.readRunningModels(response.getBody()));
+		return List.copyOf(result);
+	}
+
+	/**
+	 * Loads a model into the memory of the given ollama instance by sending an
+	 * empty generate request.
+	 * 
+	 * @param baseUrl   the base URL of the ollama instance
+	 * @param modelName the model name
+	 * @param keepAlive how long the model stays loaded after its last request, in
+	 *                  ollama's duration format (e.g. "30m"); negative durations
+	 *                  (e.g. "-1m") keep it loaded
+	 * @throws Exception
+	 */
+	public void loadModel(String baseUrl, String modelName, String keepAlive) throws Exception {
+		Map<String, Object> requestParams = new HashMap<>();
+		requestParams.put("model", modelName);
+		requestParams.put("keep_alive", keepAlive);
+		requestParams.put("stream", false);
 
-			ModelInfo info = new ModelInfo();
-			info.setName(modelNode.get("name").asText().replace(":latest", ""));
+		String json = om.writeValueAsString(requestParams);
+		rest.postForObject(baseUrl + "/api/generate", json, String.class);
+		runningCache.invalidate(baseUrl);
+	}
 
-			info.setModified_at(modelNode.get("modified_at").asText());
-			info.setSize(StringConverter.getBytesString(modelNode.get("size").asLong()));
-			info.setDigest(modelNode.get("digest").asText());
+	/**
+	 * Unloads a model from the memory of the given ollama instance
+	 * (<code>keep_alive: 0</code>).
+	 * 
+	 * @param baseUrl   the base URL of the ollama instance
+	 * @param modelName the model name
+	 * @throws Exception
+	 */
+	public void unloadModel(String baseUrl, String modelName) throws Exception {
+		loadModel(baseUrl, modelName, "0");
+	}
 
-			result.add(info);
-		}
+	/**
+	 * Returns a list of local models of the least loaded backend. Cached for
+	 * <code>ollama.metadata-cache.ttl</code>, invalidated by pull, copy and
+	 * delete.
+	 * 
+	 * @return the unmodifiable list of models
+	 * @throws Exception
+	 */
+	public List<ModelInfo> getModels() throws Exception {
+		return routed(null, this::getModels);
+	}
+
+	/**
+	 * Returns a list of local models of the given ollama instance, cached like
+	 * {@link #getModels()}.
+	 * 
+	 * @param baseUrl the base URL of the ollama instance
+	 * @return the unmodifiable list of models
+	 * @throws Exception
+	 */
+	public List<ModelInfo> getModels(String baseUrl) throws Exception {
+		return modelsCache.get(baseUrl, this::fetchModels);
+	}
+
+	private List<ModelInfo> fetchModels(String baseUrl) throws Exception {
+		List<ModelInfo> result = rest.execute(baseUrl + "/api/tags", HttpMethod.GET, null,
+				response -> decoder.readModels(response.getBody()));
 		Collections.sort(result, new Comparator<ModelInfo>() {
 			@Override
 			public int compare(ModelInfo o1, ModelInfo o2) {
 				return o1.getName().compareTo(o2.getName());
 			}
 		});
-		return result;
+		return List.copyOf(result);
 	}
 
 	/**
-	 * Returns details for the given model.
+	 * Returns details for the given model. Cached for
+	 * <code>ollama.metadata-cache.ttl</code>; the returned node is shared and must
+	 * not be modified.
 	 * 
 	 * @param modelName the model name
 	 * @return the json details node for the model
-	 * @throws JsonProcessingException
+	 * @throws Exception
 	 */
 	public JsonNode getModelDetailsJson(String modelName) throws Exception {
+		// show does not load the model, so route it like a model independent request
+		return detailsCache.get(modelName, name -> routed(null, baseUrl -> fetchModelDetails(baseUrl, name)));
+	}
+
+	private JsonNode fetchModelDetails(String baseUrl, String modelName) throws Exception {
 		Map<String, Object> requestParams = new HashMap<>();
 		requestParams.put("name", modelName);
 //		requestParams.put("verbose", true);
 
 		String json = om.writeValueAsString(requestParams);
-		String restRes = rest.postForObject(ollamaBaseUrl + "/api/show", json, String.class);
-		JsonNode result = om.readTree(restRes);
+		return rest.execute(baseUrl + "/api/show", HttpMethod.POST, rest.httpEntityCallback(json),
+				response -> om.readTree(response.getBody()));
+	}
 
-		return result;
+	/**
+	 * Returns the typed details (template, parameters, family, quantization, ...)
+	 * for the given model. Decoded from the cached response of
+	 * {@link #getModelDetailsJson(String)}, so both share one
+	 * <code>/api/show</code> call.
+	 * 
+	 * @param modelName the model name
+	 * @return the model details
+	 * @throws Exception
+	 */
+	public ModelDetails getModelDetails(String modelName) throws Exception {
+		return decoder.readModelDetails(getModelDetailsJson(modelName));
 	}
 
 	/**
-	 * Copies a model.
+	 * Copies a model on all backends.
 	 * 
 	 * @param modelName    the model name
 	 * @param newModelName name of the copied model
@@ -129,15 +302,20 @@ public class OllamaRestClient {
 		requestParams.put("destination", newModelName);
 
 		String json = om.writeValueAsString(requestParams);
-		ResponseEntity<String> restRes = rest.postForEntity(ollamaBaseUrl + "/api/copy", json, String.class);
-		if (!restRes.getStatusCode().is2xxSuccessful()) {
-			throw new Exception(
-					"Copy failed. HTTP response " + restRes.getStatusCode().value() + ": " + restRes.getBody());
+		for (Backend backend : router.getBackends()) {
+			ResponseEntity<String> restRes = rest.postForEntity(backend.getBaseUrl() + "/api/copy", json,
+					String.class);
+			if (!restRes.getStatusCode().is2xxSuccessful()) {
+				throw new Exception(
+						"Copy failed. HTTP response " + restRes.getStatusCode().value() + ": " + restRes.getBody());
+			}
 		}
+		modelsCache.invalidateAll();
+		detailsCache.invalidate(newModelName);
 	}
 
 	/**
-	 * Delete a model.
+	 * Delete a model on all backends.
 	 * 
 	 * @param modelName the model to delete
 	 * @throws Exception
@@ -147,15 +325,21 @@ public class OllamaRestClient {
 		requestParams.put("name", modelName);
 
 		String json = om.writeValueAsString(requestParams);
-		ResponseEntity<String> restRes = deleteForEntity(ollamaBaseUrl + "/api/delete", json, String.class);
-		if (!restRes.getStatusCode().is2xxSuccessful()) {
-			throw new Exception(
-					"Copy failed. HTTP response " + restRes.getStatusCode().value() + ": " + restRes.getBody());
+		for (Backend backend : router.getBackends()) {
+			ResponseEntity<String> restRes = deleteForEntity(backend.getBaseUrl() + "/api/delete", json,
+					String.class);
+			if (!restRes.getStatusCode().is2xxSuccessful()) {
+				throw new Exception(
+						"Copy failed. HTTP response " + restRes.getStatusCode().value() + ": " + restRes.getBody());
+			}
 		}
+		modelsCache.invalidateAll();
+		detailsCache.invalidate(modelName);
+		runningCache.invalidateAll();
 	}
 
 	/**
-	 * Checks if the given model is available locally in the ollama instance. If
+	 * Checks if the given model is available locally in the ollama instances. If
 	 * not, it will issue a pull request for the model.
 	 * 
 	 * @param modelName the model name
@@ -163,41 +347,137 @@ public class OllamaRestClient {
 	 */
 	public void ensureModelAvailable(String modelName) throws Exception {
 		if (modelName != null && !modelName.isEmpty()) {
-			ModelInfo info = null;
-			for (ModelInfo m : getModels()) {
-				if (Objects.equals(m.getName(), modelName)) {
-					info = m;
-					break;
+			ensureModelsAvailable(List.of(modelName));
+		}
+	}
+
+	/**
+	 * Checks if the given models are available locally on every ollama backend.
+	 * The model list is fetched once per backend; missing models are pulled in
+	 * parallel (up to <code>ollama.pull.max-concurrent</code> at a time).
+	 * 
+	 * @param modelNames the model names, null or empty names are ignored
+	 * @return the number of pulls that were necessary
+	 * @throws Exception if any pull failed
+	 */
+	public int ensureModelsAvailable(Collection<String> modelNames) throws Exception {
+		Map<String, CompletableFuture<Void>> pulls = new LinkedHashMap<>();
+		for (Backend backend : router.getBackends()) {
+			Set<String> availableNames = new HashSet<>();
+			for (ModelInfo m : getModels(backend.getBaseUrl())) {
+				availableNames.add(m.getName());
+			}
+
+			for (String modelName : new LinkedHashSet<>(modelNames)) {
+				if (modelName == null || modelName.isEmpty()) {
+					continue;
+				}
+				if (availableNames.contains(modelName)) {
+					logger.debug("Model available on {}: {}", backend, modelName);
+				} else {
+					logger.info("Pulling non available model on {}: {}... (this might take a while)", backend,
+							modelName);
+					pulls.put(modelName + " on " + backend,
+							pullModelAsync(backend.getBaseUrl(), modelName, null));
 				}
 			}
-			if (info == null) {
-				logger.info("Pulling non available model: {}... (this might take a while)", modelName);
-				pullModel(modelName);
-			} else {
-				logger.debug("Model available: {}", modelName);
+		}
+
+		Exception failure = null;
+		for (Map.Entry<String, CompletableFuture<Void>> pull : pulls.entrySet()) {
+			try {
+				pull.getValue().get();
+			} catch (InterruptedException e) {
+				pulls.values().forEach(f -> f.cancel(true));
+				throw e;
+			} catch (ExecutionException e) {
+				logger.error("Pull of model {} failed", pull.getKey(), e.getCause());
+				if (failure == null) {
+					failure = new Exception("Pull of model " + pull.getKey() + " failed", e.getCause());
+				}
 			}
 		}
+		if (failure != null) {
+			throw failure;
+		}
+		return pulls.size();
 	}
 
 	/**
-	 * Pulls a model.
+	 * Pulls a model on all backends.
 	 * 
 	 * @param modelName the model name
-	 * @throws JsonProcessingException
+	 * @throws Exception
 	 */
 	public void pullModel(String modelName) throws Exception {
-		Map<String, Object> requestParams = new HashMap<>();
-		requestParams.put("name", modelName);
-		requestParams.put("stream", false);
+		pullModel(modelName, null);
+	}
 
-		logger.info("Pulling Ollama model: {}", modelName);
-		String json = om.writeValueAsString(requestParams);
-		ResponseEntity<String> restRes = rest.postForEntity(ollamaBaseUrl + "/api/pull", json, String.class);
-		if (!restRes.getStatusCode().is2xxSuccessful()) {
-			throw new Exception(
-					"Copy failed. HTTP response " + restRes.getStatusCode().value() + ": " + restRes.getBody());
+	/**
+	 * Pulls a model on all backends in streaming mode. Progress lines are decoded
+	 * incrementally and published as {@link ModelProgressEvent}s (see
+	 * {@link #contextRefreshed()}). The pull can be cancelled by interrupting the
+	 * calling thread.
+	 * 
+	 * @param modelName the model name
+	 * @param listener  optional listener for progress events
+	 * @throws Exception
+	 */
+	public void pullModel(String modelName, @Nullable Consumer<ModelProgressEvent> listener) throws Exception {
+		for (Backend backend : router.getBackends()) {
+			transferModel(Operation.PULL, backend.getBaseUrl(), modelName, listener,
+					() -> Thread.currentThread().isInterrupted());
 		}
-		logger.info("Pull of Ollama model finished: {}", modelName);
+	}
+
+	/**
+	 * Pulls a model on all backends in streaming mode on background threads. At
+	 * most <code>ollama.pull.max-concurrent</code> pulls and pushes run at the
+	 * same time, further ones wait for a free slot. Cancelling the returned
+	 * future (or completing it otherwise, e.g. by
+	 * {@link CompletableFuture#orTimeout}) aborts the pulls with the next
+	 * progress line.
+	 * 
+	 * @param modelName the model name
+	 * @param listener  optional listener for progress events
+	 * @return a future completing when the pulls finished
+	 */
+	public CompletableFuture<Void> pullModelAsync(String modelName, @Nullable Consumer<ModelProgressEvent> listener) {
+		List<CompletableFuture<Void>> pulls = new ArrayList<>();
+		for (Backend backend : router.getBackends()) {
+			pulls.add(pullModelAsync(backend.getBaseUrl(), modelName, listener));
+		}
+		CompletableFuture<Void> result = CompletableFuture.allOf(pulls.toArray(CompletableFuture[]::new));
+		result.whenComplete((r, t) -> {
+			// cancelled or timed out before all pulls finished
+			if (t != null) {
+				pulls.forEach(f -> f.cancel(true));
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Pulls a model on the given ollama instance, see
+	 * {@link #pullModelAsync(String, Consumer)}.
+	 * 
+	 * @param baseUrl   the base URL of the ollama instance
+	 * @param modelName the model name
+	 * @param listener  optional listener for progress events
+	 * @return a future completing when the pull finished
+	 */
+	public CompletableFuture<Void> pullModelAsync(String baseUrl, String modelName,
+			@Nullable Consumer<ModelProgressEvent> listener) {
+		CompletableFuture<Void> result = new CompletableFuture<>();
+		transferExecutor.execute(() -> {
+			try {
+				transferModel(Operation.PULL, baseUrl, modelName, listener, result::isDone);
+				result.complete(null);
+			} catch (Throwable t) {
+				result.completeExceptionally(t);
+			}
+		});
+		return result;
 	}
 
 	/**
@@ -205,21 +485,125 @@ public class OllamaRestClient {
 	 * API Key to allow pushing to ollama.com.
 	 * 
 	 * @param modelName the model name
-	 * @throws JsonProcessingException
+	 * @throws Exception
 	 */
 	public void pushModel(String modelName) throws Exception {
+		pushModel(modelName, null);
+	}
+
+	/**
+	 * Pushes a model from the least loaded backend in streaming mode, see
+	 * {@link #pullModel(String, Consumer)}.
+	 * 
+	 * @param modelName the model name
+	 * @param listener  optional listener for progress events
+	 * @throws Exception
+	 */
+	public void pushModel(String modelName, @Nullable Consumer<ModelProgressEvent> listener) throws Exception {
+		routed(null, baseUrl -> {
+			transferModel(Operation.PUSH, baseUrl, modelName, listener, () -> Thread.currentThread().isInterrupted());
+			return null;
+		});
+	}
+
+	private void transferModel(Operation operation, String baseUrl, String modelName,
+			@Nullable Consumer<ModelProgressEvent> listener, BooleanSupplier cancelled) throws Exception {
 		Map<String, Object> requestParams = new HashMap<>();
 		requestParams.put("name", modelName);
-		requestParams.put("stream", false);
-
-		logger.info("Pushing Ollama model: {}", modelName);
+		requestParams.put("stream", true);
 		String json = om.writeValueAsString(requestParams);
-		ResponseEntity<String> restRes = rest.postForEntity(ollamaBaseUrl + "/api/push", json, String.class);
-		if (!restRes.getStatusCode().is2xxSuccessful()) {
-			throw new Exception(
-					"Push failed. HTTP response " + restRes.getStatusCode().value() + ": " + restRes.getBody());
+		String url = baseUrl + (operation == Operation.PULL ? "/api/pull" : "/api/push");
+
+		transferPermits.acquire();
+		try {
+			if (operation == Operation.PULL) {
+				// a pull may also update an existing model
+				invalidateModelMetadata(modelName);
+			}
+			if (cancelled.getAsBoolean()) {
+				throw new CancellationException(operation + " of " + modelName + " cancelled");
+			}
+			logger.info("{} Ollama model on {}: {}", operation == Operation.PULL ? "Pulling" : "Pushing", baseUrl,
+					modelName);
+			ModelProgressEvent last = rest.execute(url, HttpMethod.POST, rest.httpEntityCallback(json),
+					response -> readProgress(operation, baseUrl, modelName, response.getBody(), listener, cancelled));
+			if (last == null || !last.isSuccess()) {
+				throw new Exception(operation + " of " + modelName + " did not finish, last status: "
+						+ (last != null ? last.getStatus() : null));
+			}
+			logger.info("{} of Ollama model finished: {}", operation == Operation.PULL ? "Pull" : "Push", modelName);
+		} finally {
+			transferPermits.release();
+			if (operation == Operation.PULL) {
+				invalidateModelMetadata(modelName);
+			}
 		}
-		logger.info("Pushing Ollama model finished: {}", modelName);
+	}
+
+	/**
+	 * Drops cached metadata for the given model and the model list, e.g. after
+	 * the model was changed outside of this client.
+	 * 
+	 * @param modelName the model name
+	 */
+	public void invalidateModelMetadata(String modelName) {
+		modelsCache.invalidateAll();
+		detailsCache.invalidate(modelName);
+	}
+
+	/**
+	 * Reads ollama's NDJSON progress stream object by object, without buffering
+	 * the whole response. A cancelled transfer drops the connection, as closing
+	 * the response would read the rest of the stream first.
+	 * 
+	 * @return the last progress event
+	 */
+	private ModelProgressEvent readProgress(Operation operation, String baseUrl, String modelName, InputStream body,
+			@Nullable Consumer<ModelProgressEvent> listener, BooleanSupplier cancelled) throws IOException {
+		ModelProgressEvent last = null;
+		String lastStatus = null;
+		try (JsonParser parser = om.getFactory().createParser(body)) {
+			while (parser.nextToken() == JsonToken.START_OBJECT) {
+				if (cancelled.getAsBoolean()) {
+					if (body instanceof EofSensorInputStream stream) {
+						stream.abort();
+					}
+					throw new CancellationException(operation + " of " + modelName + " cancelled");
+				}
+				ModelProgressEvent event = new ModelProgressEvent();
+				event.setOperation(operation);
+				event.setBackend(baseUrl);
+				event.setModelName(modelName);
+				String error = null;
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String field = parser.currentName();
+					parser.nextToken();
+					switch (field) {
+					case "status" -> event.setStatus(parser.getText());
+					case "digest" -> event.setDigest(parser.getText());
+					case "total" -> event.setTotal(parser.getLongValue());
+					case "completed" -> event.setCompleted(parser.getLongValue());
+					case "error" -> error = parser.getText();
+					default -> parser.skipChildren();
+					}
+				}
+				if (error != null) {
+					throw new IOException(operation + " of " + modelName + " failed: " + error);
+				}
+				if (!Objects.equals(lastStatus, event.getStatus())) {
+					logger.debug("{} {}: {}", operation, modelName, event.getStatus());
+					lastStatus = event.getStatus();
+				}
+				if (contextRefreshed) {
+					eventPublisher.publishEvent(event);
+				}
+				if (listener != null) {
+					listener.accept(event);
+				}
+				last = event;
+			}
+		}
+		return last;
 	}
 
 	/**
@@ -231,24 +615,68 @@ public class OllamaRestClient {
 	 * @throws Exception
 	 */
 	public List<Double> generateEmbeddings(String modelName, String prompt) throws Exception {
-		List<Double> embeddings = new ArrayList<>();
-
 		Map<String, Object> requestParams = new HashMap<>();
 		requestParams.put("model", modelName);
 		requestParams.put("prompt", prompt);
 
 		logger.debug("Generating embeddings");
 		String json = om.writeValueAsString(requestParams);
-		String restRes = rest.postForObject(ollamaBaseUrl + "/api/embeddings", json, String.class);
-		JsonNode result = om.readTree(restRes);
-		JsonNode embeddingsNode = result.get("embedding");
-		for (int i = 0; i < embeddingsNode.size(); i++) {
-			embeddings.add(embeddingsNode.get(i).asDouble());
+		float[] vector = routed(modelName, baseUrl -> rest.execute(baseUrl + "/api/embeddings", HttpMethod.POST,
+				rest.httpEntityCallback(json), response -> decoder.readEmbedding(response.getBody())));
+		List<Double> embeddings = new ArrayList<>(vector.length);
+		for (float v : vector) {
+			embeddings.add((double) v);
 		}
 		logger.debug("Generating embeddings finished");
 		return embeddings;
 	}
 
+	/**
+	 * Generates the embedding for a single input via the batch endpoint.
+	 * 
+	 * @param modelName the model, e.g. all-minilm
+	 * @param input     the text to generate the embedding for
+	 * @return the embedding vector
+	 * @throws Exception
+	 */
+	public float[] generateEmbedding(String modelName, String input) throws Exception {
+		return generateEmbeddings(modelName, List.of(input))[0];
+	}
+
+	/**
+	 * Generates embeddings for many inputs using ollama's multi-input
+	 * <code>/api/embed</code> endpoint. Inputs are sent in chunks of
+	 * <code>ollama.embed.batch-size</code>, so one HTTP round trip covers a whole
+	 * chunk instead of a single prompt.
+	 * 
+	 * @param modelName the model, e.g. all-minilm
+	 * @param inputs    the texts to generate embeddings for
+	 * @return one embedding vector per input, in input order
+	 * @throws Exception
+	 */
+	public float[][] generateEmbeddings(String modelName, List<String> inputs) throws Exception {
+		float[][] result = new float[inputs.size()][];
+
+		logger.debug("Generating embeddings for {} input(s)", inputs.size());
+		for (int from = 0; from < inputs.size(); from += embedBatchSize) {
+			int to = Math.min(from + embedBatchSize, inputs.size());
+
+			Map<String, Object> requestParams = new HashMap<>();
+			requestParams.put("model", modelName);
+			requestParams.put("input", inputs.subList(from, to));
+
+			String json = om.writeValueAsString(requestParams);
+			float[][] embeddings = routed(modelName, baseUrl -> rest.execute(baseUrl + "/api/embed",
+					HttpMethod.POST, rest.httpEntityCallback(json), response -> decoder.readEmbeddings(response.getBody())));
+			if (embeddings.length != to - from) {
+				throw new Exception("Embed failed. Expected " + (to - from) + " embeddings, got " + embeddings.length);
+			}
+			System.arraycopy(embeddings, 0, result, from, to - from);
+		}
+		logger.debug("Generating embeddings finished");
+		return result;
+	}
+
 	/**
 	 * Returns the model template for the given model
 	 * 
@@ -257,13 +685,38 @@ public class OllamaRestClient {
 	 * @throws JsonProcessingException
 	 */
 	public String getModelTemplate(String modelName) throws JsonProcessingException {
-		Map<String, String> values = new HashMap<>();
-		values.put("name", modelName);
-		String json = om.writeValueAsString(values);
-		String result = rest.postForObject(ollamaBaseUrl + "/api/show", json, String.class);
-		JsonNode node = om.readTree(result);
-		String template = node.get("template").asText();
-		return template;
+		try {
+			String template = getModelDetails(modelName).getTemplate();
+			return template;
+		} catch (JsonProcessingException | RuntimeException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new ResourceAccessException("Could not read the details of " + modelName, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RestClientException("Interrupted while reading the details of " + modelName, e);
+		} catch (Exception e) {
+			throw new RestClientException("Could not read the details of " + modelName, e);
+		}
+	}
+
+	/**
+	 * Runs a call on the backend selected by the router for the model.
+	 * Connection failures and server errors count towards ejecting the backend.
+	 */
+	private <T> T routed(@Nullable String modelName, RoutedCall<T> call) throws Exception {
+		try (Lease lease = router.acquire(modelName)) {
+			try {
+				return call.call(lease.getBaseUrl());
+			} catch (ResourceAccessException | HttpServerErrorException e) {
+				lease.failed();
+				throw e;
+			}
+		}
+	}
+
+	private interface RoutedCall<T> {
+		T call(String baseUrl) throws Exception;
 	}
 
 	private <T> ResponseEntity<T> deleteForEntity(String url, @Nullable Object request, Class<T> responseType,
@@ -282,5 +735,39 @@ public class OllamaRestClient {
 		private String modified_at;
 		private String size;
 		private String digest;
+		/** download size in bytes, 0 if unknown */
+		private long sizeBytes;
+
+		public ModelInfo(String name, String modified_at, String size, String digest) {
+			this(name, modified_at, size, digest, 0);
+		}
+	}
+
+	@Data
+	@AllArgsConstructor
+	@NoArgsConstructor
+	@ToString
+	public static class RunningModelInfo {
+		private String name;
+		/** memory size in bytes */
+		private long size;
+		private long size_vram;
+		private String expires_at;
+	}
+
+	@Data
+	@AllArgsConstructor
+	@NoArgsConstructor
+	@ToString
+	public static class ModelDetails {
+		private String license;
+		private String modelfile;
+		private String parameters;
+		private String template;
+		private String system;
+		private String format;
+		private String family;
+		private String parameter_size;
+		private String quantization_level;
 	}
 }
@@ -0,0 +1,96 @@
+package com.jadice.blog.l4j;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientResponseException;
+
+import com.jadice.blog.l4j.OllamaBackendRouter.Lease;
+
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.output.Response;
+
+/**
+ * Chat model that routes every request over the ollama backends of the
+ * {@link OllamaBackendRouter}. One delegate model is created per backend, e.g.
+ *
+ * <pre>
+ * new RoutingChatLanguageModel(router, modelName, baseUrl -&gt; OllamaChatModel.builder().baseUrl(baseUrl)
+ * 		.modelName(modelName).timeout(Duration.ofMinutes(5)).build());
+ * </pre>
+ * 
+ * Like in the {@link OllamaRestClient}, only connection failures and server
+ * errors count towards ejecting a backend, not client errors like an unknown
+ * model. langchain4j's ollama client reports HTTP errors without a status code,
+ * so backends answering with server errors to such delegates are only ejected by
+ * {@link OllamaBackendRouter#refresh()}.
+ */
+public class RoutingChatLanguageModel implements ChatLanguageModel {
+	private final OllamaBackendRouter router;
+	private final String modelName;
+	private final Function<String, ChatLanguageModel> modelFactory;
+	private final Map<String, ChatLanguageModel> models = new ConcurrentHashMap<>();
+
+	/**
+	 * @param router       the router
+	 * @param modelName    the model name used for routing
+	 * @param modelFactory creates the delegate model for a backend base URL
+	 */
+	public RoutingChatLanguageModel(OllamaBackendRouter router, String modelName,
+			Function<String, ChatLanguageModel> modelFactory) {
+		this.router = router;
+		this.modelName = modelName;
+		this.modelFactory = modelFactory;
+	}
+
+	@Override
+	public Response<AiMessage> generate(List<ChatMessage> messages) {
+		return routed(model -> model.generate(messages));
+	}
+
+	@Override
+	public Response<AiMessage> generate(List<ChatMessage> messages, List<ToolSpecification> toolSpecifications) {
+		return routed(model -> model.generate(messages, toolSpecifications));
+	}
+
+	@Override
+	public Response<AiMessage> generate(List<ChatMessage> messages, ToolSpecification toolSpecification) {
+		return routed(model -> model.generate(messages, toolSpecification));
+	}
+
+	private Response<AiMessage> routed(Function<ChatLanguageModel, Response<AiMessage>> call) {
+		try (Lease lease = router.acquire(modelName)) {
+			try {
+				return call.apply(models.computeIfAbsent(lease.getBaseUrl(), modelFactory));
+			} catch (RuntimeException e) {
+				if (isBackendFailure(e)) {
+					lease.failed();
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * @return whether the exception or one of its causes is a connection failure
+	 *         or a server error (5xx)
+	 */
+	static boolean isBackendFailure(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof IOException || t instanceof ResourceAccessException) {
+				return true;
+			}
+			if (t instanceof RestClientResponseException r && r.getStatusCode().is5xxServerError()) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,437 @@
+package com.jadice.blog.l4j.embedding;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link EmbeddingModel} decorator caching embeddings on disk, keyed by a
+ * SHA-256 hash of the model identity and the segment text. Only segments not
+ * in the cache are passed to the delegate, so re-embedding an unchanged corpus
+ * costs hashing and lookups only.
+ * <p>
+ * Each model has its own cache file in the directory, see
+ * {@link #cacheFileName(String)}, which only one instance may open at a time.
+ * It is an append-only log of records [128 bit key, dimension, float32 vector]
+ * (little-endian). The index
+ * (key to file position) is kept on the heap in LRU order; if the vectors
+ * exceed <code>maxBytes</code>, least recently used entries are evicted. The
+ * log is compacted when more than half of it is evicted or replaced data.
+ * <p>
+ * Metrics: <code>embedding.cache</code> counts segments with tag
+ * <code>result</code> (hit/miss), <code>embedding.cache.saved</code> the
+ * estimated embedding time saved by hits (seconds, based on the mean delegate
+ * time per segment) and <code>embedding.cache.size</code> the cached bytes;
+ * all tagged with <code>model</code>.
+ */
+@Slf4j
+public class CachingEmbeddingModel implements EmbeddingModel, AutoCloseable {
+	private static final int MAGIC = 0x4C344543;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_HEADER_SIZE = 2 * Long.BYTES + Integer.BYTES;
+	private static final long MIN_COMPACTION_BYTES = 1 << 20;
+
+	private record Key(long high, long low) {
+	}
+
+	private record Entry(long position, int dimension) {
+		long bytes() {
+			return RECORD_HEADER_SIZE + (long) dimension * Float.BYTES;
+		}
+	}
+
+	private final EmbeddingModel delegate;
+	private final String modelId;
+	private final Path file;
+	private final long maxBytes;
+	private final FileChannel lockChannel;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	// access order: the eldest entry is the least recently used one
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(1024, 0.75f, true);
+	private FileChannel channel;
+	private long fileSize;
+	private volatile long liveBytes;
+
+	private final Counter hits;
+	private final Counter misses;
+	private final Counter saved;
+	private volatile double nanosPerSegment;
+
+	private CachingEmbeddingModel(EmbeddingModel delegate, String modelId, Path directory, long maxBytes,
+			MeterRegistry meterRegistry) throws IOException {
+		this.delegate = delegate;
+		this.modelId = modelId;
+		this.file = directory.resolve(cacheFileName(modelId));
+		this.maxBytes = maxBytes;
+		Files.createDirectories(directory);
+		this.lockChannel = lock(file);
+		this.hits = Counter.builder("embedding.cache").tag("model", modelId).tag("result", "hit")
+				.register(meterRegistry);
+		this.misses = Counter.builder("embedding.cache").tag("model", modelId).tag("result", "miss")
+				.register(meterRegistry);
+		this.saved = Counter.builder("embedding.cache.saved").baseUnit("seconds").tag("model", modelId)
+				.register(meterRegistry);
+		Gauge.builder("embedding.cache.size", this, c -> c.liveBytes).baseUnit("bytes").tag("model", modelId)
+				.register(meterRegistry);
+		try {
+			load();
+		} catch (IOException | RuntimeException e) {
+			lockChannel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens the cache in the given directory, creating it if necessary. Several
+	 * models can share one directory, each model can only be opened once.
+	 *
+	 * @param delegate      the model computing missing embeddings
+	 * @param modelId       identity of the model, part of the cache key, e.g.
+	 *                      <code>bge-small-en-v1.5-q</code>; change it when the
+	 *                      model changes
+	 * @param directory     the cache directory
+	 * @param maxBytes      max. size of the cached entries on disk
+	 * @param meterRegistry registry for the cache metrics
+	 * @return the caching model
+	 * @throws IOException if the cache of the model is already open
+	 */
+	public static CachingEmbeddingModel open(EmbeddingModel delegate, String modelId, Path directory, long maxBytes,
+			MeterRegistry meterRegistry) throws IOException {
+		return new CachingEmbeddingModel(delegate, modelId, directory, maxBytes, meterRegistry);
+	}
+
+	/**
+	 * @return the name of the cache file of the model: the model id, reduced to
+	 *         file name characters, and a hash of it
+	 */
+	public static String cacheFileName(String modelId) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(modelId.getBytes(StandardCharsets.UTF_8));
+			return "embeddings-" + modelId.replaceAll("[^A-Za-z0-9._-]", "_") + "-"
+					+ HexFormat.of().formatHex(hash, 0, 4) + ".cache";
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	/**
+	 * @return the number of cached embeddings
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the bytes of the cached entries
+	 */
+	public long getSizeBytes() {
+		return liveBytes;
+	}
+
+	public long getHitCount() {
+		return (long) hits.count();
+	}
+
+	public long getMissCount() {
+		return (long) misses.count();
+	}
+
+	/**
+	 * @return the estimated embedding time saved by cache hits, in seconds
+	 */
+	public double getSavedSeconds() {
+		return saved.count();
+	}
+
+	@Override
+	public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+		Embedding[] result = new Embedding[textSegments.size()];
+		// missing keys with the indexes of their segments; duplicates are embedded once
+		Map<Key, List<Integer>> missing = new LinkedHashMap<>();
+		Key[] keys = new Key[textSegments.size()];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = key(textSegments.get(i).text());
+		}
+
+		lock.lock();
+		try {
+			for (int i = 0; i < keys.length; i++) {
+				Entry entry = entries.get(keys[i]);
+				if (entry != null) {
+					result[i] = Embedding.from(read(entry));
+				} else {
+					missing.computeIfAbsent(keys[i], k -> new ArrayList<>()).add(i);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			lock.unlock();
+		}
+		int hitCount = result.length - missing.values().stream().mapToInt(List::size).sum();
+		hits.increment(hitCount);
+		misses.increment(result.length - hitCount);
+		saved.increment(hitCount * nanosPerSegment / 1e9);
+		if (missing.isEmpty()) {
+			return Response.from(List.of(result));
+		}
+
+		List<TextSegment> toEmbed = new ArrayList<>(missing.size());
+		for (List<Integer> indexes : missing.values()) {
+			toEmbed.add(textSegments.get(indexes.get(0)));
+		}
+		long start = System.nanoTime();
+		Response<List<Embedding>> response = delegate.embedAll(toEmbed);
+		nanosPerSegment = (double) (System.nanoTime() - start) / toEmbed.size();
+		List<Embedding> embedded = response.content();
+
+		lock.lock();
+		try {
+			int i = 0;
+			for (Map.Entry<Key, List<Integer>> miss : missing.entrySet()) {
+				Embedding embedding = embedded.get(i++);
+				append(miss.getKey(), embedding.vector());
+				for (int index : miss.getValue()) {
+					result[index] = embedding;
+				}
+			}
+			evict();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			lock.unlock();
+		}
+		return Response.from(List.of(result), response.tokenUsage());
+	}
+
+	/**
+	 * Writes the cache file to disk.
+	 */
+	public void flush() {
+		lock.lock();
+		try {
+			channel.force(false);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			channel.force(false);
+			channel.close();
+		} finally {
+			lockChannel.close();
+			lock.unlock();
+		}
+	}
+
+	private Key key(String text) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(modelId.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			ByteBuffer hash = ByteBuffer.wrap(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+			return new Key(hash.getLong(), hash.getLong());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	private float[] read(Entry entry) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(entry.dimension() * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, buffer, entry.position() + RECORD_HEADER_SIZE);
+		float[] vector = new float[entry.dimension()];
+		buffer.flip().asFloatBuffer().get(vector);
+		return vector;
+	}
+
+	private void append(Key key, float[] vector) throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + vector.length * Float.BYTES)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		record.putLong(key.high()).putLong(key.low()).putInt(vector.length);
+		record.asFloatBuffer().put(vector);
+		record.position(record.limit()).flip();
+		while (record.hasRemaining()) {
+			fileSize += channel.write(record, fileSize);
+		}
+		Entry entry = new Entry(fileSize - record.limit(), vector.length);
+		index(key, entry);
+	}
+
+	private void index(Key key, Entry entry) {
+		Entry replaced = entries.put(key, entry);
+		liveBytes += entry.bytes() - (replaced != null ? replaced.bytes() : 0);
+	}
+
+	/**
+	 * Removes least recently used entries until the size limit is met, and
+	 * compacts the log if it is mostly garbage.
+	 */
+	private void evict() throws IOException {
+		int evicted = 0;
+		for (Iterator<Entry> it = entries.values().iterator(); liveBytes > maxBytes && it.hasNext();) {
+			liveBytes -= it.next().bytes();
+			it.remove();
+			evicted++;
+		}
+		if (evicted > 0) {
+			logger.debug("Evicted {} embedding(s) from cache {}", evicted, file);
+		}
+		long logBytes = fileSize - HEADER_SIZE;
+		if (logBytes > MIN_COMPACTION_BYTES && logBytes > 2 * liveBytes) {
+			compact();
+		}
+	}
+
+	/**
+	 * Rewrites the live entries in LRU order, so the order survives restarts.
+	 */
+	private void compact() throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		LinkedHashMap<Key, Entry> compacted = new LinkedHashMap<>(entries.size() * 2, 0.75f, true);
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			long position = writeHeader(out);
+			for (Map.Entry<Key, Entry> e : entries.entrySet()) {
+				Entry entry = e.getValue();
+				ByteBuffer record = ByteBuffer.allocate((int) entry.bytes());
+				readFully(channel, record, entry.position());
+				record.flip();
+				compacted.put(e.getKey(), new Entry(position, entry.dimension()));
+				while (record.hasRemaining()) {
+					position += out.write(record, position);
+				}
+			}
+			out.force(false);
+			fileSize = position;
+		}
+		channel.close();
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		entries.clear();
+		entries.putAll(compacted);
+		logger.debug("Compacted cache {} to {} KB", file, fileSize / 1024);
+	}
+
+	private void load() throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		long size = channel.size();
+		if (size < HEADER_SIZE || !validHeader()) {
+			if (size > 0) {
+				logger.warn("Cache {} has an unknown format and is recreated", file);
+			}
+			channel.truncate(0);
+			fileSize = writeHeader(channel);
+			return;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		long position = HEADER_SIZE;
+		while (position + RECORD_HEADER_SIZE <= size) {
+			header.clear();
+			readFully(channel, header, position);
+			header.flip();
+			Key key = new Key(header.getLong(), header.getLong());
+			Entry entry = new Entry(position, header.getInt());
+			if (entry.dimension() < 0 || position + entry.bytes() > size) {
+				break;
+			}
+			index(key, entry);
+			position += entry.bytes();
+		}
+		if (position < size) {
+			// incomplete record of an interrupted write
+			logger.warn("Cache {}: truncating {} byte(s) of an incomplete record", file, size - position);
+			channel.truncate(position);
+		}
+		fileSize = position;
+		evict();
+		logger.debug("Opened embedding cache {}: {} entries, {} KB", file, entries.size(), liveBytes / 1024);
+	}
+
+	/**
+	 * Locks the cache against other instances, also of other processes. The cache
+	 * file itself is replaced by compaction, so a separate lock file is used.
+	 */
+	private static FileChannel lock(Path file) throws IOException {
+		FileChannel lockChannel = FileChannel.open(file.resolveSibling(file.getFileName() + ".lock"),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock fileLock;
+		try {
+			fileLock = lockChannel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			fileLock = null;
+		}
+		if (fileLock == null) {
+			lockChannel.close();
+			throw new IOException("Embedding cache " + file + " is already in use");
+		}
+		return lockChannel;
+	}
+
+	private boolean validHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, header, 0);
+		header.flip();
+		return header.getInt() == MAGIC && header.getInt() == VERSION;
+	}
+
+	private static long writeHeader(FileChannel out) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).clear();
+		while (header.hasRemaining()) {
+			out.write(header, header.position());
+		}
+		return HEADER_SIZE;
+	}
+
+	private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = in.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of embedding cache");
+			}
+			position += read;
+		}
+	}
+}
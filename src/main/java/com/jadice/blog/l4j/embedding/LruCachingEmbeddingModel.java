@@ -0,0 +1,353 @@
+package com.jadice.blog.l4j.embedding;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.text.Normalizer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link EmbeddingModel} decorator with a bounded in-memory LRU cache, for
+ * query embeddings: repeated questions are embedded once. Keys are the texts
+ * normalized to Unicode NFC with trimmed and collapsed whitespace.
+ * <p>
+ * The cache is split into lock stripes by key hash, each with its own LRU
+ * order, so lookups of different texts rarely contend; it holds at most
+ * <code>maxEntries</code> embeddings. Concurrent requests for the same missing
+ * text share one computation (single-flight); texts missing in a batch are
+ * passed to the delegate in one call. Failed computations are not cached.
+ * <p>
+ * Off-heap, the vectors are kept in one direct buffer per stripe with a slot
+ * per entry, allocated on the first store; a large cache then adds neither
+ * heap nor GC load. On-heap, each entry holds a float array. Callers always
+ * get a copy.
+ * <p>
+ * Metrics: <code>embedding.query.cache</code> counts texts with tag
+ * <code>result</code> (hit, miss, or shared: waited for a concurrent
+ * computation), <code>embedding.query.cache.size</code> is the number of cached
+ * embeddings and <code>embedding.query</code> times calls with tag
+ * <code>result</code> (hit if all texts were cached, miss otherwise) and the
+ * percentiles 0.5, 0.95 and 0.99; all tagged with <code>model</code>.
+ */
+@Slf4j
+public final class LruCachingEmbeddingModel implements EmbeddingModel {
+
+	private static final int MAX_STRIPES = 16;
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+	/**
+	 * A cached or computing embedding. While computing, waiting callers share
+	 * the computation; afterwards the vector is in <code>vector</code> or in the
+	 * <code>slot</code> of the stripe buffer.
+	 */
+	private static final class Entry {
+		private final String key;
+		private CompletableFuture<float[]> computation = new CompletableFuture<>();
+		private float[] vector;
+		private int slot = -1;
+
+		private Entry(String key) {
+			this.key = key;
+		}
+
+		private boolean isComputed() {
+			return computation == null;
+		}
+	}
+
+	private final class Stripe {
+		private final ReentrantLock lock = new ReentrantLock();
+		// access order: the eldest entry is the least recently used one
+		private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+		private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+		private int computed;
+		private FloatBuffer vectors;
+		private int dimension;
+
+		/**
+		 * Stores the computed vector of an entry, evicting least recently used
+		 * entries if the stripe is full; called with the lock held.
+		 *
+		 * @return false if the vector cannot be stored off-heap, as its dimension
+		 *         differs from the cached ones
+		 */
+		private boolean store(Entry entry, float[] vector) {
+			for (Iterator<Entry> it = entries.values().iterator(); computed >= capacityPerStripe && it.hasNext();) {
+				Entry eldest = it.next();
+				if (eldest.isComputed()) {
+					if (eldest.slot >= 0) {
+						freeSlots.push(eldest.slot);
+					}
+					it.remove();
+					computed--;
+				}
+			}
+			if (!offHeap) {
+				entry.vector = vector.clone();
+			} else {
+				if (vectors == null) {
+					allocate(vector.length);
+				}
+				if (vector.length != dimension) {
+					return false;
+				}
+				entry.slot = freeSlots.pop();
+				vectors.put(entry.slot * dimension, vector);
+			}
+			entry.computation = null;
+			computed++;
+			return true;
+		}
+
+		/**
+		 * @return a copy of the stored vector; called with the lock held
+		 */
+		private float[] read(Entry entry) {
+			if (!offHeap) {
+				return entry.vector.clone();
+			}
+			float[] vector = new float[dimension];
+			vectors.get(entry.slot * dimension, vector);
+			return vector;
+		}
+
+		private void allocate(int dimension) {
+			if ((long) capacityPerStripe * dimension * Float.BYTES > Integer.MAX_VALUE) {
+				throw new IllegalStateException("Off-heap stripe too large: " + capacityPerStripe + " x "
+						+ dimension + " floats; use fewer entries");
+			}
+			this.dimension = dimension;
+			vectors = ByteBuffer.allocateDirect(capacityPerStripe * dimension * Float.BYTES)
+					.order(ByteOrder.nativeOrder()).asFloatBuffer();
+			for (int slot = 0; slot < capacityPerStripe; slot++) {
+				freeSlots.add(slot);
+			}
+		}
+	}
+
+	private final EmbeddingModel delegate;
+	private final boolean offHeap;
+	private final Stripe[] stripes;
+	private final int capacityPerStripe;
+
+	private final Counter hits;
+	private final Counter misses;
+	private final Counter shared;
+	private final Timer hitTimer;
+	private final Timer missTimer;
+
+	/**
+	 * @param delegate      the model computing missing embeddings
+	 * @param modelId       identity of the model, used as metrics tag
+	 * @param maxEntries    max. number of cached embeddings
+	 * @param offHeap       whether vectors are kept in direct buffers outside
+	 *                      the heap
+	 * @param meterRegistry registry for the cache metrics
+	 */
+	public LruCachingEmbeddingModel(EmbeddingModel delegate, String modelId, int maxEntries, boolean offHeap,
+			MeterRegistry meterRegistry) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be >= 1");
+		}
+		this.delegate = delegate;
+		this.offHeap = offHeap;
+		int stripeCount = Integer.highestOneBit(Math.min(MAX_STRIPES, maxEntries));
+		this.stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new Stripe();
+		}
+		this.capacityPerStripe = maxEntries / stripeCount;
+
+		this.hits = Counter.builder("embedding.query.cache").tag("model", modelId).tag("result", "hit")
+				.register(meterRegistry);
+		this.misses = Counter.builder("embedding.query.cache").tag("model", modelId).tag("result", "miss")
+				.register(meterRegistry);
+		this.shared = Counter.builder("embedding.query.cache").tag("model", modelId).tag("result", "shared")
+				.register(meterRegistry);
+		this.hitTimer = queryTimer(modelId, "hit", meterRegistry);
+		this.missTimer = queryTimer(modelId, "miss", meterRegistry);
+		Gauge.builder("embedding.query.cache.size", this, LruCachingEmbeddingModel::size).tag("model", modelId)
+				.register(meterRegistry);
+	}
+
+	/**
+	 * @return the number of cached embeddings, without running computations
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				size += stripe.computed;
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+		return size;
+	}
+
+	public long getHitCount() {
+		return (long) hits.count();
+	}
+
+	public long getMissCount() {
+		return (long) misses.count();
+	}
+
+	/**
+	 * @return the number of texts that waited for a concurrent computation
+	 */
+	public long getSharedCount() {
+		return (long) shared.count();
+	}
+
+	@Override
+	public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+		long start = System.nanoTime();
+		float[][] result = new float[textSegments.size()][];
+		// entries computed by this call, and the computations the call waits for
+		Map<Entry, TextSegment> owned = new LinkedHashMap<>();
+		Map<Integer, CompletableFuture<float[]>> pending = new LinkedHashMap<>();
+		int waiting = 0;
+
+		for (int i = 0; i < result.length; i++) {
+			String key = normalize(textSegments.get(i).text());
+			Stripe stripe = stripe(key);
+			stripe.lock.lock();
+			try {
+				Entry entry = stripe.entries.get(key);
+				if (entry == null) {
+					entry = new Entry(key);
+					stripe.entries.put(key, entry);
+					owned.put(entry, textSegments.get(i));
+					pending.put(i, entry.computation);
+				} else if (entry.isComputed()) {
+					result[i] = stripe.read(entry);
+				} else {
+					// duplicates within the call count as hits
+					if (!owned.containsKey(entry)) {
+						waiting++;
+					}
+					pending.put(i, entry.computation);
+				}
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+
+		Response<List<Embedding>> response = owned.isEmpty() ? null : compute(owned);
+		for (Map.Entry<Integer, CompletableFuture<float[]>> p : pending.entrySet()) {
+			try {
+				result[p.getKey()] = p.getValue().join().clone();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof Error error) {
+					throw error;
+				}
+				throw e.getCause() instanceof RuntimeException cause ? cause : e;
+			}
+		}
+
+		misses.increment(owned.size());
+		shared.increment(waiting);
+		hits.increment(result.length - owned.size() - waiting);
+		(pending.isEmpty() ? hitTimer : missTimer).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+		List<Embedding> embeddings = new ArrayList<>(result.length);
+		for (float[] vector : result) {
+			embeddings.add(Embedding.from(vector));
+		}
+		return response != null ? Response.from(embeddings, response.tokenUsage()) : Response.from(embeddings);
+	}
+
+	/**
+	 * Computes the owned entries in one delegate call and publishes the results.
+	 * On any failure, errors included, the entries are removed and their waiters
+	 * fail, so later calls retry.
+	 */
+	private Response<List<Embedding>> compute(Map<Entry, TextSegment> owned) {
+		Response<List<Embedding>> response;
+		List<Embedding> embedded;
+		try {
+			response = delegate.embedAll(new ArrayList<>(owned.values()));
+			embedded = response.content();
+			if (embedded.size() != owned.size()) {
+				throw new IllegalStateException(
+						"Delegate returned " + embedded.size() + " embedding(s) for " + owned.size() + " text(s)");
+			}
+		} catch (Throwable e) {
+			for (Entry entry : owned.keySet()) {
+				CompletableFuture<float[]> computation = entry.computation;
+				remove(entry);
+				computation.completeExceptionally(e);
+			}
+			throw e;
+		}
+
+		int i = 0;
+		for (Entry entry : owned.keySet()) {
+			float[] vector = embedded.get(i++).vector();
+			CompletableFuture<float[]> computation = entry.computation;
+			Stripe stripe = stripe(entry.key);
+			stripe.lock.lock();
+			try {
+				if (!stripe.store(entry, vector)) {
+					stripe.entries.remove(entry.key, entry);
+					logger.warn("Embedding of dimension {} not cached, the cache has dimension {}", vector.length,
+							stripe.dimension);
+				}
+			} finally {
+				stripe.lock.unlock();
+			}
+			computation.complete(vector);
+		}
+		return response;
+	}
+
+	private void remove(Entry entry) {
+		Stripe stripe = stripe(entry.key);
+		stripe.lock.lock();
+		try {
+			stripe.entries.remove(entry.key, entry);
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	private Stripe stripe(String key) {
+		int hash = key.hashCode();
+		return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+	}
+
+	/**
+	 * @param text the text
+	 * @return the text in NFC with trimmed and collapsed whitespace
+	 */
+	static String normalize(String text) {
+		return WHITESPACE.matcher(Normalizer.normalize(text, Normalizer.Form.NFC).strip()).replaceAll(" ");
+	}
+
+	private static Timer queryTimer(String modelId, String result, MeterRegistry meterRegistry) {
+		return Timer.builder("embedding.query").tag("model", modelId).tag("result", result)
+				.publishPercentiles(0.5, 0.95, 0.99).publishPercentileHistogram().register(meterRegistry);
+	}
+}
@@ -0,0 +1,471 @@
+package com.jadice.blog.l4j.ingest;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentParser;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.loader.FileSystemDocumentLoader;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps an {@link EmbeddingStore} in sync with the files below a document
+ * root. A manifest (JSON) maps each file to its content hash and the ids of its
+ * segments, so only new or modified files are split and embedded; segments of
+ * modified and deleted files are removed from the store. The manifest belongs
+ * to the store: with a store that does not persist its content, e.g. an
+ * in-memory store, start without the manifest of a previous run, or its files
+ * are taken as indexed.
+ * <p>
+ * {@link #synchronize()} compares the whole tree with the manifest, e.g. after
+ * a restart. {@link #start()} additionally watches the tree with a
+ * {@link WatchService} and applies changes per file after a short quiet period
+ * (see {@link #setDebounce(Duration)}), as editors often write a file in
+ * several steps. New segments are added before old ones are removed, so a
+ * document never disappears from search results while it is updated.
+ * <p>
+ * The time from the first change event of a file until its new segments are
+ * searchable is recorded as <code>indexer.update</code> (tag
+ * <code>change</code>) and passed to the {@link #setListener(Consumer)
+ * listener}.
+ */
+@Slf4j
+public class DirectoryIndexer implements AutoCloseable {
+
+	public enum Change {
+		ADDED, UPDATED, REMOVED
+	}
+
+	/**
+	 * @param path     the path of the file relative to the root
+	 * @param change   the kind of change
+	 * @param segments the number of segments now stored for the file
+	 * @param latency  time from the first change event until the store was
+	 *                 updated; zero for changes found by {@link #synchronize()}
+	 */
+	public record IndexUpdate(String path, Change change, int segments, Duration latency) {
+	}
+
+	/**
+	 * @param added     the number of new files
+	 * @param updated   the number of modified files
+	 * @param removed   the number of deleted files
+	 * @param unchanged the number of unchanged files
+	 */
+	public record SyncResult(int added, int updated, int removed, int unchanged) {
+	}
+
+	@Data
+	@AllArgsConstructor
+	@NoArgsConstructor
+	public static class ManifestEntry {
+		private String hash;
+		private List<String> segmentIds;
+	}
+
+	private final Path root;
+	private final EmbeddingModel embeddingModel;
+	private final EmbeddingStore<TextSegment> embeddingStore;
+	private final DocumentSplitter splitter;
+	private final Path manifestFile;
+	private final MeterRegistry meterRegistry;
+	private final ObjectMapper om = new ObjectMapper();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	// relative path (with '/') to entry, sorted for a stable manifest file
+	private final TreeMap<String, ManifestEntry> manifest = new TreeMap<>();
+
+	private DocumentParser parser;
+	private Duration debounce = Duration.ofMillis(100);
+	private Consumer<IndexUpdate> listener = update -> {
+	};
+
+	private WatchService watchService;
+	private Thread watcher;
+
+	/**
+	 * @param root           the document root
+	 * @param embeddingModel the model embedding the segments
+	 * @param embeddingStore the store; must support removal by ids
+	 * @param splitter       the splitter for the documents
+	 * @param manifestFile   the manifest of the store; loaded if it exists
+	 * @param meterRegistry  registry for the update latency timer
+	 * @throws IOException if the manifest cannot be read
+	 */
+	public DirectoryIndexer(Path root, EmbeddingModel embeddingModel, EmbeddingStore<TextSegment> embeddingStore,
+			DocumentSplitter splitter, Path manifestFile, MeterRegistry meterRegistry) throws IOException {
+		this.root = root.toAbsolutePath().normalize();
+		this.embeddingModel = embeddingModel;
+		this.embeddingStore = embeddingStore;
+		this.splitter = splitter;
+		this.manifestFile = manifestFile;
+		this.meterRegistry = meterRegistry;
+		if (Files.exists(manifestFile)) {
+			manifest.putAll(om.readValue(manifestFile.toFile(), new TypeReference<Map<String, ManifestEntry>>() {
+			}));
+		}
+	}
+
+	/**
+	 * @param parser the parser for all files; by default the parser found by
+	 *               {@link FileSystemDocumentLoader} is used
+	 */
+	public void setParser(DocumentParser parser) {
+		this.parser = parser;
+	}
+
+	/**
+	 * @param debounce quiet period after the last change event before changed
+	 *                 files are indexed; on constant changes they are indexed
+	 *                 after ten times this period at the latest
+	 */
+	public void setDebounce(Duration debounce) {
+		this.debounce = debounce;
+	}
+
+	/**
+	 * @param listener called after each applied change, on the indexing thread
+	 */
+	public void setListener(Consumer<IndexUpdate> listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return the number of indexed files
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return manifest.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param path the file path, relative to the root
+	 * @return the ids of the stored segments of the file, empty if the file is
+	 *         not indexed
+	 */
+	public List<String> getSegmentIds(String path) {
+		lock.lock();
+		try {
+			ManifestEntry entry = manifest.get(path);
+			return entry != null ? List.copyOf(entry.getSegmentIds()) : List.of();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Indexes new and modified files and removes deleted ones.
+	 *
+	 * @return the counts of the changes
+	 * @throws IOException
+	 */
+	public SyncResult synchronize() throws IOException {
+		lock.lock();
+		try {
+			List<Path> files;
+			try (Stream<Path> walk = Files.walk(root)) {
+				files = walk.filter(f -> Files.isRegularFile(f) && !isManifest(f)).sorted().toList();
+			}
+			int added = 0;
+			int updated = 0;
+			int unchanged = 0;
+			Set<String> seen = new HashSet<>(files.size() * 2);
+			for (Path file : files) {
+				String path = relative(file);
+				seen.add(path);
+				Change change;
+				try {
+					change = update(file, path, 0);
+				} catch (IOException | RuntimeException e) {
+					logger.warn("Could not index {}", file, e);
+					continue;
+				}
+				if (change == Change.ADDED) {
+					added++;
+				} else if (change == Change.UPDATED) {
+					updated++;
+				} else {
+					unchanged++;
+				}
+			}
+			int removed = 0;
+			for (String path : new ArrayList<>(manifest.keySet())) {
+				if (!seen.contains(path) && remove(path, 0)) {
+					removed++;
+				}
+			}
+			saveManifest();
+			SyncResult result = new SyncResult(added, updated, removed, unchanged);
+			logger.info("Synchronized {}: {}", root, result);
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Synchronizes the tree and then watches it for changes until
+	 * {@link #close()}.
+	 *
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		if (watcher != null) {
+			throw new IllegalStateException("Indexer already started");
+		}
+		watchService = root.getFileSystem().newWatchService();
+		// register first, so changes during the synchronization are not missed
+		registerTree(root);
+		synchronize();
+		watcher = Thread.ofPlatform().name("indexer-" + root.getFileName()).daemon().start(this::watch);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (watchService != null) {
+			watchService.close();
+		}
+		if (watcher != null) {
+			try {
+				watcher.join(TimeUnit.SECONDS.toMillis(10));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void watch() {
+		// relative path to the nanoTime of its first event since the last indexing
+		Map<String, Long> pending = new LinkedHashMap<>();
+		long lastEventNanos = 0;
+		try {
+			while (true) {
+				WatchKey key;
+				if (pending.isEmpty()) {
+					key = watchService.take();
+				} else {
+					// wait for a quiet period, but not forever on constant changes
+					long quietNanos = debounce.toNanos();
+					long firstEventNanos = pending.values().iterator().next();
+					long wait = Math.min(lastEventNanos + quietNanos, firstEventNanos + 10 * quietNanos)
+							- System.nanoTime();
+					key = wait > 0 ? watchService.poll(wait, TimeUnit.NANOSECONDS) : null;
+				}
+				if (key == null) {
+					apply(pending);
+					pending.clear();
+					continue;
+				}
+				lastEventNanos = System.nanoTime();
+				Path directory = (Path) key.watchable();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == OVERFLOW) {
+						logger.warn("Watch events of {} lost, synchronizing", root);
+						synchronize();
+						continue;
+					}
+					Path file = directory.resolve((Path) event.context());
+					if (event.kind() == ENTRY_CREATE && Files.isDirectory(file)) {
+						// files created before the registration are found by the walk
+						registerTree(file);
+						try (Stream<Path> walk = Files.walk(file)) {
+							walk.filter(Files::isRegularFile)
+									.forEach(f -> pending.putIfAbsent(relative(f), System.nanoTime()));
+						}
+					} else if (!isManifest(file)) {
+						pending.putIfAbsent(relative(file), System.nanoTime());
+					}
+				}
+				if (!key.reset()) {
+					// directory deleted: its files were reported or are removed here
+					String prefix = relative(directory) + "/";
+					lock.lock();
+					try {
+						manifest.keySet().stream().filter(p -> p.startsWith(prefix))
+								.forEach(p -> pending.putIfAbsent(p, System.nanoTime()));
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			logger.debug("Stopped watching {}", root);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException | RuntimeException e) {
+			logger.error("Watching {} failed", root, e);
+		}
+	}
+
+	private void apply(Map<String, Long> pending) {
+		lock.lock();
+		try {
+			for (Map.Entry<String, Long> change : pending.entrySet()) {
+				Path file = root.resolve(change.getKey());
+				try {
+					if (Files.isRegularFile(file)) {
+						update(file, change.getKey(), change.getValue());
+					} else if (!Files.exists(file)) {
+						remove(change.getKey(), change.getValue());
+					}
+				} catch (IOException | RuntimeException e) {
+					// e.g. a file still being written; the next event retries it
+					logger.warn("Could not index {}", file, e);
+				}
+			}
+			saveManifest();
+		} catch (IOException e) {
+			logger.error("Could not save manifest {}", manifestFile, e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Indexes the file if it is new or its hash changed. The lock must be held.
+	 *
+	 * @param eventNanos nanoTime of the first change event, 0 if none
+	 * @return the change, null if the file is unchanged
+	 */
+	private Change update(Path file, String path, long eventNanos) throws IOException {
+		String hash = hash(file);
+		ManifestEntry old = manifest.get(path);
+		if (old != null && old.getHash().equals(hash)) {
+			return null;
+		}
+
+		Document document = parser != null ? FileSystemDocumentLoader.loadDocument(file, parser)
+				: FileSystemDocumentLoader.loadDocument(file);
+		document.metadata().put("relative_path", path);
+		List<TextSegment> segments = splitter.split(document);
+		List<String> ids = List.of();
+		if (!segments.isEmpty()) {
+			List<Embedding> embeddings = embeddingModel.embedAll(segments).content();
+			ids = embeddingStore.addAll(embeddings, segments);
+		}
+		if (old != null && !old.getSegmentIds().isEmpty()) {
+			embeddingStore.removeAll(old.getSegmentIds());
+		}
+		manifest.put(path, new ManifestEntry(hash, ids));
+
+		Change change = old == null ? Change.ADDED : Change.UPDATED;
+		updated(path, change, ids.size(), eventNanos);
+		return change;
+	}
+
+	/**
+	 * Removes the segments of a deleted file. The lock must be held.
+	 *
+	 * @return whether the file was indexed
+	 */
+	private boolean remove(String path, long eventNanos) {
+		ManifestEntry old = manifest.remove(path);
+		if (old == null) {
+			return false;
+		}
+		if (!old.getSegmentIds().isEmpty()) {
+			embeddingStore.removeAll(old.getSegmentIds());
+		}
+		updated(path, Change.REMOVED, 0, eventNanos);
+		return true;
+	}
+
+	private void updated(String path, Change change, int segments, long eventNanos) {
+		Duration latency = eventNanos != 0 ? Duration.ofNanos(System.nanoTime() - eventNanos) : Duration.ZERO;
+		if (eventNanos != 0) {
+			Timer.builder("indexer.update").tag("change", change.name().toLowerCase()).register(meterRegistry)
+					.record(latency);
+		}
+		logger.debug("{} {}: {} segment(s), latency {} ms", change, path, segments, latency.toMillis());
+		listener.accept(new IndexUpdate(path, change, segments, latency));
+	}
+
+	private void registerTree(Path directory) throws IOException {
+		try (Stream<Path> walk = Files.walk(directory)) {
+			for (Path d : walk.filter(Files::isDirectory).toList()) {
+				d.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+			}
+		}
+	}
+
+	/**
+	 * Writes the manifest to a temporary file first, so a crash never leaves a
+	 * partial manifest.
+	 */
+	private void saveManifest() throws IOException {
+		Path tmp = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+		om.writeValue(tmp.toFile(), manifest);
+		Files.move(tmp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return whether the file is the manifest (or its temporary file), which may
+	 *         be inside the root
+	 */
+	private boolean isManifest(Path file) {
+		Path normalized = file.toAbsolutePath().normalize();
+		Path manifestPath = manifestFile.toAbsolutePath().normalize();
+		return normalized.equals(manifestPath)
+				|| normalized.equals(manifestPath.resolveSibling(manifestPath.getFileName() + ".tmp"));
+	}
+
+	private String relative(Path file) {
+		return root.relativize(file.toAbsolutePath().normalize()).toString().replace(File.separatorChar, '/');
+	}
+
+	private static String hash(Path file) throws IOException {
+		try (DigestInputStream in = new DigestInputStream(Files.newInputStream(file),
+				MessageDigest.getInstance("SHA-256"))) {
+			in.transferTo(OutputStream.nullOutputStream());
+			return HexFormat.of().formatHex(in.getMessageDigest().digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+}
@@ -0,0 +1,422 @@
+package com.jadice.blog.l4j.ingest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import com.jadice.blog.l4j.rag.Bm25Index;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentParser;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.loader.FileSystemDocumentLoader;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Document ingestion in four stages connected by bounded queues, each with its
+ * own worker threads:
+ * <ol>
+ * <li><code>load</code>: loads and parses files into documents; PDFs are
+ * loaded page-wise if a {@link #setPdfPageLoader(PdfPageLoader) PDF loader} is
+ * set</li>
+ * <li><code>split</code>: splits documents into segments and collects them into
+ * batches of {@link #setBatchSize(int) batchSize}</li>
+ * <li><code>embed</code>: embeds the batches</li>
+ * <li><code>store</code>: adds embeddings and segments to the store, and the
+ * segments to the {@link #setLexicalIndex(Bm25Index) lexical index} if set</li>
+ * </ol>
+ * A full queue blocks its producers (back-pressure), so at most
+ * <code>queueCapacity</code> items wait per stage and memory stays flat
+ * independent of the number of files. Queue depths and per-stage progress are
+ * logged every {@link #setReportInterval(Duration) reportInterval}; throughput
+ * per stage is returned in the {@link IngestionReport}.
+ * <p>
+ * Works with any thread-safe {@link EmbeddingStore}, e.g.
+ * <code>InMemoryEmbeddingStore</code> or <code>PgVectorEmbeddingStore</code>.
+ * If a stage fails, all workers are stopped and the failure is rethrown.
+ */
+@Slf4j
+public class IngestionPipeline {
+
+	/**
+	 * @param stage         the stage name
+	 * @param threads       the number of worker threads
+	 * @param items         items processed (files, documents, batches, batches)
+	 * @param busy          summed processing time of all workers
+	 * @param maxQueueDepth highest number of items waiting for the stage
+	 * @param itemsPerSecond items processed per second of total ingestion time
+	 */
+	public record StageReport(String stage, int threads, long items, Duration busy, int maxQueueDepth,
+			double itemsPerSecond) {
+	}
+
+	/**
+	 * @param documents the number of loaded documents (page ranges for PDFs
+	 *                  loaded page-wise)
+	 * @param segments  the number of stored segments
+	 * @param elapsed   the total ingestion time
+	 * @param stages    per-stage statistics, in pipeline order
+	 */
+	public record IngestionReport(int documents, long segments, Duration elapsed, List<StageReport> stages) {
+	}
+
+	/**
+	 * Processes the items of one worker thread; output goes to the queue of the
+	 * next stage.
+	 */
+	private interface Processor {
+		void process(Object item) throws Exception;
+
+		/**
+		 * Called once after the last item of the worker.
+		 */
+		default void finish() throws Exception {
+		}
+	}
+
+	private record Batch(List<TextSegment> segments) {
+	}
+
+	private record EmbeddedBatch(List<Embedding> embeddings, List<TextSegment> segments) {
+	}
+
+	private static final Object END = new Object();
+
+	private final EmbeddingModel embeddingModel;
+	private final EmbeddingStore<TextSegment> embeddingStore;
+	private final DocumentSplitter splitter;
+
+	private DocumentParser parser;
+	private PdfPageLoader pdfPageLoader;
+	private Bm25Index lexicalIndex;
+	private int loadThreads = 2;
+	private int splitThreads = 1;
+	private int embedThreads = 2;
+	private int storeThreads = 1;
+	private int queueCapacity = 8;
+	private int batchSize = 64;
+	private Duration reportInterval = Duration.ofSeconds(5);
+
+	/**
+	 * @param embeddingModel the model embedding the segments
+	 * @param embeddingStore the store receiving embeddings and segments
+	 * @param splitter       the splitter for the documents
+	 */
+	public IngestionPipeline(EmbeddingModel embeddingModel, EmbeddingStore<TextSegment> embeddingStore,
+			DocumentSplitter splitter) {
+		this.embeddingModel = embeddingModel;
+		this.embeddingStore = embeddingStore;
+		this.splitter = splitter;
+	}
+
+	/**
+	 * @param parser the parser for all files; by default the parser found by
+	 *               {@link FileSystemDocumentLoader} is used
+	 */
+	public void setParser(DocumentParser parser) {
+		this.parser = parser;
+	}
+
+	/**
+	 * @param pdfPageLoader loader streaming PDFs page by page into the split
+	 *                      stage, so a large PDF is never held as one document;
+	 *                      PDFs are loaded with the parser if not set
+	 */
+	public void setPdfPageLoader(PdfPageLoader pdfPageLoader) {
+		this.pdfPageLoader = pdfPageLoader;
+	}
+
+	/**
+	 * @param lexicalIndex index receiving the stored segments under their
+	 *                     embedding ids, for hybrid retrieval; not used if not
+	 *                     set
+	 */
+	public void setLexicalIndex(Bm25Index lexicalIndex) {
+		this.lexicalIndex = lexicalIndex;
+	}
+
+	public void setLoadThreads(int loadThreads) {
+		this.loadThreads = positive(loadThreads, "loadThreads");
+	}
+
+	public void setSplitThreads(int splitThreads) {
+		this.splitThreads = positive(splitThreads, "splitThreads");
+	}
+
+	public void setEmbedThreads(int embedThreads) {
+		this.embedThreads = positive(embedThreads, "embedThreads");
+	}
+
+	public void setStoreThreads(int storeThreads) {
+		this.storeThreads = positive(storeThreads, "storeThreads");
+	}
+
+	/**
+	 * @param queueCapacity max. number of items waiting in front of each stage
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = positive(queueCapacity, "queueCapacity");
+	}
+
+	/**
+	 * @param batchSize number of segments embedded and stored together
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = positive(batchSize, "batchSize");
+	}
+
+	/**
+	 * @param reportInterval interval of the progress log messages
+	 */
+	public void setReportInterval(Duration reportInterval) {
+		this.reportInterval = reportInterval;
+	}
+
+	/**
+	 * Ingests all regular files of a directory (not recursively).
+	 *
+	 * @param directory the directory
+	 * @return the ingestion statistics
+	 * @throws IOException          if the directory cannot be listed
+	 * @throws InterruptedException
+	 */
+	public IngestionReport ingest(Path directory) throws IOException, InterruptedException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return ingest(files.filter(Files::isRegularFile).sorted().toList());
+		}
+	}
+
+	/**
+	 * Ingests the given files.
+	 *
+	 * @param files the files
+	 * @return the ingestion statistics
+	 * @throws IllegalStateException if a stage failed, with the failure as cause
+	 * @throws InterruptedException
+	 */
+	public IngestionReport ingest(Collection<Path> files) throws InterruptedException {
+		return new Run().execute(files);
+	}
+
+	private static int positive(int value, String name) {
+		if (value < 1) {
+			throw new IllegalArgumentException(name + " must be >= 1");
+		}
+		return value;
+	}
+
+	/**
+	 * The worker threads and queues of one {@link #ingest(Collection)} call.
+	 */
+	private class Run {
+		private final List<Stage> stages = new ArrayList<>();
+		private final List<Thread> threads = new ArrayList<>();
+		private final AtomicReference<Throwable> failure = new AtomicReference<>();
+		private final AtomicInteger documents = new AtomicInteger();
+		private final AtomicLong segments = new AtomicLong();
+		private CountDownLatch done;
+
+		private class Stage {
+			private final String name;
+			private final int threadCount;
+			private final Supplier<Processor> processors;
+			private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(queueCapacity);
+			private final AtomicInteger running;
+			private final AtomicLong items = new AtomicLong();
+			private final AtomicLong busyNanos = new AtomicLong();
+			private final AtomicInteger maxQueueDepth = new AtomicInteger();
+			private Stage next;
+
+			private Stage(String name, int threadCount, Supplier<Processor> processors) {
+				this.name = name;
+				this.threadCount = threadCount;
+				this.processors = processors;
+				this.running = new AtomicInteger(threadCount);
+			}
+
+			/**
+			 * Blocks while the queue is full.
+			 */
+			private void put(Object item) throws InterruptedException {
+				queue.put(item);
+				maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+			}
+		}
+
+		private IngestionReport execute(Collection<Path> files) throws InterruptedException {
+			Stage load = stage("load", loadThreads, () -> item -> {
+				Path file = (Path) item;
+				if (pdfPageLoader != null && PdfPageLoader.isPdf(file)) {
+					pdfPageLoader.load(file, pages -> {
+						documents.incrementAndGet();
+						stages.get(1).put(pages);
+					});
+					return;
+				}
+				Document document = parser != null ? FileSystemDocumentLoader.loadDocument(file, parser)
+						: FileSystemDocumentLoader.loadDocument(file);
+				documents.incrementAndGet();
+				stages.get(1).put(document);
+			});
+			stage("split", splitThreads, () -> new Processor() {
+				private List<TextSegment> batch = new ArrayList<>(batchSize);
+
+				@Override
+				public void process(Object item) throws Exception {
+					for (TextSegment segment : splitter.split((Document) item)) {
+						batch.add(segment);
+						if (batch.size() == batchSize) {
+							finish();
+						}
+					}
+				}
+
+				@Override
+				public void finish() throws Exception {
+					if (!batch.isEmpty()) {
+						stages.get(2).put(new Batch(batch));
+						batch = new ArrayList<>(batchSize);
+					}
+				}
+			});
+			stage("embed", embedThreads, () -> item -> {
+				List<TextSegment> batch = ((Batch) item).segments();
+				stages.get(3).put(new EmbeddedBatch(embeddingModel.embedAll(batch).content(), batch));
+			});
+			stage("store", storeThreads, () -> item -> {
+				EmbeddedBatch batch = (EmbeddedBatch) item;
+				List<String> ids = embeddingStore.addAll(batch.embeddings(), batch.segments());
+				if (lexicalIndex != null) {
+					lexicalIndex.addAll(ids, batch.segments());
+				}
+				segments.addAndGet(batch.segments().size());
+			});
+
+			long start = System.nanoTime();
+			done = new CountDownLatch(threads.size());
+			threads.forEach(Thread::start);
+			try {
+				feed(load, files);
+				while (!done.await(reportInterval.toMillis(), TimeUnit.MILLISECONDS)) {
+					logProgress();
+				}
+			} finally {
+				// no-op after a normal end; stops the workers on interruption
+				threads.forEach(Thread::interrupt);
+			}
+			Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+			Throwable e = failure.get();
+			if (e != null) {
+				throw new IllegalStateException("Ingestion failed: " + e.getMessage(), e);
+			}
+			IngestionReport report = report(elapsed);
+			for (StageReport stage : report.stages()) {
+				logger.debug("Stage {} ({} thread(s)): {} item(s), {}/s, busy {} ms, max. queue depth {}",
+						stage.stage(), stage.threads(), stage.items(), Math.round(stage.itemsPerSecond()),
+						stage.busy().toMillis(), stage.maxQueueDepth());
+			}
+			logger.info("Ingested {} document(s) with {} segment(s) in {} ms", report.documents(),
+					report.segments(), elapsed.toMillis());
+			return report;
+		}
+
+		private Stage stage(String name, int threadCount, Supplier<Processor> processors) {
+			Stage stage = new Stage(name, threadCount, processors);
+			if (!stages.isEmpty()) {
+				stages.get(stages.size() - 1).next = stage;
+			}
+			stages.add(stage);
+			for (int i = 0; i < threadCount; i++) {
+				threads.add(Thread.ofPlatform().name("ingest-" + name + "-" + i).daemon()
+						.unstarted(() -> work(stage)));
+			}
+			return stage;
+		}
+
+		/**
+		 * Puts the files into the first queue; gives up if a stage failed, as its
+		 * queue may never drain.
+		 */
+		private void feed(Stage load, Collection<Path> files) throws InterruptedException {
+			List<Object> items = new ArrayList<>(files);
+			items.add(END);
+			for (Object item : items) {
+				while (!load.queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+					if (failure.get() != null) {
+						return;
+					}
+				}
+				load.maxQueueDepth.accumulateAndGet(load.queue.size(), Math::max);
+			}
+		}
+
+		private void work(Stage stage) {
+			try {
+				Processor processor = stage.processors.get();
+				while (true) {
+					Object item = stage.queue.take();
+					if (item == END) {
+						// let the other workers of the stage see the end, too
+						stage.queue.put(END);
+						break;
+					}
+					long start = System.nanoTime();
+					processor.process(item);
+					stage.busyNanos.addAndGet(System.nanoTime() - start);
+					stage.items.incrementAndGet();
+				}
+				processor.finish();
+				if (stage.running.decrementAndGet() == 0 && stage.next != null) {
+					stage.next.put(END);
+				}
+			} catch (Throwable e) {
+				// also errors and interrupts from elsewhere: without this worker the stage
+				// never ends, so all workers are stopped
+				if (failure.compareAndSet(null, e)) {
+					logger.error("Ingestion stage {} failed", stage.name, e);
+					threads.forEach(Thread::interrupt);
+				}
+			} finally {
+				done.countDown();
+			}
+		}
+
+		private void logProgress() {
+			StringBuilder sb = new StringBuilder();
+			for (Stage stage : stages) {
+				sb.append(sb.isEmpty() ? "" : ", ").append(stage.name).append(' ').append(stage.items.get())
+						.append(" (queue ").append(stage.queue.size()).append('/').append(queueCapacity).append(')');
+			}
+			logger.info("Ingestion: {}; {} segment(s) stored", sb, segments.get());
+		}
+
+		private IngestionReport report(Duration elapsed) {
+			double seconds = Math.max(elapsed.toNanos(), 1) / 1e9;
+			List<StageReport> reports = new ArrayList<>(stages.size());
+			for (Stage stage : stages) {
+				reports.add(new StageReport(stage.name, stage.threadCount, stage.items.get(),
+						Duration.ofNanos(stage.busyNanos.get()), stage.maxQueueDepth.get(),
+						stage.items.get() / seconds));
+			}
+			return new IngestionReport(documents.get(), segments.get(), elapsed, reports);
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.jadice.blog.l4j.ingest;
+
+import java.nio.file.Path;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.Metadata;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Loads PDFs page by page (or in page ranges) instead of one
+ * {@link Document} with the whole text, as the PDFBox document parser does.
+ * Every page range becomes a small document that can be split and embedded
+ * right away, so only one range of text is held at a time. The file is read
+ * from disk with a limited main memory buffer; PDFBox falls back to temporary
+ * files beyond it.
+ * <p>
+ * Documents get the metadata <code>file_name</code>,
+ * <code>absolute_directory_path</code>, <code>page</code> (1-based, first page
+ * of the range) and, for ranges of more than one page, <code>end_page</code>.
+ * The splitter copies it to every segment. Pages without text are skipped.
+ * <p>
+ * Thread-safe: several PDFs can be loaded on separate threads.
+ */
+@Slf4j
+public class PdfPageLoader {
+
+	/**
+	 * Receives the documents of a PDF, in page order.
+	 */
+	public interface PageConsumer {
+		void accept(Document pages) throws Exception;
+	}
+
+	private volatile int pagesPerDocument = 1;
+	private volatile long maxMainMemoryBytes = 16L << 20;
+
+	/**
+	 * @param pagesPerDocument number of pages per document, 1 by default
+	 */
+	public void setPagesPerDocument(int pagesPerDocument) {
+		if (pagesPerDocument < 1) {
+			throw new IllegalArgumentException("pagesPerDocument must be >= 1");
+		}
+		this.pagesPerDocument = pagesPerDocument;
+	}
+
+	/**
+	 * @param maxMainMemoryBytes main memory PDFBox may use per PDF before using
+	 *                           temporary files, 16 MB by default
+	 */
+	public void setMaxMainMemoryBytes(long maxMainMemoryBytes) {
+		this.maxMainMemoryBytes = maxMainMemoryBytes;
+	}
+
+	/**
+	 * Extracts the text of the PDF range by range and passes each range to the
+	 * consumer before the next one is extracted.
+	 *
+	 * @param pdf      the PDF file
+	 * @param consumer the receiver of the page documents
+	 * @return the number of pages of the PDF
+	 * @throws Exception if the PDF cannot be read or the consumer failed
+	 */
+	public int load(Path pdf, PageConsumer consumer) throws Exception {
+		int rangeSize = pagesPerDocument;
+		try (PDDocument document = PDDocument.load(pdf.toFile(),
+				MemoryUsageSetting.setupMixed(maxMainMemoryBytes))) {
+			int pageCount = document.getNumberOfPages();
+			PDFTextStripper stripper = new PDFTextStripper();
+			for (int start = 1; start <= pageCount; start += rangeSize) {
+				int end = Math.min(start + rangeSize - 1, pageCount);
+				stripper.setStartPage(start);
+				stripper.setEndPage(end);
+				String text = stripper.getText(document);
+				if (text.isBlank()) {
+					continue;
+				}
+				consumer.accept(Document.from(text, metadata(pdf, start, end)));
+			}
+			logger.debug("Loaded {} page(s) of {}", pageCount, pdf.getFileName());
+			return pageCount;
+		}
+	}
+
+	private static Metadata metadata(Path pdf, int start, int end) {
+		Metadata metadata = new Metadata();
+		metadata.put(Document.FILE_NAME, pdf.getFileName().toString());
+		metadata.put(Document.ABSOLUTE_DIRECTORY_PATH, pdf.toAbsolutePath().getParent().toString());
+		metadata.put("page", start);
+		if (end > start) {
+			metadata.put("end_page", end);
+		}
+		return metadata;
+	}
+
+	/**
+	 * @return whether the file name has the extension <code>.pdf</code>
+	 */
+	public static boolean isPdf(Path file) {
+		return file.getFileName().toString().toLowerCase().endsWith(".pdf");
+	}
+}
@@ -0,0 +1,213 @@
+package com.jadice.blog.l4j.pgvector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jadice.blog.l4j.pgvector.PgVectorIndexManager.IndexReport;
+import com.jadice.blog.l4j.pgvector.PgVectorIndexManager.IndexSpec;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.pgvector.PgVectorEmbeddingStore;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Bulk loads embeddings and segments into a table of a
+ * {@link PgVectorEmbeddingStore} with <code>COPY ... FROM STDIN (FORMAT
+ * BINARY)</code> instead of one insert per row. Rows are encoded in the
+ * PostgreSQL binary copy format and streamed to the server while they are
+ * encoded; every batch is one <code>COPY</code> statement and transaction.
+ * <p>
+ * The table has the layout of the store with combined JSON metadata
+ * (<code>embedding_id</code>, <code>embedding</code>, <code>text</code>,
+ * <code>metadata</code>), so the store can search it afterwards. Loading is
+ * fastest into a table without a vector index; build the index with
+ * {@link #buildIndex(IndexSpec)} when all rows are loaded.
+ */
+@Slf4j
+public class PgVectorBulkLoader {
+
+	private static final byte[] COPY_SIGNATURE = "PGCOPY\n\377\r\n\0".getBytes(StandardCharsets.ISO_8859_1);
+	private static final short FIELDS = 4;
+	private static final int FLUSH_BYTES = 256 << 10;
+
+	private final DataSource dataSource;
+	private final String table;
+	private final int dimension;
+	private final ObjectMapper om = new ObjectMapper();
+
+	private int batchSize = 10_000;
+
+	/**
+	 * @param dataSource the data source of the database
+	 * @param table      the table of the embedding store
+	 * @param dimension  the vector dimension
+	 */
+	public PgVectorBulkLoader(DataSource dataSource, String table, int dimension) {
+		if (!PgVectorIndexManager.IDENTIFIER.matcher(table).matches()) {
+			throw new IllegalArgumentException("Invalid table name: " + table);
+		}
+		this.dataSource = dataSource;
+		this.table = table;
+		this.dimension = dimension;
+	}
+
+	/**
+	 * @param batchSize rows per <code>COPY</code> statement, 10000 by default
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be >= 1");
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Creates the vector extension and the table, if they do not exist. The
+	 * table is created without a vector index.
+	 *
+	 * @throws SQLException
+	 */
+	public void createTable() throws SQLException {
+		try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+			statement.executeUpdate("CREATE EXTENSION IF NOT EXISTS vector");
+			statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + table + " (embedding_id UUID PRIMARY KEY, "
+					+ "embedding vector(" + dimension + "), text TEXT NULL, metadata JSON NULL)");
+		}
+	}
+
+	/**
+	 * Loads embeddings with generated ids.
+	 *
+	 * @param embeddings   the embeddings
+	 * @param textSegments the segments, null if there are none
+	 * @return the ids
+	 * @throws SQLException
+	 */
+	public List<String> addAll(List<Embedding> embeddings, List<TextSegment> textSegments) throws SQLException {
+		List<String> ids = embeddings.stream().map(e -> UUID.randomUUID().toString()).toList();
+		addAll(ids, embeddings, textSegments);
+		return ids;
+	}
+
+	/**
+	 * Loads embeddings with the given ids, in batches of {@link #setBatchSize(int)}
+	 * rows. Batches loaded before a failure stay in the table.
+	 *
+	 * @param ids          the ids, which must be UUIDs
+	 * @param embeddings   the embeddings
+	 * @param textSegments the segments, null if there are none
+	 * @throws SQLException if a batch cannot be copied, e.g. because an id exists
+	 */
+	public void addAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> textSegments)
+			throws SQLException {
+		if (ids.size() != embeddings.size() || (textSegments != null && textSegments.size() != embeddings.size())) {
+			throw new IllegalArgumentException("ids, embeddings and segments must have the same size");
+		}
+		long start = System.nanoTime();
+		try (Connection connection = dataSource.getConnection()) {
+			connection.setAutoCommit(true);
+			PGConnection pgConnection = connection.unwrap(PGConnection.class);
+			for (int from = 0; from < ids.size(); from += batchSize) {
+				int to = Math.min(from + batchSize, ids.size());
+				CopyIn copy = pgConnection.getCopyAPI().copyIn(
+						"COPY " + table + " (embedding_id, embedding, text, metadata) FROM STDIN (FORMAT BINARY)");
+				try {
+					copyRows(copy, ids, embeddings, textSegments, from, to);
+					copy.endCopy();
+				} finally {
+					if (copy.isActive()) {
+						copy.cancelCopy();
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new SQLException("Cannot encode rows for " + table, e);
+		}
+		long nanos = Math.max(1, System.nanoTime() - start);
+		logger.info("Copied {} row(s) into {} in {} ms ({} rows/s)", ids.size(), table, nanos / 1_000_000,
+				ids.size() * 1_000_000_000L / nanos);
+	}
+
+	/**
+	 * Builds the vector index after loading, see
+	 * {@link PgVectorIndexManager#createIndex(IndexSpec)}.
+	 *
+	 * @param spec the index parameters
+	 * @return the report of the index with size and build time
+	 * @throws SQLException
+	 */
+	public IndexReport buildIndex(IndexSpec spec) throws SQLException {
+		return new PgVectorIndexManager(dataSource, table).createIndex(spec);
+	}
+
+	/**
+	 * Encodes the rows in the binary copy format: a header, per row the field
+	 * count and each field as length and value (-1 for NULL), and a trailer.
+	 */
+	private void copyRows(CopyIn copy, List<String> ids, List<Embedding> embeddings, List<TextSegment> textSegments,
+			int from, int to) throws IOException, SQLException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(FLUSH_BYTES + 64 * 1024);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(COPY_SIGNATURE);
+		out.writeInt(0); // flags
+		out.writeInt(0); // header extension length
+		for (int i = from; i < to; i++) {
+			float[] vector = embeddings.get(i).vector();
+			if (vector.length != dimension) {
+				throw new IllegalArgumentException("Embedding has dimension " + vector.length + ", not " + dimension);
+			}
+			out.writeShort(FIELDS);
+
+			UUID id = UUID.fromString(ids.get(i));
+			out.writeInt(16);
+			out.writeLong(id.getMostSignificantBits());
+			out.writeLong(id.getLeastSignificantBits());
+
+			// pgvector's binary format: dimension, unused, float4 values
+			out.writeInt(2 * Short.BYTES + vector.length * Float.BYTES);
+			out.writeShort(vector.length);
+			out.writeShort(0);
+			for (float value : vector) {
+				out.writeFloat(value);
+			}
+
+			TextSegment segment = textSegments != null ? textSegments.get(i) : null;
+			if (segment == null) {
+				out.writeInt(-1);
+				out.writeInt(-1);
+			} else {
+				writeText(out, segment.text().getBytes(StandardCharsets.UTF_8));
+				// the binary format of json is its text
+				writeText(out, om.writeValueAsBytes(segment.metadata().toMap()));
+			}
+
+			if (bytes.size() >= FLUSH_BYTES) {
+				out.flush();
+				copy.writeToCopy(bytes.toByteArray(), 0, bytes.size());
+				bytes.reset();
+			}
+		}
+		out.writeShort(-1); // trailer
+		out.flush();
+		copy.writeToCopy(bytes.toByteArray(), 0, bytes.size());
+	}
+
+	private static void writeText(DataOutputStream out, byte[] value) throws IOException {
+		out.writeInt(value.length);
+		out.write(value);
+	}
+}
@@ -0,0 +1,76 @@
+package com.jadice.blog.l4j.pgvector;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * pgvector embedding store on pooled connections with read-replica routing,
+ * configured via <code>pgvector.*</code> in application.yaml. Pool and query
+ * metrics go to the application's meter registry and thus to the Prometheus
+ * export.
+ */
+@Slf4j
+@Configuration
+@ConditionalOnProperty(name = "pgvector.enabled", havingValue = "true", matchIfMissing = false)
+public class PgVectorConfiguration {
+
+	@Value("${pgvector.url}")
+	private String url;
+
+	@Value("${pgvector.replica-urls:}")
+	private List<String> replicaUrls;
+
+	@Value("${pgvector.user}")
+	private String user;
+
+	@Value("${pgvector.password}")
+	private String password;
+
+	@Value("${pgvector.table:embeddings}")
+	private String table;
+
+	@Value("${pgvector.dimension:384}")
+	private int dimension;
+
+	@Value("${pgvector.pool.max-size:16}")
+	private int maxPoolSize;
+
+	@Value("${pgvector.pool.connection-timeout:5s}")
+	private Duration connectionTimeout;
+
+	@Value("${pgvector.profile.ef-search:40}")
+	private int efSearch;
+
+	@Value("${pgvector.profile.probes:10}")
+	private int probes;
+
+	@Bean(destroyMethod = "close")
+	public RoutingPgVectorEmbeddingStore pgVectorEmbeddingStore(MeterRegistry meterRegistry) {
+		HikariDataSource primary = PgVectorPools.create("pgvector-primary", url, user, password, maxPoolSize,
+				connectionTimeout, false, meterRegistry);
+		List<HikariDataSource> replicas = new ArrayList<>();
+		for (String replicaUrl : replicaUrls) {
+			if (!replicaUrl.isBlank()) {
+				replicas.add(PgVectorPools.create("pgvector-replica-" + replicas.size(), replicaUrl.trim(), user,
+						password, maxPoolSize, connectionTimeout, true, meterRegistry));
+			}
+		}
+		RoutingPgVectorEmbeddingStore store = new RoutingPgVectorEmbeddingStore(primary, replicas, table, dimension,
+				meterRegistry);
+		store.setProfile(new QueryProfile(efSearch, probes));
+		logger.info("pgvector store on table {}: {} connection(s) per pool, {} replica(s)", table, maxPoolSize,
+				replicas.size());
+		return store;
+	}
+}
@@ -0,0 +1,244 @@
+package com.jadice.blog.l4j.pgvector;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Creates, rebuilds and drops the approximate nearest neighbour index on the
+ * <code>embedding</code> column of a pgvector table, and reports its size and
+ * build time. Without such an index every search is a sequential scan of the
+ * table. The index uses cosine distance, the distance the embedding store
+ * searches with.
+ * <p>
+ * The manager keeps at most one vector index per table, named
+ * <code>&lt;table&gt;_hnsw_index</code> or
+ * <code>&lt;table&gt;_ivfflat_index</code>; the latter is the name the store
+ * itself uses with <code>useIndex</code>. How many candidates a search visits
+ * is set per query with a {@link QueryProfile}.
+ */
+@Slf4j
+public class PgVectorIndexManager {
+
+	static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+	public enum IndexType {
+		/**
+		 * Graph index: better speed/recall trade-off, slower to build, no training
+		 * data needed.
+		 */
+		HNSW,
+		/**
+		 * Inverted lists: fast to build and small, should be built after the table
+		 * is loaded since the lists are trained on the existing rows.
+		 */
+		IVFFLAT
+	}
+
+	/**
+	 * The index parameters.
+	 *
+	 * @param type           the index type
+	 * @param m              HNSW: connections per node
+	 * @param efConstruction HNSW: candidate list size while building
+	 * @param lists          IVFFlat: number of inverted lists, e.g. rows / 1000
+	 *                       (up to 1M rows)
+	 */
+	public record IndexSpec(IndexType type, int m, int efConstruction, int lists) {
+
+		public static IndexSpec hnsw(int m, int efConstruction) {
+			if (m < 2 || efConstruction < 2 * m) {
+				throw new IllegalArgumentException("m must be >= 2 and efConstruction >= 2 * m");
+			}
+			return new IndexSpec(IndexType.HNSW, m, efConstruction, 0);
+		}
+
+		public static IndexSpec ivfFlat(int lists) {
+			if (lists < 1) {
+				throw new IllegalArgumentException("lists must be >= 1");
+			}
+			return new IndexSpec(IndexType.IVFFLAT, 0, 0, lists);
+		}
+	}
+
+	/**
+	 * @param name      the index name
+	 * @param type      the index type
+	 * @param sizeBytes the size of the index on disk
+	 * @param buildTime the time of the last build by this manager, null if the
+	 *                  index was built elsewhere
+	 */
+	public record IndexReport(String name, IndexType type, long sizeBytes, Duration buildTime) {
+	}
+
+	private final DataSource dataSource;
+	private final String table;
+
+	private volatile String maintenanceWorkMem = "512MB";
+	private volatile int maintenanceWorkers = 2;
+
+	/**
+	 * @param dataSource the data source of the database
+	 * @param table      the table of the embedding store
+	 */
+	public PgVectorIndexManager(DataSource dataSource, String table) {
+		if (!IDENTIFIER.matcher(table).matches()) {
+			throw new IllegalArgumentException("Invalid table name: " + table);
+		}
+		this.dataSource = dataSource;
+		this.table = table;
+	}
+
+	/**
+	 * @param maintenanceWorkMem the <code>maintenance_work_mem</code> for
+	 *                           building, e.g. <code>1GB</code>, 512MB by default;
+	 *                           an HNSW build is much faster if the graph fits
+	 *                           into it
+	 */
+	public void setMaintenanceWorkMem(String maintenanceWorkMem) {
+		if (!maintenanceWorkMem.matches("[0-9]+\\s*[kMGT]?B")) {
+			throw new IllegalArgumentException("Invalid memory size: " + maintenanceWorkMem);
+		}
+		this.maintenanceWorkMem = maintenanceWorkMem;
+	}
+
+	/**
+	 * @param maintenanceWorkers parallel workers for building, 2 by default
+	 */
+	public void setMaintenanceWorkers(int maintenanceWorkers) {
+		this.maintenanceWorkers = maintenanceWorkers;
+	}
+
+	/**
+	 * Builds the index; an existing vector index of this manager is replaced, so
+	 * this also rebuilds the index, e.g. with other parameters or after the table
+	 * grew. The new index is built concurrently under a temporary name, so
+	 * searches keep using the old index and writes are not blocked. Then the old
+	 * index is dropped and the new one renamed.
+	 *
+	 * @param spec the index parameters
+	 * @return the report of the new index
+	 * @throws SQLException
+	 */
+	public IndexReport createIndex(IndexSpec spec) throws SQLException {
+		String name = indexName(spec.type());
+		String method = switch (spec.type()) {
+		case HNSW -> "hnsw (embedding vector_cosine_ops) WITH (m = " + spec.m() + ", ef_construction = "
+				+ spec.efConstruction() + ")";
+		case IVFFLAT -> "ivfflat (embedding vector_cosine_ops) WITH (lists = " + spec.lists() + ")";
+		};
+
+		String building = name + "_new";
+
+		long start = System.nanoTime();
+		try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+			// CONCURRENTLY cannot run in a transaction
+			boolean autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(true);
+			try {
+				// left over by an aborted build
+				statement.executeUpdate("DROP INDEX CONCURRENTLY IF EXISTS " + building);
+				// no SET LOCAL without a transaction, the settings are restored for the
+				// pooled connection
+				String previousWorkMem = show(statement, "maintenance_work_mem");
+				String previousWorkers = show(statement, "max_parallel_maintenance_workers");
+				try {
+					statement.execute("SET maintenance_work_mem = '" + maintenanceWorkMem + "'");
+					statement.execute("SET max_parallel_maintenance_workers = " + maintenanceWorkers);
+					statement.executeUpdate(
+							"CREATE INDEX CONCURRENTLY " + building + " ON " + table + " USING " + method);
+				} catch (SQLException | RuntimeException e) {
+					// a failed concurrent build leaves an invalid index behind
+					try {
+						statement.executeUpdate("DROP INDEX CONCURRENTLY IF EXISTS " + building);
+					} catch (SQLException dropFailure) {
+						e.addSuppressed(dropFailure);
+					}
+					throw e;
+				} finally {
+					statement.execute("SET maintenance_work_mem = '" + previousWorkMem + "'");
+					statement.execute("SET max_parallel_maintenance_workers = " + previousWorkers);
+				}
+				for (IndexType type : IndexType.values()) {
+					statement.executeUpdate("DROP INDEX CONCURRENTLY IF EXISTS " + indexName(type));
+				}
+				statement.executeUpdate("ALTER INDEX " + building + " RENAME TO " + name);
+				statement.execute("ANALYZE " + table);
+			} finally {
+				connection.setAutoCommit(autoCommit);
+			}
+		}
+		Duration buildTime = Duration.ofNanos(System.nanoTime() - start);
+		IndexReport report = new IndexReport(name, spec.type(), indexSize(name), buildTime);
+		logger.info("Built {} on {} in {} ms, {} MB", spec, table, buildTime.toMillis(), report.sizeBytes() >> 20);
+		return report;
+	}
+
+	/**
+	 * Drops the vector index, if there is one.
+	 *
+	 * @throws SQLException
+	 */
+	public void dropIndex() throws SQLException {
+		try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+			for (IndexType type : IndexType.values()) {
+				statement.executeUpdate("DROP INDEX IF EXISTS " + indexName(type));
+			}
+		}
+	}
+
+	/**
+	 * @return the report of the current vector index, without build time
+	 * @throws SQLException
+	 */
+	public Optional<IndexReport> getIndex() throws SQLException {
+		for (IndexType type : IndexType.values()) {
+			String name = indexName(type);
+			long size = indexSize(name);
+			if (size >= 0) {
+				return Optional.of(new IndexReport(name, type, size, null));
+			}
+		}
+		return Optional.empty();
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	private static String show(Statement statement, String setting) throws SQLException {
+		try (ResultSet resultSet = statement.executeQuery("SHOW " + setting)) {
+			resultSet.next();
+			return resultSet.getString(1);
+		}
+	}
+
+	/**
+	 * @return the size of the index, -1 if it does not exist
+	 */
+	private long indexSize(String name) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+				PreparedStatement statement = connection.prepareStatement(
+						"SELECT pg_relation_size(to_regclass(?))")) {
+			statement.setString(1, name);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				resultSet.next();
+				long size = resultSet.getLong(1);
+				return resultSet.wasNull() ? -1 : size;
+			}
+		}
+	}
+
+	private String indexName(IndexType type) {
+		return table + "_" + type.name().toLowerCase() + "_index";
+	}
+}
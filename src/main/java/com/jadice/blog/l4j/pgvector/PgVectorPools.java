@@ -0,0 +1,71 @@
+package com.jadice.blog.l4j.pgvector;
+
+import java.time.Duration;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Creates HikariCP connection pools tuned for pgvector queries.
+ * <ul>
+ * <li>fixed size: as many idle connections as the maximum, so bursts of
+ * queries do not wait for new connections</li>
+ * <li>server-side prepared statements from the first execution
+ * (<code>prepareThreshold=1</code>) with a per-connection statement cache, so
+ * the search statement is parsed and planned once per connection</li>
+ * <li>batched inserts rewritten into multi-row inserts</li>
+ * </ul>
+ * Pool metrics are registered as <code>hikaricp.connections.*</code> (active,
+ * idle, pending, acquire, usage, timeout) with tag <code>pool</code>, plus the
+ * gauge <code>pgvector.pool.saturation</code>: active connections divided by
+ * the pool size.
+ */
+public final class PgVectorPools {
+
+	private PgVectorPools() {
+	}
+
+	/**
+	 * Creates a pool and opens its connections.
+	 *
+	 * @param name              the pool name, used as metrics tag
+	 * @param jdbcUrl           the JDBC URL of the server
+	 * @param user              the user
+	 * @param password          the password
+	 * @param maximumPoolSize   the number of connections
+	 * @param connectionTimeout the maximum time to wait for a free connection
+	 * @param readOnly          whether connections are read-only, e.g. for
+	 *                          replicas
+	 * @param meterRegistry     the registry for pool metrics
+	 * @return the pool
+	 */
+	public static HikariDataSource create(String name, String jdbcUrl, String user, String password,
+			int maximumPoolSize, Duration connectionTimeout, boolean readOnly, MeterRegistry meterRegistry) {
+		HikariConfig config = new HikariConfig();
+		config.setPoolName(name);
+		config.setJdbcUrl(jdbcUrl);
+		config.setUsername(user);
+		config.setPassword(password);
+		config.setMaximumPoolSize(maximumPoolSize);
+		config.setMinimumIdle(maximumPoolSize);
+		config.setConnectionTimeout(connectionTimeout.toMillis());
+		config.setReadOnly(readOnly);
+		config.addDataSourceProperty("prepareThreshold", "1");
+		config.addDataSourceProperty("preparedStatementCacheQueries", "256");
+		config.addDataSourceProperty("preparedStatementCacheSizeMiB", "8");
+		config.addDataSourceProperty("reWriteBatchedInserts", "true");
+		config.addDataSourceProperty("ApplicationName", "blog-langchain4j-" + name);
+		config.setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(meterRegistry));
+
+		HikariDataSource pool = new HikariDataSource(config);
+		Gauge.builder("pgvector.pool.saturation", pool,
+				p -> p.getHikariPoolMXBean() == null ? 0
+						: p.getHikariPoolMXBean().getActiveConnections() / (double) p.getMaximumPoolSize())
+				.tag("pool", name).register(meterRegistry);
+		return pool;
+	}
+}
@@ -0,0 +1,37 @@
+package com.jadice.blog.l4j.pgvector;
+
+/**
+ * How thoroughly an approximate nearest neighbour search on a pgvector index
+ * looks for candidates: more candidates raise recall and latency. Only the
+ * setting of the index type in use has an effect.
+ *
+ * @param efSearch HNSW: candidate list size (<code>hnsw.ef_search</code>), at
+ *                 least the number of results to get them all
+ * @param probes   IVFFlat: number of inverted lists scanned
+ *                 (<code>ivfflat.probes</code>); as many probes as the index
+ *                 has lists make the search exact
+ */
+public record QueryProfile(int efSearch, int probes) {
+
+	/**
+	 * Lowest latency, noticeably lower recall.
+	 */
+	public static final QueryProfile LOW_LATENCY = new QueryProfile(16, 1);
+
+	/**
+	 * pgvector's HNSW default, more probes than its IVFFlat default of 1.
+	 */
+	public static final QueryProfile BALANCED = new QueryProfile(40, 10);
+
+	/**
+	 * High recall for indexes with up to some hundred lists, several times the
+	 * latency of {@link #BALANCED}.
+	 */
+	public static final QueryProfile HIGH_RECALL = new QueryProfile(200, 40);
+
+	public QueryProfile {
+		if (efSearch < 1 || efSearch > 1000 || probes < 1) {
+			throw new IllegalArgumentException("efSearch must be in 1..1000, probes >= 1");
+		}
+	}
+}
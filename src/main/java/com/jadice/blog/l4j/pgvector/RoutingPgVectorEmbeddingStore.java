@@ -0,0 +1,217 @@
+package com.jadice.blog.l4j.pgvector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import dev.langchain4j.store.embedding.pgvector.PgVectorEmbeddingStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * pgvector {@link EmbeddingStore} on connection pools (see
+ * {@link PgVectorPools}) that writes to the primary and reads from replicas.
+ * A search goes to the replica with the fewest active and waiting
+ * connections; if it fails, it is repeated on the primary. Without replicas
+ * the primary serves all requests. Replicas lag behind the primary, so an entry
+ * may not be found right after it was added.
+ * <p>
+ * Searches use a {@link TunedPgVectorEmbeddingStore} per pool, so the
+ * {@link QueryProfile} applies to all of them. Searches with a metadata filter
+ * always go to the primary.
+ * <p>
+ * Metrics: timer <code>pgvector.query</code> with tags
+ * <code>operation</code> (search/write) and <code>route</code> (pool name),
+ * counter <code>pgvector.replica.fallbacks</code>, and the pool metrics.
+ */
+@Slf4j
+public class RoutingPgVectorEmbeddingStore implements EmbeddingStore<TextSegment>, AutoCloseable {
+
+	private record Route(HikariDataSource pool, TunedPgVectorEmbeddingStore store, Timer searchTimer) {
+
+		/**
+		 * @return the connections in use or waited for
+		 */
+		private int load() {
+			HikariPoolMXBean bean = pool.getHikariPoolMXBean();
+			return bean == null ? 0 : bean.getActiveConnections() + bean.getThreadsAwaitingConnection();
+		}
+	}
+
+	private final HikariDataSource primary;
+	private final PgVectorEmbeddingStore primaryStore;
+	private final Route primaryRoute;
+	private final List<Route> replicaRoutes = new ArrayList<>();
+	private final Timer writeTimer;
+	private final Counter fallbacks;
+	private final AtomicInteger nextReplica = new AtomicInteger();
+
+	private volatile QueryProfile profile = QueryProfile.BALANCED;
+
+	/**
+	 * @param primary       the pool of the primary; the table is created there if
+	 *                      it does not exist
+	 * @param replicas      the pools of the replicas, may be empty
+	 * @param table         the table
+	 * @param dimension     the vector dimension
+	 * @param meterRegistry the registry for query metrics
+	 */
+	public RoutingPgVectorEmbeddingStore(HikariDataSource primary, List<HikariDataSource> replicas, String table,
+			int dimension, MeterRegistry meterRegistry) {
+		this.primary = primary;
+		this.primaryStore = PgVectorEmbeddingStore.datasourceBuilder().datasource(primary).table(table)
+				.dimension(dimension).build();
+		this.primaryRoute = route(primary, primaryStore, table, meterRegistry);
+		for (HikariDataSource replica : replicas) {
+			// the store runs CREATE EXTENSION on every connection, which read-only replicas reject
+			replicaRoutes.add(route(replica, primaryStore, table, meterRegistry));
+		}
+		this.writeTimer = queryTimer("write", primary.getPoolName(), meterRegistry);
+		this.fallbacks = Counter.builder("pgvector.replica.fallbacks").register(meterRegistry);
+		logger.debug("pgvector store on {} with {} replica(s)", primary.getPoolName(), replicas.size());
+	}
+
+	public QueryProfile getProfile() {
+		return profile;
+	}
+
+	/**
+	 * @param profile the query profile of all searches,
+	 *                {@link QueryProfile#BALANCED} by default
+	 */
+	public void setProfile(QueryProfile profile) {
+		this.profile = profile;
+	}
+
+	@Override
+	public String add(Embedding embedding) {
+		return write(() -> primaryStore.add(embedding));
+	}
+
+	@Override
+	public void add(String id, Embedding embedding) {
+		write(() -> {
+			primaryStore.add(id, embedding);
+			return null;
+		});
+	}
+
+	@Override
+	public String add(Embedding embedding, TextSegment textSegment) {
+		return write(() -> primaryStore.add(embedding, textSegment));
+	}
+
+	@Override
+	public List<String> addAll(List<Embedding> embeddings) {
+		return write(() -> primaryStore.addAll(embeddings));
+	}
+
+	@Override
+	public List<String> addAll(List<Embedding> embeddings, List<TextSegment> textSegments) {
+		return write(() -> primaryStore.addAll(embeddings, textSegments));
+	}
+
+	@Override
+	public void removeAll(Collection<String> ids) {
+		write(() -> {
+			primaryStore.removeAll(ids);
+			return null;
+		});
+	}
+
+	@Override
+	public void removeAll(Filter filter) {
+		write(() -> {
+			primaryStore.removeAll(filter);
+			return null;
+		});
+	}
+
+	@Override
+	public void removeAll() {
+		write(() -> {
+			primaryStore.removeAll();
+			return null;
+		});
+	}
+
+	@Override
+	public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+		// filtered searches run through the wrapped store on the primary, so they are timed there
+		Route route = request.filter() == null ? selectReplica() : null;
+		if (route != null) {
+			try {
+				return search(route, request);
+			} catch (RuntimeException e) {
+				fallbacks.increment();
+				logger.warn("Search on {} failed, using the primary: {}", route.pool().getPoolName(), e.getMessage());
+			}
+		}
+		return search(primaryRoute, request);
+	}
+
+	@Override
+	public void close() {
+		for (Route route : replicaRoutes) {
+			route.pool().close();
+		}
+		primary.close();
+	}
+
+	/**
+	 * @return the replica with the lowest load, starting the comparison at the
+	 *         next replica in turn so equally loaded replicas share the work;
+	 *         null if there are no replicas
+	 */
+	private Route selectReplica() {
+		int size = replicaRoutes.size();
+		if (size == 0) {
+			return null;
+		}
+		int start = Math.floorMod(nextReplica.getAndIncrement(), size);
+		Route best = null;
+		int bestLoad = Integer.MAX_VALUE;
+		for (int i = 0; i < size; i++) {
+			Route route = replicaRoutes.get((start + i) % size);
+			int load = route.load();
+			if (load < bestLoad) {
+				best = route;
+				bestLoad = load;
+			}
+		}
+		return best;
+	}
+
+	private EmbeddingSearchResult<TextSegment> search(Route route, EmbeddingSearchRequest request) {
+		QueryProfile queryProfile = profile;
+		return route.searchTimer().record(() -> route.store().search(request, queryProfile));
+	}
+
+	private <T> T write(Supplier<T> write) {
+		return writeTimer.record(write);
+	}
+
+	private static Route route(HikariDataSource pool, PgVectorEmbeddingStore store, String table,
+			MeterRegistry meterRegistry) {
+		return new Route(pool, new TunedPgVectorEmbeddingStore(store, pool, table),
+				queryTimer("search", pool.getPoolName(), meterRegistry));
+	}
+
+	private static Timer queryTimer(String operation, String route, MeterRegistry meterRegistry) {
+		return Timer.builder("pgvector.query").tag("operation", operation).tag("route", route)
+				.publishPercentileHistogram().register(meterRegistry);
+	}
+}
@@ -0,0 +1,197 @@
+package com.jadice.blog.l4j.pgvector;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pgvector.PGvector;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import dev.langchain4j.store.embedding.pgvector.PgVectorEmbeddingStore;
+
+/**
+ * {@link EmbeddingStore} on a {@link PgVectorEmbeddingStore} table that sets
+ * <code>hnsw.ef_search</code> and <code>ivfflat.probes</code> per query from a
+ * {@link QueryProfile}. The store itself always searches with the server
+ * defaults. The settings are local to the transaction of the query, so pooled
+ * connections are not affected.
+ * <p>
+ * Modifications and searches with a metadata filter are passed to the store;
+ * the table needs the store's default combined JSON metadata.
+ */
+public class TunedPgVectorEmbeddingStore implements EmbeddingStore<TextSegment> {
+
+	private final PgVectorEmbeddingStore store;
+	private final DataSource dataSource;
+	private final String searchSql;
+	private final ObjectMapper om = new ObjectMapper();
+
+	private volatile QueryProfile defaultProfile = QueryProfile.BALANCED;
+
+	/**
+	 * @param store      the store for modifications and filtered searches
+	 * @param dataSource the data source for searches
+	 * @param table      the table of the store
+	 */
+	public TunedPgVectorEmbeddingStore(PgVectorEmbeddingStore store, DataSource dataSource, String table) {
+		if (!PgVectorIndexManager.IDENTIFIER.matcher(table).matches()) {
+			throw new IllegalArgumentException("Invalid table name: " + table);
+		}
+		this.store = store;
+		this.dataSource = dataSource;
+		// ORDER BY the distance operator with LIMIT is what lets the planner use the index
+		this.searchSql = "SELECT embedding <=> ? AS distance, embedding_id, embedding, text, metadata FROM " + table
+				+ " ORDER BY embedding <=> ? LIMIT ?";
+	}
+
+	public QueryProfile getDefaultProfile() {
+		return defaultProfile;
+	}
+
+	/**
+	 * @param defaultProfile the profile of {@link #search(EmbeddingSearchRequest)},
+	 *                       {@link QueryProfile#BALANCED} by default
+	 */
+	public void setDefaultProfile(QueryProfile defaultProfile) {
+		this.defaultProfile = defaultProfile;
+	}
+
+	@Override
+	public String add(Embedding embedding) {
+		return store.add(embedding);
+	}
+
+	@Override
+	public void add(String id, Embedding embedding) {
+		store.add(id, embedding);
+	}
+
+	@Override
+	public String add(Embedding embedding, TextSegment textSegment) {
+		return store.add(embedding, textSegment);
+	}
+
+	@Override
+	public List<String> addAll(List<Embedding> embeddings) {
+		return store.addAll(embeddings);
+	}
+
+	@Override
+	public List<String> addAll(List<Embedding> embeddings, List<TextSegment> textSegments) {
+		return store.addAll(embeddings, textSegments);
+	}
+
+	@Override
+	public void removeAll(Collection<String> ids) {
+		store.removeAll(ids);
+	}
+
+	@Override
+	public void removeAll(Filter filter) {
+		store.removeAll(filter);
+	}
+
+	@Override
+	public void removeAll() {
+		store.removeAll();
+	}
+
+	@Override
+	public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+		return search(request, defaultProfile);
+	}
+
+	/**
+	 * Searches with the given profile.
+	 *
+	 * @param request the search request
+	 * @param profile the profile
+	 * @return the search result
+	 */
+	public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request, QueryProfile profile) {
+		if (request.filter() != null) {
+			return store.search(request);
+		}
+		// HNSW returns at most ef_search rows
+		int efSearch = Math.max(profile.efSearch(), Math.min(request.maxResults(), 1000));
+		try (Connection connection = dataSource.getConnection()) {
+			return search(connection, request, efSearch, profile.probes());
+		} catch (SQLException e) {
+			throw new IllegalStateException("Search in pgvector failed: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Runs the search in a transaction, which the settings are local to.
+	 */
+	private EmbeddingSearchResult<TextSegment> search(Connection connection, EmbeddingSearchRequest request,
+			int efSearch, int probes) throws SQLException {
+		boolean autoCommit = connection.getAutoCommit();
+		connection.setAutoCommit(false);
+		try {
+			try (PreparedStatement settings = connection.prepareStatement(
+					"SELECT set_config('hnsw.ef_search', ?, true), set_config('ivfflat.probes', ?, true)")) {
+				settings.setString(1, Integer.toString(efSearch));
+				settings.setString(2, Integer.toString(probes));
+				settings.executeQuery().close();
+			}
+			List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>();
+			try (PreparedStatement statement = connection.prepareStatement(searchSql)) {
+				PGvector query = new PGvector(request.queryEmbedding().vector());
+				statement.setObject(1, query);
+				statement.setObject(2, query);
+				statement.setInt(3, request.maxResults());
+				try (ResultSet resultSet = statement.executeQuery()) {
+					while (resultSet.next()) {
+						double score = RelevanceScore.fromCosineSimilarity(1 - resultSet.getDouble("distance"));
+						if (score < request.minScore()) {
+							break;
+						}
+						matches.add(match(resultSet, score));
+					}
+				}
+			}
+			connection.commit();
+			return new EmbeddingSearchResult<>(matches);
+		} catch (SQLException | RuntimeException e) {
+			connection.rollback();
+			throw e;
+		} finally {
+			connection.setAutoCommit(autoCommit);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private EmbeddingMatch<TextSegment> match(ResultSet resultSet, double score) throws SQLException {
+		Embedding embedding = Embedding.from(new PGvector(resultSet.getString("embedding")).toArray());
+		String text = resultSet.getString("text");
+		TextSegment segment = null;
+		if (text != null) {
+			String metadata = resultSet.getString("metadata");
+			try {
+				segment = TextSegment.from(text,
+						metadata != null ? Metadata.from(om.readValue(metadata, Map.class)) : new Metadata());
+			} catch (JsonProcessingException e) {
+				throw new SQLException("Invalid metadata: " + metadata, e);
+			}
+		}
+		return new EmbeddingMatch<>(score, resultSet.getString("embedding_id"), embedding, segment);
+	}
+}
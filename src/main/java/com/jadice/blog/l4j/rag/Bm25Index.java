@@ -0,0 +1,275 @@
+package com.jadice.blog.l4j.rag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import dev.langchain4j.data.segment.TextSegment;
+
+/**
+ * In-memory inverted index scoring text segments with Okapi BM25, for lexical
+ * retrieval next to vector search. Exact identifiers like error codes are rare
+ * terms with a high weight here, while embeddings of them are unreliable.
+ * <p>
+ * Terms are maximal runs of letters and digits, lower-cased, so
+ * <code>DGL7096A</code> is one term. The postings list of a term is a byte
+ * array of varint pairs [document number delta, term frequency]; as document
+ * numbers are assigned in insertion order, most postings take two bytes.
+ * <p>
+ * Segments are added with the ids of their embeddings, so lexical and vector
+ * results can be fused (see {@link HybridContentRetriever}). There is no
+ * removal; rebuild the index instead.
+ * <p>
+ * Thread-safe: adding takes a write lock, searching a read lock.
+ */
+public class Bm25Index {
+
+	/**
+	 * @param id      the id of the segment
+	 * @param segment the segment
+	 * @param score   the BM25 score
+	 */
+	public record Match(String id, TextSegment segment, double score) {
+	}
+
+	private static final Pattern TOKEN = Pattern.compile("[\\p{L}\\p{N}]+");
+
+	/**
+	 * The postings of a term: varint encoded pairs [delta to the previous
+	 * document number, term frequency].
+	 */
+	private static final class Postings {
+		private byte[] data = new byte[8];
+		private int length;
+		private int lastDocument;
+		private int documentFrequency;
+
+		private void add(int document, int frequency) {
+			if (data.length - length < 10) {
+				data = Arrays.copyOf(data, data.length * 2);
+			}
+			writeVarint(document - lastDocument);
+			writeVarint(frequency);
+			lastDocument = document;
+			documentFrequency++;
+		}
+
+		private void writeVarint(int value) {
+			while ((value & ~0x7F) != 0) {
+				data[length++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			data[length++] = (byte) value;
+		}
+	}
+
+	private final double k1;
+	private final double b;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Map<String, Postings> postings = new HashMap<>();
+	private final List<String> ids = new ArrayList<>();
+	private final List<TextSegment> segments = new ArrayList<>();
+	private int[] documentLengths = new int[1024];
+	private long totalLength;
+
+	/**
+	 * Creates an index with the common parameters k1 = 1.2 and b = 0.75.
+	 */
+	public Bm25Index() {
+		this(1.2, 0.75);
+	}
+
+	/**
+	 * @param k1 term frequency saturation, usually between 1.2 and 2
+	 * @param b  document length normalization, from 0 (none) to 1 (full)
+	 */
+	public Bm25Index(double k1, double b) {
+		if (k1 < 0 || b < 0 || b > 1) {
+			throw new IllegalArgumentException("Invalid BM25 parameters k1=" + k1 + ", b=" + b);
+		}
+		this.k1 = k1;
+		this.b = b;
+	}
+
+	/**
+	 * @param id      the id of the segment, usually the id of its embedding
+	 * @param segment the segment
+	 */
+	public void add(String id, TextSegment segment) {
+		addAll(List.of(id), List.of(segment));
+	}
+
+	/**
+	 * @param ids      the ids of the segments, usually the ids of their
+	 *                 embeddings
+	 * @param segments the segments
+	 */
+	public void addAll(List<String> ids, List<TextSegment> segments) {
+		if (ids.size() != segments.size()) {
+			throw new IllegalArgumentException("Got " + ids.size() + " ids for " + segments.size() + " segments");
+		}
+		// tokenize outside the lock
+		List<Map<String, int[]>> frequencies = new ArrayList<>(segments.size());
+		int[] lengths = new int[segments.size()];
+		for (int i = 0; i < segments.size(); i++) {
+			Map<String, int[]> termFrequencies = new HashMap<>();
+			for (String term : tokenize(segments.get(i).text())) {
+				termFrequencies.computeIfAbsent(term, t -> new int[1])[0]++;
+				lengths[i]++;
+			}
+			frequencies.add(termFrequencies);
+		}
+
+		lock.writeLock().lock();
+		try {
+			for (int i = 0; i < segments.size(); i++) {
+				int document = this.ids.size();
+				this.ids.add(ids.get(i));
+				this.segments.add(segments.get(i));
+				if (document == documentLengths.length) {
+					documentLengths = Arrays.copyOf(documentLengths, document * 2);
+				}
+				documentLengths[document] = lengths[i];
+				totalLength += lengths[i];
+				for (Map.Entry<String, int[]> term : frequencies.get(i).entrySet()) {
+					postings.computeIfAbsent(term.getKey(), t -> new Postings()).add(document, term.getValue()[0]);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param query      the query text
+	 * @param maxResults the maximum number of matches
+	 * @return the best matches, highest score first; segments without any query
+	 *         term are not matched
+	 */
+	public List<Match> search(String query, int maxResults) {
+		Set<String> terms = new LinkedHashSet<>(tokenize(query));
+		lock.readLock().lock();
+		try {
+			int count = ids.size();
+			if (count == 0 || terms.isEmpty() || maxResults < 1) {
+				return List.of();
+			}
+			double averageLength = Math.max(totalLength / (double) count, 1);
+			float[] scores = new float[count];
+			for (String term : terms) {
+				Postings termPostings = postings.get(term);
+				if (termPostings == null) {
+					continue;
+				}
+				// always positive, unlike the original BM25 idf
+				double idf = Math.log(1 + (count - termPostings.documentFrequency + 0.5)
+						/ (termPostings.documentFrequency + 0.5));
+				byte[] data = termPostings.data;
+				int position = 0;
+				int document = 0;
+				while (position < termPostings.length) {
+					int value = 0;
+					for (int shift = 0;; shift += 7) {
+						byte next = data[position++];
+						value |= (next & 0x7F) << shift;
+						if (next >= 0) {
+							break;
+						}
+					}
+					document += value;
+					int frequency = 0;
+					for (int shift = 0;; shift += 7) {
+						byte next = data[position++];
+						frequency |= (next & 0x7F) << shift;
+						if (next >= 0) {
+							break;
+						}
+					}
+					double norm = k1 * (1 - b + b * documentLengths[document] / averageLength);
+					scores[document] += (float) (idf * frequency * (k1 + 1) / (frequency + norm));
+				}
+			}
+
+			PriorityQueue<Integer> top = new PriorityQueue<>(Comparator.comparingDouble(d -> scores[d]));
+			for (int document = 0; document < count; document++) {
+				if (scores[document] > 0 && (top.size() < maxResults || scores[document] > scores[top.peek()])) {
+					top.add(document);
+					if (top.size() > maxResults) {
+						top.poll();
+					}
+				}
+			}
+			Match[] matches = new Match[top.size()];
+			for (int i = matches.length - 1; i >= 0; i--) {
+				int document = top.poll();
+				matches[i] = new Match(ids.get(document), segments.get(document), scores[document]);
+			}
+			return List.of(matches);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of indexed segments
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return ids.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of distinct terms
+	 */
+	public int getTermCount() {
+		lock.readLock().lock();
+		try {
+			return postings.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the bytes used by all postings lists, without the unused capacity
+	 */
+	public long getPostingsBytes() {
+		lock.readLock().lock();
+		try {
+			return postings.values().stream().mapToLong(p -> p.length).sum();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Splits a text into lower-cased runs of letters and digits.
+	 *
+	 * @param text the text
+	 * @return the terms in text order, with duplicates
+	 */
+	static List<String> tokenize(String text) {
+		List<String> terms = new ArrayList<>();
+		Matcher matcher = TOKEN.matcher(text);
+		while (matcher.find()) {
+			terms.add(matcher.group().toLowerCase(Locale.ROOT));
+		}
+		return terms;
+	}
+}
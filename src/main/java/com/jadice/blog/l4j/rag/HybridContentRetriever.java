@@ -0,0 +1,180 @@
+package com.jadice.blog.l4j.rag;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.query.Query;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link ContentRetriever} combining lexical search in a {@link Bm25Index}
+ * with vector search in an {@link EmbeddingStore}. Both run in parallel; their
+ * result lists are fused with reciprocal rank fusion (RRF): a segment scores
+ * <code>sum(1 / (rankConstant + rank))</code> over the lists it appears in.
+ * RRF needs no score calibration between BM25 and cosine similarity, and
+ * favours segments found by both searches.
+ * <p>
+ * The index must contain the segments of the store under their embedding ids,
+ * e.g. by setting it on the ingestion pipeline.
+ */
+@Slf4j
+public class HybridContentRetriever implements ContentRetriever {
+
+	/**
+	 * @param id          the embedding id of the segment
+	 * @param segment     the segment
+	 * @param score       the fused RRF score
+	 * @param lexicalRank the 1-based rank in the lexical results, 0 if not found
+	 * @param vectorRank  the 1-based rank in the vector results, 0 if not found
+	 */
+	public record Result(String id, TextSegment segment, double score, int lexicalRank, int vectorRank) {
+	}
+
+	private final EmbeddingStore<TextSegment> embeddingStore;
+	private final EmbeddingModel embeddingModel;
+	private final Bm25Index index;
+	private final Executor executor;
+
+	private int maxResults = 3;
+	private int candidates = 20;
+	private int rankConstant = 60;
+	private double minVectorScore = 0;
+
+	/**
+	 * Creates a retriever running the lexical search in the common pool.
+	 *
+	 * @param embeddingStore the store for vector search
+	 * @param embeddingModel the model embedding the queries
+	 * @param index          the index for lexical search
+	 */
+	public HybridContentRetriever(EmbeddingStore<TextSegment> embeddingStore, EmbeddingModel embeddingModel,
+			Bm25Index index) {
+		this(embeddingStore, embeddingModel, index, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param embeddingStore the store for vector search
+	 * @param embeddingModel the model embedding the queries
+	 * @param index          the index for lexical search
+	 * @param executor       runs the lexical search while the calling thread
+	 *                       embeds the query and searches the store
+	 */
+	public HybridContentRetriever(EmbeddingStore<TextSegment> embeddingStore, EmbeddingModel embeddingModel,
+			Bm25Index index, Executor executor) {
+		this.embeddingStore = embeddingStore;
+		this.embeddingModel = embeddingModel;
+		this.index = index;
+		this.executor = executor;
+	}
+
+	/**
+	 * @param maxResults the number of fused results, 3 by default
+	 */
+	public void setMaxResults(int maxResults) {
+		this.maxResults = positive(maxResults, "maxResults");
+	}
+
+	/**
+	 * @param candidates the number of results taken from each search for the
+	 *                   fusion, 20 by default
+	 */
+	public void setCandidates(int candidates) {
+		this.candidates = positive(candidates, "candidates");
+	}
+
+	/**
+	 * @param rankConstant the RRF constant k, 60 by default; smaller values give
+	 *                     the top ranks of each list more weight
+	 */
+	public void setRankConstant(int rankConstant) {
+		this.rankConstant = positive(rankConstant, "rankConstant");
+	}
+
+	/**
+	 * @param minVectorScore the minimum relevance score of vector results taken
+	 *                       into the fusion, 0 by default
+	 */
+	public void setMinVectorScore(double minVectorScore) {
+		this.minVectorScore = minVectorScore;
+	}
+
+	@Override
+	public List<Content> retrieve(Query query) {
+		return search(query.text()).stream().map(result -> Content.from(result.segment())).toList();
+	}
+
+	/**
+	 * Searches lexically and by vector and fuses the results.
+	 *
+	 * @param query the query text
+	 * @return the fused results, best first
+	 */
+	public List<Result> search(String query) {
+		long start = System.nanoTime();
+		CompletableFuture<List<Bm25Index.Match>> lexical = CompletableFuture
+				.supplyAsync(() -> index.search(query, candidates), executor);
+		Embedding queryEmbedding = embeddingModel.embed(query).content();
+		List<EmbeddingMatch<TextSegment>> vector = embeddingStore.search(EmbeddingSearchRequest.builder()
+				.queryEmbedding(queryEmbedding).maxResults(candidates).minScore(minVectorScore).build()).matches();
+		List<Bm25Index.Match> lexicalMatches;
+		try {
+			lexicalMatches = lexical.join();
+		} catch (CompletionException e) {
+			throw e.getCause() instanceof RuntimeException cause ? cause : e;
+		}
+
+		List<Result> results = fuse(lexicalMatches, vector);
+		logger.debug("Hybrid search: {} lexical and {} vector result(s) fused to {} in {} ms",
+				lexicalMatches.size(), vector.size(), results.size(), (System.nanoTime() - start) / 1_000_000);
+		return results;
+	}
+
+	private List<Result> fuse(List<Bm25Index.Match> lexical, List<EmbeddingMatch<TextSegment>> vector) {
+		// per id: [lexical rank, vector rank]
+		Map<String, int[]> ranks = new LinkedHashMap<>();
+		Map<String, TextSegment> segments = new LinkedHashMap<>();
+		for (int i = 0; i < lexical.size(); i++) {
+			Bm25Index.Match match = lexical.get(i);
+			ranks.computeIfAbsent(match.id(), id -> new int[2])[0] = i + 1;
+			segments.putIfAbsent(match.id(), match.segment());
+		}
+		for (int i = 0; i < vector.size(); i++) {
+			EmbeddingMatch<TextSegment> match = vector.get(i);
+			ranks.computeIfAbsent(match.embeddingId(), id -> new int[2])[1] = i + 1;
+			segments.putIfAbsent(match.embeddingId(), match.embedded());
+		}
+
+		List<Result> results = new ArrayList<>(ranks.size());
+		for (Map.Entry<String, int[]> entry : ranks.entrySet()) {
+			int lexicalRank = entry.getValue()[0];
+			int vectorRank = entry.getValue()[1];
+			double score = (lexicalRank > 0 ? 1.0 / (rankConstant + lexicalRank) : 0)
+					+ (vectorRank > 0 ? 1.0 / (rankConstant + vectorRank) : 0);
+			results.add(new Result(entry.getKey(), segments.get(entry.getKey()), score, lexicalRank, vectorRank));
+		}
+		results.sort(Comparator.comparingDouble(Result::score).reversed());
+		return results.size() > maxResults ? List.copyOf(results.subList(0, maxResults)) : results;
+	}
+
+	private static int positive(int value, String name) {
+		if (value < 1) {
+			throw new IllegalArgumentException(name + " must be >= 1");
+		}
+		return value;
+	}
+}
@@ -0,0 +1,352 @@
+package com.jadice.blog.l4j.rag;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.query.Query;
+import dev.langchain4j.service.AiServices;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Cache of generated answers keyed by the embedding of the question, so
+ * near-duplicate questions ("who is Nelly?", "Who is Nelly") are answered
+ * without a new generation. A cached answer is used if
+ * <ul>
+ * <li>the cosine similarity of the questions is at least the
+ * {@link #setSimilarityThreshold(double) similarity threshold},</li>
+ * <li>the context retrieved for the question has the same fingerprint (a hash
+ * of the segment texts) as when the answer was generated, if a
+ * {@link #setContentRetriever(ContentRetriever) content retriever} is set, so
+ * changed documents are not answered from the cache, and</li>
+ * <li>it was generated for the same assistant method and has not expired.</li>
+ * </ul>
+ * The question embeddings are kept in the given {@link EmbeddingStore} (e.g. a
+ * {@link com.jadice.blog.l4j.store.HnswEmbeddingStore}), the answers on the
+ * heap. Beyond {@link #setMaxEntries(int) maxEntries} the least recently used
+ * answers are evicted.
+ * <p>
+ * {@link #wrap(Class, Object)} puts the cache in front of an assistant built
+ * with {@link AiServices}. A cache hit bypasses the assistant, including its
+ * chat memory, so only wrap assistants whose answers do not depend on the
+ * conversation.
+ * <p>
+ * Metrics: <code>answer.cache</code> counts lookups with tag
+ * <code>result</code> (hit/miss), <code>answer.cache.saved</code> the
+ * generation time saved by hits (seconds, the time the cached answers took),
+ * <code>answer.cache.generation</code> times the generations on misses and
+ * <code>answer.cache.size</code> is the number of cached answers; all tagged
+ * with <code>cache</code>.
+ */
+@Slf4j
+public final class SemanticAnswerCache {
+
+	private record Entry(String scope, String fingerprint, String answer, long generationNanos,
+			long expiresAtNanos) {
+		boolean isExpired(long now) {
+			return now - expiresAtNanos >= 0;
+		}
+	}
+
+	private static final int CANDIDATES = 5;
+
+	private final EmbeddingModel embeddingModel;
+	private final EmbeddingStore<TextSegment> index;
+	private final String name;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	// access order: the eldest entry is the least recently used one
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+	private final Counter hits;
+	private final Counter misses;
+	private final Counter saved;
+	private final Timer generation;
+
+	private ContentRetriever contentRetriever;
+	private double similarityThreshold = 0.95;
+	private Duration ttl = Duration.ofHours(1);
+	private int maxEntries = 1000;
+
+	/**
+	 * @param embeddingModel the model embedding the questions
+	 * @param index          the store for the question embeddings; it should be
+	 *                       used by this cache only
+	 * @param name           the cache name, used as metrics tag
+	 * @param meterRegistry  registry for the cache metrics
+	 */
+	public SemanticAnswerCache(EmbeddingModel embeddingModel, EmbeddingStore<TextSegment> index, String name,
+			MeterRegistry meterRegistry) {
+		this.embeddingModel = embeddingModel;
+		this.index = index;
+		this.name = name;
+		this.hits = Counter.builder("answer.cache").tag("cache", name).tag("result", "hit").register(meterRegistry);
+		this.misses = Counter.builder("answer.cache").tag("cache", name).tag("result", "miss")
+				.register(meterRegistry);
+		this.saved = Counter.builder("answer.cache.saved").baseUnit("seconds").tag("cache", name)
+				.register(meterRegistry);
+		this.generation = Timer.builder("answer.cache.generation").tag("cache", name).publishPercentileHistogram()
+				.register(meterRegistry);
+		Gauge.builder("answer.cache.size", this, SemanticAnswerCache::size).tag("cache", name)
+				.register(meterRegistry);
+	}
+
+	/**
+	 * @param contentRetriever the retriever of the wrapped assistant, for the
+	 *                         context fingerprint; without it the context is not
+	 *                         compared
+	 */
+	public void setContentRetriever(ContentRetriever contentRetriever) {
+		this.contentRetriever = contentRetriever;
+	}
+
+	/**
+	 * @param similarityThreshold min. cosine similarity of a question to a cached
+	 *                            one for a hit, 0.95 by default
+	 */
+	public void setSimilarityThreshold(double similarityThreshold) {
+		if (similarityThreshold <= 0 || similarityThreshold > 1) {
+			throw new IllegalArgumentException("similarityThreshold must be in (0, 1]");
+		}
+		this.similarityThreshold = similarityThreshold;
+	}
+
+	/**
+	 * @param ttl time to live of an answer after its generation, 1 hour by
+	 *            default
+	 */
+	public void setTtl(Duration ttl) {
+		this.ttl = ttl;
+	}
+
+	/**
+	 * @param maxEntries max. number of cached answers, 1000 by default
+	 */
+	public void setMaxEntries(int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be >= 1");
+		}
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @return the number of cached answers, including expired ones not yet
+	 *         removed
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getHitCount() {
+		return (long) hits.count();
+	}
+
+	public long getMissCount() {
+		return (long) misses.count();
+	}
+
+	/**
+	 * @return the share of lookups answered from the cache
+	 */
+	public double getHitRate() {
+		double lookups = hits.count() + misses.count();
+		return lookups > 0 ? hits.count() / lookups : 0;
+	}
+
+	/**
+	 * @return the generation time saved by cache hits, in seconds
+	 */
+	public double getSavedSeconds() {
+		return saved.count();
+	}
+
+	/**
+	 * Wraps an assistant: methods with a single <code>String</code> parameter
+	 * returning a <code>String</code> are answered from the cache, using the
+	 * parameter as question; all other methods are passed to the assistant.
+	 *
+	 * @param <T>       the assistant type
+	 * @param type      the assistant interface
+	 * @param assistant the assistant, e.g. built with {@link AiServices}
+	 * @return the caching assistant
+	 */
+	public <T> T wrap(Class<T> type, T assistant) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				(proxy, method, args) -> {
+					if (method.getDeclaringClass() == Object.class) {
+						return switch (method.getName()) {
+						case "equals" -> proxy == args[0];
+						case "hashCode" -> System.identityHashCode(proxy);
+						default -> "Caching " + assistant;
+						};
+					}
+					if (method.getReturnType() == String.class && args != null && args.length == 1
+							&& args[0] instanceof String question) {
+						return get(type.getName() + "#" + method.getName(), question,
+								() -> (String) invoke(assistant, method, args));
+					}
+					return invoke(assistant, method, args);
+				}));
+	}
+
+	/**
+	 * Returns a cached answer to a similar question with the same context, or
+	 * generates and caches the answer.
+	 *
+	 * @param scope     the kind of answer, e.g. the assistant method; answers are
+	 *                  only shared within a scope
+	 * @param question  the question
+	 * @param generator generates the answer on a miss
+	 * @return the answer
+	 * @throws Exception the exception thrown by the generator
+	 */
+	public String get(String scope, String question, Callable<String> generator) throws Exception {
+		Embedding embedding = embeddingModel.embed(question).content();
+		String fingerprint = fingerprint(question);
+
+		List<EmbeddingMatch<TextSegment>> matches = index.search(EmbeddingSearchRequest.builder()
+				.queryEmbedding(embedding).maxResults(CANDIDATES)
+				.minScore(RelevanceScore.fromCosineSimilarity(similarityThreshold)).build()).matches();
+		Entry hit = null;
+		List<String> expired = new ArrayList<>();
+		lock.lock();
+		try {
+			long now = System.nanoTime();
+			for (EmbeddingMatch<TextSegment> match : matches) {
+				Entry entry = entries.get(match.embeddingId());
+				if (entry == null) {
+					continue;
+				}
+				if (entry.isExpired(now)) {
+					entries.remove(match.embeddingId());
+					expired.add(match.embeddingId());
+				} else if (entry.scope().equals(scope) && entry.fingerprint().equals(fingerprint)) {
+					hit = entry;
+					break;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (!expired.isEmpty()) {
+			index.removeAll(expired);
+		}
+
+		if (hit != null) {
+			hits.increment();
+			saved.increment(hit.generationNanos() / 1e9);
+			logger.debug("Answer cache {}: hit for '{}'", name, question);
+			return hit.answer();
+		}
+
+		misses.increment();
+		long start = System.nanoTime();
+		String answer = generator.call();
+		long generationNanos = System.nanoTime() - start;
+		generation.record(generationNanos, TimeUnit.NANOSECONDS);
+		if (answer != null) {
+			put(embedding, new Entry(scope, fingerprint, answer, generationNanos,
+					System.nanoTime() + ttl.toNanos()));
+		}
+		return answer;
+	}
+
+	/**
+	 * Removes all cached answers.
+	 */
+	public void invalidateAll() {
+		List<String> ids;
+		lock.lock();
+		try {
+			ids = new ArrayList<>(entries.keySet());
+			entries.clear();
+		} finally {
+			lock.unlock();
+		}
+		if (!ids.isEmpty()) {
+			index.removeAll(ids);
+		}
+	}
+
+	private void put(Embedding embedding, Entry entry) {
+		String id = index.add(embedding);
+		List<String> evicted = new ArrayList<>();
+		lock.lock();
+		try {
+			entries.put(id, entry);
+			for (Iterator<String> it = entries.keySet().iterator(); entries.size() > maxEntries && it.hasNext();) {
+				evicted.add(it.next());
+				it.remove();
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (!evicted.isEmpty()) {
+			index.removeAll(evicted);
+			logger.debug("Answer cache {}: evicted {} answer(s)", name, evicted.size());
+		}
+	}
+
+	/**
+	 * @return a hash of the texts retrieved for the question, empty without a
+	 *         content retriever
+	 */
+	private String fingerprint(String question) {
+		if (contentRetriever == null) {
+			return "";
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (Content content : contentRetriever.retrieve(Query.from(question))) {
+				digest.update(content.textSegment().text().getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+			}
+			return HexFormat.of().formatHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	private static Object invoke(Object target, Method method, Object[] args) throws Exception {
+		try {
+			// AiServices also implements package-private assistant interfaces
+			method.setAccessible(true);
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof Error error) {
+				throw error;
+			}
+			throw (Exception) e.getCause();
+		}
+	}
+}
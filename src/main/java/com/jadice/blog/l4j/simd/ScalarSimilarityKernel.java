@@ -0,0 +1,55 @@
+package com.jadice.blog.l4j.simd;
+
+/**
+ * Plain loop implementation, used if the Vector API is not available.
+ */
+public class ScalarSimilarityKernel implements SimilarityKernel {
+
+	@Override
+	public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		float sum = 0;
+		for (int i = 0; i < length; i++) {
+			sum += a[aOffset + i] * b[bOffset + i];
+		}
+		return sum;
+	}
+
+	@Override
+	public float dot(byte[] a, int aOffset, float[] b, int length) {
+		float sum = 0;
+		for (int i = 0; i < length; i++) {
+			sum += a[aOffset + i] * b[i];
+		}
+		return sum;
+	}
+
+	@Override
+	public float squaredL2(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		float sum = 0;
+		for (int i = 0; i < length; i++) {
+			float diff = a[aOffset + i] - b[bOffset + i];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	@Override
+	public float cosine(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		float dot = 0;
+		float normA = 0;
+		float normB = 0;
+		for (int i = 0; i < length; i++) {
+			float x = a[aOffset + i];
+			float y = b[bOffset + i];
+			dot += x * y;
+			normA += x * x;
+			normB += y * y;
+		}
+		return normA == 0 || normB == 0 ? 0 : (float) (dot / Math.sqrt((double) normA * normB));
+	}
+
+	@Override
+	public String toString() {
+		return "scalar";
+	}
+}
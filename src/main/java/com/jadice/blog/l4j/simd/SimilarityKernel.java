@@ -0,0 +1,57 @@
+package com.jadice.blog.l4j.simd;
+
+/**
+ * Similarity and distance functions over float vectors. Get the best available
+ * implementation via {@link SimilarityKernels#get()}.
+ */
+public interface SimilarityKernel {
+
+	/**
+	 * @return the dot product of <code>length</code> elements of both arrays,
+	 *         starting at the given offsets
+	 */
+	float dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+	/**
+	 * @return the squared euclidean distance of <code>length</code> elements of
+	 *         both arrays, starting at the given offsets
+	 */
+	float squaredL2(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+	/**
+	 * @return the cosine similarity of <code>length</code> elements of both
+	 *         arrays, starting at the given offsets; 0 if one of them is zero
+	 */
+	float cosine(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+	/**
+	 * Dot product of int8 codes with a float vector, used for scalar quantized
+	 * vectors (the caller applies the scale).
+	 *
+	 * @return the dot product of <code>length</code> codes starting at
+	 *         <code>aOffset</code> and the first <code>length</code> elements of
+	 *         <code>b</code>
+	 */
+	float dot(byte[] a, int aOffset, float[] b, int length);
+
+	default float dot(float[] a, float[] b) {
+		checkLength(a, b);
+		return dot(a, 0, b, 0, a.length);
+	}
+
+	default float squaredL2(float[] a, float[] b) {
+		checkLength(a, b);
+		return squaredL2(a, 0, b, 0, a.length);
+	}
+
+	default float cosine(float[] a, float[] b) {
+		checkLength(a, b);
+		return cosine(a, 0, b, 0, a.length);
+	}
+
+	private static void checkLength(float[] a, float[] b) {
+		if (a.length != b.length) {
+			throw new IllegalArgumentException("Vectors differ in length: " + a.length + " vs. " + b.length);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.jadice.blog.l4j.simd;
+
+import java.nio.FloatBuffer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Selects the similarity kernel: the SIMD one if the
+ * <code>jdk.incubator.vector</code> module is available (and not disabled with
+ * <code>-Dl4j.simd=false</code>), else the scalar one. Also offers the kernel
+ * functions for off-heap vectors in (mapped) {@link FloatBuffer}s; those are
+ * copied to a scratch array of the caller first, which is much cheaper than
+ * element-wise buffer access.
+ */
+@Slf4j
+public final class SimilarityKernels {
+	public static final String SIMD_PROPERTY = "l4j.simd";
+
+	private static final SimilarityKernel SCALAR = new ScalarSimilarityKernel();
+	private static final SimilarityKernel KERNEL = create();
+
+	private SimilarityKernels() {
+	}
+
+	/**
+	 * @return the best available kernel
+	 */
+	public static SimilarityKernel get() {
+		return KERNEL;
+	}
+
+	/**
+	 * @return the scalar kernel
+	 */
+	public static SimilarityKernel scalar() {
+		return SCALAR;
+	}
+
+	/**
+	 * @return a scratch array for the buffer functions below, for vectors up to
+	 *         the given length; it must only be used by one thread at a time
+	 */
+	public static float[] scratch(int length) {
+		return new float[2 * length];
+	}
+
+	/**
+	 * @param buffer  the buffer with the stored vector
+	 * @param index   the buffer index of the first vector element
+	 * @param query   the query vector
+	 * @param scratch see {@link #scratch(int)}
+	 * @return the dot product of the stored vector and the query
+	 */
+	public static float dot(FloatBuffer buffer, int index, float[] query, float[] scratch) {
+		buffer.get(index, scratch, 0, query.length);
+		return KERNEL.dot(scratch, 0, query, 0, query.length);
+	}
+
+	/**
+	 * @param scratch see {@link #scratch(int)}
+	 * @return the dot product of two stored vectors of the given length
+	 */
+	public static float dot(FloatBuffer a, int aIndex, FloatBuffer b, int bIndex, int length, float[] scratch) {
+		a.get(aIndex, scratch, 0, length);
+		b.get(bIndex, scratch, length, length);
+		return KERNEL.dot(scratch, 0, scratch, length, length);
+	}
+
+	private static SimilarityKernel create() {
+		if (!Boolean.parseBoolean(System.getProperty(SIMD_PROPERTY, "true"))) {
+			logger.info("SIMD similarity kernel disabled, using scalar kernel");
+			return SCALAR;
+		}
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+			logger.info("jdk.incubator.vector not available (add --add-modules jdk.incubator.vector), "
+					+ "using scalar similarity kernel");
+			return SCALAR;
+		}
+		try {
+			SimilarityKernel kernel = new VectorApiSimilarityKernel();
+			kernel.dot(new float[] { 1 }, new float[] { 1 });
+			logger.info("Using {} similarity kernel", kernel);
+			return kernel;
+		} catch (LinkageError | RuntimeException e) {
+			logger.warn("SIMD similarity kernel not usable, using scalar kernel", e);
+			return SCALAR;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package com.jadice.blog.l4j.simd;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD implementation with the incubating Java Vector API, using the widest
+ * vector shape of the CPU and fused multiply-add. Requires
+ * <code>--add-modules jdk.incubator.vector</code> at compile and run time.
+ */
+public class VectorApiSimilarityKernel implements SimilarityKernel {
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+	// bytes with as many lanes as SPECIES, so they widen to whole float vectors;
+	// at least 64 bits, the smallest shape, e.g. for 128 bit float vectors
+	private static final VectorSpecies<Byte> BYTE_SPECIES = VectorSpecies.of(byte.class,
+			VectorShape.forBitSize(Math.max(64, SPECIES.length() * Byte.SIZE)));
+	private static final int BYTE_PARTS = BYTE_SPECIES.length() / SPECIES.length();
+
+	@Override
+	public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		FloatVector acc1 = FloatVector.zero(SPECIES);
+		FloatVector acc2 = FloatVector.zero(SPECIES);
+		int step = SPECIES.length();
+		int i = 0;
+		// two independent accumulators hide the fma latency
+		for (int bound = length - 2 * step; i <= bound; i += 2 * step) {
+			acc1 = FloatVector.fromArray(SPECIES, a, aOffset + i)
+					.fma(FloatVector.fromArray(SPECIES, b, bOffset + i), acc1);
+			acc2 = FloatVector.fromArray(SPECIES, a, aOffset + i + step)
+					.fma(FloatVector.fromArray(SPECIES, b, bOffset + i + step), acc2);
+		}
+		for (int bound = SPECIES.loopBound(length); i < bound; i += step) {
+			acc1 = FloatVector.fromArray(SPECIES, a, aOffset + i)
+					.fma(FloatVector.fromArray(SPECIES, b, bOffset + i), acc1);
+		}
+		float sum = acc1.add(acc2).reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			sum += a[aOffset + i] * b[bOffset + i];
+		}
+		return sum;
+	}
+
+	@Override
+	public float dot(byte[] a, int aOffset, float[] b, int length) {
+		FloatVector acc = FloatVector.zero(SPECIES);
+		int i = 0;
+		for (int bound = BYTE_SPECIES.loopBound(length); i < bound; i += BYTE_SPECIES.length()) {
+			ByteVector bytes = ByteVector.fromArray(BYTE_SPECIES, a, aOffset + i);
+			for (int part = 0; part < BYTE_PARTS; part++) {
+				FloatVector x = (FloatVector) bytes.convertShape(VectorOperators.B2F, SPECIES, part);
+				acc = x.fma(FloatVector.fromArray(SPECIES, b, i + part * SPECIES.length()), acc);
+			}
+		}
+		float sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			sum += a[aOffset + i] * b[i];
+		}
+		return sum;
+	}
+
+	@Override
+	public float squaredL2(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		FloatVector acc = FloatVector.zero(SPECIES);
+		int i = 0;
+		for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+			FloatVector diff = FloatVector.fromArray(SPECIES, a, aOffset + i)
+					.sub(FloatVector.fromArray(SPECIES, b, bOffset + i));
+			acc = diff.fma(diff, acc);
+		}
+		float sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			float diff = a[aOffset + i] - b[bOffset + i];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	@Override
+	public float cosine(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		FloatVector dotAcc = FloatVector.zero(SPECIES);
+		FloatVector normAAcc = FloatVector.zero(SPECIES);
+		FloatVector normBAcc = FloatVector.zero(SPECIES);
+		int i = 0;
+		for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+			FloatVector x = FloatVector.fromArray(SPECIES, a, aOffset + i);
+			FloatVector y = FloatVector.fromArray(SPECIES, b, bOffset + i);
+			dotAcc = x.fma(y, dotAcc);
+			normAAcc = x.fma(x, normAAcc);
+			normBAcc = y.fma(y, normBAcc);
+		}
+		float dot = dotAcc.reduceLanes(VectorOperators.ADD);
+		float normA = normAAcc.reduceLanes(VectorOperators.ADD);
+		float normB = normBAcc.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			float x = a[aOffset + i];
+			float y = b[bOffset + i];
+			dot += x * y;
+			normA += x * x;
+			normB += y * y;
+		}
+		return normA == 0 || normB == 0 ? 0 : (float) (dot / Math.sqrt((double) normA * normB));
+	}
+
+	@Override
+	public String toString() {
+		return "simd-" + SPECIES.vectorBitSize();
+	}
+}
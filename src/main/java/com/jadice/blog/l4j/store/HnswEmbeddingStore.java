@@ -0,0 +1,577 @@
+package com.jadice.blog.l4j.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.jadice.blog.l4j.simd.SimilarityKernels;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link EmbeddingStore} with an HNSW (hierarchical navigable small world)
+ * graph for approximate nearest neighbour search. Vectors, texts and metadata
+ * are kept in a {@link MappedEmbeddingStore} in the same directory; the graph
+ * is saved to <code>hnsw.graph</code> on {@link #flush()} and {@link #close()}.
+ * <p>
+ * Parameters:
+ * <ul>
+ * <li><code>m</code>: neighbours per node (twice as many on the bottom
+ * layer)</li>
+ * <li><code>efConstruction</code>: candidate list size while inserting</li>
+ * <li><code>efSearch</code>: candidate list size while searching, raised to
+ * <code>maxResults</code> if lower</li>
+ * </ul>
+ * Inserts and searches run concurrently. Removed entries stay in the graph for
+ * navigation but are not returned. Searches with a filter fall back to the
+ * exact scan of the underlying store.
+ */
+@Slf4j
+public class HnswEmbeddingStore implements EmbeddingStore<TextSegment>, AutoCloseable {
+	public static final String GRAPH_FILE = "hnsw.graph";
+
+	private static final int MAGIC = 0x4C34484E;
+	private static final int VERSION = 1;
+	private static final int LOCK_STRIPES = 256;
+	private static final int[] NO_NEIGHBOURS = new int[0];
+
+	/**
+	 * A graph node; the index of a node is the slot of its vector in the store.
+	 * Neighbour lists are replaced, never modified, so readers need no lock.
+	 */
+	private static class Node {
+		private final AtomicReferenceArray<int[]> neighbours;
+
+		private Node(int level) {
+			neighbours = new AtomicReferenceArray<>(level + 1);
+			for (int l = 0; l <= level; l++) {
+				neighbours.set(l, NO_NEIGHBOURS);
+			}
+		}
+
+		private int level() {
+			return neighbours.length() - 1;
+		}
+	}
+
+	private record EntryPoint(int node, int level) {
+	}
+
+	private record Scored(int node, double similarity) {
+	}
+
+	private final MappedEmbeddingStore store;
+	private final int m;
+	private final int efConstruction;
+	private volatile int efSearch;
+	private final double levelFactor;
+
+	private volatile Node[] nodes = new Node[1024];
+	private volatile EntryPoint entryPoint;
+	private final ReentrantLock structureLock = new ReentrantLock();
+	private final ReentrantLock[] nodeLocks = new ReentrantLock[LOCK_STRIPES];
+
+	private HnswEmbeddingStore(MappedEmbeddingStore store, int m, int efConstruction, int efSearch)
+			throws IOException {
+		if (m < 2 || efConstruction < 1 || efSearch < 1) {
+			throw new IllegalArgumentException("m must be >= 2, efConstruction and efSearch >= 1");
+		}
+		this.store = store;
+		this.m = m;
+		this.efConstruction = efConstruction;
+		this.efSearch = efSearch;
+		this.levelFactor = 1 / Math.log(m);
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			nodeLocks[i] = new ReentrantLock();
+		}
+		load();
+	}
+
+	/**
+	 * Opens the store in the given directory, creating it if necessary. Entries of
+	 * the underlying store missing in a saved graph are indexed.
+	 *
+	 * @param directory      the directory of the store files
+	 * @param dimension      the vector dimension; must match an existing store
+	 * @param m              neighbours per node, e.g. 16
+	 * @param efConstruction candidate list size while inserting, e.g. 200
+	 * @param efSearch       candidate list size while searching, e.g. 64
+	 * @return the store
+	 * @throws IOException
+	 */
+	public static HnswEmbeddingStore open(Path directory, int dimension, int m, int efConstruction, int efSearch)
+			throws IOException {
+		return new HnswEmbeddingStore(MappedEmbeddingStore.open(directory, dimension), m, efConstruction, efSearch);
+	}
+
+	public int getEfSearch() {
+		return efSearch;
+	}
+
+	/**
+	 * @param efSearch candidate list size while searching; higher values improve
+	 *                 recall at the cost of latency
+	 */
+	public void setEfSearch(int efSearch) {
+		this.efSearch = efSearch;
+	}
+
+	/**
+	 * @return the number of stored (not removed) embeddings
+	 */
+	public int size() {
+		return store.size();
+	}
+
+	@Override
+	public String add(Embedding embedding) {
+		String id = UUID.randomUUID().toString();
+		add(id, embedding);
+		return id;
+	}
+
+	@Override
+	public void add(String id, Embedding embedding) {
+		insert(id, embedding.vector(), null);
+	}
+
+	@Override
+	public String add(Embedding embedding, TextSegment textSegment) {
+		String id = UUID.randomUUID().toString();
+		insert(id, embedding.vector(), textSegment);
+		return id;
+	}
+
+	@Override
+	public List<String> addAll(List<Embedding> embeddings) {
+		List<String> ids = new ArrayList<>(embeddings.size());
+		for (Embedding embedding : embeddings) {
+			ids.add(add(embedding));
+		}
+		return ids;
+	}
+
+	@Override
+	public List<String> addAll(List<Embedding> embeddings, List<TextSegment> textSegments) {
+		if (embeddings.size() != textSegments.size()) {
+			throw new IllegalArgumentException("embeddings and segments must have the same size");
+		}
+		List<String> ids = new ArrayList<>(embeddings.size());
+		for (int i = 0; i < embeddings.size(); i++) {
+			ids.add(add(embeddings.get(i), textSegments.get(i)));
+		}
+		return ids;
+	}
+
+	@Override
+	public void removeAll(Collection<String> ids) {
+		store.removeAll(ids);
+	}
+
+	@Override
+	public void removeAll(Filter filter) {
+		store.removeAll(filter);
+	}
+
+	@Override
+	public void removeAll() {
+		// store locks are always taken before the structure lock
+		Lock writeLock = store.writeLock();
+		writeLock.lock();
+		structureLock.lock();
+		try {
+			store.removeAll();
+			nodes = new Node[1024];
+			entryPoint = null;
+		} finally {
+			structureLock.unlock();
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+		if (request.filter() != null) {
+			return store.search(request);
+		}
+		float[] query = request.queryEmbedding().vector();
+		if (query.length != store.getDimension()) {
+			throw new IllegalArgumentException(
+					"Query has dimension " + query.length + ", not " + store.getDimension());
+		}
+		float queryNorm = MappedEmbeddingStore.norm(query);
+		int maxResults = request.maxResults();
+		float[] scratch = SimilarityKernels.scratch(query.length);
+
+		Lock readLock = store.readLock();
+		readLock.lock();
+		try {
+			EntryPoint entry = entryPoint;
+			if (entry == null) {
+				return new EmbeddingSearchResult<>(List.of());
+			}
+			Node[] current = nodes;
+			Scored nearest = new Scored(entry.node(), store.cosine(entry.node(), query, queryNorm, scratch));
+			for (int level = entry.level(); level > 0; level--) {
+				nearest = greedy(current, query, queryNorm, nearest, level, scratch);
+			}
+			// removed entries are traversed but not returned
+			List<Scored> candidates = searchLayer(current, query, queryNorm, List.of(nearest),
+					Math.max(efSearch, maxResults), 0, scratch);
+
+			List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(maxResults);
+			for (Scored candidate : candidates) {
+				if (matches.size() == maxResults) {
+					break;
+				}
+				double score = RelevanceScore.fromCosineSimilarity(candidate.similarity());
+				if (score < request.minScore()) {
+					break;
+				}
+				if (!store.isRemoved(candidate.node())) {
+					matches.add(store.match(candidate.node(), score));
+				}
+			}
+			return new EmbeddingSearchResult<>(matches);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * Saves the graph to disk, together with the data of the underlying store.
+	 */
+	public void flush() {
+		store.flush();
+		Lock readLock = store.readLock();
+		readLock.lock();
+		try {
+			save();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		store.close();
+	}
+
+	/**
+	 * Stores the entry (an existing one with the same id is replaced by the
+	 * store) and links it into the graph while searches may run.
+	 */
+	private void insert(String id, float[] vector, TextSegment segment) {
+		int slot = store.addEntry(id, vector, segment);
+
+		Lock readLock = store.readLock();
+		readLock.lock();
+		try {
+			link(slot);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * Inserts the node of the slot into the graph. The read lock of the store
+	 * must be held.
+	 */
+	private void link(int slot) {
+		int level = (int) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * levelFactor);
+		Node node = new Node(level);
+		Node[] current = publish(slot, node);
+
+		EntryPoint entry = entryPoint;
+		if (entry == null) {
+			structureLock.lock();
+			try {
+				if (entryPoint == null) {
+					entryPoint = new EntryPoint(slot, level);
+					return;
+				}
+				entry = entryPoint;
+			} finally {
+				structureLock.unlock();
+			}
+		}
+
+		float[] vector = store.vector(slot);
+		float norm = MappedEmbeddingStore.norm(vector);
+		float[] scratch = SimilarityKernels.scratch(vector.length);
+		Scored nearest = new Scored(entry.node(), store.cosine(entry.node(), vector, norm, scratch));
+		for (int l = entry.level(); l > level; l--) {
+			nearest = greedy(current, vector, norm, nearest, l, scratch);
+		}
+		List<Scored> entries = List.of(nearest);
+		for (int l = Math.min(level, entry.level()); l >= 0; l--) {
+			List<Scored> candidates = searchLayer(current, vector, norm, entries, efConstruction, l, scratch);
+			int[] selected = selectNeighbours(candidates, maxNeighbours(l), scratch);
+			node.neighbours.set(l, selected);
+			for (int neighbour : selected) {
+				addBackLink(current[neighbour], neighbour, slot, l, scratch);
+			}
+			entries = candidates;
+		}
+
+		if (level > entry.level()) {
+			structureLock.lock();
+			try {
+				if (level > entryPoint.level()) {
+					entryPoint = new EntryPoint(slot, level);
+				}
+			} finally {
+				structureLock.unlock();
+			}
+		}
+	}
+
+	private Node[] publish(int slot, Node node) {
+		structureLock.lock();
+		try {
+			Node[] current = nodes;
+			if (slot >= current.length) {
+				current = Arrays.copyOf(current, Math.max(slot + 1, current.length * 2));
+			}
+			current[slot] = node;
+			nodes = current;
+			return current;
+		} finally {
+			structureLock.unlock();
+		}
+	}
+
+	private void addBackLink(Node neighbourNode, int neighbour, int slot, int level, float[] scratch) {
+		ReentrantLock lock = nodeLocks[neighbour % LOCK_STRIPES];
+		lock.lock();
+		try {
+			int[] links = neighbourNode.neighbours.get(level);
+			int[] extended = Arrays.copyOf(links, links.length + 1);
+			extended[links.length] = slot;
+			if (extended.length > maxNeighbours(level)) {
+				List<Scored> candidates = new ArrayList<>(extended.length);
+				for (int link : extended) {
+					candidates.add(new Scored(link, store.cosine(neighbour, link, scratch)));
+				}
+				candidates.sort(Comparator.comparingDouble(Scored::similarity).reversed());
+				extended = selectNeighbours(candidates, maxNeighbours(level), scratch);
+			}
+			neighbourNode.neighbours.set(level, extended);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Neighbour selection heuristic: a candidate (sorted by descending
+	 * similarity) is kept if it is closer to the base than to any kept one, which
+	 * keeps links in different directions. Free places are filled with the best
+	 * pruned candidates.
+	 */
+	private int[] selectNeighbours(List<Scored> candidates, int max, float[] scratch) {
+		List<Scored> selected = new ArrayList<>(max);
+		List<Scored> pruned = new ArrayList<>();
+		for (Scored candidate : candidates) {
+			if (selected.size() == max) {
+				break;
+			}
+			boolean diverse = true;
+			for (Scored kept : selected) {
+				if (store.cosine(candidate.node(), kept.node(), scratch) > candidate.similarity()) {
+					diverse = false;
+					break;
+				}
+			}
+			(diverse ? selected : pruned).add(candidate);
+		}
+		for (int i = 0; selected.size() < max && i < pruned.size(); i++) {
+			selected.add(pruned.get(i));
+		}
+		return selected.stream().mapToInt(Scored::node).toArray();
+	}
+
+	private Scored greedy(Node[] current, float[] query, float queryNorm, Scored start, int level,
+			float[] scratch) {
+		Scored best = start;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int neighbour : neighbours(current, best.node(), level)) {
+				double similarity = store.cosine(neighbour, query, queryNorm, scratch);
+				if (similarity > best.similarity()) {
+					best = new Scored(neighbour, similarity);
+					changed = true;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Best-first search on one layer.
+	 *
+	 * @return up to <code>ef</code> nodes, by descending similarity
+	 */
+	private List<Scored> searchLayer(Node[] current, float[] query, float queryNorm, List<Scored> entries, int ef,
+			int level, float[] scratch) {
+		BitSet visited = new BitSet(current.length);
+		PriorityQueue<Scored> candidates = new PriorityQueue<>(
+				Comparator.comparingDouble(Scored::similarity).reversed());
+		PriorityQueue<Scored> results = new PriorityQueue<>(Comparator.comparingDouble(Scored::similarity));
+		for (Scored entry : entries) {
+			visited.set(entry.node());
+			candidates.add(entry);
+			results.add(entry);
+		}
+		while (results.size() > ef) {
+			results.poll();
+		}
+
+		while (!candidates.isEmpty()) {
+			Scored candidate = candidates.poll();
+			if (results.size() >= ef && candidate.similarity() < results.peek().similarity()) {
+				break;
+			}
+			for (int neighbour : neighbours(current, candidate.node(), level)) {
+				if (visited.get(neighbour)) {
+					continue;
+				}
+				visited.set(neighbour);
+				double similarity = store.cosine(neighbour, query, queryNorm, scratch);
+				if (results.size() < ef || similarity > results.peek().similarity()) {
+					Scored scored = new Scored(neighbour, similarity);
+					candidates.add(scored);
+					results.add(scored);
+					if (results.size() > ef) {
+						results.poll();
+					}
+				}
+			}
+		}
+
+		List<Scored> sorted = new ArrayList<>(results);
+		sorted.sort(Comparator.comparingDouble(Scored::similarity).reversed());
+		return sorted;
+	}
+
+	private static int[] neighbours(Node[] current, int node, int level) {
+		Node n = node < current.length ? current[node] : null;
+		return n != null && level <= n.level() ? n.neighbours.get(level) : NO_NEIGHBOURS;
+	}
+
+	private int maxNeighbours(int level) {
+		return level == 0 ? 2 * m : m;
+	}
+
+	/**
+	 * Graph file: magic, version, m, entry node and level (-1 if empty), node
+	 * count, then per node its level (-1 for none) and per level the neighbour
+	 * count and neighbours.
+	 */
+	private void save() throws IOException {
+		Path file = store.getDirectory().resolve(GRAPH_FILE);
+		Path tmp = store.getDirectory().resolve(GRAPH_FILE + ".tmp");
+		Node[] current = nodes;
+		EntryPoint entry = entryPoint;
+		int count = store.slotCount();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(m);
+			out.writeInt(entry != null ? entry.node() : -1);
+			out.writeInt(entry != null ? entry.level() : -1);
+			out.writeInt(count);
+			for (int slot = 0; slot < count; slot++) {
+				Node node = slot < current.length ? current[slot] : null;
+				out.writeInt(node != null ? node.level() : -1);
+				if (node != null) {
+					for (int l = 0; l <= node.level(); l++) {
+						int[] links = node.neighbours.get(l);
+						out.writeInt(links.length);
+						for (int link : links) {
+							out.writeInt(link);
+						}
+					}
+				}
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void load() throws IOException {
+		Path file = store.getDirectory().resolve(GRAPH_FILE);
+		int loaded = 0;
+		Lock readLock = store.readLock();
+		readLock.lock();
+		try {
+			int count = store.slotCount();
+			if (Files.exists(file)) {
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+					if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != m) {
+						throw new IOException("Graph " + file + " has another format or m, delete it to rebuild");
+					}
+					int entryNode = in.readInt();
+					int entryLevel = in.readInt();
+					int nodeCount = in.readInt();
+					if (nodeCount <= count) {
+						Node[] loadedNodes = new Node[Math.max(1024, count)];
+						for (int slot = 0; slot < nodeCount; slot++) {
+							int level = in.readInt();
+							if (level >= 0) {
+								Node node = new Node(level);
+								for (int l = 0; l <= level; l++) {
+									int[] links = new int[in.readInt()];
+									for (int i = 0; i < links.length; i++) {
+										links[i] = in.readInt();
+									}
+									node.neighbours.set(l, links);
+								}
+								loadedNodes[slot] = node;
+							}
+						}
+						nodes = loadedNodes;
+						entryPoint = entryNode >= 0 ? new EntryPoint(entryNode, entryLevel) : null;
+						loaded = nodeCount;
+					}
+				}
+			}
+			// index entries added after the graph was saved
+			for (int slot = loaded; slot < count; slot++) {
+				link(slot);
+			}
+			logger.debug("Opened HNSW store {}: {} node(s) loaded, {} indexed", store.getDirectory(), loaded,
+					count - loaded);
+		} finally {
+			readLock.unlock();
+		}
+	}
+}
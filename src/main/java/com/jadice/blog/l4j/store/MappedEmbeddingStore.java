@@ -0,0 +1,692 @@
+package com.jadice.blog.l4j.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.jadice.blog.l4j.simd.SimilarityKernels;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link EmbeddingStore} keeping all data off-heap in memory-mapped files of a
+ * directory, so the heap stays small and the store survives restarts:
+ * <ul>
+ * <li><code>vectors.f32</code>: a small header followed by all vectors as one
+ * contiguous little-endian float32 region, vector <i>n</i> at
+ * <code>n * dimension</code></li>
+ * <li><code>segments.dat</code>: an append-only log with id, text and metadata
+ * per vector</li>
+ * </ul>
+ * Only the id to slot map, the vector norms and the record positions are kept
+ * on the heap. Removed entries are only marked; their space is not reclaimed.
+ * Both files are mapped in chunks that grow with the store, so a small store
+ * only takes a little disk space.
+ * Search is an exact (brute-force) cosine similarity scan using the
+ * {@link SimilarityKernels}.
+ * <p>
+ * Thread-safe: searches run concurrently, modifications exclusively.
+ */
+@Slf4j
+public class MappedEmbeddingStore implements EmbeddingStore<TextSegment>, AutoCloseable {
+	public static final String VECTOR_FILE = "vectors.f32";
+	public static final String SEGMENT_FILE = "segments.dat";
+
+	private static final int MAGIC = 0x4C34564D;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int DIMENSION_OFFSET = 8;
+	private static final int COUNT_OFFSET = 16;
+	private static final long VECTOR_CHUNK_BYTES = 256L << 20;
+	private static final int SEGMENT_CHUNK_BYTES = 64 << 20;
+	// the last chunk is mapped with at least this size and doubled when full
+	private static final long MIN_MAPPING_BYTES = 1 << 20;
+	// record length markers in the segment log
+	private static final int END = 0;
+	private static final int NEXT_CHUNK = -1;
+
+	private enum ValueType {
+		STRING, UUID, INTEGER, LONG, FLOAT, DOUBLE
+	}
+
+	private record StoredRecord(String id, int slot, TextSegment segment) {
+	}
+
+	private record Candidate(int slot, double score) {
+	}
+
+	private final Path directory;
+	private final int dimension;
+	private final int vectorsPerChunk;
+	private final FileChannel vectorChannel;
+	private final FileChannel segmentChannel;
+	private final MappedByteBuffer header;
+	private final List<MappedByteBuffer> vectorMappings = new ArrayList<>();
+	private final List<FloatBuffer> vectorChunks = new ArrayList<>();
+	private final List<MappedByteBuffer> segmentChunks = new ArrayList<>();
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// per slot state on the heap, rebuilt from the files on open
+	private int count;
+	private long[] recordPositions = new long[1024];
+	private float[] norms = new float[1024];
+	private final BitSet removed = new BitSet();
+	private final Map<String, Integer> slots = new HashMap<>();
+	private long segmentPosition;
+
+	private MappedEmbeddingStore(Path directory, int dimension) throws IOException {
+		this.directory = directory;
+		this.dimension = dimension;
+		this.vectorsPerChunk = (int) Math.max(1, VECTOR_CHUNK_BYTES / (dimension * (long) Float.BYTES));
+
+		Files.createDirectories(directory);
+		vectorChannel = FileChannel.open(directory.resolve(VECTOR_FILE), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segmentChannel = FileChannel.open(directory.resolve(SEGMENT_FILE), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		boolean created = vectorChannel.size() == 0;
+		header = vectorChannel.map(MapMode.READ_WRITE, 0, HEADER_SIZE);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		if (created) {
+			header.putInt(0, MAGIC);
+			header.putInt(4, VERSION);
+			header.putInt(DIMENSION_OFFSET, dimension);
+			header.putLong(COUNT_OFFSET, 0);
+		} else {
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+				throw new IOException("Not a vector file of version " + VERSION + ": " + directory);
+			}
+			if (header.getInt(DIMENSION_OFFSET) != dimension) {
+				throw new IOException("Store " + directory + " has dimension " + header.getInt(DIMENSION_OFFSET)
+						+ ", not " + dimension);
+			}
+			count = (int) header.getLong(COUNT_OFFSET);
+		}
+		load();
+	}
+
+	/**
+	 * Opens the store in the given directory, creating it if necessary.
+	 *
+	 * @param directory the directory of the store files
+	 * @param dimension the vector dimension; must match an existing store
+	 * @return the store
+	 * @throws IOException if the files cannot be mapped or belong to a store with
+	 *                     another dimension
+	 */
+	public static MappedEmbeddingStore open(Path directory, int dimension) throws IOException {
+		return new MappedEmbeddingStore(directory, dimension);
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	public int getDimension() {
+		return dimension;
+	}
+
+	/**
+	 * @return the number of stored (not removed) embeddings
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return slots.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public String add(Embedding embedding) {
+		String id = UUID.randomUUID().toString();
+		add(id, embedding);
+		return id;
+	}
+
+	@Override
+	public void add(String id, Embedding embedding) {
+		addAll(List.of(id), List.of(embedding), null);
+	}
+
+	@Override
+	public String add(Embedding embedding, TextSegment textSegment) {
+		String id = UUID.randomUUID().toString();
+		addAll(List.of(id), List.of(embedding), List.of(textSegment));
+		return id;
+	}
+
+	@Override
+	public List<String> addAll(List<Embedding> embeddings) {
+		List<String> ids = embeddings.stream().map(e -> UUID.randomUUID().toString()).toList();
+		addAll(ids, embeddings, null);
+		return ids;
+	}
+
+	@Override
+	public List<String> addAll(List<Embedding> embeddings, List<TextSegment> textSegments) {
+		List<String> ids = embeddings.stream().map(e -> UUID.randomUUID().toString()).toList();
+		addAll(ids, embeddings, textSegments);
+		return ids;
+	}
+
+	/**
+	 * Adds embeddings with the given ids. An existing entry with the same id is
+	 * replaced.
+	 *
+	 * @param ids          the ids
+	 * @param embeddings   the embeddings
+	 * @param textSegments the segments, null if there are none
+	 */
+	public void addAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> textSegments) {
+		if (ids.size() != embeddings.size() || (textSegments != null && textSegments.size() != embeddings.size())) {
+			throw new IllegalArgumentException("ids, embeddings and segments must have the same size");
+		}
+		lock.writeLock().lock();
+		try {
+			for (int i = 0; i < embeddings.size(); i++) {
+				append(ids.get(i), embeddings.get(i).vector(), textSegments != null ? textSegments.get(i) : null);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void removeAll(Collection<String> ids) {
+		lock.writeLock().lock();
+		try {
+			for (String id : ids) {
+				Integer slot = slots.remove(id);
+				if (slot != null) {
+					markRemoved(slot);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void removeAll(Filter filter) {
+		lock.writeLock().lock();
+		try {
+			for (int slot = removed.nextClearBit(0); slot < count; slot = removed.nextClearBit(slot + 1)) {
+				StoredRecord record = readRecord(slot);
+				Metadata metadata = record.segment() != null ? record.segment().metadata() : new Metadata();
+				if (filter.test(metadata)) {
+					slots.remove(record.id());
+					markRemoved(slot);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void removeAll() {
+		lock.writeLock().lock();
+		try {
+			// the END marker at the log start hides all old records
+			segmentChunk(0).putInt(0, END);
+			header.putLong(COUNT_OFFSET, 0);
+			count = 0;
+			segmentPosition = 0;
+			slots.clear();
+			removed.clear();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+		float[] query = request.queryEmbedding().vector();
+		if (query.length != dimension) {
+			throw new IllegalArgumentException("Query has dimension " + query.length + ", not " + dimension);
+		}
+		float queryNorm = norm(query);
+		int maxResults = request.maxResults();
+		Filter filter = request.filter();
+		float[] scratch = SimilarityKernels.scratch(dimension);
+
+		lock.readLock().lock();
+		try {
+			PriorityQueue<Candidate> top = new PriorityQueue<>(Comparator.comparingDouble(Candidate::score));
+			for (int slot = removed.nextClearBit(0); slot < count; slot = removed.nextClearBit(slot + 1)) {
+				double score = score(slot, query, queryNorm, scratch);
+				if (score < request.minScore() || (top.size() == maxResults && score <= top.peek().score())) {
+					continue;
+				}
+				if (filter != null) {
+					TextSegment segment = readRecord(slot).segment();
+					if (!filter.test(segment != null ? segment.metadata() : new Metadata())) {
+						continue;
+					}
+				}
+				top.add(new Candidate(slot, score));
+				if (top.size() > maxResults) {
+					top.poll();
+				}
+			}
+
+			List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(top.size());
+			while (!top.isEmpty()) {
+				Candidate candidate = top.poll();
+				matches.add(match(candidate.slot(), candidate.score()));
+			}
+			matches.sort(Comparator.comparingDouble((EmbeddingMatch<TextSegment> m) -> m.score()).reversed());
+			return new EmbeddingSearchResult<>(matches);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds one embedding like {@link #addAll(List, List, List)} and returns the
+	 * slot it was stored in. Slots are assigned in ascending order.
+	 */
+	int addEntry(String id, float[] vector, TextSegment segment) {
+		lock.writeLock().lock();
+		try {
+			append(id, vector, segment);
+			return count - 1;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * The read lock has to be held while using the slot based accessors below.
+	 */
+	Lock readLock() {
+		return lock.readLock();
+	}
+
+	Lock writeLock() {
+		return lock.writeLock();
+	}
+
+	/**
+	 * @return the number of slots, including removed ones
+	 */
+	int slotCount() {
+		return count;
+	}
+
+	boolean isRemoved(int slot) {
+		return removed.get(slot);
+	}
+
+	/**
+	 * @param scratch see {@link SimilarityKernels#scratch(int)}
+	 * @return the cosine similarity of the stored vector and the query
+	 */
+	double cosine(int slot, float[] query, float queryNorm, float[] scratch) {
+		double dot = SimilarityKernels.dot(vectorChunks.get(slot / vectorsPerChunk),
+				(slot % vectorsPerChunk) * dimension, query, scratch);
+		double norm = norms[slot] * queryNorm;
+		return norm == 0 ? 0 : dot / norm;
+	}
+
+	/**
+	 * @param scratch see {@link SimilarityKernels#scratch(int)}
+	 * @return the cosine similarity of two stored vectors
+	 */
+	double cosine(int slot, int otherSlot, float[] scratch) {
+		double dot = SimilarityKernels.dot(vectorChunks.get(slot / vectorsPerChunk),
+				(slot % vectorsPerChunk) * dimension, vectorChunks.get(otherSlot / vectorsPerChunk),
+				(otherSlot % vectorsPerChunk) * dimension, dimension, scratch);
+		double norm = norms[slot] * norms[otherSlot];
+		return norm == 0 ? 0 : dot / norm;
+	}
+
+	float[] vector(int slot) {
+		return readVector(slot);
+	}
+
+	/**
+	 * @return the search result entry for the slot
+	 */
+	EmbeddingMatch<TextSegment> match(int slot, double score) {
+		try {
+			StoredRecord record = readRecord(slot);
+			return new EmbeddingMatch<>(score, record.id(), Embedding.from(readVector(slot)), record.segment());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Writes all changes to disk.
+	 */
+	public void flush() {
+		lock.writeLock().lock();
+		try {
+			vectorMappings.forEach(MappedByteBuffer::force);
+			segmentChunks.forEach(MappedByteBuffer::force);
+			header.force();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		vectorChannel.close();
+		segmentChannel.close();
+	}
+
+	/**
+	 * Rebuilds the heap state by scanning the segment log. Records of slots not
+	 * covered by the header count were written by an interrupted add and are
+	 * dropped.
+	 */
+	private void load() throws IOException {
+		long position = 0;
+		while (true) {
+			MappedByteBuffer chunk = segmentChunk((int) (position / SEGMENT_CHUNK_BYTES));
+			int offset = (int) (position % SEGMENT_CHUNK_BYTES);
+			int length = chunk.getInt(offset);
+			if (length == NEXT_CHUNK) {
+				position = (position / SEGMENT_CHUNK_BYTES + 1) * SEGMENT_CHUNK_BYTES;
+				continue;
+			}
+			if (length == END) {
+				break;
+			}
+			DataInputStream in = recordInput(chunk, offset, length);
+			boolean isRemoved = in.readBoolean();
+			int slot = in.readInt();
+			String id = in.readUTF();
+			if (slot >= count) {
+				break;
+			}
+			ensureCapacity(slot);
+			recordPositions[slot] = position;
+			norms[slot] = norm(readVector(slot));
+			if (isRemoved) {
+				removed.set(slot);
+			} else {
+				slots.put(id, slot);
+			}
+			position += Integer.BYTES + length;
+		}
+		segmentPosition = position;
+		logger.debug("Opened embedding store {} with {} embedding(s)", directory, slots.size());
+	}
+
+	private void append(String id, float[] vector, TextSegment segment) throws IOException {
+		if (vector.length != dimension) {
+			throw new IllegalArgumentException("Embedding has dimension " + vector.length + ", not " + dimension);
+		}
+		Integer existing = slots.remove(id);
+		if (existing != null) {
+			markRemoved(existing);
+		}
+
+		int slot = count;
+		ensureCapacity(slot);
+		vectorChunks.get(slot / vectorsPerChunk).put((slot % vectorsPerChunk) * dimension, vector);
+		recordPositions[slot] = appendRecord(encode(id, slot, segment));
+		norms[slot] = norm(vector);
+		slots.put(id, slot);
+
+		// the count makes the entry visible after a restart, so it is written last
+		count++;
+		header.putLong(COUNT_OFFSET, count);
+	}
+
+	/**
+	 * Appends a record to the log. A record never spans two mapped chunks, and is
+	 * always followed by an END marker; its length is written last so an
+	 * interrupted write leaves the log terminated.
+	 */
+	private long appendRecord(byte[] record) throws IOException {
+		if (Integer.BYTES + record.length + Integer.BYTES > SEGMENT_CHUNK_BYTES) {
+			throw new IllegalArgumentException("Text segment too large: " + record.length + " bytes");
+		}
+		int offset = (int) (segmentPosition % SEGMENT_CHUNK_BYTES);
+		if (offset + Integer.BYTES + record.length + Integer.BYTES > SEGMENT_CHUNK_BYTES) {
+			long next = (segmentPosition / SEGMENT_CHUNK_BYTES + 1) * SEGMENT_CHUNK_BYTES;
+			segmentChunk((int) (next / SEGMENT_CHUNK_BYTES), Integer.BYTES).putInt(0, END);
+			segmentChunk((int) (segmentPosition / SEGMENT_CHUNK_BYTES)).putInt(offset, NEXT_CHUNK);
+			segmentPosition = next;
+			offset = 0;
+		}
+		long position = segmentPosition;
+		MappedByteBuffer chunk = segmentChunk((int) (position / SEGMENT_CHUNK_BYTES),
+				offset + Integer.BYTES + record.length + Integer.BYTES);
+		chunk.put(offset + Integer.BYTES, record);
+		chunk.putInt(offset + Integer.BYTES + record.length, END);
+		chunk.putInt(offset, record.length);
+		segmentPosition += Integer.BYTES + record.length;
+		return position;
+	}
+
+	private void markRemoved(int slot) {
+		long position = recordPositions[slot];
+		try {
+			segmentChunk((int) (position / SEGMENT_CHUNK_BYTES))
+					.put((int) (position % SEGMENT_CHUNK_BYTES) + Integer.BYTES, (byte) 1);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		removed.set(slot);
+	}
+
+	private double score(int slot, float[] query, float queryNorm, float[] scratch) {
+		return RelevanceScore.fromCosineSimilarity(cosine(slot, query, queryNorm, scratch));
+	}
+
+	private float[] readVector(int slot) {
+		float[] vector = new float[dimension];
+		vectorChunks.get(slot / vectorsPerChunk).get((slot % vectorsPerChunk) * dimension, vector);
+		return vector;
+	}
+
+	private StoredRecord readRecord(int slot) throws IOException {
+		long position = recordPositions[slot];
+		MappedByteBuffer chunk = segmentChunk((int) (position / SEGMENT_CHUNK_BYTES));
+		int offset = (int) (position % SEGMENT_CHUNK_BYTES);
+		DataInputStream in = recordInput(chunk, offset, chunk.getInt(offset));
+		in.readBoolean();
+		int recordSlot = in.readInt();
+		String id = in.readUTF();
+		TextSegment segment = null;
+		if (in.readBoolean()) {
+			byte[] text = new byte[in.readInt()];
+			in.readFully(text);
+			Map<String, Object> metadata = new LinkedHashMap<>();
+			int entries = in.readInt();
+			for (int i = 0; i < entries; i++) {
+				String key = in.readUTF();
+				metadata.put(key, switch (ValueType.values()[in.readByte()]) {
+				case STRING -> in.readUTF();
+				case UUID -> new UUID(in.readLong(), in.readLong());
+				case INTEGER -> in.readInt();
+				case LONG -> in.readLong();
+				case FLOAT -> in.readFloat();
+				case DOUBLE -> in.readDouble();
+				});
+			}
+			segment = TextSegment.from(new String(text, StandardCharsets.UTF_8), Metadata.from(metadata));
+		}
+		return new StoredRecord(id, recordSlot, segment);
+	}
+
+	private static DataInputStream recordInput(MappedByteBuffer chunk, int offset, int length) {
+		byte[] record = new byte[length];
+		chunk.get(offset + Integer.BYTES, record);
+		return new DataInputStream(new ByteArrayInputStream(record));
+	}
+
+	private static byte[] encode(String id, int slot, TextSegment segment) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(segment != null ? segment.text().length() + 64 : 64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeBoolean(false);
+		out.writeInt(slot);
+		out.writeUTF(id);
+		out.writeBoolean(segment != null);
+		if (segment != null) {
+			byte[] text = segment.text().getBytes(StandardCharsets.UTF_8);
+			out.writeInt(text.length);
+			out.write(text);
+			Map<String, Object> metadata = segment.metadata().toMap();
+			out.writeInt(metadata.size());
+			for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+				out.writeUTF(entry.getKey());
+				Object value = entry.getValue();
+				if (value instanceof UUID uuid) {
+					out.writeByte(ValueType.UUID.ordinal());
+					out.writeLong(uuid.getMostSignificantBits());
+					out.writeLong(uuid.getLeastSignificantBits());
+				} else if (value instanceof Integer i) {
+					out.writeByte(ValueType.INTEGER.ordinal());
+					out.writeInt(i);
+				} else if (value instanceof Long l) {
+					out.writeByte(ValueType.LONG.ordinal());
+					out.writeLong(l);
+				} else if (value instanceof Float f) {
+					out.writeByte(ValueType.FLOAT.ordinal());
+					out.writeFloat(f);
+				} else if (value instanceof Double d) {
+					out.writeByte(ValueType.DOUBLE.ordinal());
+					out.writeDouble(d);
+				} else {
+					out.writeByte(ValueType.STRING.ordinal());
+					out.writeUTF(String.valueOf(value));
+				}
+			}
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Maps the vector chunks up to the one of the given slot. All but the last
+	 * chunk are mapped completely.
+	 */
+	private void mapVectors(int slot) throws IOException {
+		int vectorBytes = dimension * Float.BYTES;
+		long chunkBytes = (long) vectorsPerChunk * vectorBytes;
+		int last = slot / vectorsPerChunk;
+		for (int index = 0; index <= last; index++) {
+			long needed = index < last ? chunkBytes : (long) (slot % vectorsPerChunk + 1) * vectorBytes;
+			long mapped = index < vectorChunks.size() ? (long) vectorChunks.get(index).capacity() * Float.BYTES : 0;
+			if (mapped >= needed) {
+				continue;
+			}
+			long position = HEADER_SIZE + index * chunkBytes;
+			long size = mappingSize(vectorChannel, position, chunkBytes, mapped, needed);
+			MappedByteBuffer mapping = vectorChannel.map(MapMode.READ_WRITE, position, size - size % vectorBytes);
+			mapping.order(ByteOrder.LITTLE_ENDIAN);
+			if (index < vectorChunks.size()) {
+				vectorMappings.set(index, mapping);
+				vectorChunks.set(index, mapping.asFloatBuffer());
+			} else {
+				vectorMappings.add(mapping);
+				vectorChunks.add(mapping.asFloatBuffer());
+			}
+		}
+	}
+
+	private MappedByteBuffer segmentChunk(int index) throws IOException {
+		return segmentChunk(index, 0);
+	}
+
+	/**
+	 * @param needed the number of bytes of the chunk to map at least
+	 */
+	private MappedByteBuffer segmentChunk(int index, int needed) throws IOException {
+		for (int i = segmentChunks.size(); i <= index; i++) {
+			segmentChunks.add(null);
+		}
+		MappedByteBuffer chunk = segmentChunks.get(index);
+		long mapped = chunk != null ? chunk.capacity() : 0;
+		if (chunk == null || mapped < needed) {
+			long position = (long) index * SEGMENT_CHUNK_BYTES;
+			chunk = segmentChannel.map(MapMode.READ_WRITE, position,
+					mappingSize(segmentChannel, position, SEGMENT_CHUNK_BYTES, mapped, needed));
+			chunk.order(ByteOrder.LITTLE_ENDIAN);
+			segmentChunks.set(index, chunk);
+		}
+		return chunk;
+	}
+
+	/**
+	 * Returns the size to map a chunk with: what the file already holds of it, at
+	 * least twice the current mapping and the needed bytes, at most the chunk
+	 * size. Mapping beyond the end of the file extends it.
+	 */
+	private static long mappingSize(FileChannel channel, long position, long chunkBytes, long mapped, long needed)
+			throws IOException {
+		long existing = Math.max(0, channel.size() - position);
+		long size = Math.max(Math.max(existing, needed), Math.max(mapped * 2, MIN_MAPPING_BYTES));
+		return Math.min(size, chunkBytes);
+	}
+
+	private void ensureCapacity(int slot) throws IOException {
+		if (slot >= recordPositions.length) {
+			int capacity = Math.max(slot + 1, recordPositions.length * 2);
+			recordPositions = Arrays.copyOf(recordPositions, capacity);
+			norms = Arrays.copyOf(norms, capacity);
+		}
+		int index = slot / vectorsPerChunk;
+		int offset = (slot % vectorsPerChunk) * dimension;
+		if (index >= vectorChunks.size() || vectorChunks.get(index).capacity() <= offset) {
+			mapVectors(slot);
+		}
+	}
+
+	static float norm(float[] vector) {
+		return (float) Math.sqrt(SimilarityKernels.get().dot(vector, vector));
+	}
+}
@@ -0,0 +1,388 @@
+package com.jadice.blog.l4j.store;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+
+import com.jadice.blog.l4j.simd.SimilarityKernel;
+import com.jadice.blog.l4j.simd.SimilarityKernels;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link EmbeddingStore} searching compact quantized copies of the vectors on
+ * the heap and rescoring the best candidates with the full-precision vectors of
+ * a {@link MappedEmbeddingStore} in the same directory.
+ * <p>
+ * Modes, selected when the store is opened:
+ * <ul>
+ * <li>{@link Quantization#INT8}: one byte per dimension plus a scale per
+ * vector (a quarter of the float32 size)</li>
+ * <li>{@link Quantization#BINARY}: one sign bit per dimension (a 32nd of the
+ * float32 size), candidates are pre-filtered by Hamming distance</li>
+ * </ul>
+ * <code>maxResults * oversampling</code> candidates are rescored; higher
+ * oversampling improves recall at the cost of latency. The quantized codes are
+ * rebuilt from the mapped vectors when the store is opened. Searches with a
+ * filter fall back to the exact scan of the underlying store.
+ */
+@Slf4j
+public class QuantizedEmbeddingStore implements EmbeddingStore<TextSegment>, AutoCloseable {
+
+	public enum Quantization {
+		INT8(4), BINARY(10);
+
+		private final int defaultOversampling;
+
+		private Quantization(int defaultOversampling) {
+			this.defaultOversampling = defaultOversampling;
+		}
+	}
+
+	private record Candidate(int slot, double score) {
+	}
+
+	private final MappedEmbeddingStore store;
+	private final Quantization quantization;
+	private final int dimension;
+	private final int words;
+	private final SimilarityKernel kernel = SimilarityKernels.get();
+	private volatile int oversampling;
+
+	// guarded by the locks of the store
+	private byte[] int8Codes = new byte[0];
+	private float[] int8Factors = new float[0];
+	private long[] bitCodes = new long[0];
+	private int capacity;
+
+	private QuantizedEmbeddingStore(MappedEmbeddingStore store, Quantization quantization) {
+		this.store = store;
+		this.quantization = quantization;
+		this.dimension = store.getDimension();
+		this.words = (dimension + Long.SIZE - 1) / Long.SIZE;
+		this.oversampling = quantization.defaultOversampling;
+		load();
+	}
+
+	/**
+	 * Opens the store in the given directory, creating it if necessary.
+	 *
+	 * @param directory    the directory of the store files
+	 * @param dimension    the vector dimension; must match an existing store
+	 * @param quantization the quantization of the in-memory vectors
+	 * @return the store
+	 * @throws IOException
+	 */
+	public static QuantizedEmbeddingStore open(Path directory, int dimension, Quantization quantization)
+			throws IOException {
+		return new QuantizedEmbeddingStore(MappedEmbeddingStore.open(directory, dimension), quantization);
+	}
+
+	public Quantization getQuantization() {
+		return quantization;
+	}
+
+	public int getOversampling() {
+		return oversampling;
+	}
+
+	/**
+	 * @param oversampling factor of <code>maxResults</code> giving the number of
+	 *                     candidates rescored with full precision (4 for
+	 *                     {@link Quantization#INT8}, 10 for
+	 *                     {@link Quantization#BINARY} by default)
+	 */
+	public void setOversampling(int oversampling) {
+		if (oversampling < 1) {
+			throw new IllegalArgumentException("oversampling must be >= 1");
+		}
+		this.oversampling = oversampling;
+	}
+
+	/**
+	 * @return the number of stored (not removed) embeddings
+	 */
+	public int size() {
+		return store.size();
+	}
+
+	/**
+	 * @return the heap bytes used by the quantized vectors
+	 */
+	public long getQuantizedBytes() {
+		Lock readLock = store.readLock();
+		readLock.lock();
+		try {
+			long count = store.slotCount();
+			return quantization == Quantization.INT8 ? count * (dimension + Float.BYTES) : count * words * Long.BYTES;
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public String add(Embedding embedding) {
+		String id = UUID.randomUUID().toString();
+		add(id, embedding);
+		return id;
+	}
+
+	@Override
+	public void add(String id, Embedding embedding) {
+		insert(id, embedding.vector(), null);
+	}
+
+	@Override
+	public String add(Embedding embedding, TextSegment textSegment) {
+		String id = UUID.randomUUID().toString();
+		insert(id, embedding.vector(), textSegment);
+		return id;
+	}
+
+	@Override
+	public List<String> addAll(List<Embedding> embeddings) {
+		List<String> ids = new ArrayList<>(embeddings.size());
+		for (Embedding embedding : embeddings) {
+			ids.add(add(embedding));
+		}
+		return ids;
+	}
+
+	@Override
+	public List<String> addAll(List<Embedding> embeddings, List<TextSegment> textSegments) {
+		if (embeddings.size() != textSegments.size()) {
+			throw new IllegalArgumentException("embeddings and segments must have the same size");
+		}
+		List<String> ids = new ArrayList<>(embeddings.size());
+		for (int i = 0; i < embeddings.size(); i++) {
+			ids.add(add(embeddings.get(i), textSegments.get(i)));
+		}
+		return ids;
+	}
+
+	/**
+	 * Adds embeddings with the given ids. An existing entry with the same id is
+	 * replaced.
+	 *
+	 * @param ids          the ids
+	 * @param embeddings   the embeddings
+	 * @param textSegments the segments, null if there are none
+	 */
+	public void addAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> textSegments) {
+		if (ids.size() != embeddings.size() || (textSegments != null && textSegments.size() != embeddings.size())) {
+			throw new IllegalArgumentException("ids, embeddings and segments must have the same size");
+		}
+		for (int i = 0; i < embeddings.size(); i++) {
+			insert(ids.get(i), embeddings.get(i).vector(), textSegments != null ? textSegments.get(i) : null);
+		}
+	}
+
+	@Override
+	public void removeAll(Collection<String> ids) {
+		store.removeAll(ids);
+	}
+
+	@Override
+	public void removeAll(Filter filter) {
+		store.removeAll(filter);
+	}
+
+	@Override
+	public void removeAll() {
+		// slots are reused from 0, the codes are overwritten by new entries
+		store.removeAll();
+	}
+
+	@Override
+	public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+		if (request.filter() != null) {
+			return store.search(request);
+		}
+		float[] query = request.queryEmbedding().vector();
+		if (query.length != dimension) {
+			throw new IllegalArgumentException("Query has dimension " + query.length + ", not " + dimension);
+		}
+		float queryNorm = MappedEmbeddingStore.norm(query);
+		int maxResults = request.maxResults();
+		int candidateCount = maxResults * oversampling;
+
+		Lock readLock = store.readLock();
+		readLock.lock();
+		try {
+			PriorityQueue<Candidate> candidates = quantization == Quantization.INT8
+					? int8Candidates(query, candidateCount)
+					: binaryCandidates(query, candidateCount);
+
+			// rescore with the full-precision vectors
+			List<Candidate> rescored = new ArrayList<>(candidates.size());
+			float[] scratch = SimilarityKernels.scratch(query.length);
+			for (Candidate candidate : candidates) {
+				double score = RelevanceScore
+						.fromCosineSimilarity(store.cosine(candidate.slot(), query, queryNorm, scratch));
+				if (score >= request.minScore()) {
+					rescored.add(new Candidate(candidate.slot(), score));
+				}
+			}
+			rescored.sort(Comparator.comparingDouble(Candidate::score).reversed());
+
+			List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(Math.min(maxResults, rescored.size()));
+			for (Candidate candidate : rescored.subList(0, Math.min(maxResults, rescored.size()))) {
+				matches.add(store.match(candidate.slot(), candidate.score()));
+			}
+			return new EmbeddingSearchResult<>(matches);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes all changes of the underlying store to disk.
+	 */
+	public void flush() {
+		store.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		store.close();
+	}
+
+	/**
+	 * Scans the int8 codes; the approximate score is proportional to the cosine
+	 * similarity.
+	 */
+	private PriorityQueue<Candidate> int8Candidates(float[] query, int candidateCount) {
+		PriorityQueue<Candidate> top = new PriorityQueue<>(Comparator.comparingDouble(Candidate::score));
+		int count = store.slotCount();
+		for (int slot = 0; slot < count; slot++) {
+			if (store.isRemoved(slot)) {
+				continue;
+			}
+			double score = int8Factors[slot] * kernel.dot(int8Codes, slot * dimension, query, dimension);
+			offer(top, slot, score, candidateCount);
+		}
+		return top;
+	}
+
+	/**
+	 * Scans the sign bits; the score is the negated Hamming distance to the sign
+	 * bits of the query.
+	 */
+	private PriorityQueue<Candidate> binaryCandidates(float[] query, int candidateCount) {
+		long[] queryBits = new long[words];
+		encodeBits(query, queryBits, 0);
+
+		PriorityQueue<Candidate> top = new PriorityQueue<>(Comparator.comparingDouble(Candidate::score));
+		int count = store.slotCount();
+		for (int slot = 0; slot < count; slot++) {
+			if (store.isRemoved(slot)) {
+				continue;
+			}
+			int distance = 0;
+			int offset = slot * words;
+			for (int w = 0; w < words; w++) {
+				distance += Long.bitCount(queryBits[w] ^ bitCodes[offset + w]);
+			}
+			offer(top, slot, -distance, candidateCount);
+		}
+		return top;
+	}
+
+	private static void offer(PriorityQueue<Candidate> top, int slot, double score, int max) {
+		if (top.size() < max) {
+			top.add(new Candidate(slot, score));
+		} else if (score > top.peek().score()) {
+			top.poll();
+			top.add(new Candidate(slot, score));
+		}
+	}
+
+	private void insert(String id, float[] vector, TextSegment segment) {
+		// the write lock is reentrant, so the codes are set atomically with the entry
+		Lock writeLock = store.writeLock();
+		writeLock.lock();
+		try {
+			int slot = store.addEntry(id, vector, segment);
+			encode(slot, vector);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Stores the quantized codes of the slot. The write lock of the store must be
+	 * held.
+	 */
+	private void encode(int slot, float[] vector) {
+		ensureCapacity(slot + 1);
+		if (quantization == Quantization.BINARY) {
+			encodeBits(vector, bitCodes, slot * words);
+			return;
+		}
+		float max = 0;
+		for (float v : vector) {
+			max = Math.max(max, Math.abs(v));
+		}
+		float scale = max / 127;
+		int offset = slot * dimension;
+		for (int i = 0; i < dimension; i++) {
+			int8Codes[offset + i] = scale == 0 ? 0 : (byte) Math.round(vector[i] / scale);
+		}
+		float norm = MappedEmbeddingStore.norm(vector);
+		// scale and norm folded into one factor, the code dot product times it
+		// approximates the cosine similarity up to the query norm
+		int8Factors[slot] = norm == 0 ? 0 : scale / norm;
+	}
+
+	private void encodeBits(float[] vector, long[] bits, int offset) {
+		Arrays.fill(bits, offset, offset + words, 0L);
+		for (int i = 0; i < dimension; i++) {
+			if (vector[i] > 0) {
+				bits[offset + i / Long.SIZE] |= 1L << (i % Long.SIZE);
+			}
+		}
+	}
+
+	private void ensureCapacity(int slots) {
+		if (slots <= capacity) {
+			return;
+		}
+		capacity = Math.max(slots, Math.max(1024, capacity * 2));
+		if (quantization == Quantization.INT8) {
+			int8Codes = Arrays.copyOf(int8Codes, Math.multiplyExact(capacity, dimension));
+			int8Factors = Arrays.copyOf(int8Factors, capacity);
+		} else {
+			bitCodes = Arrays.copyOf(bitCodes, Math.multiplyExact(capacity, words));
+		}
+	}
+
+	private void load() {
+		Lock writeLock = store.writeLock();
+		writeLock.lock();
+		try {
+			int count = store.slotCount();
+			for (int slot = 0; slot < count; slot++) {
+				encode(slot, store.vector(slot));
+			}
+			logger.debug("Opened {} quantized store {}: {} slot(s) encoded", quantization, store.getDirectory(),
+					count);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,655 @@
+package com.jadice.blog.l4j.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.IntFunction;
+
+import com.jadice.blog.l4j.simd.SimilarityKernels;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Read-only {@link EmbeddingStore} on a binary snapshot file, written from a
+ * populated store with {@link #write(Path, String, EmbeddingModel, MappedEmbeddingStore)}.
+ * Opening a snapshot only maps the file, so even a large store is queryable
+ * right away instead of after re-embedding all documents.
+ * <p>
+ * The snapshot is a single file with these sections:
+ * <ul>
+ * <li>header: format version, dimension, count, section offsets, the embedding
+ * model id and the embedding of a fixed probe text (the model
+ * fingerprint)</li>
+ * <li>vectors: all vectors as one contiguous little-endian float32 region</li>
+ * <li>norms: the precomputed vector norms</li>
+ * <li>records: id, text and metadata per vector; metadata keys are stored as
+ * indexes into the dictionary</li>
+ * <li>record offsets: the position of every record, so no section has to be
+ * scanned on open</li>
+ * <li>dictionary: the metadata keys</li>
+ * </ul>
+ * Opening verifies the format version, the file length, the model id and the
+ * fingerprint, so a snapshot is never used with another model, even one
+ * registered under the same id. Search is an exact cosine similarity scan like
+ * in {@link MappedEmbeddingStore}.
+ * <p>
+ * Thread-safe.
+ */
+@Slf4j
+public class SnapshotEmbeddingStore implements EmbeddingStore<TextSegment>, AutoCloseable {
+
+	private static final int MAGIC = 0x4C345353;
+	private static final int VERSION = 1;
+	private static final int ALIGNMENT = 64;
+	private static final int FIXED_HEADER_SIZE = 68;
+	private static final int MODEL_ID_OFFSET = 64;
+	private static final long VECTOR_CHUNK_BYTES = 256L << 20;
+	private static final String PROBE_TEXT = "The quick brown fox jumps over the lazy dog.";
+	private static final double MIN_FINGERPRINT_SIMILARITY = 0.999;
+
+	private enum ValueType {
+		STRING, UUID, INTEGER, LONG, FLOAT, DOUBLE
+	}
+
+	private record Entry(String id, float[] vector, TextSegment segment) {
+	}
+
+	private record StoredRecord(String id, TextSegment segment) {
+	}
+
+	private record Candidate(int index, double score) {
+	}
+
+	private final Path file;
+	private final FileChannel channel;
+	private final String modelId;
+	private final int dimension;
+	private final int count;
+	private final int vectorsPerChunk;
+	private final List<FloatBuffer> vectorChunks = new ArrayList<>();
+	private final FloatBuffer norms;
+	private final LongBuffer recordOffsets;
+	private final long recordsOffset;
+	private final String[] dictionary;
+
+	private SnapshotEmbeddingStore(Path file, String modelId, EmbeddingModel embeddingModel) throws IOException {
+		this.file = file;
+		this.modelId = modelId;
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size < FIXED_HEADER_SIZE) {
+				throw new IOException("Not a snapshot: " + file);
+			}
+			MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0, FIXED_HEADER_SIZE);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt(0) != MAGIC) {
+				throw new IOException("Not a snapshot: " + file);
+			}
+			if (header.getInt(4) != VERSION) {
+				throw new IOException("Snapshot " + file + " has format version " + header.getInt(4) + ", not "
+						+ VERSION);
+			}
+			if (header.getLong(56) != size) {
+				throw new IOException("Snapshot " + file + " is truncated or damaged: " + size + " bytes, expected "
+						+ header.getLong(56));
+			}
+			dimension = header.getInt(8);
+			count = header.getInt(12);
+			long vectorsOffset = header.getLong(16);
+			long normsOffset = header.getLong(24);
+			recordsOffset = header.getLong(32);
+			long recordOffsetsOffset = header.getLong(40);
+			long dictionaryOffset = header.getLong(48);
+			if (dimension < 1 || header.getInt(MODEL_ID_OFFSET) < 0
+					|| headerSize(header.getInt(MODEL_ID_OFFSET), dimension) > vectorsOffset) {
+				throw new IOException("Snapshot " + file + " has a damaged header");
+			}
+			verifyModel(header.getInt(MODEL_ID_OFFSET), embeddingModel);
+
+			vectorsPerChunk = (int) Math.max(1, VECTOR_CHUNK_BYTES / (dimension * (long) Float.BYTES));
+			for (long first = 0; first < count; first += vectorsPerChunk) {
+				long vectors = Math.min(vectorsPerChunk, count - first);
+				vectorChunks.add(map(vectorsOffset + first * dimension * Float.BYTES,
+						vectors * dimension * Float.BYTES).asFloatBuffer());
+			}
+			norms = map(normsOffset, (long) count * Float.BYTES).asFloatBuffer();
+			recordOffsets = map(recordOffsetsOffset, (count + 1L) * Long.BYTES).asLongBuffer();
+
+			DataInputStream in = new DataInputStream(
+					new ByteArrayInputStream(read(dictionaryOffset, (int) (size - dictionaryOffset))));
+			dictionary = new String[in.readInt()];
+			for (int i = 0; i < dictionary.length; i++) {
+				dictionary[i] = in.readUTF();
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		logger.debug("Opened snapshot {} with {} embedding(s) of model {}", file, count, modelId);
+	}
+
+	/**
+	 * Opens a snapshot.
+	 *
+	 * @param file           the snapshot file
+	 * @param modelId        the id of the embedding model the queries will be
+	 *                       embedded with
+	 * @param embeddingModel the embedding model, used to compare its fingerprint
+	 *                       with the one in the snapshot
+	 * @return the store
+	 * @throws IOException if the file cannot be read, has another format version,
+	 *                     is damaged or was written for another model
+	 */
+	public static SnapshotEmbeddingStore open(Path file, String modelId, EmbeddingModel embeddingModel)
+			throws IOException {
+		return new SnapshotEmbeddingStore(file, modelId, embeddingModel);
+	}
+
+	/**
+	 * Writes a snapshot of the (not removed) entries of a store. The file is
+	 * replaced atomically.
+	 *
+	 * @param file           the snapshot file
+	 * @param modelId        the id of the embedding model of the store
+	 * @param embeddingModel the embedding model, used for the fingerprint
+	 * @param store          the store
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(Path file, String modelId, EmbeddingModel embeddingModel, MappedEmbeddingStore store)
+			throws IOException {
+		store.readLock().lock();
+		try {
+			int[] slots = new int[store.size()];
+			int entries = 0;
+			for (int slot = 0; slot < store.slotCount(); slot++) {
+				if (!store.isRemoved(slot)) {
+					slots[entries++] = slot;
+				}
+			}
+			write(file, modelId, embeddingModel, store.getDimension(), entries, i -> {
+				EmbeddingMatch<TextSegment> match = store.match(slots[i], 0);
+				return new Entry(match.embeddingId(), match.embedding().vector(), match.embedded());
+			});
+		} finally {
+			store.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the given entries. The file is replaced atomically.
+	 *
+	 * @param file           the snapshot file
+	 * @param modelId        the id of the embedding model of the embeddings
+	 * @param embeddingModel the embedding model, used for the fingerprint
+	 * @param ids            the ids
+	 * @param embeddings     the embeddings
+	 * @param textSegments   the segments, null if there are none
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(Path file, String modelId, EmbeddingModel embeddingModel, List<String> ids,
+			List<Embedding> embeddings, List<TextSegment> textSegments) throws IOException {
+		if (ids.size() != embeddings.size() || (textSegments != null && textSegments.size() != embeddings.size())) {
+			throw new IllegalArgumentException("ids, embeddings and segments must have the same size");
+		}
+		if (embeddings.isEmpty()) {
+			throw new IllegalArgumentException("No embeddings");
+		}
+		write(file, modelId, embeddingModel, embeddings.get(0).dimension(), embeddings.size(),
+				i -> new Entry(ids.get(i), embeddings.get(i).vector(),
+						textSegments != null ? textSegments.get(i) : null));
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	public String getModelId() {
+		return modelId;
+	}
+
+	public int getDimension() {
+		return dimension;
+	}
+
+	/**
+	 * @return the number of embeddings
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Passes all entries with a segment to the consumer, in snapshot order, e.g.
+	 * to rebuild a lexical index of the segments.
+	 *
+	 * @param consumer receives the embedding id and the segment
+	 */
+	public void forEachSegment(BiConsumer<String, TextSegment> consumer) {
+		try {
+			for (int index = 0; index < count; index++) {
+				StoredRecord record = readRecord(index);
+				if (record.segment() != null) {
+					consumer.accept(record.id(), record.segment());
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public String add(Embedding embedding) {
+		throw readOnly();
+	}
+
+	@Override
+	public void add(String id, Embedding embedding) {
+		throw readOnly();
+	}
+
+	@Override
+	public String add(Embedding embedding, TextSegment textSegment) {
+		throw readOnly();
+	}
+
+	@Override
+	public List<String> addAll(List<Embedding> embeddings) {
+		throw readOnly();
+	}
+
+	@Override
+	public List<String> addAll(List<Embedding> embeddings, List<TextSegment> textSegments) {
+		throw readOnly();
+	}
+
+	@Override
+	public void removeAll(Collection<String> ids) {
+		throw readOnly();
+	}
+
+	@Override
+	public void removeAll(Filter filter) {
+		throw readOnly();
+	}
+
+	@Override
+	public void removeAll() {
+		throw readOnly();
+	}
+
+	@Override
+	public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+		float[] query = request.queryEmbedding().vector();
+		if (query.length != dimension) {
+			throw new IllegalArgumentException("Query has dimension " + query.length + ", not " + dimension);
+		}
+		float queryNorm = MappedEmbeddingStore.norm(query);
+		int maxResults = request.maxResults();
+		Filter filter = request.filter();
+		float[] scratch = SimilarityKernels.scratch(dimension);
+
+		try {
+			PriorityQueue<Candidate> top = new PriorityQueue<>(Comparator.comparingDouble(Candidate::score));
+			for (int index = 0; index < count; index++) {
+				double score = RelevanceScore.fromCosineSimilarity(cosine(index, query, queryNorm, scratch));
+				if (score < request.minScore() || (top.size() == maxResults && score <= top.peek().score())) {
+					continue;
+				}
+				if (filter != null) {
+					TextSegment segment = readRecord(index).segment();
+					if (!filter.test(segment != null ? segment.metadata() : new Metadata())) {
+						continue;
+					}
+				}
+				top.add(new Candidate(index, score));
+				if (top.size() > maxResults) {
+					top.poll();
+				}
+			}
+
+			List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(top.size());
+			while (!top.isEmpty()) {
+				Candidate candidate = top.poll();
+				StoredRecord record = readRecord(candidate.index());
+				matches.add(new EmbeddingMatch<>(candidate.score(), record.id(),
+						Embedding.from(readVector(candidate.index())), record.segment()));
+			}
+			matches.sort(Comparator.comparingDouble((EmbeddingMatch<TextSegment> m) -> m.score()).reversed());
+			return new EmbeddingSearchResult<>(matches);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private void verifyModel(int modelIdLength, EmbeddingModel embeddingModel) throws IOException {
+		ByteBuffer header = ByteBuffer.wrap(read(MODEL_ID_OFFSET, headerSize(modelIdLength, dimension)
+				- MODEL_ID_OFFSET)).order(ByteOrder.LITTLE_ENDIAN);
+		header.position(Integer.BYTES);
+		byte[] id = new byte[modelIdLength];
+		header.get(id);
+		String snapshotModelId = new String(id, StandardCharsets.UTF_8);
+		if (!snapshotModelId.equals(modelId)) {
+			throw new IOException("Snapshot " + file + " was written for model " + snapshotModelId + ", not "
+					+ modelId);
+		}
+
+		header.position((int) align(header.position() + MODEL_ID_OFFSET, Float.BYTES) - MODEL_ID_OFFSET);
+		float[] fingerprint = new float[dimension];
+		header.asFloatBuffer().get(fingerprint);
+		float[] probe = embeddingModel.embed(PROBE_TEXT).content().vector();
+		if (probe.length != dimension) {
+			throw new IOException("Snapshot " + file + " has dimension " + dimension + ", model " + modelId
+					+ " embeds with " + probe.length);
+		}
+		double similarity = SimilarityKernels.get().dot(fingerprint, 0, probe, 0, dimension)
+				/ (MappedEmbeddingStore.norm(fingerprint) * MappedEmbeddingStore.norm(probe));
+		if (!(similarity >= MIN_FINGERPRINT_SIMILARITY)) {
+			throw new IOException("Snapshot " + file + " was written by another model than " + modelId
+					+ " (fingerprint similarity " + similarity + ")");
+		}
+	}
+
+	private double cosine(int index, float[] query, float queryNorm, float[] scratch) {
+		double dot = SimilarityKernels.dot(vectorChunks.get(index / vectorsPerChunk),
+				(index % vectorsPerChunk) * dimension, query, scratch);
+		double norm = norms.get(index) * queryNorm;
+		return norm == 0 ? 0 : dot / norm;
+	}
+
+	private float[] readVector(int index) {
+		float[] vector = new float[dimension];
+		vectorChunks.get(index / vectorsPerChunk).get((index % vectorsPerChunk) * dimension, vector);
+		return vector;
+	}
+
+	private StoredRecord readRecord(int index) throws IOException {
+		long start = recordOffsets.get(index);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				read(recordsOffset + start, (int) (recordOffsets.get(index + 1) - start))));
+		String id = in.readUTF();
+		TextSegment segment = null;
+		if (in.readBoolean()) {
+			byte[] text = new byte[in.readInt()];
+			in.readFully(text);
+			Map<String, Object> metadata = new LinkedHashMap<>();
+			int entries = in.readInt();
+			for (int i = 0; i < entries; i++) {
+				String key = dictionary[in.readInt()];
+				metadata.put(key, switch (ValueType.values()[in.readByte()]) {
+				case STRING -> in.readUTF();
+				case UUID -> new UUID(in.readLong(), in.readLong());
+				case INTEGER -> in.readInt();
+				case LONG -> in.readLong();
+				case FLOAT -> in.readFloat();
+				case DOUBLE -> in.readDouble();
+				});
+			}
+			segment = TextSegment.from(new String(text, StandardCharsets.UTF_8), Metadata.from(metadata));
+		}
+		return new StoredRecord(id, segment);
+	}
+
+	/**
+	 * Reads a region with a positional read, which needs no lock.
+	 */
+	private byte[] read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of snapshot " + file);
+			}
+		}
+		return buffer.array();
+	}
+
+	private MappedByteBuffer map(long position, long size) throws IOException {
+		MappedByteBuffer mapping = channel.map(MapMode.READ_ONLY, position, size);
+		mapping.order(ByteOrder.LITTLE_ENDIAN);
+		return mapping;
+	}
+
+	private static UnsupportedOperationException readOnly() {
+		return new UnsupportedOperationException("Snapshot stores are read-only");
+	}
+
+	/**
+	 * Writes the snapshot in a single pass over the entries: vectors and norms go
+	 * to their fixed size sections, records are appended after them, and the
+	 * record offsets, the dictionary and finally the header are written at the
+	 * end.
+	 */
+	private static void write(Path file, String modelId, EmbeddingModel embeddingModel, int dimension, int count,
+			IntFunction<Entry> entries) throws IOException {
+		byte[] id = modelId.getBytes(StandardCharsets.UTF_8);
+		float[] fingerprint = embeddingModel.embed(PROBE_TEXT).content().vector();
+		if (fingerprint.length != dimension) {
+			throw new IllegalArgumentException("Model " + modelId + " embeds with dimension " + fingerprint.length
+					+ ", not " + dimension);
+		}
+		long vectorsOffset = headerSize(id.length, dimension);
+		long normsOffset = align(vectorsOffset + (long) count * dimension * Float.BYTES, ALIGNMENT);
+		long recordsOffset = align(normsOffset + (long) count * Float.BYTES, ALIGNMENT);
+
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		Map<String, Integer> dictionary = new LinkedHashMap<>();
+		long start = System.nanoTime();
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			SectionWriter vectors = new SectionWriter(channel, vectorsOffset);
+			SectionWriter norms = new SectionWriter(channel, normsOffset);
+			SectionWriter records = new SectionWriter(channel, recordsOffset);
+			long[] recordOffsets = new long[count + 1];
+			for (int i = 0; i < count; i++) {
+				Entry entry = entries.apply(i);
+				if (entry.vector().length != dimension) {
+					throw new IllegalArgumentException("Embedding has dimension " + entry.vector().length + ", not "
+							+ dimension);
+				}
+				for (float value : entry.vector()) {
+					vectors.putFloat(value);
+				}
+				norms.putFloat(MappedEmbeddingStore.norm(entry.vector()));
+				records.put(encode(entry, dictionary));
+				recordOffsets[i + 1] = records.position() - recordsOffset;
+			}
+			vectors.flush();
+			norms.flush();
+
+			long recordOffsetsOffset = align(records.position(), ALIGNMENT);
+			records.flush();
+			SectionWriter offsets = new SectionWriter(channel, recordOffsetsOffset);
+			for (long offset : recordOffsets) {
+				offsets.putLong(offset);
+			}
+			long dictionaryOffset = offsets.position();
+			offsets.flush();
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(dictionary.size());
+			for (String key : dictionary.keySet()) {
+				out.writeUTF(key);
+			}
+			out.flush();
+			SectionWriter tail = new SectionWriter(channel, dictionaryOffset);
+			tail.put(bytes.toByteArray());
+			long fileLength = tail.position();
+			tail.flush();
+
+			SectionWriter header = new SectionWriter(channel, 0);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(dimension);
+			header.putInt(count);
+			header.putLong(vectorsOffset);
+			header.putLong(normsOffset);
+			header.putLong(recordsOffset);
+			header.putLong(recordOffsetsOffset);
+			header.putLong(dictionaryOffset);
+			header.putLong(fileLength);
+			header.putInt(id.length);
+			header.put(id);
+			header.put(new byte[(int) (align(header.position(), Float.BYTES) - header.position())]);
+			for (float value : fingerprint) {
+				header.putFloat(value);
+			}
+			header.flush();
+			channel.force(false);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		logger.info("Wrote snapshot {} with {} embedding(s) ({} MB) in {} ms", file, count, Files.size(file) >> 20,
+				(System.nanoTime() - start) / 1_000_000);
+	}
+
+	private static byte[] encode(Entry entry, Map<String, Integer> dictionary) throws IOException {
+		TextSegment segment = entry.segment();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(segment != null ? segment.text().length() + 64 : 64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(entry.id());
+		out.writeBoolean(segment != null);
+		if (segment != null) {
+			byte[] text = segment.text().getBytes(StandardCharsets.UTF_8);
+			out.writeInt(text.length);
+			out.write(text);
+			Map<String, Object> metadata = segment.metadata().toMap();
+			out.writeInt(metadata.size());
+			for (Map.Entry<String, Object> metadataEntry : metadata.entrySet()) {
+				out.writeInt(dictionary.computeIfAbsent(metadataEntry.getKey(), k -> dictionary.size()));
+				Object value = metadataEntry.getValue();
+				if (value instanceof UUID uuid) {
+					out.writeByte(ValueType.UUID.ordinal());
+					out.writeLong(uuid.getMostSignificantBits());
+					out.writeLong(uuid.getLeastSignificantBits());
+				} else if (value instanceof Integer i) {
+					out.writeByte(ValueType.INTEGER.ordinal());
+					out.writeInt(i);
+				} else if (value instanceof Long l) {
+					out.writeByte(ValueType.LONG.ordinal());
+					out.writeLong(l);
+				} else if (value instanceof Float f) {
+					out.writeByte(ValueType.FLOAT.ordinal());
+					out.writeFloat(f);
+				} else if (value instanceof Double d) {
+					out.writeByte(ValueType.DOUBLE.ordinal());
+					out.writeDouble(d);
+				} else {
+					out.writeByte(ValueType.STRING.ordinal());
+					out.writeUTF(String.valueOf(value));
+				}
+			}
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return the size of the header with model id and fingerprint, aligned so
+	 *         the vector section starts at a cache line
+	 */
+	private static int headerSize(int modelIdLength, int dimension) {
+		return (int) align(align(FIXED_HEADER_SIZE + modelIdLength, Float.BYTES) + (long) dimension * Float.BYTES,
+				ALIGNMENT);
+	}
+
+	private static long align(long position, int alignment) {
+		return (position + alignment - 1) / alignment * alignment;
+	}
+
+	/**
+	 * Buffered little-endian writer for one section of the snapshot, using
+	 * positional writes so several sections can be written alternately.
+	 */
+	private static class SectionWriter {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		private long flushed;
+
+		private SectionWriter(FileChannel channel, long position) {
+			this.channel = channel;
+			this.flushed = position;
+		}
+
+		private long position() {
+			return flushed + buffer.position();
+		}
+
+		private void putInt(int value) throws IOException {
+			ensure(Integer.BYTES);
+			buffer.putInt(value);
+		}
+
+		private void putLong(long value) throws IOException {
+			ensure(Long.BYTES);
+			buffer.putLong(value);
+		}
+
+		private void putFloat(float value) throws IOException {
+			ensure(Float.BYTES);
+			buffer.putFloat(value);
+		}
+
+		private void put(byte[] bytes) throws IOException {
+			int offset = 0;
+			while (offset < bytes.length) {
+				ensure(1);
+				int length = Math.min(buffer.remaining(), bytes.length - offset);
+				buffer.put(bytes, offset, length);
+				offset += length;
+			}
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				flush();
+			}
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				flushed += channel.write(buffer, flushed);
+			}
+			buffer.clear();
+		}
+	}
+}
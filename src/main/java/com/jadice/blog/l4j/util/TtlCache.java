@@ -0,0 +1,122 @@
+package com.jadice.blog.l4j.util;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Small time based cache with single-flight loading: concurrent callers asking
+ * for the same missing key share one load. Failed loads are not cached. A TTL
+ * of zero or less disables caching.
+ * <p>
+ * Hits and misses are counted as <code>&lt;metricName&gt;</code> with tags
+ * <code>cache</code> and <code>result</code> (hit/miss).
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class TtlCache<K, V> {
+	/**
+	 * Loads the value for a key on a cache miss.
+	 */
+	public interface Loader<K, V> {
+		V load(K key) throws Exception;
+	}
+
+	private record Entry<V>(CompletableFuture<V> value, long expiresAtNanos) {
+		boolean isExpired(long now) {
+			return now - expiresAtNanos >= 0;
+		}
+	}
+
+	private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+	private final long ttlNanos;
+	private final Counter hits;
+	private final Counter misses;
+
+	/**
+	 * @param name          the cache name, used as metrics tag
+	 * @param ttl           time to live of an entry after its load started
+	 * @param meterRegistry registry for hit/miss counters
+	 * @param metricName    the counter name
+	 */
+	public TtlCache(String name, Duration ttl, MeterRegistry meterRegistry, String metricName) {
+		this.ttlNanos = ttl.toNanos();
+		this.hits = Counter.builder(metricName).tag("cache", name).tag("result", "hit").register(meterRegistry);
+		this.misses = Counter.builder(metricName).tag("cache", name).tag("result", "miss").register(meterRegistry);
+	}
+
+	/**
+	 * Returns the cached value for the key or loads it. If another thread is
+	 * already loading the key, waits for that load instead of starting a new one.
+	 *
+	 * @param key    the key
+	 * @param loader the loader used on a miss
+	 * @return the value
+	 * @throws Exception the exception thrown by the loader
+	 */
+	public V get(K key, Loader<K, V> loader) throws Exception {
+		if (ttlNanos <= 0) {
+			misses.increment();
+			return loader.load(key);
+		}
+
+		while (true) {
+			long now = System.nanoTime();
+			Entry<V> entry = entries.get(key);
+			if (entry != null && !entry.isExpired(now)) {
+				hits.increment();
+				return await(entry.value());
+			}
+
+			Entry<V> loading = new Entry<>(new CompletableFuture<>(), now + ttlNanos);
+			boolean owner = entry == null ? entries.putIfAbsent(key, loading) == null
+					: entries.replace(key, entry, loading);
+			if (owner) {
+				misses.increment();
+				try {
+					V value = loader.load(key);
+					loading.value().complete(value);
+					return value;
+				} catch (Throwable t) {
+					// also errors, the waiting callers would hang otherwise
+					entries.remove(key, loading);
+					loading.value().completeExceptionally(t);
+					throw t;
+				}
+			}
+			// lost the race against another loader, retry with its entry
+		}
+	}
+
+	/**
+	 * Removes the entry for the key, the next access loads it again.
+	 *
+	 * @param key the key
+	 */
+	public void invalidate(K key) {
+		entries.remove(key);
+	}
+
+	public void invalidateAll() {
+		entries.clear();
+	}
+
+	private V await(CompletableFuture<V> value) throws Exception {
+		try {
+			return value.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception cause) {
+				throw cause;
+			}
+			if (e.getCause() instanceof Error error) {
+				throw error;
+			}
+			throw e;
+		}
+	}
+}
@@ -5,6 +5,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import java.time.Duration;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
@@ -21,6 +22,7 @@ import lombok.extern.slf4j.Slf4j;
  * history.
  */
 @Slf4j
+@ExtendWith(OllamaStubExtension.class)
 @SpringBootTest(webEnvironment = WebEnvironment.NONE)
 public class ChatMemoryTest {
 
@@ -68,6 +70,7 @@ public class ChatMemoryTest {
 
 		logger.info("Name of Fritz: {}, Name of Francine: {}", nameOfFritz, nameOfFrancine);
 
+		OllamaStubExtension.assumeRealModel();
 		assertTrue(nameOfFritz.toLowerCase().contains("fritz"), "Fritz not detected");
 		assertTrue(nameOfFrancine.toLowerCase().contains("francine"), "Francine not detected");
 	}
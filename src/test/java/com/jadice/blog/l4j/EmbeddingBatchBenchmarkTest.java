@@ -0,0 +1,94 @@
+package com.jadice.blog.l4j;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Compares per-prompt embedding calls with the batch API against a local ollama
+ * stub server, so no real model server is needed. Only the results and request
+ * counts are checked; the timings are logged.
+ */
+@Slf4j
+@SpringBootTest(webEnvironment = WebEnvironment.NONE, properties = { "ollama.model.auto-import=false",
+		"ollama.embed.batch-size=64" })
+public class EmbeddingBatchBenchmarkTest {
+
+	private static final int DIMENSION = 384;
+	private static final int PROMPTS = 256;
+
+	private static OllamaStubServer stub = startStub();
+
+	@Autowired
+	private OllamaRestClient ollama;
+
+	@DynamicPropertySource
+	static void ollamaProperties(DynamicPropertyRegistry registry) {
+		registry.add("ollama.url", stub::getBaseUrl);
+	}
+
+	@AfterAll
+	public static void stopStub() {
+		stub.close();
+	}
+
+	@Test
+	public void testThat_batchEmbeddingsMatchPerPromptWithFewerRequests() throws Exception {
+		logger.info("----- testThat_batchEmbeddingsMatchPerPromptWithFewerRequests");
+
+		List<String> prompts = new ArrayList<>();
+		for (int i = 0; i < PROMPTS; i++) {
+			prompts.add("Segment number " + i + " of the benchmark corpus");
+		}
+
+		// warm up connections and code paths
+		ollama.generateEmbeddings("all-minilm", prompts.get(0));
+		ollama.generateEmbeddings("all-minilm", prompts.subList(0, 8));
+
+		long requestsBefore = stub.getRequestCount();
+		long start = System.nanoTime();
+		List<List<Double>> perPrompt = new ArrayList<>();
+		for (String prompt : prompts) {
+			perPrompt.add(ollama.generateEmbeddings("all-minilm", prompt));
+		}
+		long perPromptNanos = System.nanoTime() - start;
+		long perPromptRequests = stub.getRequestCount() - requestsBefore;
+
+		requestsBefore = stub.getRequestCount();
+		start = System.nanoTime();
+		float[][] batched = ollama.generateEmbeddings("all-minilm", prompts);
+		long batchedNanos = System.nanoTime() - start;
+		long batchedRequests = stub.getRequestCount() - requestsBefore;
+
+		logger.info("Per-prompt: {} requests in {} ms; batched: {} requests in {} ms", perPromptRequests,
+				perPromptNanos / 1_000_000, batchedRequests, batchedNanos / 1_000_000);
+
+		assertEquals(PROMPTS, batched.length);
+		assertEquals(PROMPTS / 64, batchedRequests);
+		for (int i = 0; i < PROMPTS; i++) {
+			assertEquals(DIMENSION, batched[i].length);
+			assertArrayEquals(stub.embeddingFor(prompts.get(i)), batched[i]);
+			assertEquals(perPrompt.get(i).get(0), batched[i][0], 1e-6);
+		}
+	}
+
+	private static OllamaStubServer startStub() {
+		try {
+			return OllamaStubServer.start(DIMENSION, 2);
+		} catch (Exception e) {
+			throw new IllegalStateException("Could not start ollama stub server", e);
+		}
+	}
+}
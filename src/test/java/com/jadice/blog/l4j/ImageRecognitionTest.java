@@ -6,6 +6,7 @@ import java.io.File;
 import java.time.Duration;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
@@ -22,6 +23,7 @@ import lombok.extern.slf4j.Slf4j;
  * Image recognition tests using the "llava" model (https://ollama.com/library/llava).
  */
 @Slf4j
+@ExtendWith(OllamaStubExtension.class)
 @SpringBootTest(
     webEnvironment = WebEnvironment.NONE)
 public class ImageRecognitionTest {
@@ -35,9 +37,6 @@ public class ImageRecognitionTest {
   public void testThat_imageRecognitionWorks() {
     logger.info("----- testThat_imageRecognitionWorks");
 
-    String ollamaUrl = "http://localhost:11434";
-    String modelName = "llava";
-
     OllamaChatModel model = OllamaChatModel.builder().baseUrl(ollamaUrl).modelName(modelName).timeout(
         Duration.ofMinutes(5)).temperature(0.0).build();
 
@@ -51,6 +50,7 @@ public class ImageRecognitionTest {
 
     String answer = response.content().text();
 
+    OllamaStubExtension.assumeRealModel();
     assertTrue(answer.toLowerCase().contains("bird") || answer.toLowerCase().contains("parrot"),
         "Bird/parrot not recognized");
   }
@@ -0,0 +1,108 @@
+package com.jadice.blog.l4j;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tests the background model auto import against a local ollama stub server
+ * that has none of the configured models yet. The stub holds the pulls until
+ * the test has seen them running.
+ */
+@Slf4j
+@SpringBootTest(webEnvironment = WebEnvironment.NONE, properties = { "ollama.model.auto-import=true",
+		"ollama.model.auto-import-background=true", "ollama.pull.max-concurrent=3" })
+public class ModelAutoImportTest {
+
+	private static OllamaStubServer stub = startStub();
+
+	@Autowired
+	private ModelAutoImport autoImport;
+	@Autowired
+	private ModelAvailabilityHealthIndicator healthIndicator;
+
+	@Value("${ollama.model.chat}")
+	private String chatModelName;
+	@Value("${ollama.model.image}")
+	private String imageModelName;
+	@Value("${ollama.model.instruct}")
+	private String instructModelName;
+
+	@DynamicPropertySource
+	static void ollamaProperties(DynamicPropertyRegistry registry) {
+		registry.add("ollama.url", stub::getBaseUrl);
+	}
+
+	@AfterAll
+	public static void stopStub() {
+		stub.resumePulls();
+		stub.close();
+	}
+
+	@Test
+	public void testThat_backgroundImportPullsModelsInParallel() throws Exception {
+		logger.info("----- testThat_backgroundImportPullsModelsInParallel");
+
+		List<String> transitions = new ArrayList<>();
+		record(transitions);
+		// the context is up while the pulls are still running
+		assertEquals("RUNNING/DOWN", transitions.get(0));
+
+		// all three pulls run at the same time (ollama.pull.max-concurrent=3)
+		long deadline = System.currentTimeMillis() + 30_000;
+		while (stub.getActivePulls() < 3 && System.currentTimeMillis() < deadline) {
+			record(transitions);
+			Thread.sleep(20);
+		}
+		assertEquals(3, stub.getActivePulls(), "Models are not pulled in parallel");
+		record(transitions);
+
+		stub.resumePulls();
+		while (autoImport.getState() == ModelAutoImport.State.RUNNING && System.currentTimeMillis() < deadline) {
+			record(transitions);
+			Thread.sleep(20);
+		}
+		record(transitions);
+
+		assertEquals(List.of("RUNNING/DOWN", "DONE/UP"), transitions);
+		assertTrue(stub.getModels().containsAll(List.of(chatModelName, imageModelName, instructModelName)),
+				"Models not pulled");
+		logger.info("Auto import of 3 missing models took {} ms", autoImport.getDuration().toMillis());
+	}
+
+	/**
+	 * Adds the current import state and health to the transitions if it
+	 * changed.
+	 */
+	private void record(List<String> transitions) {
+		Health health = healthIndicator.health();
+		String current = health.getDetails().get("autoImport") + "/" + health.getStatus();
+		if (transitions.isEmpty() || !transitions.get(transitions.size() - 1).equals(current)) {
+			transitions.add(current);
+		}
+	}
+
+	private static OllamaStubServer startStub() {
+		try {
+			OllamaStubServer server = OllamaStubServer.start(384, 0);
+			server.holdPulls();
+			return server;
+		} catch (Exception e) {
+			throw new IllegalStateException("Could not start ollama stub server", e);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.jadice.blog.l4j;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tests warm-up, pinning and LRU unloading of the model residency manager
+ * against a local ollama stub server. The stub reports ~4.8 GB per loaded
+ * model, so two models fit into the 12 GB budget.
+ */
+@Slf4j
+@SpringBootTest(webEnvironment = WebEnvironment.NONE, properties = { "ollama.model.auto-import=false",
+		"ollama.metadata-cache.running-ttl=0s", "ollama.residency.enabled=true", "ollama.residency.pinned=model-a",
+		"ollama.residency.preload=model-b", "ollama.residency.memory-budget=12GB",
+		"ollama.residency.check-interval=1h" })
+public class ModelResidencyTest {
+
+	private static OllamaStubServer stub = startStub();
+
+	@Autowired
+	private ModelResidencyManager residencyManager;
+
+	@DynamicPropertySource
+	static void ollamaProperties(DynamicPropertyRegistry registry) {
+		registry.add("ollama.url", stub::getBaseUrl);
+	}
+
+	@AfterAll
+	public static void stopStub() {
+		stub.close();
+	}
+
+	@Test
+	public void testThat_leastRecentlyUsedUnpinnedModelIsUnloaded() throws Exception {
+		logger.info("----- testThat_leastRecentlyUsedUnpinnedModelIsUnloaded");
+
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (stub.getLoadedModels().size() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals(Set.of("model-a", "model-b"), stub.getLoadedModels(), "Models not preloaded");
+
+		residencyManager.ensureLoaded(stub.getBaseUrl(), "model-c");
+
+		logger.info("Residency: {}", residencyManager.getResidency());
+		assertEquals(Set.of("model-a", "model-c"), stub.getLoadedModels(), "Wrong model unloaded");
+		assertTrue(residencyManager.getResidency().get(stub.getBaseUrl()).size() == 2);
+	}
+
+	private static OllamaStubServer startStub() {
+		try {
+			OllamaStubServer server = OllamaStubServer.start(384, 0);
+			server.addModels("model-a", "model-b", "model-c");
+			return server;
+		} catch (Exception e) {
+			throw new IllegalStateException("Could not start ollama stub server", e);
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package com.jadice.blog.l4j;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.event.ApplicationEvents;
+import org.springframework.test.context.event.RecordApplicationEvents;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tests streaming model pulls against a local ollama stub server: progress
+ * events, cancellation while the transfer is running and the limit of
+ * concurrent transfers.
+ */
+@Slf4j
+@RecordApplicationEvents
+@SpringBootTest(webEnvironment = WebEnvironment.NONE, properties = { "ollama.model.auto-import=false",
+		"ollama.pull.max-concurrent=2" })
+public class ModelTransferTest {
+
+	private static OllamaStubServer stub = startStub();
+
+	@Autowired
+	private OllamaRestClient ollama;
+	@Autowired
+	private ApplicationEvents applicationEvents;
+
+	@DynamicPropertySource
+	static void ollamaProperties(DynamicPropertyRegistry registry) {
+		registry.add("ollama.url", stub::getBaseUrl);
+	}
+
+	@AfterAll
+	public static void stopStub() {
+		stub.close();
+	}
+
+	@BeforeEach
+	public void resetStub() {
+		stub.setPullMillis(500);
+		stub.resetPullStats();
+	}
+
+	@Test
+	public void testThat_pullPublishesProgressEvents() throws Exception {
+		logger.info("----- testThat_pullPublishesProgressEvents");
+
+		List<ModelProgressEvent> events = new ArrayList<>();
+		ollama.pullModel("progress-model", events::add);
+
+		assertTrue(stub.getModels().contains("progress-model"), "Model not pulled");
+		assertEquals("pulling manifest", events.get(0).getStatus());
+		ModelProgressEvent last = events.get(events.size() - 1);
+		assertTrue(last.isSuccess());
+		assertEquals(ModelProgressEvent.Operation.PULL, last.getOperation());
+		assertEquals(stub.getBaseUrl(), last.getBackend());
+		assertEquals("progress-model", last.getModelName());
+
+		List<ModelProgressEvent> layer = events.subList(1, events.size() - 1);
+		assertTrue(layer.size() >= 10, "Only " + layer.size() + " layer progress event(s)");
+		long completed = 0;
+		for (ModelProgressEvent event : layer) {
+			assertEquals(1_000_000, event.getTotal());
+			assertTrue(event.getCompleted() > completed, "Progress not increasing");
+			completed = event.getCompleted();
+		}
+		assertEquals(1.0, layer.get(layer.size() - 1).getProgress());
+
+		// the same events are published to the application
+		assertEquals(events, applicationEvents.stream(ModelProgressEvent.class).toList());
+	}
+
+	@Test
+	public void testThat_pushPublishesProgressEvents() throws Exception {
+		logger.info("----- testThat_pushPublishesProgressEvents");
+
+		stub.addModels("pushed-model");
+		List<ModelProgressEvent> events = new ArrayList<>();
+		ollama.pushModel("pushed-model", events::add);
+
+		assertTrue(stub.getPushedModels().contains("pushed-model"), "Model not pushed");
+		assertEquals("retrieving manifest", events.get(0).getStatus());
+		ModelProgressEvent last = events.get(events.size() - 1);
+		assertTrue(last.isSuccess());
+		assertEquals(ModelProgressEvent.Operation.PUSH, last.getOperation());
+		assertTrue(events.stream().anyMatch(event -> event.getProgress() == 1.0), "No upload progress");
+
+		// like ollama, unknown models cannot be pushed
+		assertThrows(Exception.class, () -> ollama.pushModel("unknown-model"));
+		assertFalse(stub.getPushedModels().contains("unknown-model"));
+	}
+
+	@Test
+	public void testThat_cancelAbortsRunningPull() throws Exception {
+		logger.info("----- testThat_cancelAbortsRunningPull");
+
+		stub.setPullMillis(60_000);
+		List<ModelProgressEvent> events = new CopyOnWriteArrayList<>();
+		CountDownLatch transferring = new CountDownLatch(1);
+		CompletableFuture<Void> pull = ollama.pullModelAsync("cancelled-model", event -> {
+			events.add(event);
+			if (event.getCompleted() > 0) {
+				transferring.countDown();
+			}
+		});
+		assertTrue(transferring.await(10, TimeUnit.SECONDS), "Pull did not start");
+
+		assertTrue(pull.cancel(true));
+		assertThrows(CancellationException.class, pull::join);
+
+		// the connection is dropped instead of reading the rest of the stream
+		assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+			while (stub.getAbortedPulls() == 0) {
+				Thread.sleep(50);
+			}
+		});
+		assertEquals(0, stub.getActivePulls());
+		assertFalse(stub.getModels().contains("cancelled-model"), "Cancelled model was pulled");
+		assertFalse(events.stream().anyMatch(ModelProgressEvent::isSuccess));
+
+		// the transfer slot was released
+		stub.setPullMillis(100);
+		assertTimeoutPreemptively(Duration.ofSeconds(10), () -> ollama.pullModel("next-model"));
+		assertTrue(stub.getModels().contains("next-model"), "Model not pulled");
+	}
+
+	@Test
+	public void testThat_concurrentPullsAreLimited() throws Exception {
+		logger.info("----- testThat_concurrentPullsAreLimited");
+
+		List<CompletableFuture<Void>> pulls = new ArrayList<>();
+		for (int i = 0; i < 6; i++) {
+			pulls.add(ollama.pullModelAsync("limited-model-" + i, null));
+		}
+		CompletableFuture.allOf(pulls.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+
+		for (int i = 0; i < 6; i++) {
+			assertTrue(stub.getModels().contains("limited-model-" + i), "Model " + i + " not pulled");
+		}
+		// ollama.pull.max-concurrent=2
+		assertEquals(2, stub.getMaxActivePulls());
+	}
+
+	private static OllamaStubServer startStub() {
+		try {
+			return OllamaStubServer.start(384, 0);
+		} catch (Exception e) {
+			throw new IllegalStateException("Could not start ollama stub server", e);
+		}
+	}
+}
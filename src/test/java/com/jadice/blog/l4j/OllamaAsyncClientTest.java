@@ -0,0 +1,132 @@
+package com.jadice.blog.l4j;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tests overlapping, timeouts and cancellation of the asynchronous ollama
+ * client against a local ollama stub server.
+ */
+@Slf4j
+@SpringBootTest(webEnvironment = WebEnvironment.NONE, properties = { "ollama.model.auto-import=false",
+		"ollama.metadata-cache.ttl=0s" })
+public class OllamaAsyncClientTest {
+
+	private static final long LATENCY_MILLIS = 200;
+
+	private static OllamaStubServer stub = startStub();
+
+	@Autowired
+	private OllamaAsyncClient ollamaAsync;
+
+	@DynamicPropertySource
+	static void ollamaProperties(DynamicPropertyRegistry registry) {
+		registry.add("ollama.url", stub::getBaseUrl);
+	}
+
+	@AfterEach
+	public void resetStub() {
+		stub.setLatencyMillis(LATENCY_MILLIS);
+		stub.setPullMillis(100);
+	}
+
+	@AfterAll
+	public static void stopStub() {
+		stub.close();
+	}
+
+	@Test
+	public void testThat_callsOverlap() throws Exception {
+		logger.info("----- testThat_callsOverlap");
+
+		long start = System.nanoTime();
+		List<CompletableFuture<float[]>> embeddings = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			embeddings.add(ollamaAsync.generateEmbedding("all-minilm", "input " + i));
+		}
+		CompletableFuture<List<String>> running = ollamaAsync.getRunningModels();
+		CompletableFuture.allOf(embeddings.toArray(CompletableFuture[]::new)).join();
+		running.join();
+		long millis = (System.nanoTime() - start) / 1_000_000;
+		logger.info("11 calls of {} ms each took {} ms", LATENCY_MILLIS, millis);
+
+		for (int i = 0; i < 10; i++) {
+			assertEquals(stub.embeddingFor("input " + i)[0], embeddings.get(i).get()[0]);
+		}
+		assertTrue(millis < 5 * LATENCY_MILLIS, "Calls did not overlap");
+	}
+
+	@Test
+	public void testThat_timeoutFailsCall() throws Exception {
+		logger.info("----- testThat_timeoutFailsCall");
+
+		stub.setLatencyMillis(5_000);
+		long start = System.nanoTime();
+		CompletableFuture<float[]> embedding = ollamaAsync.withTimeout(Duration.ofMillis(300))
+				.generateEmbedding("all-minilm", "slow");
+
+		ExecutionException e = assertThrows(ExecutionException.class, embedding::get);
+		assertInstanceOf(TimeoutException.class, e.getCause());
+		assertTrue(System.nanoTime() - start < 2_000_000_000L, "Timeout not applied");
+	}
+
+	@Test
+	public void testThat_cancelledCallCompletesImmediately() throws Exception {
+		logger.info("----- testThat_cancelledCallCompletesImmediately");
+
+		stub.setLatencyMillis(5_000);
+		CompletableFuture<float[]> embedding = ollamaAsync.generateEmbedding("all-minilm", "cancelled");
+		Thread.sleep(100);
+
+		assertTrue(embedding.cancel(true));
+		assertTrue(embedding.isCancelled());
+	}
+
+	@Test
+	public void testThat_pullIsNotLimitedByCallTimeout() throws Exception {
+		logger.info("----- testThat_pullIsNotLimitedByCallTimeout");
+
+		stub.setPullMillis(1_000);
+		OllamaAsyncClient client = ollamaAsync.withTimeout(Duration.ofMillis(300));
+
+		client.pullModel("large-model", null).get(10, TimeUnit.SECONDS);
+		assertTrue(stub.getModels().contains("large-model"), "Model not pulled");
+		assertEquals(1, client.ensureModelsAvailable(List.of("larger-model")).get(10, TimeUnit.SECONDS));
+		assertTrue(stub.getModels().contains("larger-model"), "Model not pulled");
+
+		// other calls still time out
+		stub.setLatencyMillis(5_000);
+		ExecutionException e = assertThrows(ExecutionException.class,
+				() -> client.getRunningModels().get(10, TimeUnit.SECONDS));
+		assertInstanceOf(TimeoutException.class, e.getCause());
+	}
+
+	private static OllamaStubServer startStub() {
+		try {
+			return OllamaStubServer.start(384, LATENCY_MILLIS);
+		} catch (Exception e) {
+			throw new IllegalStateException("Could not start ollama stub server", e);
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package com.jadice.blog.l4j;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jadice.blog.l4j.OllamaRestClient.ModelDetails;
+import com.jadice.blog.l4j.OllamaRestClient.ModelInfo;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Compares the streaming {@link OllamaJsonDecoder} with the previous decoding
+ * (body as String, then a JsonNode tree) regarding time and allocated bytes.
+ */
+@Slf4j
+public class OllamaJsonDecoderBenchmarkTest {
+
+	private static final int WARMUP = 2_000;
+	private static final int ITERATIONS = 5_000;
+
+	private final ObjectMapper om = new ObjectMapper();
+	private final OllamaJsonDecoder decoder = new OllamaJsonDecoder(om.getFactory());
+
+	@Test
+	public void testThat_embeddingDecodingAllocatesLess() throws Exception {
+		logger.info("----- testThat_embeddingDecodingAllocatesLess");
+
+		for (int dimension : new int[] { 384, 1024, 4096 }) {
+			byte[] body = embeddingResponse(dimension);
+
+			float[] expected = treeEmbedding(body);
+			assertArrayEquals(expected, decoder.readEmbedding(new ByteArrayInputStream(body)), 1e-6f);
+
+			Result tree = measure(() -> treeEmbedding(body));
+			Result streaming = measure(() -> decoder.readEmbedding(new ByteArrayInputStream(body)));
+			logger.info("Embedding dim {}: tree {} µs / {} KB, streaming {} µs / {} KB", dimension, tree.micros(),
+					tree.kilobytes(), streaming.micros(), streaming.kilobytes());
+
+			assertTrue(streaming.bytes() < tree.bytes() / 2, "Streaming decoding does not allocate less");
+		}
+	}
+
+	@Test
+	public void testThat_modelListDecodingAllocatesLess() throws Exception {
+		logger.info("----- testThat_modelListDecodingAllocatesLess");
+
+		byte[] body = tagsResponse(200);
+
+		List<ModelInfo> models = decoder.readModels(new ByteArrayInputStream(body));
+		assertEquals(200, models.size());
+		assertEquals("model-7", models.get(7).getName());
+		assertEquals(4_000_000_007L, models.get(7).getSizeBytes());
+
+		Result tree = measure(() -> treeModels(body));
+		Result streaming = measure(() -> decoder.readModels(new ByteArrayInputStream(body)));
+		logger.info("Tags: tree {} µs / {} KB, streaming {} µs / {} KB", tree.micros(), tree.kilobytes(),
+				streaming.micros(), streaming.kilobytes());
+
+		assertTrue(streaming.bytes() < tree.bytes(), "Streaming decoding does not allocate less");
+	}
+
+	@Test
+	public void testThat_showDecodingSkipsModelInfo() throws Exception {
+		logger.info("----- testThat_showDecodingSkipsModelInfo");
+
+		byte[] body = showResponse();
+
+		ModelDetails details = decoder.readModelDetails(new ByteArrayInputStream(body));
+		assertEquals("{{ .Prompt }}", details.getTemplate());
+		assertEquals("llama", details.getFamily());
+		assertEquals("Q4_0", details.getQuantization_level());
+		// the client decodes its cached /api/show tree the same way
+		assertEquals(details, decoder.readModelDetails(om.readTree(body)));
+
+		Result tree = measure(() -> om.readTree(new String(body, StandardCharsets.UTF_8)).get("template").asText());
+		Result streaming = measure(() -> decoder.readModelDetails(new ByteArrayInputStream(body)).getTemplate());
+		logger.info("Show: tree {} µs / {} KB, streaming {} µs / {} KB", tree.micros(), tree.kilobytes(),
+				streaming.micros(), streaming.kilobytes());
+
+		assertTrue(streaming.bytes() < tree.bytes() / 2, "Streaming decoding does not allocate less");
+	}
+
+	private interface Decoding {
+		Object decode() throws Exception;
+	}
+
+	private record Result(long nanos, long bytes) {
+		long micros() {
+			return nanos / 1_000;
+		}
+
+		long kilobytes() {
+			return bytes / 1024;
+		}
+	}
+
+	/**
+	 * @return average time and allocated bytes per decoding
+	 */
+	private static Result measure(Decoding decoding) throws Exception {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long sink = 0;
+		for (int i = 0; i < WARMUP; i++) {
+			sink += decoding.decode().hashCode();
+		}
+
+		long threadId = Thread.currentThread().threadId();
+		long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			sink += decoding.decode().hashCode();
+		}
+		long nanos = System.nanoTime() - start;
+		long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+		logger.trace("sink {}", sink);
+		return new Result(nanos / ITERATIONS, allocated / ITERATIONS);
+	}
+
+	private float[] treeEmbedding(byte[] body) throws Exception {
+		JsonNode embeddingNode = om.readTree(new String(body, StandardCharsets.UTF_8)).get("embedding");
+		float[] result = new float[embeddingNode.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = (float) embeddingNode.get(i).asDouble();
+		}
+		return result;
+	}
+
+	private int treeModels(byte[] body) throws Exception {
+		JsonNode modelsNode = om.readTree(new String(body, StandardCharsets.UTF_8)).get("models");
+		int hash = 0;
+		for (int i = 0; i < modelsNode.size(); i++) {
+			JsonNode modelNode = modelsNode.get(i);
+			hash += modelNode.get("name").asText().replace(":latest", "").hashCode();
+			hash += modelNode.get("modified_at").asText().hashCode();
+			hash += Long.hashCode(modelNode.get("size").asLong());
+			hash += modelNode.get("digest").asText().hashCode();
+		}
+		return hash;
+	}
+
+	private static byte[] embeddingResponse(int dimension) {
+		Random random = new Random(dimension);
+		StringBuilder sb = new StringBuilder("{\"embedding\":[");
+		for (int i = 0; i < dimension; i++) {
+			sb.append(i > 0 ? "," : "").append(random.nextGaussian() * 0.05);
+		}
+		return sb.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] tagsResponse(int models) {
+		StringBuilder sb = new StringBuilder("{\"models\":[");
+		for (int i = 0; i < models; i++) {
+			sb.append(i > 0 ? "," : "").append("{\"name\":\"model-").append(i).append(":latest\",")
+					.append("\"model\":\"model-").append(i).append(":latest\",")
+					.append("\"modified_at\":\"2024-08-01T10:00:00.000000000+02:00\",")
+					.append("\"size\":").append(4_000_000_000L + i).append(',')
+					.append("\"digest\":\"").append(Integer.toHexString(i).repeat(8)).append("\",")
+					.append("\"details\":{\"format\":\"gguf\",\"family\":\"llama\",\"families\":[\"llama\"],")
+					.append("\"parameter_size\":\"8B\",\"quantization_level\":\"Q4_0\"}}");
+		}
+		return sb.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] showResponse() {
+		StringBuilder sb = new StringBuilder("{\"license\":\"").append("License text. ".repeat(500)).append("\",")
+				.append("\"modelfile\":\"FROM model\",\"parameters\":\"stop <|eot|>\",")
+				.append("\"template\":\"{{ .Prompt }}\",")
+				.append("\"details\":{\"format\":\"gguf\",\"family\":\"llama\",\"parameter_size\":\"8B\",")
+				.append("\"quantization_level\":\"Q4_0\"},\"model_info\":{");
+		for (int i = 0; i < 300; i++) {
+			sb.append(i > 0 ? "," : "").append("\"llama.layer.").append(i).append("\":").append(i);
+		}
+		sb.append(",\"tokenizer.ggml.tokens\":[");
+		for (int i = 0; i < 5_000; i++) {
+			sb.append(i > 0 ? "," : "").append("\"tok").append(i).append('"');
+		}
+		return sb.append("]}}").toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,218 @@
+package com.jadice.blog.l4j;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientResponseException;
+
+import com.jadice.blog.l4j.OllamaBackendRouter.Lease;
+
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.ollama.OllamaChatModel;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tests routing over several ollama instances, simulated by local stub servers
+ * that each process only a few requests at a time. The backends are only
+ * refreshed explicitly, so request counts and ejections result from the
+ * requests of the tests.
+ */
+@Slf4j
+@SpringBootTest(webEnvironment = WebEnvironment.NONE, properties = { "ollama.model.auto-import=false",
+		"ollama.metadata-cache.running-ttl=0s", "ollama.routing.refresh-interval=1h" })
+public class OllamaRoutingTest {
+
+	private static final int BACKENDS = 4;
+	private static final int REQUESTS = 400;
+	private static final int CALLERS = 32;
+
+	private static List<OllamaStubServer> stubs = startStubs();
+
+	@Autowired
+	private OllamaRestClient ollama;
+	@Autowired
+	private OllamaBackendRouter router;
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@DynamicPropertySource
+	static void ollamaProperties(DynamicPropertyRegistry registry) {
+		registry.add("ollama.url", () -> stubs.get(0).getBaseUrl());
+		registry.add("ollama.urls",
+				() -> stubs.stream().map(OllamaStubServer::getBaseUrl).collect(Collectors.joining(",")));
+	}
+
+	@AfterAll
+	public static void stopStubs() {
+		stubs.forEach(OllamaStubServer::close);
+	}
+
+	@Test
+	@Tag("benchmark")
+	public void testThat_throughputWithBackendsIsMeasured() throws Exception {
+		logger.info("----- testThat_throughputWithBackendsIsMeasured");
+
+		for (int backends = 1; backends <= BACKENDS; backends *= 2) {
+			router.setBackends(stubs.subList(0, backends).stream().map(OllamaStubServer::getBaseUrl).toList());
+
+			long start = System.nanoTime();
+			runConcurrently("all-minilm", REQUESTS);
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			logger.info("{} backend(s): {} requests/s", backends, Math.round(REQUESTS / seconds));
+		}
+	}
+
+	@Test
+	public void testThat_requestsPreferBackendWithResidentModel() throws Exception {
+		logger.info("----- testThat_requestsPreferBackendWithResidentModel");
+
+		router.setBackends(stubs.stream().map(OllamaStubServer::getBaseUrl).toList());
+		OllamaStubServer resident = stubs.get(2);
+		resident.loadModels("nomic-embed-text");
+		router.refresh();
+
+		long before = resident.getRequestCount();
+		for (int i = 0; i < 20; i++) {
+			ollama.generateEmbedding("nomic-embed-text", "Who is Nelly?");
+		}
+		assertEquals(20, resident.getRequestCount() - before, "Requests not routed to the resident model");
+	}
+
+	@Test
+	public void testThat_unhealthyBackendIsEjected() throws Exception {
+		logger.info("----- testThat_unhealthyBackendIsEjected");
+
+		OllamaStubServer dead = OllamaStubServer.start(384, 0);
+		dead.close();
+		router.setBackends(List.of(dead.getBaseUrl()));
+
+		// failure-threshold: 3
+		for (int i = 0; i < 3; i++) {
+			assertTrue(router.getBackends().get(0).isHealthy());
+			String input = "request " + i;
+			assertThrows(ResourceAccessException.class, () -> ollama.generateEmbedding("all-minilm", input));
+		}
+		assertFalse(router.getBackends().get(0).isHealthy());
+
+		// the ejected backend stays ejected when backends are added
+		router.setBackends(List.of(dead.getBaseUrl(), stubs.get(0).getBaseUrl()));
+		for (int i = 0; i < 10; i++) {
+			ollama.generateEmbedding("all-minilm", "request " + i);
+		}
+		assertFalse(router.getBackends().get(0).isHealthy());
+	}
+
+	@Test
+	public void testThat_unhealthyChatBackendIsEjected() throws Exception {
+		logger.info("----- testThat_unhealthyChatBackendIsEjected");
+
+		OllamaStubServer dead = OllamaStubServer.start(384, 0);
+		dead.close();
+		router.setBackends(List.of(dead.getBaseUrl()));
+		ChatLanguageModel chat = new RoutingChatLanguageModel(router, "llama3.1",
+				baseUrl -> OllamaChatModel.builder().baseUrl(baseUrl).modelName("llama3.1").maxRetries(1)
+						.timeout(Duration.ofSeconds(10)).build());
+
+		for (int i = 0; i < 3; i++) {
+			assertTrue(router.getBackends().get(0).isHealthy());
+			String question = "question " + i;
+			assertThrows(RuntimeException.class, () -> chat.generate(question));
+		}
+		assertFalse(router.getBackends().get(0).isHealthy());
+
+		router.setBackends(List.of(dead.getBaseUrl(), stubs.get(0).getBaseUrl()));
+		for (int i = 0; i < 10; i++) {
+			chat.generate("question " + i);
+		}
+	}
+
+	@Test
+	public void testThat_onlyBackendFailuresCountForEjection() {
+		logger.info("----- testThat_onlyBackendFailuresCountForEjection");
+
+		// as thrown by langchain4j's ollama client
+		assertTrue(RoutingChatLanguageModel
+				.isBackendFailure(new RuntimeException(new RuntimeException(new ConnectException("refused")))));
+		assertFalse(RoutingChatLanguageModel.isBackendFailure(
+				new RuntimeException("status code: 404; body: {\"error\":\"model 'x' not found\"}")));
+		assertFalse(RoutingChatLanguageModel.isBackendFailure(new IllegalArgumentException("No messages")));
+		// as thrown by Spring based delegates
+		assertTrue(RoutingChatLanguageModel.isBackendFailure(new ResourceAccessException("I/O error")));
+		assertTrue(RoutingChatLanguageModel
+				.isBackendFailure(HttpServerErrorException.create(HttpStatus.BAD_GATEWAY, "", null, null, null)));
+		assertFalse(RoutingChatLanguageModel
+				.isBackendFailure(HttpClientErrorException.create(HttpStatus.NOT_FOUND, "", null, null, null)));
+		assertTrue(RoutingChatLanguageModel
+				.isBackendFailure(new RestClientResponseException("", 507, "", null, null, null)));
+	}
+
+	@Test
+	public void testThat_gaugesFollowBackends() {
+		logger.info("----- testThat_gaugesFollowBackends");
+
+		String first = stubs.get(0).getBaseUrl();
+		String second = stubs.get(1).getBaseUrl();
+		router.setBackends(List.of(first));
+		router.setBackends(List.of(second));
+		assertNull(meterRegistry.find("ollama.backend.healthy").tag("backend", first).gauge());
+
+		router.setBackends(List.of(first, second));
+		try (Lease lease = router.acquire(null)) {
+			assertEquals(1.0, meterRegistry.get("ollama.backend.in-flight").tag("backend", lease.getBaseUrl())
+					.gauge().value());
+		}
+	}
+
+	private void runConcurrently(String modelName, int requests) throws Exception {
+		try (ExecutorService callers = Executors.newFixedThreadPool(CALLERS, Thread.ofVirtual().factory())) {
+			List<Future<float[]>> results = new ArrayList<>();
+			for (int i = 0; i < requests; i++) {
+				String input = "input " + i;
+				results.add(callers.submit(() -> ollama.generateEmbedding(modelName, input)));
+			}
+			for (Future<float[]> result : results) {
+				result.get();
+			}
+		}
+	}
+
+	private static List<OllamaStubServer> startStubs() {
+		List<OllamaStubServer> servers = new ArrayList<>();
+		try {
+			for (int i = 0; i < BACKENDS; i++) {
+				OllamaStubServer server = OllamaStubServer.start(384, 20);
+				server.setMaxConcurrency(2);
+				servers.add(server);
+			}
+			return servers;
+		} catch (Exception e) {
+			throw new IllegalStateException("Could not start ollama stub servers", e);
+		}
+	}
+}
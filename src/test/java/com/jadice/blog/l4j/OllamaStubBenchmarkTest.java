@@ -0,0 +1,174 @@
+package com.jadice.blog.l4j;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.model.StreamingResponseHandler;
+import dev.langchain4j.model.ollama.OllamaChatModel;
+import dev.langchain4j.model.ollama.OllamaStreamingChatModel;
+import dev.langchain4j.model.output.Response;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Throughput and latency benchmarks of the client stack (langchain4j models and
+ * {@link OllamaRestClient}) against the local ollama stub server, so no model
+ * server is needed.
+ */
+@Slf4j
+@SpringBootTest(webEnvironment = WebEnvironment.NONE, properties = { "ollama.model.auto-import=false",
+		"ollama.metadata-cache.ttl=0s" })
+public class OllamaStubBenchmarkTest {
+
+	private static final int CALLERS = 16;
+	private static final int REQUESTS = 400;
+
+	private static OllamaStubServer stub = startStub();
+
+	@Autowired
+	private OllamaRestClient ollama;
+
+	@DynamicPropertySource
+	static void ollamaProperties(DynamicPropertyRegistry registry) {
+		registry.add("ollama.url", stub::getBaseUrl);
+	}
+
+	@AfterEach
+	public void resetStub() {
+		stub.setLatencyMillis(5);
+		stub.setTokensPerSecond(0);
+		stub.setFailureRate(0);
+		stub.failNext(0);
+	}
+
+	@AfterAll
+	public static void stopStub() {
+		stub.close();
+	}
+
+	@Test
+	public void testThat_chatThroughputAndLatencyAreMeasurable() throws Exception {
+		logger.info("----- testThat_chatThroughputAndLatencyAreMeasurable");
+
+		OllamaChatModel model = OllamaChatModel.builder().baseUrl(stub.getBaseUrl()).modelName("llama3.1")
+				.timeout(Duration.ofSeconds(30)).build();
+		assertEquals(String.join("", stub.tokensFor("warm up")), model.generate("warm up"));
+
+		long[] latencies = new long[REQUESTS];
+		long start = System.nanoTime();
+		try (ExecutorService callers = Executors.newFixedThreadPool(CALLERS, Thread.ofVirtual().factory())) {
+			List<Future<?>> results = new ArrayList<>();
+			for (int i = 0; i < REQUESTS; i++) {
+				int request = i;
+				results.add(callers.submit(() -> {
+					long requestStart = System.nanoTime();
+					model.generate("question " + request);
+					latencies[request] = System.nanoTime() - requestStart;
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get();
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		Arrays.sort(latencies);
+		logger.info("Chat: {} requests/s, latency p50 {} ms, p95 {} ms, p99 {} ms", Math.round(REQUESTS / seconds),
+				percentileMillis(latencies, 50), percentileMillis(latencies, 95), percentileMillis(latencies, 99));
+
+		assertTrue(percentileMillis(latencies, 50) >= 5, "Stub latency not applied");
+	}
+
+	@Test
+	public void testThat_streamedTokensArePacedByTokenRate() throws Exception {
+		logger.info("----- testThat_streamedTokensArePacedByTokenRate");
+
+		stub.setTokensPerSecond(100);
+		OllamaStreamingChatModel model = OllamaStreamingChatModel.builder().baseUrl(stub.getBaseUrl())
+				.modelName("llama3.1").timeout(Duration.ofSeconds(30)).build();
+
+		long start = System.nanoTime();
+		long[] firstTokenNanos = new long[1];
+		CompletableFuture<Response<AiMessage>> response = new CompletableFuture<>();
+		model.generate("Tell me a story", new StreamingResponseHandler<AiMessage>() {
+			@Override
+			public void onNext(String token) {
+				if (firstTokenNanos[0] == 0) {
+					firstTokenNanos[0] = System.nanoTime() - start;
+				}
+			}
+
+			@Override
+			public void onComplete(Response<AiMessage> complete) {
+				response.complete(complete);
+			}
+
+			@Override
+			public void onError(Throwable error) {
+				response.completeExceptionally(error);
+			}
+		});
+		Response<AiMessage> answer = response.get(30, TimeUnit.SECONDS);
+		long totalMillis = (System.nanoTime() - start) / 1_000_000;
+		logger.info("Streaming: first token after {} ms, complete after {} ms", firstTokenNanos[0] / 1_000_000,
+				totalMillis);
+
+		List<String> tokens = stub.tokensFor("Tell me a story");
+		assertEquals(String.join("", tokens), answer.content().text());
+		assertEquals(tokens.size(), answer.tokenUsage().outputTokenCount());
+		assertTrue(totalMillis >= tokens.size() * 10, "Token rate not applied");
+		assertTrue(firstTokenNanos[0] / 1_000_000 < totalMillis / 2, "Tokens not streamed");
+	}
+
+	@Test
+	public void testThat_modelLifecycleAndFailuresAreSimulated() throws Exception {
+		logger.info("----- testThat_modelLifecycleAndFailuresAreSimulated");
+
+		ollama.pullModel("stub-model");
+		assertEquals("{{ .Prompt }}", ollama.getModelTemplate("stub-model"));
+
+		ollama.copyModel("stub-model", "stub-copy");
+		assertTrue(ollama.getModels().stream().anyMatch(m -> m.getName().equals("stub-copy")));
+
+		ollama.deleteModel("stub-copy");
+		assertTrue(ollama.getModels().stream().noneMatch(m -> m.getName().equals("stub-copy")));
+		assertThrows(Exception.class, () -> ollama.getModelDetails("stub-copy"));
+
+		stub.failNext(1);
+		assertThrows(Exception.class, () -> ollama.getModels());
+		assertTrue(ollama.getModels().stream().anyMatch(m -> m.getName().equals("stub-model")));
+	}
+
+	private static long percentileMillis(long[] sortedNanos, int percentile) {
+		int index = Math.min(sortedNanos.length - 1, sortedNanos.length * percentile / 100);
+		return sortedNanos[index] / 1_000_000;
+	}
+
+	private static OllamaStubServer startStub() {
+		try {
+			return OllamaStubServer.start(384, 5);
+		} catch (Exception e) {
+			throw new IllegalStateException("Could not start ollama stub server", e);
+		}
+	}
+}
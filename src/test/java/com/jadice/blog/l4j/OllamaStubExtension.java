@@ -0,0 +1,67 @@
+package com.jadice.blog.l4j;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.extension.BeforeAllCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.junit.jupiter.api.extension.ExtensionContext.Namespace;
+import org.junit.jupiter.api.extension.ExtensionContext.Store.CloseableResource;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs the tests that need an ollama server against a shared
+ * {@link OllamaStubServer} if the system property <code>ollama.stub</code> is
+ * <code>true</code>, e.g. <code>mvn test -Dollama.stub=true</code>. Without it
+ * the tests use the ollama server configured in <code>application.yaml</code>.
+ * <p>
+ * The stub is started once per test run and its URL is set as the system
+ * property <code>ollama.url</code>, which Spring prefers over the application
+ * properties. Tests with their own stub set <code>ollama.url</code> with a
+ * {@link org.springframework.test.context.DynamicPropertySource} instead. The
+ * stub answers with deterministic filler text, so these tests check that the
+ * calls work and skip the checks of what the model answers, see
+ * {@link #assumeRealModel()}.
+ */
+@Slf4j
+public class OllamaStubExtension implements BeforeAllCallback {
+	public static final String ENABLED_PROPERTY = "ollama.stub";
+
+	private static final Namespace NAMESPACE = Namespace.create(OllamaStubExtension.class);
+
+	/**
+	 * Skips the rest of the test when running against the stub, for checks of
+	 * what the model answers.
+	 */
+	public static void assumeRealModel() {
+		Assumptions.assumeFalse(Boolean.getBoolean(ENABLED_PROPERTY), "The ollama stub does not answer like a model");
+	}
+
+	@Override
+	public void beforeAll(ExtensionContext context) {
+		if (Boolean.getBoolean(ENABLED_PROPERTY)) {
+			// the root store closes the stub at the end of the test run
+			context.getRoot().getStore(NAMESPACE).getOrComputeIfAbsent(SharedStub.class, k -> new SharedStub(),
+					SharedStub.class);
+		}
+	}
+
+	private static class SharedStub implements CloseableResource {
+		private final OllamaStubServer stub;
+
+		SharedStub() {
+			try {
+				stub = OllamaStubServer.start(384, 0);
+			} catch (Exception e) {
+				throw new IllegalStateException("Could not start ollama stub server", e);
+			}
+			System.setProperty("ollama.url", stub.getBaseUrl());
+			logger.info("Running against the ollama stub server on {}", stub.getBaseUrl());
+		}
+
+		@Override
+		public void close() {
+			System.clearProperty("ollama.url");
+			stub.close();
+		}
+	}
+}
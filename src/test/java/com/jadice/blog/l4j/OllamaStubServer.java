@@ -0,0 +1,653 @@
+package com.jadice.blog.l4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * In-process stand-in for an ollama server, used to test and benchmark the
+ * client side without a real model server. Implements the endpoints used by
+ * this project: chat and generate (streaming and non-streaming),
+ * embed/embeddings, tags, ps, show, pull, push, copy and delete.
+ * <p>
+ * Embeddings are deterministic: the same input always produces the same
+ * normalized vector. Generated answers are deterministic per prompt, streamed
+ * with a configurable token rate. Latency, concurrency and failures can be
+ * configured.
+ * <p>
+ * The tests that need a real ollama server run against a shared stub with
+ * <code>-Dollama.stub=true</code>, see {@link OllamaStubExtension}. The stub can
+ * also be started standalone, see {@link #main(String[])}.
+ */
+@Slf4j
+public class OllamaStubServer implements AutoCloseable {
+	private static final String[] VOCABULARY = { "the", "model", "answers", "with", "a", "deterministic",
+			"stream", "of", "tokens", "for", "every", "prompt", "and", "Java", "vector", "store", "is", "fast",
+			"local", "test" };
+
+	private final ObjectMapper om = new ObjectMapper();
+	private final HttpServer server;
+	private final int dimension;
+	private final AtomicLong requestCount = new AtomicLong();
+	private final Set<String> models = ConcurrentHashMap.newKeySet();
+	private final Set<String> loadedModels = ConcurrentHashMap.newKeySet();
+	private final Set<String> pushedModels = ConcurrentHashMap.newKeySet();
+	private volatile Semaphore capacity;
+	private volatile long latencyMillis;
+	private volatile long pullMillis = 100;
+	private volatile double tokensPerSecond;
+	private volatile int responseTokens = 24;
+	private volatile double failureRate;
+	private final AtomicInteger failNext = new AtomicInteger();
+	private final AtomicInteger activePulls = new AtomicInteger();
+	private final AtomicInteger maxActivePulls = new AtomicInteger();
+	private final AtomicInteger abortedPulls = new AtomicInteger();
+	private volatile CountDownLatch pullGate = new CountDownLatch(0);
+
+	private OllamaStubServer(int port, int dimension, long latencyMillis) throws IOException {
+		this.dimension = dimension;
+		this.latencyMillis = latencyMillis;
+		this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+		server.createContext("/api/embeddings", handler(this::embeddings));
+		server.createContext("/api/embed", handler(this::embed));
+		server.createContext("/api/tags", handler(this::tags));
+		server.createContext("/api/ps", handler(this::ps));
+		server.createContext("/api/show", handler(this::show));
+		server.createContext("/api/copy", handler(this::copy));
+		server.createContext("/api/delete", handler(this::delete));
+		server.createContext("/api/generate", exchangeHandler(this::generate));
+		server.createContext("/api/chat", exchangeHandler(this::chat));
+		server.createContext("/api/pull", exchangeHandler(this::pull));
+		server.createContext("/api/push", exchangeHandler(this::push));
+		server.start();
+		logger.debug("Ollama stub server started on {}", getBaseUrl());
+	}
+
+	/**
+	 * Starts a stub server on a random local port.
+	 *
+	 * @param dimension     the dimension of generated embeddings
+	 * @param latencyMillis the simulated latency per request
+	 * @return the started server
+	 * @throws IOException
+	 */
+	public static OllamaStubServer start(int dimension, long latencyMillis) throws IOException {
+		return start(0, dimension, latencyMillis);
+	}
+
+	/**
+	 * Starts a stub server on the given local port.
+	 *
+	 * @param port          the port, 0 for a random one
+	 * @param dimension     the dimension of generated embeddings
+	 * @param latencyMillis the simulated latency per request
+	 * @return the started server
+	 * @throws IOException
+	 */
+	public static OllamaStubServer start(int port, int dimension, long latencyMillis) throws IOException {
+		return new OllamaStubServer(port, dimension, latencyMillis);
+	}
+
+	/**
+	 * Runs a stub server until the process is stopped. Arguments (all optional):
+	 * port (default 11434), embedding dimension (default 384), latency in ms
+	 * (default 0), tokens per second (default 0, unlimited). Models are
+	 * available after a pull.
+	 *
+	 * @param args the arguments
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 11434;
+		int dimension = args.length > 1 ? Integer.parseInt(args[1]) : 384;
+		long latency = args.length > 2 ? Long.parseLong(args[2]) : 0;
+		OllamaStubServer server = start(port, dimension, latency);
+		if (args.length > 3) {
+			server.setTokensPerSecond(Double.parseDouble(args[3]));
+		}
+		logger.info("Ollama stub server running on {}", server.getBaseUrl());
+		new CountDownLatch(1).await();
+	}
+
+	public String getBaseUrl() {
+		return "http://localhost:" + server.getAddress().getPort();
+	}
+
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	public void setLatencyMillis(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	/**
+	 * @param tokensPerSecond the rate generated tokens are streamed with, 0 for
+	 *                        no delay
+	 */
+	public void setTokensPerSecond(double tokensPerSecond) {
+		this.tokensPerSecond = tokensPerSecond;
+	}
+
+	/**
+	 * @param responseTokens the number of tokens of generated answers
+	 */
+	public void setResponseTokens(int responseTokens) {
+		this.responseTokens = responseTokens;
+	}
+
+	/**
+	 * Lets requests fail randomly with HTTP 500.
+	 *
+	 * @param failureRate the probability of a request to fail, 0 for none
+	 */
+	public void setFailureRate(double failureRate) {
+		this.failureRate = failureRate;
+	}
+
+	/**
+	 * Lets the next requests fail with HTTP 500.
+	 *
+	 * @param requests the number of requests to fail
+	 */
+	public void failNext(int requests) {
+		failNext.set(requests);
+	}
+
+	/**
+	 * Limits the number of requests processed at the same time, like a CPU bound
+	 * ollama node. Further requests queue up.
+	 *
+	 * @param maxConcurrency the max. number of concurrent requests, 0 for no limit
+	 */
+	public void setMaxConcurrency(int maxConcurrency) {
+		this.capacity = maxConcurrency > 0 ? new Semaphore(maxConcurrency, true) : null;
+	}
+
+	/**
+	 * Marks models as loaded in memory, as reported by <code>/api/ps</code>.
+	 * Models are also marked loaded when they are used.
+	 *
+	 * @param modelNames the model names
+	 */
+	public void loadModels(String... modelNames) {
+		loadedModels.addAll(Arrays.asList(modelNames));
+	}
+
+	public Set<String> getLoadedModels() {
+		return loadedModels;
+	}
+
+	/**
+	 * @param pullMillis the simulated duration of a model pull
+	 */
+	public void setPullMillis(long pullMillis) {
+		this.pullMillis = pullMillis;
+	}
+
+	/**
+	 * @return the number of pulls currently streaming progress
+	 */
+	public int getActivePulls() {
+		return activePulls.get();
+	}
+
+	/**
+	 * @return the max. number of pulls that streamed at the same time since the
+	 *         last {@link #resetPullStats()}
+	 */
+	public int getMaxActivePulls() {
+		return maxActivePulls.get();
+	}
+
+	/**
+	 * @return the number of pulls the client closed the connection of before
+	 *         they finished, since the last {@link #resetPullStats()}
+	 */
+	public int getAbortedPulls() {
+		return abortedPulls.get();
+	}
+
+	/**
+	 * Holds pulls after their last progress line until {@link #resumePulls()},
+	 * so tests can observe them running.
+	 */
+	public void holdPulls() {
+		pullGate = new CountDownLatch(1);
+	}
+
+	public void resumePulls() {
+		pullGate.countDown();
+	}
+
+	public void resetPullStats() {
+		maxActivePulls.set(activePulls.get());
+		abortedPulls.set(0);
+	}
+
+	/**
+	 * Adds models to the local inventory reported by <code>/api/tags</code>.
+	 *
+	 * @param modelNames the model names
+	 */
+	public void addModels(String... modelNames) {
+		models.addAll(Arrays.asList(modelNames));
+	}
+
+	public Set<String> getModels() {
+		return models;
+	}
+
+	/**
+	 * @return the models pushed successfully
+	 */
+	public Set<String> getPushedModels() {
+		return pushedModels;
+	}
+
+	/**
+	 * Returns the deterministic embedding the stub generates for the given input.
+	 *
+	 * @param input the input text
+	 * @return the normalized embedding vector
+	 */
+	public float[] embeddingFor(String input) {
+		SplittableRandom random = new SplittableRandom(input.hashCode());
+		float[] vector = new float[dimension];
+		double norm = 0;
+		for (int i = 0; i < dimension; i++) {
+			vector[i] = (float) (random.nextDouble() * 2 - 1);
+			norm += vector[i] * vector[i];
+		}
+		float scale = (float) (1 / Math.sqrt(norm));
+		for (int i = 0; i < dimension; i++) {
+			vector[i] *= scale;
+		}
+		return vector;
+	}
+
+	/**
+	 * Returns the deterministic answer tokens the stub generates for the given
+	 * prompt.
+	 *
+	 * @param prompt the prompt
+	 * @return the tokens, concatenated they form the answer
+	 */
+	public List<String> tokensFor(String prompt) {
+		SplittableRandom random = new SplittableRandom(prompt.hashCode());
+		List<String> tokens = new ArrayList<>(responseTokens);
+		for (int i = 0; i < responseTokens; i++) {
+			String word = VOCABULARY[random.nextInt(VOCABULARY.length)];
+			tokens.add(i == 0 ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : " " + word);
+		}
+		return tokens;
+	}
+
+	private Object embeddings(JsonNode request) {
+		loadedModels.add(request.get("model").asText());
+		Map<String, Object> response = new HashMap<>();
+		response.put("embedding", embeddingFor(request.get("prompt").asText()));
+		return response;
+	}
+
+	private Object embed(JsonNode request) {
+		loadedModels.add(request.get("model").asText());
+		List<float[]> embeddings = new ArrayList<>();
+		JsonNode input = request.get("input");
+		if (input.isArray()) {
+			for (JsonNode i : input) {
+				embeddings.add(embeddingFor(i.asText()));
+			}
+		} else {
+			embeddings.add(embeddingFor(input.asText()));
+		}
+		Map<String, Object> response = new HashMap<>();
+		response.put("model", request.get("model").asText());
+		response.put("embeddings", embeddings);
+		return response;
+	}
+
+	private Object tags(JsonNode request) {
+		List<Map<String, Object>> list = new ArrayList<>();
+		for (String model : models) {
+			Map<String, Object> m = new HashMap<>();
+			m.put("name", model.contains(":") ? model : model + ":latest");
+			m.put("modified_at", "2024-09-01T12:00:00.000000000+02:00");
+			m.put("size", 4_661_224_676L);
+			m.put("digest", Integer.toHexString(model.hashCode()));
+			list.add(m);
+		}
+		return Map.of("models", list);
+	}
+
+	/**
+	 * Generate; an empty prompt only loads the model, a <code>keep_alive</code>
+	 * of 0 unloads it.
+	 */
+	private void generate(HttpExchange exchange, JsonNode request) throws Exception {
+		String model = normalize(request.get("model").asText());
+		String keepAlive = request.path("keep_alive").asText("5m");
+		String prompt = request.path("prompt").asText("");
+		if ("0".equals(keepAlive)) {
+			loadedModels.remove(model);
+		} else {
+			loadedModels.add(model);
+		}
+		if (prompt.isEmpty()) {
+			Map<String, Object> response = new LinkedHashMap<>();
+			response.put("model", model);
+			response.put("created_at", OffsetDateTime.now().toString());
+			response.put("response", "");
+			response.put("done", true);
+			respond(exchange, 200, om.writeValueAsBytes(response));
+			return;
+		}
+		answer(exchange, request, prompt, token -> Map.of("response", token));
+	}
+
+	/**
+	 * Chat; answers the last message.
+	 */
+	private void chat(HttpExchange exchange, JsonNode request) throws Exception {
+		loadedModels.add(normalize(request.get("model").asText()));
+		JsonNode messages = request.path("messages");
+		String prompt = messages.isEmpty() ? "" : messages.get(messages.size() - 1).path("content").asText("");
+		answer(exchange, request, prompt,
+				token -> Map.of("message", Map.of("role", "assistant", "content", token)));
+	}
+
+	private interface AnswerPart {
+		Map<String, Object> of(String token);
+	}
+
+	/**
+	 * Writes the answer tokens of the prompt, as NDJSON lines paced by the token
+	 * rate if streaming was requested (ollama's default), else as one response
+	 * after the generation time. With <code>"format": "json"</code> the answer is
+	 * a JSON object holding the text.
+	 */
+	private void answer(HttpExchange exchange, JsonNode request, String prompt, AnswerPart part) throws Exception {
+		String model = request.get("model").asText();
+		List<String> tokens = tokensFor(prompt);
+		if ("json".equals(request.path("format").asText())) {
+			tokens = List.of(om.writeValueAsString(Map.of("text", String.join("", tokens))));
+		}
+		long nanosPerToken = tokensPerSecond > 0 ? (long) (1e9 / tokensPerSecond) : 0;
+		long start = System.nanoTime();
+
+		if (!request.path("stream").asBoolean(true)) {
+			if (nanosPerToken > 0) {
+				Thread.sleep(Duration.ofNanos(nanosPerToken * tokens.size()));
+			}
+			Map<String, Object> response = answerLine(model, part.of(String.join("", tokens)));
+			response.putAll(finalStats(prompt, tokens, start));
+			respond(exchange, 200, om.writeValueAsBytes(response));
+			return;
+		}
+
+		exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+		exchange.sendResponseHeaders(200, 0);
+		try (OutputStream os = exchange.getResponseBody()) {
+			for (String token : tokens) {
+				if (nanosPerToken > 0) {
+					Thread.sleep(Duration.ofNanos(nanosPerToken));
+				}
+				writeLine(os, answerLine(model, part.of(token)));
+			}
+			Map<String, Object> last = answerLine(model, part.of(""));
+			last.putAll(finalStats(prompt, tokens, start));
+			writeLine(os, last);
+		}
+	}
+
+	private Map<String, Object> answerLine(String model, Map<String, Object> part) {
+		Map<String, Object> line = new LinkedHashMap<>();
+		line.put("model", model);
+		line.put("created_at", OffsetDateTime.now().toString());
+		line.putAll(part);
+		line.put("done", false);
+		return line;
+	}
+
+	private Map<String, Object> finalStats(String prompt, List<String> tokens, long startNanos) {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("done", true);
+		stats.put("done_reason", "stop");
+		stats.put("total_duration", System.nanoTime() - startNanos);
+		stats.put("prompt_eval_count", prompt.split("\\s+").length);
+		stats.put("eval_count", tokens.size());
+		stats.put("eval_duration", System.nanoTime() - startNanos);
+		return stats;
+	}
+
+	private Object show(JsonNode request) throws StubException {
+		String model = existingModel(request.has("model") ? request.get("model") : request.get("name"));
+		Map<String, Object> response = new LinkedHashMap<>();
+		response.put("license", "Stub license");
+		response.put("modelfile", "FROM " + model);
+		response.put("parameters", "stop \"<|eot_id|>\"");
+		response.put("template", "{{ .Prompt }}");
+		response.put("details", Map.of("format", "gguf", "family", "llama", "families", List.of("llama"),
+				"parameter_size", "8.0B", "quantization_level", "Q4_0"));
+		response.put("model_info", Map.of("general.architecture", "llama", "llama.embedding_length", dimension));
+		return response;
+	}
+
+	private Object copy(JsonNode request) throws StubException {
+		existingModel(request.get("source"));
+		models.add(normalize(request.get("destination").asText()));
+		return Map.of();
+	}
+
+	private Object delete(JsonNode request) throws StubException {
+		String model = existingModel(request.has("model") ? request.get("model") : request.get("name"));
+		models.remove(model);
+		loadedModels.remove(model);
+		return Map.of();
+	}
+
+	/**
+	 * @return the normalized model name, if it is in the inventory
+	 */
+	private String existingModel(JsonNode name) throws StubException {
+		String model = name == null ? "" : normalize(name.asText());
+		if (!models.contains(model)) {
+			throw new StubException(404, "model '" + model + "' not found");
+		}
+		return model;
+	}
+
+	private Object ps(JsonNode request) {
+		List<Map<String, Object>> list = new ArrayList<>();
+		for (String model : loadedModels) {
+			Map<String, Object> m = new HashMap<>();
+			m.put("name", model.contains(":") ? model : model + ":latest");
+			m.put("model", model.contains(":") ? model : model + ":latest");
+			m.put("size", 5_137_025_024L);
+			m.put("size_vram", 0);
+			m.put("digest", Integer.toHexString(model.hashCode()));
+			m.put("expires_at", "2099-01-01T00:00:00.000000000+01:00");
+			list.add(m);
+		}
+		return Map.of("models", list);
+	}
+
+	/**
+	 * Streams NDJSON progress for a simulated single layer download, at least
+	 * every 100 ms, then adds the model to the inventory.
+	 */
+	private void pull(HttpExchange exchange, JsonNode request) throws Exception {
+		String model = request.get("name").asText();
+		long duration = pullMillis;
+		int steps = (int) Math.max(10, duration / 100);
+		maxActivePulls.accumulateAndGet(activePulls.incrementAndGet(), Math::max);
+		exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+		exchange.sendResponseHeaders(200, 0);
+		try (OutputStream os = exchange.getResponseBody()) {
+			writeLine(os, Map.of("status", "pulling manifest"));
+			writeLayer(os, "pulling ", model, duration, steps);
+			pullGate.await();
+			models.add(normalize(model));
+			writeLine(os, Map.of("status", "success"));
+		} catch (IOException e) {
+			abortedPulls.incrementAndGet();
+			logger.debug("Pull of {} aborted by the client: {}", model, e.toString());
+		} finally {
+			activePulls.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Streams NDJSON progress for a simulated single layer upload of a model in
+	 * the inventory, taking as long as a pull.
+	 */
+	private void push(HttpExchange exchange, JsonNode request) throws Exception {
+		String model = existingModel(request.get("name"));
+		long duration = pullMillis;
+		exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+		exchange.sendResponseHeaders(200, 0);
+		try (OutputStream os = exchange.getResponseBody()) {
+			writeLine(os, Map.of("status", "retrieving manifest"));
+			writeLayer(os, "pushing ", model, duration, (int) Math.max(10, duration / 100));
+			writeLine(os, Map.of("status", "pushing manifest"));
+			pushedModels.add(model);
+			writeLine(os, Map.of("status", "success"));
+		} catch (IOException e) {
+			logger.debug("Push of {} aborted by the client: {}", model, e.toString());
+		}
+	}
+
+	private void writeLayer(OutputStream os, String status, String model, long duration, int steps)
+			throws IOException, InterruptedException {
+		long total = 1_000_000;
+		String digest = "sha256:" + Integer.toHexString(model.hashCode());
+		for (int step = 1; step <= steps; step++) {
+			Thread.sleep(duration / steps);
+			writeLine(os, Map.of("status", status + digest, "digest", digest, "total", total, "completed",
+					total * step / steps));
+		}
+	}
+
+	private void writeLine(OutputStream os, Object line) throws IOException {
+		os.write(om.writeValueAsBytes(line));
+		os.write('\n');
+		os.flush();
+	}
+
+	private HttpHandler handler(StubEndpoint endpoint) {
+		return exchangeHandler(
+				(exchange, request) -> respond(exchange, 200, om.writeValueAsBytes(endpoint.handle(request))));
+	}
+
+	/**
+	 * Wraps an endpoint with the simulated failures, concurrency limit and
+	 * latency. Errors are only answered with an error status while the headers
+	 * are unsent; a failing streaming endpoint just ends its stream.
+	 */
+	private HttpHandler exchangeHandler(ExchangeEndpoint endpoint) {
+		return exchange -> {
+			try {
+				requestCount.incrementAndGet();
+				JsonNode request = om.readTree(exchange.getRequestBody());
+				if (failNext.getAndUpdate(n -> Math.max(0, n - 1)) > 0
+						|| (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate)) {
+					throw new StubException(500, "simulated failure");
+				}
+				Semaphore limit = capacity;
+				if (limit != null) {
+					limit.acquire();
+				}
+				try {
+					if (latencyMillis > 0) {
+						Thread.sleep(latencyMillis);
+					}
+					endpoint.handle(exchange, request);
+				} finally {
+					if (limit != null) {
+						limit.release();
+					}
+				}
+			} catch (StubException e) {
+				respondError(exchange, e.status, e.getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				logger.warn("Stub request failed", e);
+				respondError(exchange, 500, e.toString());
+			} finally {
+				exchange.close();
+			}
+		};
+	}
+
+	private static String normalize(String modelName) {
+		return modelName.replace(":latest", "");
+	}
+
+	private void respondError(HttpExchange exchange, int status, String message) throws IOException {
+		// -1 as long as no response headers were sent
+		if (exchange.getResponseCode() == -1) {
+			respond(exchange, status, om.writeValueAsBytes(Map.of("error", message)));
+		}
+	}
+
+	private void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+
+	private interface StubEndpoint {
+		Object handle(JsonNode request) throws Exception;
+	}
+
+	private interface ExchangeEndpoint {
+		void handle(HttpExchange exchange, JsonNode request) throws Exception;
+	}
+
+	/**
+	 * An error answered with the given HTTP status and an ollama error body.
+	 */
+	private static class StubException extends Exception {
+		private static final long serialVersionUID = 1L;
+		private final int status;
+
+		StubException(int status, String message) {
+			super(message);
+			this.status = status;
+		}
+	}
+}
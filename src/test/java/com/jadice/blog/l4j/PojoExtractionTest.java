@@ -7,6 +7,7 @@ import java.time.Duration;
 import java.time.LocalDate;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -26,6 +27,7 @@ import lombok.extern.slf4j.Slf4j;
  * input text.
  */
 @Slf4j
+@ExtendWith(OllamaStubExtension.class)
 @SpringBootTest(webEnvironment = WebEnvironment.NONE)
 public class PojoExtractionTest {
 
@@ -100,6 +102,7 @@ public class PojoExtractionTest {
 
 		assertNotNull(person);
 
+		OllamaStubExtension.assumeRealModel();
 		assertEquals("John", person.getFirstName());
 		assertEquals("Doe", person.getLastName());
 	}
@@ -8,6 +8,7 @@ import java.util.List;
 
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
@@ -35,6 +36,7 @@ import lombok.extern.slf4j.Slf4j;
  * (see the /docker/docker-compose.yaml to start a pgvector DB "externally").
  */
 @Slf4j
+@ExtendWith(OllamaStubExtension.class)
 @SpringBootTest(webEnvironment = WebEnvironment.NONE)
 public class RAGChatPGVectorTest {
 
@@ -11,14 +11,16 @@ import java.util.Map;
 import java.util.stream.Collectors;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.jadice.blog.l4j.ingest.IngestionPipeline;
+import com.jadice.blog.l4j.ingest.IngestionPipeline.IngestionReport;
 
 import dev.langchain4j.data.document.Document;
-import dev.langchain4j.data.document.DocumentSplitter;
 import dev.langchain4j.data.document.loader.FileSystemDocumentLoader;
 import dev.langchain4j.data.document.splitter.DocumentSplitters;
 import dev.langchain4j.data.embedding.Embedding;
@@ -52,6 +54,7 @@ import lombok.extern.slf4j.Slf4j;
  * Simple RAG chat tests with different API approaches.
  */
 @Slf4j
+@ExtendWith(OllamaStubExtension.class)
 @SpringBootTest(
     webEnvironment = WebEnvironment.NONE)
 public class RAGChatTest {
@@ -103,37 +106,29 @@ public class RAGChatTest {
 
     logger.info("RAG answer: {}", answer);
 
+    OllamaStubExtension.assumeRealModel();
     assertTrue(answer.toLowerCase().contains("slow"), "Not slow");
     assertTrue(answer.toLowerCase().contains("dog"), "Not a dog");
   }
 
   @Test
-  public void testThat_ragWorks_lowLevel() {
+  public void testThat_ragWorks_lowLevel() throws Exception {
     logger.info("----- testThat_ragWorks_lowLevel");
 
-    // Load the document that includes the information you'd like to "chat" about
-    // with the model.
-    logger.info("Loading RAG documents");
-
-    List<Document> documents = FileSystemDocumentLoader.loadDocuments(
-        new File(System.getProperty("user.dir"), "/src/test/resources/testdocs").toPath());
-    logger.info("{} RAG documents loaded. Getting embeddings (this might take a while)...", documents.size());
-
-    // Split document into segments 300 tokens each
-    DocumentSplitter splitter = DocumentSplitters.recursive(300, 0);
+    // Load the documents that include the information you'd like to "chat" about
+    // with the model, split them into segments of 300 tokens each, embed the
+    // segments (convert them into vectors that represent the meaning) and store
+    // them for further search / retrieval. The stages run in parallel.
+    logger.info("Loading RAG documents and getting embeddings (this might take a while)...");
 
-    // Embed segments (convert them into vectors that represent the meaning) using
-    // embedding model
     EmbeddingModel embeddingModel = new BgeSmallEnV15QuantizedEmbeddingModel();
-
-    // Store embeddings into embedding store for further search / retrieval
     EmbeddingStore<TextSegment> embeddingStore = new InMemoryEmbeddingStore<>();
 
-    for (Document document : documents) {
-      List<TextSegment> segments = splitter.split(document);
-      List<Embedding> embeddings = embeddingModel.embedAll(segments).content();
-      embeddingStore.addAll(embeddings, segments);
-    }
+    IngestionPipeline pipeline = new IngestionPipeline(embeddingModel, embeddingStore,
+        DocumentSplitters.recursive(300, 0));
+    IngestionReport report = pipeline.ingest(
+        new File(System.getProperty("user.dir"), "/src/test/resources/testdocs").toPath());
+    logger.info("{} RAG documents loaded", report.documents());
 
     // Specify the question you want to ask the model
     String question = "Who is Nelly?";
@@ -182,6 +177,7 @@ public class RAGChatTest {
     String answer = aiMessage.text();
     logger.debug("RAG low level answer:\n{}", answer);
 
+    OllamaStubExtension.assumeRealModel();
     assertTrue(answer.toLowerCase().contains("slow"), "Not slow");
     assertTrue(answer.toLowerCase().contains("dog") || answer.toLowerCase().contains("golden retriever"), "Not a dog");
   }
@@ -226,6 +222,7 @@ public class RAGChatTest {
 
     logger.info("RAG advanced answer: {}", answer);
 
+    OllamaStubExtension.assumeRealModel();
     assertTrue(answer.toLowerCase().contains("slow"), "Not slow");
     assertTrue(answer.toLowerCase().contains("dog"), "Not a dog");
     assertTrue(answer.toLowerCase().contains("nelly.txt"), "Did not find RAG source");
@@ -6,6 +6,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import java.time.Duration;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
@@ -19,6 +20,7 @@ import lombok.extern.slf4j.Slf4j;
  * Basic simple chat test.
  */
 @Slf4j
+@ExtendWith(OllamaStubExtension.class)
 @SpringBootTest(webEnvironment = WebEnvironment.NONE)
 public class SimpleChatTest {
 
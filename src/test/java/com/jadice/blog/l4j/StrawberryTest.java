@@ -5,6 +5,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import java.time.Duration;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
@@ -20,6 +21,7 @@ import lombok.extern.slf4j.Slf4j;
  * Function calling test to count characters in a text.
  */
 @Slf4j
+@ExtendWith(OllamaStubExtension.class)
 @SpringBootTest(
     webEnvironment = WebEnvironment.NONE)
 public class StrawberryTest {
@@ -63,6 +65,7 @@ public class StrawberryTest {
 
     logger.info("\nQuestion:\n{}\n\nAnswer:\n{}", question, answer);
 
+    OllamaStubExtension.assumeRealModel();
     assertTrue(answer.toLowerCase().contains("3"));
   }
 
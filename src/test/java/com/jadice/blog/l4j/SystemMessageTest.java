@@ -6,6 +6,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import java.time.Duration;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
@@ -20,6 +21,7 @@ import lombok.extern.slf4j.Slf4j;
  * Demonstrates how to set a system message to modify LLM behavior.
  */
 @Slf4j
+@ExtendWith(OllamaStubExtension.class)
 @SpringBootTest(webEnvironment = WebEnvironment.NONE)
 public class SystemMessageTest {
 
@@ -53,6 +55,7 @@ public class SystemMessageTest {
 
 		assertNotNull(answer);
 		assertTrue(!answer.isEmpty(), "Answer is empty");
+		OllamaStubExtension.assumeRealModel();
 		assertTrue(answer.toLowerCase().contains("powered by madgpt"), "'powered by' missing: " + answer);
 	}
 }
@@ -3,68 +3,140 @@ package com.jadice.blog.l4j;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
 
-import dev.langchain4j.data.document.Document;
-import dev.langchain4j.data.document.DocumentSplitter;
-import dev.langchain4j.data.document.loader.FileSystemDocumentLoader;
+import com.jadice.blog.l4j.embedding.CachingEmbeddingModel;
+import com.jadice.blog.l4j.embedding.LruCachingEmbeddingModel;
+import com.jadice.blog.l4j.ingest.IngestionPipeline;
+import com.jadice.blog.l4j.rag.Bm25Index;
+import com.jadice.blog.l4j.rag.HybridContentRetriever;
+import com.jadice.blog.l4j.store.MappedEmbeddingStore;
+import com.jadice.blog.l4j.store.SnapshotEmbeddingStore;
+
 import dev.langchain4j.data.document.splitter.DocumentSplitters;
 import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
-import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.model.embedding.onnx.bgesmallenv15q.BgeSmallEnV15QuantizedEmbeddingModel;
 import dev.langchain4j.store.embedding.EmbeddingMatch;
 import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
 import dev.langchain4j.store.embedding.EmbeddingSearchResult;
-import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 
 /**
- * Some tests for the Vector store.
+ * Some tests for the Vector store. Vectors are kept off-heap in a
+ * {@link MappedEmbeddingStore} in a temporary directory, which is saved as a
+ * snapshot below <code>target/</code>. Later runs restore the snapshot instead
+ * of loading the documents again, unless they changed; otherwise only changed
+ * segments are embedded, the others are taken from a cache next to it. A
+ * {@link Bm25Index} of the segments is built during ingestion or from the
+ * snapshot for hybrid retrieval.
  */
 @Slf4j
+@ExtendWith(OllamaStubExtension.class)
 @SpringBootTest(
     webEnvironment = WebEnvironment.NONE)
 public class VectorStoreTest {
 
-  private static InMemoryEmbeddingStore<TextSegment> embeddingStore = new InMemoryEmbeddingStore<>();
-  private static EmbeddingModel embeddingModel = new BgeSmallEnV15QuantizedEmbeddingModel();
+  private static final String MODEL_ID = "bge-small-en-v1.5-q";
+  private static final Path WORK_DIRECTORY = Path.of("target", "vector-store-test");
+  private static final Path SNAPSHOT = WORK_DIRECTORY.resolve("vector-store.snapshot");
+  private static final List<Path> DOCUMENT_DIRECTORIES = List.of(
+      new File(System.getProperty("user.dir"), "/src/test/resources/testdocs").toPath(),
+      new File(System.getProperty("user.dir"), "/src/test/resources/testdocs-large").toPath());
+
+  @TempDir
+  static Path storeDirectory;
+
+  private static CachingEmbeddingModel embeddingModel;
+  private static LruCachingEmbeddingModel queryEmbeddingModel;
+  private static EmbeddingStore<TextSegment> embeddingStore;
+  private static Bm25Index lexicalIndex;
 
   @BeforeAll
-  public static void initLoadDocuments() {
-    // Load the document that includes the information you'd like to "chat" about
-    // with the model.
-    logger.info("Loading RAG documents");
-
-    List<Document> documents = new ArrayList<>();
-
-    documents.addAll(FileSystemDocumentLoader.loadDocuments(
-        new File(System.getProperty("user.dir"), "/src/test/resources/testdocs").toPath()));
-    documents.addAll(FileSystemDocumentLoader.loadDocuments(
-        new File(System.getProperty("user.dir"), "/src/test/resources/testdocs-large").toPath()));
-
-    logger.info("Getting embeddings for {} RAG document(s) (this might take a while)...", documents.size());
-
-    // Split document into segments 300 tokens each
-    DocumentSplitter splitter = DocumentSplitters.recursive(300, 0);
-
-    // Embed segments (convert them into vectors that represent the meaning) using
-    // embedding model
-    for (Document document : documents) {
-      logger.info("Adding {}", document.metadata().getString("file_name"));
-      List<TextSegment> segments = splitter.split(document);
-      List<Embedding> embeddings = embeddingModel.embedAll(segments).content();
-      embeddingStore.addAll(embeddings, segments);
+  public static void initLoadDocuments() throws IOException, InterruptedException {
+    // Embeddings of unchanged segments are taken from the cache in later runs
+    embeddingModel = CachingEmbeddingModel.open(new BgeSmallEnV15QuantizedEmbeddingModel(), MODEL_ID,
+        WORK_DIRECTORY.resolve("embedding-cache"), 256L << 20, new SimpleMeterRegistry());
+    // Repeated questions are embedded once
+    queryEmbeddingModel = new LruCachingEmbeddingModel(embeddingModel, MODEL_ID, 1_000, false,
+        new SimpleMeterRegistry());
+    lexicalIndex = new Bm25Index();
+
+    if (Files.exists(SNAPSHOT) && !documentsChangedSince(Files.getLastModifiedTime(SNAPSHOT))) {
+      try {
+        long start = System.nanoTime();
+        SnapshotEmbeddingStore snapshot = SnapshotEmbeddingStore.open(SNAPSHOT, MODEL_ID, embeddingModel);
+        embeddingStore = snapshot;
+        logger.info("Restored {} embedding(s) from snapshot in {} ms", snapshot.size(),
+            (System.nanoTime() - start) / 1_000_000);
+        start = System.nanoTime();
+        snapshot.forEachSegment(lexicalIndex::add);
+        logger.info("Built lexical index of {} segment(s) in {} ms", lexicalIndex.size(),
+            (System.nanoTime() - start) / 1_000_000);
+        return;
+      } catch (IOException e) {
+        logger.warn("Snapshot {} cannot be used, loading the documents: {}", SNAPSHOT, e.getMessage());
+      }
+    }
+
+    MappedEmbeddingStore store = MappedEmbeddingStore.open(storeDirectory, embeddingModel.embed("dimension")
+        .content().dimension());
+    embeddingStore = store;
+
+    // Load, split, embed and store the documents in parallel stages
+    logger.info("Loading RAG documents and getting embeddings (this might take a while)...");
+
+    IngestionPipeline pipeline = new IngestionPipeline(embeddingModel, embeddingStore,
+        DocumentSplitters.recursive(300, 0));
+    pipeline.setLexicalIndex(lexicalIndex);
+    int documents = 0;
+    for (Path directory : DOCUMENT_DIRECTORIES) {
+      documents += pipeline.ingest(directory).documents();
     }
 
-    logger.info("{} RAG documents loaded", documents.size());
+    logger.info("{} RAG documents loaded, {} embedding(s) from cache", documents, embeddingModel.getHitCount());
+    SnapshotEmbeddingStore.write(SNAPSHOT, MODEL_ID, embeddingModel, store);
+  }
+
+  @AfterAll
+  public static void closeStore() throws Exception {
+    if (embeddingStore instanceof AutoCloseable closeable) {
+      closeable.close();
+    }
+    embeddingModel.close();
+  }
+
+  private static boolean documentsChangedSince(FileTime time) throws IOException {
+    for (Path directory : DOCUMENT_DIRECTORIES) {
+      try (Stream<Path> files = Files.walk(directory)) {
+        if (files.anyMatch(file -> {
+          try {
+            return Files.getLastModifiedTime(file).compareTo(time) > 0;
+          } catch (IOException e) {
+            return true;
+          }
+        })) {
+          return true;
+        }
+      }
+    }
+    return false;
   }
 
   @Test
@@ -75,7 +147,7 @@ public class VectorStoreTest {
     String question = "Who is Nelly?";
 
     // Embed the question
-    Embedding questionEmbedding = embeddingModel.embed(question).content();
+    Embedding questionEmbedding = queryEmbeddingModel.embed(question).content();
 
     // Find relevant embeddings in embedding store by semantic similarity
     // You can play with parameters below to find a sweet spot for your specific use
@@ -110,7 +182,7 @@ public class VectorStoreTest {
     logger.debug("Embedding finished; executing query for: {}", question);
 
     // Embed the question
-    Embedding questionEmbedding = embeddingModel.embed(question).content();
+    Embedding questionEmbedding = queryEmbeddingModel.embed(question).content();
 
     // Find relevant embeddings in embedding store by semantic similarity
     // You can play with parameters below to find a sweet spot for your specific use
@@ -132,6 +204,56 @@ public class VectorStoreTest {
     assertTrue(information.toUpperCase().contains("DGL7096A"), "DGL7096A not found");
   }
 
+  @Test
+  public void testThat_hybridRetrievalFindsErrorCodes() {
+    logger.info("----- testThat_hybridRetrievalFindsErrorCodes");
+
+    String question = "I am getting 'Invalid attribute with ID' error messages. What to do?";
+    HybridContentRetriever retriever = new HybridContentRetriever(embeddingStore, queryEmbeddingModel,
+        lexicalIndex);
+    logger.debug("Lexical index: {} segment(s), {} term(s), {} KB postings", lexicalIndex.size(),
+        lexicalIndex.getTermCount(), lexicalIndex.getPostingsBytes() / 1024);
+
+    // warm up, the query embedding is cached in memory from here on
+    List<HybridContentRetriever.Result> results = retriever.search(question);
+    Embedding questionEmbedding = queryEmbeddingModel.embed(question).content();
+
+    int runs = 20;
+    long start = System.nanoTime();
+    for (int i = 0; i < runs; i++) {
+      results = retriever.search(question);
+    }
+    long hybridMicros = (System.nanoTime() - start) / 1000 / runs;
+
+    // the vector-only alternative: look deeper into the vector results
+    int deepResults = 50;
+    List<EmbeddingMatch<TextSegment>> deepMatches = null;
+    start = System.nanoTime();
+    for (int i = 0; i < runs; i++) {
+      deepMatches = embeddingStore.search(EmbeddingSearchRequest.builder().queryEmbedding(questionEmbedding)
+          .maxResults(deepResults).build()).matches();
+    }
+    long deepMicros = (System.nanoTime() - start) / 1000 / runs;
+    int deepRank = 0;
+    for (int i = 0; i < deepMatches.size(); i++) {
+      if (deepMatches.get(i).embedded().text().toUpperCase().contains("DGL7096A")) {
+        deepRank = i + 1;
+        break;
+      }
+    }
+
+    for (HybridContentRetriever.Result result : results) {
+      logger.debug("RRF {} (lexical rank {}, vector rank {}): {}", String.format("%.4f", result.score()),
+          result.lexicalRank(), result.vectorRank(), result.segment().text());
+    }
+    logger.info("Hybrid top-3: {} us per query; vector top-{}: {} us per query, DGL7096A at rank {}", hybridMicros,
+        deepResults, deepMicros, deepRank == 0 ? "-" : deepRank);
+
+    String information = results.stream().map(result -> result.segment().text()).collect(
+        Collectors.joining("\n\n"));
+    assertTrue(information.toUpperCase().contains("DGL7096A"), "DGL7096A not found");
+  }
+
   private void printRelevantEmbeddingInfos(List<EmbeddingMatch<TextSegment>> relevantEmbeddings) {
     StringBuilder sb = new StringBuilder();
 
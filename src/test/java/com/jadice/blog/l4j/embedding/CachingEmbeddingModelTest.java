@@ -0,0 +1,194 @@
+package com.jadice.blog.l4j.embedding;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.loader.FileSystemDocumentLoader;
+import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.bgesmallenv15q.BgeSmallEnV15QuantizedEmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.store.embedding.EmbeddingStoreIngestor;
+import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tests the embedding cache: re-ingestion of an unchanged corpus, persistence,
+ * model identity and LRU eviction.
+ */
+@Slf4j
+public class CachingEmbeddingModelTest {
+
+	private static final String MODEL_ID = "bge-small-en-v1.5-q";
+
+	@TempDir
+	private Path directory;
+
+	@Test
+	public void testThat_reingestionOfUnchangedDocumentsOnlyHitsCache() throws Exception {
+		logger.info("----- testThat_reingestionOfUnchangedDocumentsOnlyHitsCache");
+
+		List<Document> documents = FileSystemDocumentLoader
+				.loadDocuments(new File(System.getProperty("user.dir"), "/src/test/resources/testdocs").toPath());
+		EmbeddingModel bge = new BgeSmallEnV15QuantizedEmbeddingModel();
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+		long coldMillis;
+		try (CachingEmbeddingModel model = CachingEmbeddingModel.open(bge, MODEL_ID, directory, 64L << 20,
+				meterRegistry)) {
+			coldMillis = ingest(model, documents);
+			assertEquals(0, model.getHitCount());
+			assertTrue(model.size() > 0);
+		}
+
+		try (CachingEmbeddingModel model = CachingEmbeddingModel.open(bge, MODEL_ID, directory, 64L << 20,
+				new SimpleMeterRegistry())) {
+			int cached = model.size();
+			long warmMillis = ingest(model, documents);
+			logger.info("{} segments: cold ingestion {} ms, warm ingestion {} ms, {} s embedding time saved", cached,
+					coldMillis, warmMillis, model.getSavedSeconds());
+
+			assertEquals(0, model.getMissCount());
+			assertTrue(model.getHitCount() >= cached);
+
+			String text = documents.get(0).text().substring(0, 200);
+			float[] computed = model.embed(text).content().vector();
+			assertArrayEquals(computed, model.embed(text).content().vector());
+		}
+		assertEquals(0.0, meterRegistry.get("embedding.cache").tag("result", "hit").counter().count());
+		assertTrue(meterRegistry.get("embedding.cache").tag("result", "miss").counter().count() > 0);
+	}
+
+	@Test
+	public void testThat_modelIdentityIsPartOfKey() throws Exception {
+		logger.info("----- testThat_modelIdentityIsPartOfKey");
+
+		AtomicInteger calls = new AtomicInteger();
+		try (CachingEmbeddingModel model = CachingEmbeddingModel.open(countingModel(calls), "model-a", directory,
+				1 << 20, new SimpleMeterRegistry())) {
+			model.embed("same text");
+			model.embed("same text");
+			assertEquals(1, calls.get());
+
+			// duplicates within a call are embedded once
+			model.embedAll(List.of(TextSegment.from("x"), TextSegment.from("y"), TextSegment.from("x")));
+			assertEquals(3, calls.get());
+		}
+
+		// another model in the same directory does not get the cached embeddings
+		try (CachingEmbeddingModel model = CachingEmbeddingModel.open(countingModel(calls), "model-b", directory,
+				1 << 20, new SimpleMeterRegistry())) {
+			model.embed("same text");
+			assertEquals(4, calls.get());
+			// each model has its own cache file
+			assertEquals(1, model.size());
+		}
+	}
+
+	@Test
+	public void testThat_leastRecentlyUsedEntriesAreEvicted() throws Exception {
+		logger.info("----- testThat_leastRecentlyUsedEntriesAreEvicted");
+
+		AtomicInteger calls = new AtomicInteger();
+		long entryBytes = 20 + 384 * Float.BYTES;
+		try (CachingEmbeddingModel model = CachingEmbeddingModel.open(countingModel(calls), "model", directory,
+				1_000 * entryBytes, new SimpleMeterRegistry())) {
+			model.embedAll(segments("old", 1_000));
+			// touch the first 100, so the other 900 are evicted first
+			model.embedAll(segments("old", 100));
+			model.embedAll(segments("new", 900));
+			assertEquals(1_000, model.size());
+			assertTrue(model.getSizeBytes() <= 1_000 * entryBytes);
+
+			calls.set(0);
+			model.embedAll(segments("old", 100));
+			assertEquals(0, calls.get(), "Recently used entries evicted");
+		}
+
+		// the log keeps evicted entries until it is compacted, the reopened index is
+		// trimmed to the size limit again
+		assertTrue(Files.size(directory.resolve(CachingEmbeddingModel.cacheFileName("model"))) >= 1_900 * entryBytes);
+		try (CachingEmbeddingModel reopened = CachingEmbeddingModel.open(countingModel(calls), "model", directory,
+				1_000 * entryBytes, new SimpleMeterRegistry())) {
+			assertEquals(1_000, reopened.size());
+			calls.set(0);
+			reopened.embedAll(segments("new", 900));
+			assertEquals(0, calls.get());
+		}
+	}
+
+	@Test
+	public void testThat_modelsShareDirectoryButNotCacheFile() throws Exception {
+		logger.info("----- testThat_modelsShareDirectoryButNotCacheFile");
+
+		AtomicInteger calls = new AtomicInteger();
+		assertNotEquals(CachingEmbeddingModel.cacheFileName("model/a"), CachingEmbeddingModel.cacheFileName("model_a"));
+		try (CachingEmbeddingModel a = CachingEmbeddingModel.open(countingModel(calls), "model/a", directory,
+				64L << 20, new SimpleMeterRegistry());
+				CachingEmbeddingModel b = CachingEmbeddingModel.open(countingModel(calls), "model-b", directory,
+						64L << 20, new SimpleMeterRegistry())) {
+			a.embedAll(segments("a", 100));
+			b.embedAll(segments("b", 200));
+			assertEquals(100, a.size());
+			assertEquals(200, b.size());
+
+			// a second instance would not see the entries appended by the first one
+			assertThrows(IOException.class, () -> CachingEmbeddingModel.open(countingModel(calls), "model-b",
+					directory, 64L << 20, new SimpleMeterRegistry()));
+		}
+
+		try (CachingEmbeddingModel b = CachingEmbeddingModel.open(countingModel(calls), "model-b", directory,
+				64L << 20, new SimpleMeterRegistry())) {
+			assertEquals(200, b.size());
+		}
+	}
+
+	private static long ingest(EmbeddingModel model, List<Document> documents) {
+		long start = System.nanoTime();
+		EmbeddingStoreIngestor.builder().embeddingModel(model).embeddingStore(new InMemoryEmbeddingStore<>())
+				.documentSplitter(DocumentSplitters.recursive(300, 0)).build().ingest(documents);
+		return (System.nanoTime() - start) / 1_000_000;
+	}
+
+	private static List<TextSegment> segments(String prefix, int count) {
+		List<TextSegment> segments = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			segments.add(TextSegment.from(prefix + " " + i));
+		}
+		return segments;
+	}
+
+	private static EmbeddingModel countingModel(AtomicInteger calls) {
+		return new EmbeddingModel() {
+			@Override
+			public Response<List<Embedding>> embedAll(List<TextSegment> segments) {
+				calls.addAndGet(segments.size());
+				List<Embedding> embeddings = new ArrayList<>(segments.size());
+				for (TextSegment segment : segments) {
+					float[] vector = new float[384];
+					vector[Math.floorMod(segment.text().hashCode(), 384)] = 1;
+					embeddings.add(Embedding.from(vector));
+				}
+				return Response.from(embeddings);
+			}
+		};
+	}
+}
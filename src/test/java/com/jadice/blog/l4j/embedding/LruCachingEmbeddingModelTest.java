@@ -0,0 +1,250 @@
+package com.jadice.blog.l4j.embedding;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.bgesmallenv15q.BgeSmallEnV15QuantizedEmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tests the query embedding cache: single-flight computation, LRU bound on and
+ * off the heap, and a benchmark of the embed latency with and without the
+ * cache.
+ */
+@Slf4j
+public class LruCachingEmbeddingModelTest {
+
+	@Test
+	public void testThat_concurrentIdenticalRequestsShareOneComputation() throws Exception {
+		logger.info("----- testThat_concurrentIdenticalRequestsShareOneComputation");
+
+		AtomicInteger calls = new AtomicInteger();
+		LruCachingEmbeddingModel model = new LruCachingEmbeddingModel(countingModel(calls, 100, null), "model", 100,
+				false, new SimpleMeterRegistry());
+
+		int threads = 16;
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<float[]>> futures = new ArrayList<>();
+		try (ExecutorService executor = Executors.newFixedThreadPool(threads)) {
+			for (int i = 0; i < threads; i++) {
+				// differently formatted, equal after normalization
+				String question = i % 2 == 0 ? "Who is Nelly?" : "  Who is\tNelly? ";
+				futures.add(executor.submit(() -> {
+					start.await();
+					return model.embed(question).content().vector();
+				}));
+			}
+			start.countDown();
+			float[] first = futures.get(0).get();
+			for (Future<float[]> future : futures) {
+				assertArrayEquals(first, future.get());
+			}
+		}
+		assertEquals(1, calls.get());
+		assertEquals(1, model.getMissCount());
+		assertEquals(threads - 1, model.getSharedCount() + model.getHitCount());
+
+		// callers get copies
+		model.embed("Who is Nelly?").content().vector()[0] = -1;
+		assertTrue(model.embed("Who is Nelly?").content().vector()[0] >= 0);
+		// duplicates within a batch are embedded once
+		model.embedAll(List.of(TextSegment.from("x"), TextSegment.from("y"), TextSegment.from("x ")));
+		assertEquals(3, calls.get());
+	}
+
+	@Test
+	public void testThat_cacheIsBoundedOnAndOffHeap() {
+		logger.info("----- testThat_cacheIsBoundedOnAndOffHeap");
+
+		for (boolean offHeap : new boolean[] { false, true }) {
+			AtomicInteger calls = new AtomicInteger();
+			AtomicBoolean failing = new AtomicBoolean();
+			SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+			LruCachingEmbeddingModel model = new LruCachingEmbeddingModel(countingModel(calls, 0, failing), "model",
+					64, offHeap, meterRegistry);
+
+			for (int i = 0; i < 1_000; i++) {
+				float[] vector = model.embed("question " + i).content().vector();
+				assertEquals(Math.floorMod(("question " + i).hashCode(), 384), indexOfOne(vector));
+				// the recent question is still cached
+				model.embed("question " + i);
+			}
+			assertTrue(model.size() <= 64, "Cache has " + model.size() + " entries");
+			assertEquals(1_000, calls.get());
+			assertEquals(1_000, model.getHitCount());
+			assertEquals(model.size(), meterRegistry.get("embedding.query.cache.size").gauge().value());
+
+			// failures are not cached
+			failing.set(true);
+			assertThrows(IllegalStateException.class, () -> model.embed("failing question"));
+			failing.set(false);
+			model.embed("failing question");
+			assertEquals(1_002, calls.get());
+			logger.info("Off-heap {}: {} cached embedding(s), p50 of hits {} us", offHeap, model.size(),
+					percentileMicros(meterRegistry, "hit", 0.5));
+		}
+	}
+
+	@Test
+	public void testThat_errorsReachAllCallersAndAreNotCached() throws Exception {
+		logger.info("----- testThat_errorsReachAllCallersAndAreNotCached");
+
+		AtomicBoolean failing = new AtomicBoolean(true);
+		EmbeddingModel erroneous = new EmbeddingModel() {
+			@Override
+			public Response<List<Embedding>> embedAll(List<TextSegment> segments) {
+				if (failing.get()) {
+					sleep(200);
+					throw new AssertionError("Model broken");
+				}
+				return Response.from(List.of(Embedding.from(new float[] { 1, 0 })));
+			}
+		};
+		LruCachingEmbeddingModel model = new LruCachingEmbeddingModel(erroneous, "model", 10, false,
+				new SimpleMeterRegistry());
+
+		assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+			// the second caller shares the computation of the first or makes its own
+			try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+				Future<?> first = executor.submit(() -> model.embed("question"));
+				sleep(50);
+				Future<?> second = executor.submit(() -> model.embed("question"));
+				for (Future<?> caller : List.of(first, second)) {
+					ExecutionException e = assertThrows(ExecutionException.class, caller::get);
+					assertInstanceOf(AssertionError.class, e.getCause());
+				}
+			}
+			assertEquals(0, model.size());
+
+			failing.set(false);
+			assertArrayEquals(new float[] { 1, 0 }, model.embed("question").content().vector());
+			assertEquals(1, model.size());
+		});
+	}
+
+	@Test
+	@Tag("benchmark")
+	public void testThat_cachedQueryLatencyIsMeasured() {
+		logger.info("----- testThat_cachedQueryLatencyIsMeasured");
+
+		EmbeddingModel bge = new BgeSmallEnV15QuantizedEmbeddingModel();
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		LruCachingEmbeddingModel cached = new LruCachingEmbeddingModel(bge, "bge-small-en-v1.5-q", 1_000, true,
+				meterRegistry);
+
+		// skewed query mix: a few questions are asked most of the time
+		List<String> questions = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			questions.add("What does error code DGL" + (7000 + i) + "A mean?");
+		}
+		Random random = new Random(42);
+		List<String> queries = new ArrayList<>();
+		for (int i = 0; i < 500; i++) {
+			queries.add(questions.get((int) Math.pow(questions.size(), random.nextDouble())));
+		}
+		// warm up the model
+		bge.embed("warm up");
+
+		long[] uncachedNanos = measure(bge, queries);
+		long[] cachedNanos = measure(cached, queries);
+		logger.info(
+				"Embed latency p50/p95/p99 without cache: {}/{}/{} us, with cache: {}/{}/{} us ({} hits, {} misses)",
+				micros(uncachedNanos, 0.5), micros(uncachedNanos, 0.95), micros(uncachedNanos, 0.99),
+				micros(cachedNanos, 0.5), micros(cachedNanos, 0.95), micros(cachedNanos, 0.99), cached.getHitCount(),
+				cached.getMissCount());
+		logger.info("Timer embedding.query p99: hits {} us, misses {} us", percentileMicros(meterRegistry, "hit", 0.99),
+				percentileMicros(meterRegistry, "miss", 0.99));
+
+		assertTrue(cached.getMissCount() <= questions.size());
+		assertArrayEquals(bge.embed(questions.get(0)).content().vector(),
+				cached.embed(questions.get(0)).content().vector());
+	}
+
+	private static long[] measure(EmbeddingModel model, List<String> queries) {
+		long[] nanos = new long[queries.size()];
+		for (int i = 0; i < nanos.length; i++) {
+			long start = System.nanoTime();
+			model.embed(queries.get(i));
+			nanos[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(nanos);
+		return nanos;
+	}
+
+	private static long micros(long[] sortedNanos, double percentile) {
+		return sortedNanos[(int) Math.min(sortedNanos.length - 1, Math.ceil(percentile * sortedNanos.length) - 1)]
+				/ 1000;
+	}
+
+	private static long percentileMicros(SimpleMeterRegistry meterRegistry, String result, double percentile) {
+		return Arrays.stream(meterRegistry.get("embedding.query").tag("result", result).timer().takeSnapshot()
+				.percentileValues()).filter(p -> p.percentile() == percentile)
+				.mapToLong(p -> (long) (p.value() / 1000)).findFirst().orElse(-1);
+	}
+
+	private static int indexOfOne(float[] vector) {
+		for (int i = 0; i < vector.length; i++) {
+			if (vector[i] == 1) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param delayMillis delay per call
+	 * @param failing     fails calls while true, may be null
+	 */
+	private static EmbeddingModel countingModel(AtomicInteger calls, long delayMillis, AtomicBoolean failing) {
+		return new EmbeddingModel() {
+			@Override
+			public Response<List<Embedding>> embedAll(List<TextSegment> segments) {
+				calls.addAndGet(segments.size());
+				if (failing != null && failing.get()) {
+					throw new IllegalStateException("Model not available");
+				}
+				sleep(delayMillis);
+				List<Embedding> embeddings = new ArrayList<>(segments.size());
+				for (TextSegment segment : segments) {
+					float[] vector = new float[384];
+					vector[Math.floorMod(segment.text().hashCode(), 384)] = 1;
+					embeddings.add(Embedding.from(vector));
+				}
+				return Response.from(embeddings);
+			}
+		};
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
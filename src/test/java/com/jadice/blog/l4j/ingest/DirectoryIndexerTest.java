@@ -0,0 +1,156 @@
+package com.jadice.blog.l4j.ingest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.jadice.blog.l4j.ingest.DirectoryIndexer.Change;
+import com.jadice.blog.l4j.ingest.DirectoryIndexer.IndexUpdate;
+import com.jadice.blog.l4j.ingest.DirectoryIndexer.SyncResult;
+
+import dev.langchain4j.data.document.parser.TextDocumentParser;
+import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.bgesmallenv15q.BgeSmallEnV15QuantizedEmbeddingModel;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tests incremental indexing: synchronization against the manifest, watched
+ * changes, and logs the latency from a file change until it is searchable.
+ */
+@Slf4j
+public class DirectoryIndexerTest {
+
+	private static final int FILES = 300;
+
+	private final EmbeddingModel embeddingModel = new BgeSmallEnV15QuantizedEmbeddingModel();
+
+	@TempDir
+	private Path root;
+
+	@TempDir
+	private Path work;
+
+	@Test
+	public void testThat_onlyChangedFilesAreReindexed() throws Exception {
+		logger.info("----- testThat_onlyChangedFilesAreReindexed");
+
+		writeCorpus();
+		Path manifest = work.resolve("manifest.json");
+		InMemoryEmbeddingStore<TextSegment> store = new InMemoryEmbeddingStore<>();
+		List<IndexUpdate> updates = Collections.synchronizedList(new ArrayList<>());
+
+		try (DirectoryIndexer indexer = indexer(store, manifest)) {
+			assertEquals(new SyncResult(FILES, 0, 0, 0), indexer.synchronize());
+			assertEquals(new SyncResult(0, 0, 0, FILES), indexer.synchronize());
+		}
+
+		Files.writeString(root.resolve("topic-1/doc-1.txt"), "Penguins live in the antarctic and cannot fly.");
+		Files.delete(root.resolve("topic-2/doc-2.txt"));
+		Files.writeString(root.resolve("topic-0/new.txt"), "A brand new document about volcanoes.");
+
+		// a new indexer with the saved manifest only processes the three changes
+		try (DirectoryIndexer indexer = indexer(store, manifest)) {
+			indexer.setListener(updates::add);
+			List<String> oldIds = indexer.getSegmentIds("topic-1/doc-1.txt");
+			assertEquals(new SyncResult(1, 1, 1, FILES - 2), indexer.synchronize());
+			assertEquals(3, updates.size());
+			assertEquals(FILES, indexer.size());
+
+			EmbeddingMatch<TextSegment> best = best(store, "Which birds cannot fly?");
+			assertEquals("topic-1/doc-1.txt", best.embedded().metadata().getString("relative_path"));
+			assertFalse(oldIds.contains(best.embeddingId()), "Old segment returned");
+			assertTrue(indexer.getSegmentIds("topic-2/doc-2.txt").isEmpty());
+		}
+	}
+
+	@Test
+	public void testThat_watchedChangesBecomeSearchable() throws Exception {
+		logger.info("----- testThat_watchedChangesBecomeSearchable");
+
+		writeCorpus();
+		InMemoryEmbeddingStore<TextSegment> store = new InMemoryEmbeddingStore<>();
+		BlockingQueue<IndexUpdate> updates = new LinkedBlockingQueue<>();
+
+		try (DirectoryIndexer indexer = indexer(store, work.resolve("manifest.json"))) {
+			indexer.setDebounce(Duration.ofMillis(50));
+			indexer.setListener(updates::add);
+			indexer.start();
+			updates.clear();
+
+			List<Long> latencies = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				String topic = "Document " + i + " explains how glaciers carve fjords over millennia.";
+				Path file = root.resolve("topic-" + (i % 5) + "/doc-" + i + ".txt");
+				long start = System.nanoTime();
+				Files.writeString(file, topic);
+				IndexUpdate update = awaitUpdate(updates, "topic-" + (i % 5) + "/doc-" + i + ".txt");
+				assertEquals(Change.UPDATED, update.change());
+				assertTrue(best(store, topic).embedded().text().contains("glaciers"));
+				latencies.add((System.nanoTime() - start) / 1_000_000);
+			}
+			Collections.sort(latencies);
+			logger.info("Change to searchable over {} files: p50 {} ms, max {} ms", FILES, latencies.get(10),
+					latencies.get(19));
+
+			// new directory with a file, then deletion
+			Path directory = Files.createDirectory(root.resolve("topic-new"));
+			Files.writeString(directory.resolve("a.txt"), "Submarines explore the deep sea trenches.");
+			assertEquals(Change.ADDED, awaitUpdate(updates, "topic-new/a.txt").change());
+			Files.delete(directory.resolve("a.txt"));
+			assertEquals(Change.REMOVED, awaitUpdate(updates, "topic-new/a.txt").change());
+			assertEquals(FILES, indexer.size());
+		}
+	}
+
+	private DirectoryIndexer indexer(InMemoryEmbeddingStore<TextSegment> store, Path manifest) throws Exception {
+		DirectoryIndexer indexer = new DirectoryIndexer(root, embeddingModel, store,
+				DocumentSplitters.recursive(300, 0), manifest, new SimpleMeterRegistry());
+		indexer.setParser(new TextDocumentParser());
+		return indexer;
+	}
+
+	private void writeCorpus() throws Exception {
+		String[] topics = { "cooking pasta", "repairing bicycles", "growing tomatoes", "learning guitar",
+				"baking bread" };
+		for (int i = 0; i < FILES; i++) {
+			Path directory = Files.createDirectories(root.resolve("topic-" + (i % 5)));
+			Files.writeString(directory.resolve("doc-" + i + ".txt"),
+					"Note " + i + " is about " + topics[i % 5] + ". It has some details on step " + i + ".");
+		}
+	}
+
+	private static IndexUpdate awaitUpdate(BlockingQueue<IndexUpdate> updates, String path) throws Exception {
+		while (true) {
+			IndexUpdate update = updates.poll(30, TimeUnit.SECONDS);
+			assertNotNull(update, "No update for " + path);
+			if (update.path().equals(path)) {
+				return update;
+			}
+		}
+	}
+
+	private EmbeddingMatch<TextSegment> best(InMemoryEmbeddingStore<TextSegment> store, String text) {
+		return store.search(EmbeddingSearchRequest.builder().queryEmbedding(embeddingModel.embed(text).content())
+				.maxResults(1).build()).matches().get(0);
+	}
+}
@@ -0,0 +1,198 @@
+package com.jadice.blog.l4j.ingest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.jadice.blog.l4j.ingest.IngestionPipeline.IngestionReport;
+import com.jadice.blog.l4j.ingest.IngestionPipeline.StageReport;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.loader.FileSystemDocumentLoader;
+import dev.langchain4j.data.document.parser.TextDocumentParser;
+import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.bgesmallenv15q.BgeSmallEnV15QuantizedEmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Compares the ingestion pipeline with the sequential loop and tests
+ * back-pressure and failure handling. The comparison on the large documents
+ * takes several minutes and only runs in the benchmark profile.
+ */
+@Slf4j
+public class IngestionPipelineTest {
+
+	@TempDir
+	private Path directory;
+
+	@Test
+	@Tag("benchmark")
+	public void testThat_pipelineMatchesLoopOnLargeDocuments() throws Exception {
+		logger.info("----- testThat_pipelineMatchesLoopOnLargeDocuments");
+
+		EmbeddingModel embeddingModel = new BgeSmallEnV15QuantizedEmbeddingModel();
+		DocumentSplitter splitter = DocumentSplitters.recursive(300, 0);
+		Path documentDirectory = new File(System.getProperty("user.dir"), "/src/test/resources/testdocs-large")
+				.toPath();
+
+		// the previous sequential ingestion
+		long start = System.nanoTime();
+		InMemoryEmbeddingStore<TextSegment> sequentialStore = new InMemoryEmbeddingStore<>();
+		int sequentialSegments = 0;
+		for (Document document : FileSystemDocumentLoader.loadDocuments(documentDirectory)) {
+			List<TextSegment> segments = splitter.split(document);
+			List<Embedding> embeddings = embeddingModel.embedAll(segments).content();
+			sequentialStore.addAll(embeddings, segments);
+			sequentialSegments += segments.size();
+		}
+		long sequentialMillis = (System.nanoTime() - start) / 1_000_000;
+
+		InMemoryEmbeddingStore<TextSegment> store = new InMemoryEmbeddingStore<>();
+		IngestionPipeline pipeline = new IngestionPipeline(embeddingModel, store, splitter);
+		pipeline.setEmbedThreads(Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+		IngestionReport report = pipeline.ingest(documentDirectory);
+
+		logger.info("Sequential: {} ms, pipeline: {} ms", sequentialMillis, report.elapsed().toMillis());
+		for (StageReport stage : report.stages()) {
+			logger.info("{}", stage);
+		}
+		assertEquals(2, report.documents());
+		assertEquals(sequentialSegments, report.segments());
+
+		Embedding query = embeddingModel.embed("DB2 utilities").content();
+		EmbeddingSearchRequest request = EmbeddingSearchRequest.builder().queryEmbedding(query).maxResults(5).build();
+		assertEquals(sequentialStore.search(request).matches().get(0).embedded().text(),
+				store.search(request).matches().get(0).embedded().text());
+	}
+
+	@Test
+	public void testThat_queuesAreBoundedWhenStoreIsSlow() throws Exception {
+		logger.info("----- testThat_queuesAreBoundedWhenStoreIsSlow");
+
+		List<Path> files = writeFiles(200);
+		AtomicInteger stored = new AtomicInteger();
+		InMemoryEmbeddingStore<TextSegment> slowStore = new InMemoryEmbeddingStore<>() {
+			@Override
+			public List<String> addAll(List<Embedding> embeddings, List<TextSegment> segments) {
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				stored.addAndGet(segments.size());
+				return super.addAll(embeddings, segments);
+			}
+		};
+
+		IngestionPipeline pipeline = new IngestionPipeline(fakeModel(null), slowStore,
+				DocumentSplitters.recursive(100, 0));
+		pipeline.setParser(new TextDocumentParser());
+		pipeline.setLoadThreads(4);
+		pipeline.setQueueCapacity(2);
+		pipeline.setBatchSize(4);
+		IngestionReport report = pipeline.ingest(files);
+
+		for (StageReport stage : report.stages()) {
+			logger.info("{}", stage);
+			assertTrue(stage.maxQueueDepth() <= 2, "Queue of stage " + stage.stage() + " not bounded");
+		}
+		assertEquals(200, report.documents());
+		assertEquals(stored.get(), report.segments());
+		assertTrue(report.segments() >= 200);
+	}
+
+	@Test
+	public void testThat_stageFailureStopsPipeline() throws Exception {
+		logger.info("----- testThat_stageFailureStopsPipeline");
+
+		List<Path> files = writeFiles(100);
+		IngestionPipeline pipeline = new IngestionPipeline(fakeModel(new IllegalStateException("model down")),
+				new InMemoryEmbeddingStore<>(), DocumentSplitters.recursive(100, 0));
+		pipeline.setParser(new TextDocumentParser());
+		pipeline.setQueueCapacity(2);
+
+		IllegalStateException e = assertThrows(IllegalStateException.class, () -> pipeline.ingest(files));
+		assertEquals("model down", e.getCause().getMessage());
+	}
+
+	@Test
+	public void testThat_errorsAndInterruptsStopPipeline() throws Exception {
+		logger.info("----- testThat_errorsAndInterruptsStopPipeline");
+
+		List<Path> files = writeFiles(100);
+		EmbeddingModel failing = new EmbeddingModel() {
+			@Override
+			public Response<List<Embedding>> embedAll(List<TextSegment> segments) {
+				throw new AssertionError("model broken");
+			}
+		};
+		// the embed worker is interrupted by someone else and cannot pass on its batch
+		EmbeddingModel interrupted = new EmbeddingModel() {
+			@Override
+			public Response<List<Embedding>> embedAll(List<TextSegment> segments) {
+				Thread.currentThread().interrupt();
+				return fakeModel(null).embedAll(segments);
+			}
+		};
+
+		for (EmbeddingModel model : List.of(failing, interrupted)) {
+			IngestionPipeline pipeline = new IngestionPipeline(model, new InMemoryEmbeddingStore<>(),
+					DocumentSplitters.recursive(100, 0));
+			pipeline.setParser(new TextDocumentParser());
+			pipeline.setQueueCapacity(2);
+
+			IllegalStateException e = assertTimeoutPreemptively(Duration.ofSeconds(30),
+					() -> assertThrows(IllegalStateException.class, () -> pipeline.ingest(files)));
+			logger.info("Ingestion stopped: {}", e.getCause().toString());
+			assertEquals(model == failing ? AssertionError.class : InterruptedException.class,
+					e.getCause().getClass());
+		}
+	}
+
+	private List<Path> writeFiles(int count) throws Exception {
+		List<Path> files = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Path file = directory.resolve("doc-" + i + ".txt");
+			Files.writeString(file, ("Document " + i + " talks about topic " + (i % 7) + ". ").repeat(10));
+			files.add(file);
+		}
+		return files;
+	}
+
+	/**
+	 * @param failure thrown on every call if not null
+	 */
+	private static EmbeddingModel fakeModel(RuntimeException failure) {
+		return new EmbeddingModel() {
+			@Override
+			public Response<List<Embedding>> embedAll(List<TextSegment> segments) {
+				if (failure != null) {
+					throw failure;
+				}
+				return Response.from(segments.stream()
+						.map(s -> Embedding.from(new float[] { s.text().length(), s.text().hashCode() % 100, 1 }))
+						.toList());
+			}
+		};
+	}
+}
@@ -0,0 +1,165 @@
+package com.jadice.blog.l4j.ingest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import com.jadice.blog.l4j.ingest.IngestionPipeline.IngestionReport;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.loader.FileSystemDocumentLoader;
+import dev.langchain4j.data.document.parser.apache.pdfbox.ApachePdfBoxDocumentParser;
+import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Compares page-wise PDF loading with loading each PDF as one document
+ * regarding the text held at once and peak heap, and checks page metadata and
+ * parallel loading.
+ */
+@Slf4j
+public class PdfPageLoaderTest {
+
+	private static final Path LARGE_DOCS = new File(System.getProperty("user.dir"),
+			"/src/test/resources/testdocs-large").toPath();
+	private static final List<Path> PDFS = List.of(LARGE_DOCS.resolve("CM8.4.1 Messages + Codes.pdf"),
+			LARGE_DOCS.resolve("IBM DB2 9.1 zOS.pdf"));
+
+	@Test
+	public void testThat_pagesAreSmallAndCoverWholeText() throws Exception {
+		logger.info("----- testThat_pagesAreSmallAndCoverWholeText");
+
+		PdfPageLoader loader = new PdfPageLoader();
+		for (Path pdf : PDFS) {
+			resetHeapPeak();
+			Document whole = FileSystemDocumentLoader.loadDocument(pdf, new ApachePdfBoxDocumentParser());
+			int wholeLength = whole.text().length();
+			whole = null;
+			long wholePeak = heapPeak();
+
+			resetHeapPeak();
+			AtomicLong pageChars = new AtomicLong();
+			AtomicInteger largestPage = new AtomicInteger();
+			AtomicInteger expectedPage = new AtomicInteger(1);
+			int pages = loader.load(pdf, page -> {
+				int number = page.metadata().getInteger("page");
+				assertTrue(number >= expectedPage.get(), "Pages not in order");
+				expectedPage.set(number + 1);
+				pageChars.addAndGet(page.text().length());
+				largestPage.accumulateAndGet(page.text().length(), Math::max);
+			});
+			long streamingPeak = heapPeak();
+
+			logger.info("{}: {} pages, whole text {} KB (peak heap {} MB), largest page {} KB (peak heap {} MB)",
+					pdf.getFileName(), pages, wholeLength / 1024, wholePeak >> 20, largestPage.get() / 1024,
+					streamingPeak >> 20);
+			assertTrue(largestPage.get() < wholeLength / 20, "Pages not much smaller than the document");
+			// page breaks may add or drop a few line separators
+			assertEquals(wholeLength, pageChars.get(), wholeLength * 0.02);
+		}
+	}
+
+	@Test
+	public void testThat_segmentsHavePageMetadataAndPdfsLoadInParallel() throws Exception {
+		logger.info("----- testThat_segmentsHavePageMetadataAndPdfsLoadInParallel");
+
+		PdfPageLoader loader = new PdfPageLoader();
+		loader.setPagesPerDocument(5);
+
+		// parallel loading on separate threads
+		Set<String> threads = ConcurrentHashMap.newKeySet();
+		Map<Path, Integer> pageCounts = new ConcurrentHashMap<>();
+		try (ExecutorService executor = Executors.newFixedThreadPool(PDFS.size())) {
+			List<Future<?>> loads = new ArrayList<>();
+			for (Path pdf : PDFS) {
+				loads.add(executor.submit(() -> {
+					pageCounts.put(pdf, loader.load(pdf, range -> threads.add(Thread.currentThread().getName())));
+					return null;
+				}));
+			}
+			for (Future<?> load : loads) {
+				load.get();
+			}
+		}
+		assertEquals(PDFS.size(), threads.size());
+
+		// streamed through the pipeline, every segment knows its pages
+		List<TextSegment> stored = new ArrayList<>();
+		InMemoryEmbeddingStore<TextSegment> store = new InMemoryEmbeddingStore<>() {
+			@Override
+			public List<String> addAll(List<Embedding> embeddings, List<TextSegment> segments) {
+				synchronized (stored) {
+					stored.addAll(segments);
+				}
+				return super.addAll(embeddings, segments);
+			}
+		};
+		IngestionPipeline pipeline = new IngestionPipeline(fakeModel(), store, DocumentSplitters.recursive(300, 0));
+		pipeline.setPdfPageLoader(loader);
+		IngestionReport report = pipeline.ingest(PDFS);
+
+		assertEquals(report.segments(), stored.size());
+		for (TextSegment segment : stored) {
+			Integer page = segment.metadata().getInteger("page");
+			Integer endPage = segment.metadata().getInteger("end_page");
+			assertTrue(page != null && page >= 1, "Segment without page: " + segment.metadata());
+			assertTrue(endPage == null || endPage > page);
+			assertTrue(page <= pageCounts.get(LARGE_DOCS.resolve(segment.metadata().getString("file_name"))));
+		}
+	}
+
+	private static void resetHeapPeak() {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * @return the sum of the peak usages of the heap pools, an upper bound of the
+	 *         peak heap since {@link #resetHeapPeak()}
+	 */
+	private static long heapPeak() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	private static EmbeddingModel fakeModel() {
+		return new EmbeddingModel() {
+			@Override
+			public Response<List<Embedding>> embedAll(List<TextSegment> segments) {
+				return Response.from(segments.stream()
+						.map(s -> Embedding.from(new float[] { s.text().length(), 1, 0 })).toList());
+			}
+		};
+	}
+}
@@ -0,0 +1,126 @@
+package com.jadice.blog.l4j.pgvector;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.postgresql.ds.PGSimpleDataSource;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.utility.DockerImageName;
+
+import com.jadice.blog.l4j.pgvector.PgVectorIndexManager.IndexReport;
+import com.jadice.blog.l4j.pgvector.PgVectorIndexManager.IndexSpec;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.pgvector.PgVectorEmbeddingStore;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Logs the ingestion throughput of the bulk loader and of the inserts of the
+ * {@link PgVectorEmbeddingStore}, and checks that the store can search the
+ * bulk loaded table.
+ */
+@Slf4j
+public class PgVectorBulkLoaderTest {
+
+	private static final int DIMENSION = 384;
+	private static final int ROWS = 20_000;
+
+	@Test
+	public void testThat_bulkLoadedRowsAreSearchable() throws Exception {
+		logger.info("----- testThat_bulkLoadedRowsAreSearchable");
+
+		Random random = new Random(42);
+		List<Embedding> embeddings = randomEmbeddings(random, ROWS);
+		List<TextSegment> segments = segments(ROWS);
+
+		DockerImageName dockerImageName = DockerImageName.parse("pgvector/pgvector:pg16");
+		try (PostgreSQLContainer<?> postgreSQLContainer = new PostgreSQLContainer<>(dockerImageName)) {
+			postgreSQLContainer.start();
+			PGSimpleDataSource dataSource = new PGSimpleDataSource();
+			dataSource.setUrl(postgreSQLContainer.getJdbcUrl());
+			dataSource.setUser(postgreSQLContainer.getUsername());
+			dataSource.setPassword(postgreSQLContainer.getPassword());
+
+			// the current path: the store inserts the rows
+			PgVectorEmbeddingStore rowStore = store(postgreSQLContainer, "row_insert");
+			long start = System.nanoTime();
+			rowStore.addAll(embeddings, segments);
+			long rowNanos = System.nanoTime() - start;
+
+			// bulk load, then build the index
+			PgVectorBulkLoader loader = new PgVectorBulkLoader(dataSource, "bulk_copy", DIMENSION);
+			loader.setBatchSize(5_000);
+			loader.createTable();
+			start = System.nanoTime();
+			List<String> ids = loader.addAll(embeddings, segments);
+			long copyNanos = System.nanoTime() - start;
+			IndexReport index = loader.buildIndex(IndexSpec.hnsw(16, 64));
+
+			logger.info("{} rows: store inserts {} rows/s, COPY {} rows/s ({}x), index build {} ms ({} MB)", ROWS,
+					ROWS * 1_000_000_000L / rowNanos, ROWS * 1_000_000_000L / copyNanos, rowNanos / copyNanos,
+					index.buildTime().toMillis(), index.sizeBytes() >> 20);
+
+			try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement();
+					ResultSet resultSet = statement.executeQuery("SELECT count(*) FROM bulk_copy")) {
+				resultSet.next();
+				assertEquals(ROWS, resultSet.getInt(1));
+			}
+
+			PgVectorEmbeddingStore bulkStore = store(postgreSQLContainer, "bulk_copy");
+			for (int i : new int[] { 0, 5, ROWS - 1 }) {
+				EmbeddingMatch<TextSegment> match = bulkStore.search(
+						EmbeddingSearchRequest.builder().queryEmbedding(embeddings.get(i)).maxResults(1).build())
+						.matches().get(0);
+				assertEquals(ids.get(i), match.embeddingId());
+				assertEquals(1.0, match.score(), 1e-5);
+				assertEquals(segments.get(i).text(), match.embedded().text());
+				assertEquals(segments.get(i).metadata().getString("file_name"),
+						match.embedded().metadata().getString("file_name"));
+				assertEquals(i, match.embedded().metadata().getInteger("index"));
+			}
+		}
+	}
+
+	private static PgVectorEmbeddingStore store(PostgreSQLContainer<?> postgreSQLContainer, String table) {
+		return PgVectorEmbeddingStore.builder().host(postgreSQLContainer.getHost())
+				.port(postgreSQLContainer.getFirstMappedPort()).database(postgreSQLContainer.getDatabaseName())
+				.user(postgreSQLContainer.getUsername()).password(postgreSQLContainer.getPassword()).table(table)
+				.dimension(DIMENSION).build();
+	}
+
+	private static List<Embedding> randomEmbeddings(Random random, int count) {
+		List<Embedding> embeddings = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			float[] vector = new float[DIMENSION];
+			for (int d = 0; d < DIMENSION; d++) {
+				vector[d] = (float) random.nextGaussian();
+			}
+			Embedding embedding = Embedding.from(vector);
+			embedding.normalize();
+			embeddings.add(embedding);
+		}
+		return embeddings;
+	}
+
+	private static List<TextSegment> segments(int count) {
+		List<TextSegment> segments = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Metadata metadata = new Metadata();
+			metadata.put("file_name", "file-" + (i % 4) + ".txt");
+			metadata.put("index", i);
+			segments.add(TextSegment.from("Segment " + i + " with some text to store", metadata));
+		}
+		return segments;
+	}
+}
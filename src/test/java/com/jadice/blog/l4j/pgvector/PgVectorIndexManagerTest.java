@@ -0,0 +1,221 @@
+package com.jadice.blog.l4j.pgvector;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Test;
+import org.postgresql.ds.PGSimpleDataSource;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.utility.DockerImageName;
+
+import com.jadice.blog.l4j.pgvector.PgVectorIndexManager.IndexReport;
+import com.jadice.blog.l4j.pgvector.PgVectorIndexManager.IndexSpec;
+import com.zaxxer.hikari.HikariDataSource;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.pgvector.PgVectorEmbeddingStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Builds HNSW and IVFFlat indexes on a bulk loaded table and measures recall@k
+ * and latency of the query profiles against an exact search.
+ */
+@Slf4j
+public class PgVectorIndexManagerTest {
+
+	private static final int DIMENSION = 384;
+	private static final int ROWS = 20_000;
+	private static final int QUERIES = 50;
+	private static final int K = 10;
+	private static final String TABLE = "indexed";
+
+	@Test
+	public void testThat_indexesAreUsedAndProfilesTradeRecallForLatency() throws Exception {
+		logger.info("----- testThat_indexesAreUsedAndProfilesTradeRecallForLatency");
+
+		Random random = new Random(42);
+		List<float[]> centers = new ArrayList<>();
+		for (int c = 0; c < 100; c++) {
+			centers.add(gaussian(random, 1));
+		}
+		List<Embedding> embeddings = clustered(random, centers, ROWS);
+		List<Embedding> queries = clustered(random, centers, QUERIES);
+
+		DockerImageName dockerImageName = DockerImageName.parse("pgvector/pgvector:pg16");
+		try (PostgreSQLContainer<?> postgreSQLContainer = new PostgreSQLContainer<>(dockerImageName)) {
+			postgreSQLContainer.start();
+			PGSimpleDataSource dataSource = new PGSimpleDataSource();
+			dataSource.setUrl(postgreSQLContainer.getJdbcUrl());
+			dataSource.setUser(postgreSQLContainer.getUsername());
+			dataSource.setPassword(postgreSQLContainer.getPassword());
+
+			PgVectorBulkLoader loader = new PgVectorBulkLoader(dataSource, TABLE, DIMENSION);
+			loader.createTable();
+			List<String> ids = loader.addAll(embeddings, segments(ROWS));
+			List<Set<String>> exact = queries.stream().map(q -> exactTopK(q, embeddings, ids)).toList();
+
+			PgVectorEmbeddingStore store = PgVectorEmbeddingStore.builder().host(postgreSQLContainer.getHost())
+					.port(postgreSQLContainer.getFirstMappedPort()).database(postgreSQLContainer.getDatabaseName())
+					.user(postgreSQLContainer.getUsername()).password(postgreSQLContainer.getPassword()).table(TABLE)
+					.dimension(DIMENSION).build();
+			TunedPgVectorEmbeddingStore tunedStore = new TunedPgVectorEmbeddingStore(store, dataSource, TABLE);
+			PgVectorIndexManager manager = new PgVectorIndexManager(dataSource, TABLE);
+			assertTrue(manager.getIndex().isEmpty());
+			assertFalse(explain(dataSource, queries.get(0)).contains("Index Scan"), "Index without index");
+
+			for (IndexSpec spec : List.of(IndexSpec.hnsw(16, 64), IndexSpec.ivfFlat(100))) {
+				IndexReport report = manager.createIndex(spec);
+				logger.info("{}: built in {} ms, {} MB", spec, report.buildTime().toMillis(),
+						report.sizeBytes() >> 20);
+				assertTrue(report.sizeBytes() > 0);
+				assertEquals(spec.type(), manager.getIndex().orElseThrow().type());
+				assertTrue(explain(dataSource, queries.get(0)).contains("Index Scan"), "Index not used for " + spec);
+
+				double lowLatencyRecall = 0;
+				for (QueryProfile profile : List.of(QueryProfile.LOW_LATENCY, QueryProfile.BALANCED,
+						QueryProfile.HIGH_RECALL)) {
+					double recall = 0;
+					long nanos = 0;
+					for (int q = 0; q < QUERIES; q++) {
+						long start = System.nanoTime();
+						List<EmbeddingMatch<TextSegment>> matches = tunedStore.search(EmbeddingSearchRequest.builder()
+								.queryEmbedding(queries.get(q)).maxResults(K).build(), profile).matches();
+						nanos += System.nanoTime() - start;
+						Set<String> expected = exact.get(q);
+						recall += matches.stream().filter(m -> expected.contains(m.embeddingId())).count()
+								/ (double) K;
+					}
+					recall /= QUERIES;
+					logger.info("{} with {}: recall@{} {}, {} µs per query", spec.type(), profile, K,
+							String.format("%.3f", recall), nanos / QUERIES / 1000);
+					if (profile == QueryProfile.LOW_LATENCY) {
+						lowLatencyRecall = recall;
+					} else if (profile == QueryProfile.HIGH_RECALL) {
+						assertTrue(recall >= 0.9, "Recall too low for " + spec + ": " + recall);
+						assertTrue(recall >= lowLatencyRecall);
+					}
+				}
+			}
+
+			// the pooled connection gets its own build settings back
+			try (HikariDataSource pool = PgVectorPools.create("pgvector-index", postgreSQLContainer.getJdbcUrl(),
+					postgreSQLContainer.getUsername(), postgreSQLContainer.getPassword(), 1, Duration.ofSeconds(10),
+					false, new SimpleMeterRegistry())) {
+				String workMem = show(pool, "maintenance_work_mem");
+				PgVectorIndexManager pooledManager = new PgVectorIndexManager(pool, TABLE);
+				pooledManager.setMaintenanceWorkMem("256MB");
+				pooledManager.setMaintenanceWorkers(1);
+				pooledManager.createIndex(IndexSpec.ivfFlat(100));
+				assertEquals(workMem, show(pool, "maintenance_work_mem"));
+				// the rebuild replaced the index, nothing is left of the build
+				assertEquals(List.of(TABLE + "_ivfflat_index"), indexes(pool));
+			}
+
+			manager.dropIndex();
+			assertTrue(manager.getIndex().isEmpty());
+		}
+	}
+
+	private static String show(DataSource dataSource, String setting) throws Exception {
+		try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement();
+				ResultSet resultSet = statement.executeQuery("SHOW " + setting)) {
+			resultSet.next();
+			return resultSet.getString(1);
+		}
+	}
+
+	private static List<String> indexes(DataSource dataSource) throws Exception {
+		try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement();
+				ResultSet resultSet = statement.executeQuery("SELECT indexname FROM pg_indexes WHERE tablename = '"
+						+ TABLE + "' AND indexdef LIKE '%vector_cosine_ops%' ORDER BY indexname")) {
+			List<String> names = new ArrayList<>();
+			while (resultSet.next()) {
+				names.add(resultSet.getString(1));
+			}
+			return names;
+		}
+	}
+
+	private static String explain(DataSource dataSource, Embedding query) throws Exception {
+		try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement();
+				ResultSet resultSet = statement.executeQuery("EXPLAIN SELECT embedding_id FROM " + TABLE
+						+ " ORDER BY embedding <=> '" + Arrays.toString(query.vector()) + "' LIMIT " + K)) {
+			StringBuilder plan = new StringBuilder();
+			while (resultSet.next()) {
+				plan.append(resultSet.getString(1)).append('\n');
+			}
+			return plan.toString();
+		}
+	}
+
+	private static Set<String> exactTopK(Embedding query, List<Embedding> embeddings, List<String> ids) {
+		float[] q = query.vector();
+		return new HashSet<>(IntStream.range(0, embeddings.size()).boxed()
+				.sorted(Comparator.comparingDouble(i -> -dot(q, embeddings.get(i).vector()))).limit(K)
+				.map(ids::get).toList());
+	}
+
+	private static double dot(float[] a, float[] b) {
+		double dot = 0;
+		for (int i = 0; i < a.length; i++) {
+			dot += a[i] * b[i];
+		}
+		return dot;
+	}
+
+	private static float[] gaussian(Random random, double scale) {
+		float[] vector = new float[DIMENSION];
+		for (int d = 0; d < DIMENSION; d++) {
+			vector[d] = (float) (random.nextGaussian() * scale);
+		}
+		return vector;
+	}
+
+	/**
+	 * @return normalized vectors around random centers, which resemble real
+	 *         embeddings more than uniformly random vectors
+	 */
+	private static List<Embedding> clustered(Random random, List<float[]> centers, int count) {
+		List<Embedding> embeddings = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			float[] center = centers.get(random.nextInt(centers.size()));
+			float[] vector = gaussian(random, 0.5);
+			for (int d = 0; d < DIMENSION; d++) {
+				vector[d] += center[d];
+			}
+			Embedding embedding = Embedding.from(vector);
+			embedding.normalize();
+			embeddings.add(embedding);
+		}
+		return embeddings;
+	}
+
+	private static List<TextSegment> segments(int count) {
+		List<TextSegment> segments = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			segments.add(TextSegment.from("Segment " + i, new Metadata().put("index", i)));
+		}
+		return segments;
+	}
+}
@@ -0,0 +1,208 @@
+package com.jadice.blog.l4j.pgvector;
+
+import static dev.langchain4j.store.embedding.filter.MetadataFilterBuilder.metadataKey;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Test;
+import org.postgresql.ds.PGSimpleDataSource;
+import org.testcontainers.containers.Network;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.utility.DockerImageName;
+
+import com.jadice.blog.l4j.pgvector.PgVectorIndexManager.IndexSpec;
+import com.zaxxer.hikari.HikariDataSource;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs the routing store against a primary and a replica fed by logical
+ * replication, and logs the search throughput at increasing concurrency.
+ */
+@Slf4j
+public class RoutingPgVectorEmbeddingStoreTest {
+
+	private static final int DIMENSION = 384;
+	private static final int ROWS = 5_000;
+	private static final String TABLE = "routed";
+
+	@Test
+	public void testThat_readsGoToReplica() throws Exception {
+		logger.info("----- testThat_readsGoToReplica");
+
+		Random random = new Random(42);
+		List<Embedding> embeddings = randomEmbeddings(random, ROWS);
+		List<Embedding> queries = randomEmbeddings(random, 100);
+
+		DockerImageName dockerImageName = DockerImageName.parse("pgvector/pgvector:pg16");
+		try (Network network = Network.newNetwork();
+				PostgreSQLContainer<?> primaryContainer = new PostgreSQLContainer<>(dockerImageName)
+						.withNetwork(network).withNetworkAliases("primary")
+						.withCommand("postgres", "-c", "fsync=off", "-c", "wal_level=logical");
+				PostgreSQLContainer<?> replicaContainer = new PostgreSQLContainer<>(dockerImageName)
+						.withNetwork(network)) {
+			primaryContainer.start();
+			replicaContainer.start();
+
+			// same table on both, the replica subscribes to the primary
+			DataSource primaryAdmin = dataSource(primaryContainer);
+			DataSource replicaAdmin = dataSource(replicaContainer);
+			new PgVectorBulkLoader(primaryAdmin, TABLE, DIMENSION).createTable();
+			new PgVectorBulkLoader(replicaAdmin, TABLE, DIMENSION).createTable();
+			execute(primaryAdmin, "CREATE PUBLICATION vectors FOR TABLE " + TABLE);
+			execute(replicaAdmin, "CREATE SUBSCRIPTION vectors CONNECTION 'host=primary port=5432 dbname="
+					+ primaryContainer.getDatabaseName() + " user=" + primaryContainer.getUsername() + " password="
+					+ primaryContainer.getPassword() + "' PUBLICATION vectors");
+
+			SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+			HikariDataSource primary = PgVectorPools.create("pgvector-primary", primaryContainer.getJdbcUrl(),
+					primaryContainer.getUsername(), primaryContainer.getPassword(), 16, Duration.ofSeconds(5), false,
+					meterRegistry);
+			HikariDataSource replica = PgVectorPools.create("pgvector-replica-0", replicaContainer.getJdbcUrl(),
+					replicaContainer.getUsername(), replicaContainer.getPassword(), 16, Duration.ofSeconds(5), true,
+					meterRegistry);
+			try (RoutingPgVectorEmbeddingStore store = new RoutingPgVectorEmbeddingStore(primary, List.of(replica),
+					TABLE, DIMENSION, meterRegistry)) {
+				List<String> ids = store.addAll(embeddings, segments(ROWS));
+				awaitRows(replicaAdmin, ROWS);
+				// indexes are not replicated
+				new PgVectorIndexManager(replicaAdmin, TABLE).createIndex(IndexSpec.hnsw(16, 64));
+
+				EmbeddingMatch<TextSegment> match = store.search(
+						EmbeddingSearchRequest.builder().queryEmbedding(embeddings.get(7)).maxResults(1).build())
+						.matches().get(0);
+				assertEquals(ids.get(7), match.embeddingId());
+				assertEquals(7, match.embedded().metadata().getInteger("index"));
+				assertEquals(1, searchTimer(meterRegistry, "pgvector-replica-0").count());
+				assertEquals(0, searchTimer(meterRegistry, "pgvector-primary").count());
+				assertEquals(1, meterRegistry.get("pgvector.query").tag("operation", "write").timer().count());
+
+				for (int threads : new int[] { 1, 2, 4, 8, 16 }) {
+					double throughput = measureThroughput(store, queries, threads);
+					Timer timer = searchTimer(meterRegistry, "pgvector-replica-0");
+					logger.info("{} thread(s): {} searches/s, mean {} ms, pool saturation {}", threads,
+							(long) throughput, String.format("%.2f", timer.mean(TimeUnit.MILLISECONDS)),
+							meterRegistry.get("pgvector.pool.saturation").tag("pool", "pgvector-replica-0").gauge()
+									.value());
+				}
+				assertEquals(0, searchTimer(meterRegistry, "pgvector-primary").count());
+
+				// filtered searches go to the primary
+				long replicaSearches = searchTimer(meterRegistry, "pgvector-replica-0").count();
+				match = store.search(EmbeddingSearchRequest.builder().queryEmbedding(embeddings.get(7)).maxResults(1)
+						.filter(metadataKey("index").isEqualTo(7)).build()).matches().get(0);
+				assertEquals(ids.get(7), match.embeddingId());
+				assertEquals(1, searchTimer(meterRegistry, "pgvector-primary").count());
+				assertEquals(replicaSearches, searchTimer(meterRegistry, "pgvector-replica-0").count());
+
+				assertNotNull(meterRegistry.find("hikaricp.connections.pending").tag("pool", "pgvector-replica-0")
+						.gauge());
+				assertNotNull(meterRegistry.find("hikaricp.connections.acquire").tag("pool", "pgvector-replica-0")
+						.timer());
+			}
+		}
+	}
+
+	/**
+	 * @return searches per second with the given number of threads
+	 */
+	private static double measureThroughput(RoutingPgVectorEmbeddingStore store, List<Embedding> queries,
+			int threads) throws Exception {
+		int searchesPerThread = 200;
+		long start = System.nanoTime();
+		try (ExecutorService executor = Executors.newFixedThreadPool(threads)) {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				int offset = t;
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < searchesPerThread; i++) {
+						store.search(EmbeddingSearchRequest.builder()
+								.queryEmbedding(queries.get((offset + i) % queries.size())).maxResults(5).build());
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		}
+		return threads * searchesPerThread * 1e9 / (System.nanoTime() - start);
+	}
+
+	private static Timer searchTimer(SimpleMeterRegistry meterRegistry, String route) {
+		return meterRegistry.get("pgvector.query").tag("operation", "search").tag("route", route).timer();
+	}
+
+	private static void awaitRows(DataSource dataSource, int rows) throws Exception {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+		while (true) {
+			try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement();
+					ResultSet resultSet = statement.executeQuery("SELECT count(*) FROM " + TABLE)) {
+				resultSet.next();
+				int count = resultSet.getInt(1);
+				if (count == rows) {
+					return;
+				}
+				assertTrue(System.nanoTime() < deadline, "Replica has " + count + " of " + rows + " rows");
+			}
+			Thread.sleep(200);
+		}
+	}
+
+	private static void execute(DataSource dataSource, String sql) throws Exception {
+		try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+			statement.execute(sql);
+		}
+	}
+
+	private static DataSource dataSource(PostgreSQLContainer<?> container) {
+		PGSimpleDataSource dataSource = new PGSimpleDataSource();
+		dataSource.setUrl(container.getJdbcUrl());
+		dataSource.setUser(container.getUsername());
+		dataSource.setPassword(container.getPassword());
+		return dataSource;
+	}
+
+	private static List<Embedding> randomEmbeddings(Random random, int count) {
+		List<Embedding> embeddings = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			float[] vector = new float[DIMENSION];
+			for (int d = 0; d < DIMENSION; d++) {
+				vector[d] = (float) random.nextGaussian();
+			}
+			Embedding embedding = Embedding.from(vector);
+			embedding.normalize();
+			embeddings.add(embedding);
+		}
+		return embeddings;
+	}
+
+	private static List<TextSegment> segments(int count) {
+		List<TextSegment> segments = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			segments.add(TextSegment.from("Segment " + i, new Metadata().put("index", i)));
+		}
+		return segments;
+	}
+}
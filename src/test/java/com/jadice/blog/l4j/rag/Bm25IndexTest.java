@@ -0,0 +1,89 @@
+package com.jadice.blog.l4j.rag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.data.segment.TextSegment;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public class Bm25IndexTest {
+
+	@Test
+	public void testThat_rareIdentifiersRankFirst() {
+		logger.info("----- testThat_rareIdentifiersRankFirst");
+
+		Bm25Index index = new Bm25Index();
+		index.add("a", TextSegment.from("The attribute is invalid. Check the attribute definition."));
+		index.add("b", TextSegment.from("DGL7096A: Invalid attribute with ID. The attribute was not found."));
+		index.add("c", TextSegment.from("Error messages are written to the log file."));
+		index.add("d", TextSegment.from("Nelly is a slow golden retriever."));
+
+		List<Bm25Index.Match> matches = index.search("What does dgl7096a mean?", 10);
+		assertEquals(1, matches.size());
+		assertEquals("b", matches.get(0).id());
+
+		matches = index.search("I am getting 'Invalid attribute with ID' error messages", 10);
+		assertEquals("b", matches.get(0).id());
+		assertEquals(3, matches.size(), "The segment about Nelly shares no term");
+		for (int i = 1; i < matches.size(); i++) {
+			assertTrue(matches.get(i - 1).score() >= matches.get(i).score());
+		}
+
+		assertEquals(List.of(), index.search("golden retriever", 0));
+		assertEquals(List.of(), index.search("...", 10));
+	}
+
+	@Test
+	public void testThat_postingsAreCompactAndSearchIsFast() {
+		logger.info("----- testThat_postingsAreCompactAndSearchIsFast");
+
+		// Zipf-like vocabulary: few frequent and many rare terms
+		Random random = new Random(42);
+		int segmentCount = 50_000;
+		List<String> ids = new ArrayList<>(segmentCount);
+		List<TextSegment> segments = new ArrayList<>(segmentCount);
+		long termOccurrences = 0;
+		for (int i = 0; i < segmentCount; i++) {
+			StringBuilder text = new StringBuilder();
+			int words = 30 + random.nextInt(30);
+			for (int w = 0; w < words; w++) {
+				text.append("term").append((int) Math.pow(20_000, random.nextDouble())).append(' ');
+			}
+			text.append("CODE").append(i);
+			termOccurrences += words + 1;
+			ids.add("id-" + i);
+			segments.add(TextSegment.from(text.toString()));
+		}
+
+		Bm25Index index = new Bm25Index();
+		long start = System.nanoTime();
+		for (int i = 0; i < segmentCount; i += 1000) {
+			index.addAll(ids.subList(i, i + 1000), segments.subList(i, i + 1000));
+		}
+		long indexMillis = (System.nanoTime() - start) / 1_000_000;
+
+		long bytes = index.getPostingsBytes();
+		logger.info("{} segment(s), {} term(s) indexed in {} ms: {} KB postings, {} byte(s) per term occurrence",
+				index.size(), index.getTermCount(), indexMillis, bytes / 1024,
+				String.format("%.2f", bytes / (double) termOccurrences));
+		assertEquals(segmentCount, index.size());
+		// two varints per posting, mostly one byte each
+		assertTrue(bytes < termOccurrences * 3, "Postings take " + bytes + " bytes");
+
+		int queries = 200;
+		start = System.nanoTime();
+		for (int i = 0; i < queries; i++) {
+			int code = random.nextInt(segmentCount);
+			List<Bm25Index.Match> matches = index.search("term1 term2 term50 code" + code, 10);
+			assertEquals("id-" + code, matches.get(0).id());
+		}
+		logger.info("Search: {} us per query", (System.nanoTime() - start) / 1000 / queries);
+	}
+}
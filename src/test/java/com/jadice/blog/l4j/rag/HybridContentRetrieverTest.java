@@ -0,0 +1,93 @@
+package com.jadice.blog.l4j.rag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.query.Query;
+import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public class HybridContentRetrieverTest {
+
+	private static final String QUESTION = "What does DGL7096A mean?";
+
+	@Test
+	public void testThat_resultsAreFusedByRank() {
+		logger.info("----- testThat_resultsAreFusedByRank");
+
+		// the vector search ranks "errors" before "code", the lexical search only finds "code"
+		InMemoryEmbeddingStore<TextSegment> store = new InMemoryEmbeddingStore<>();
+		Bm25Index index = new Bm25Index();
+		String errors = add(store, index, "Error messages are written to the log file.", 1, 0.1f);
+		String code = add(store, index, "DGL7096A: invalid attribute with ID.", 1, 0.5f);
+		add(store, index, "Nelly is a slow golden retriever.", 0, 1);
+
+		HybridContentRetriever retriever = new HybridContentRetriever(store, fixedModel(new float[] { 1, 0 }),
+				index);
+		retriever.setMaxResults(2);
+		List<HybridContentRetriever.Result> results = retriever.search(QUESTION);
+
+		assertEquals(2, results.size());
+		HybridContentRetriever.Result first = results.get(0);
+		assertEquals(code, first.id());
+		assertEquals(1, first.lexicalRank());
+		assertEquals(2, first.vectorRank());
+		assertEquals(1.0 / 61 + 1.0 / 62, first.score(), 1e-9);
+		HybridContentRetriever.Result second = results.get(1);
+		assertEquals(errors, second.id());
+		assertEquals(0, second.lexicalRank());
+		assertEquals(1, second.vectorRank());
+		assertEquals(1.0 / 61, second.score(), 1e-9);
+
+		List<Content> contents = retriever.retrieve(Query.from(QUESTION));
+		assertEquals(List.of(first.segment(), second.segment()), contents.stream().map(Content::textSegment).toList());
+	}
+
+	@Test
+	public void testThat_lexicalFailuresArePropagated() {
+		logger.info("----- testThat_lexicalFailuresArePropagated");
+
+		InMemoryEmbeddingStore<TextSegment> store = new InMemoryEmbeddingStore<>();
+		Bm25Index index = new Bm25Index() {
+			@Override
+			public List<Match> search(String query, int maxResults) {
+				throw new IllegalStateException("Index broken");
+			}
+		};
+		add(store, index, "DGL7096A: invalid attribute with ID.", 1, 0);
+
+		HybridContentRetriever retriever = new HybridContentRetriever(store, fixedModel(new float[] { 1, 0 }), index);
+		IllegalStateException e = assertThrows(IllegalStateException.class, () -> retriever.search(QUESTION));
+		assertEquals("Index broken", e.getMessage());
+	}
+
+	/**
+	 * @return the id of the segment in store and index
+	 */
+	private static String add(InMemoryEmbeddingStore<TextSegment> store, Bm25Index index, String text, float x,
+			float y) {
+		TextSegment segment = TextSegment.from(text);
+		String id = store.add(Embedding.from(new float[] { x, y }), segment);
+		index.add(id, segment);
+		return id;
+	}
+
+	private static EmbeddingModel fixedModel(float[] vector) {
+		return new EmbeddingModel() {
+			@Override
+			public Response<List<Embedding>> embedAll(List<TextSegment> segments) {
+				return Response.from(segments.stream().map(s -> Embedding.from(vector.clone())).toList());
+			}
+		};
+	}
+}
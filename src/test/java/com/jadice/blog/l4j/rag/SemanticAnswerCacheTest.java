@@ -0,0 +1,206 @@
+package com.jadice.blog.l4j.rag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.jadice.blog.l4j.OllamaStubServer;
+import com.jadice.blog.l4j.embedding.LruCachingEmbeddingModel;
+import com.jadice.blog.l4j.store.HnswEmbeddingStore;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.loader.FileSystemDocumentLoader;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.bgesmallenv15q.BgeSmallEnV15QuantizedEmbeddingModel;
+import dev.langchain4j.model.ollama.OllamaChatModel;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.content.retriever.EmbeddingStoreContentRetriever;
+import dev.langchain4j.service.AiServices;
+import dev.langchain4j.service.UserMessage;
+import dev.langchain4j.store.embedding.EmbeddingStoreIngestor;
+import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public class SemanticAnswerCacheTest {
+
+	interface ChatBot {
+		String chat(String message);
+
+		String summarize(String text);
+
+		int count(String text);
+	}
+
+	interface RagBot {
+		String chat(@UserMessage String message);
+	}
+
+	private static final EmbeddingModel EMBEDDING_MODEL = new BgeSmallEnV15QuantizedEmbeddingModel();
+
+	@TempDir
+	private Path directory;
+
+	private HnswEmbeddingStore index;
+	private SimpleMeterRegistry meterRegistry;
+	private SemanticAnswerCache cache;
+	private AtomicInteger generations;
+	private ChatBot chatBot;
+
+	@BeforeEach
+	public void createCache() throws Exception {
+		index = HnswEmbeddingStore.open(directory, 384, 16, 100, 64);
+		meterRegistry = new SimpleMeterRegistry();
+		cache = new SemanticAnswerCache(EMBEDDING_MODEL, index, "test", meterRegistry);
+		generations = new AtomicInteger();
+		// a slow model answering with a generation number
+		ChatBot model = new ChatBot() {
+			@Override
+			public String chat(String message) {
+				return generate("Answer " + generations.incrementAndGet());
+			}
+
+			@Override
+			public String summarize(String text) {
+				return generate("Summary " + generations.incrementAndGet());
+			}
+
+			@Override
+			public int count(String text) {
+				generations.incrementAndGet();
+				return text.length();
+			}
+		};
+		chatBot = cache.wrap(ChatBot.class, model);
+	}
+
+	@AfterEach
+	public void closeIndex() throws Exception {
+		index.close();
+	}
+
+	@Test
+	public void testThat_nearDuplicateQuestionsAreAnsweredFromCache() {
+		logger.info("----- testThat_nearDuplicateQuestionsAreAnsweredFromCache");
+
+		assertEquals("Answer 1", chatBot.chat("who is Nelly?"));
+		assertEquals("Answer 1", chatBot.chat("Who is Nelly"));
+		assertEquals("Answer 1", chatBot.chat("who is nelly ?"));
+		assertEquals("Answer 2", chatBot.chat("What is DB2?"));
+		// same question, other method
+		assertEquals("Summary 3", chatBot.summarize("who is Nelly?"));
+		// not cached at all
+		assertEquals(13, chatBot.count("who is Nelly?"));
+		assertEquals(4, generations.get());
+
+		assertEquals(2, cache.getHitCount());
+		assertEquals(3, cache.getMissCount());
+		assertEquals(3, cache.size());
+		assertTrue(cache.getSavedSeconds() >= 0.1, "Saved " + cache.getSavedSeconds() + " s");
+		assertEquals(2, meterRegistry.get("answer.cache").tag("result", "hit").counter().count());
+		assertEquals(3, meterRegistry.get("answer.cache.generation").timer().count());
+		assertEquals(3, meterRegistry.get("answer.cache.size").gauge().value());
+		logger.info("Hit rate {}, {} s generation time saved", cache.getHitRate(), cache.getSavedSeconds());
+	}
+
+	@Test
+	public void testThat_changedContextIsNotAnsweredFromCache() {
+		logger.info("----- testThat_changedContextIsNotAnsweredFromCache");
+
+		AtomicReference<String> context = new AtomicReference<>("Nelly is a slow dog.");
+		cache.setContentRetriever(query -> List.of(Content.from(context.get())));
+
+		assertEquals("Answer 1", chatBot.chat("who is Nelly?"));
+		assertEquals("Answer 1", chatBot.chat("Who is Nelly"));
+		context.set("Nelly is a fast cat.");
+		assertEquals("Answer 2", chatBot.chat("Who is Nelly"));
+		assertEquals("Answer 2", chatBot.chat("who is Nelly?"));
+		assertEquals(2, generations.get());
+	}
+
+	@Test
+	public void testThat_entriesExpireAndAreEvicted() throws Exception {
+		logger.info("----- testThat_entriesExpireAndAreEvicted");
+
+		cache.setTtl(Duration.ofMillis(300));
+		assertEquals("Answer 1", chatBot.chat("who is Nelly?"));
+		assertEquals("Answer 1", chatBot.chat("who is Nelly?"));
+		Thread.sleep(400);
+		assertEquals("Answer 2", chatBot.chat("who is Nelly?"));
+		assertEquals(1, cache.size());
+		assertEquals(1, index.size());
+
+		cache.setTtl(Duration.ofHours(1));
+		cache.setMaxEntries(2);
+		chatBot.chat("What is DB2?");
+		chatBot.chat("How do I create a table?");
+		assertEquals(2, cache.size());
+		assertEquals(2, index.size());
+		// the least recently used answer about Nelly was evicted
+		assertEquals("Answer 3", chatBot.chat("What is DB2?"));
+		assertEquals("Answer 5", chatBot.chat("who is Nelly?"));
+		assertEquals("Answer 3", chatBot.chat("What is DB2?"));
+		assertEquals("Answer 6", chatBot.chat("How do I create a table?"));
+	}
+
+	@Test
+	public void testThat_ragAnswersAreCachedSemantically() throws Exception {
+		logger.info("----- testThat_ragAnswersAreCachedSemantically");
+
+		List<Document> documents = FileSystemDocumentLoader.loadDocuments(
+				new File(System.getProperty("user.dir"), "/src/test/resources/testdocs").toPath());
+		InMemoryEmbeddingStore<TextSegment> embeddingStore = new InMemoryEmbeddingStore<>();
+		EmbeddingStoreIngestor.builder().embeddingModel(EMBEDDING_MODEL).embeddingStore(embeddingStore).build()
+				.ingest(documents);
+		// The cache, its context fingerprint and the assistant all embed the question; it is computed once
+		EmbeddingModel queryEmbeddingModel = new LruCachingEmbeddingModel(EMBEDDING_MODEL, "bge-small-en-v1.5-q",
+				100, false, new SimpleMeterRegistry());
+		ContentRetriever contentRetriever = EmbeddingStoreContentRetriever.builder().embeddingStore(embeddingStore)
+				.embeddingModel(queryEmbeddingModel).build();
+
+		try (OllamaStubServer stub = OllamaStubServer.start(384, 100)) {
+			OllamaChatModel model = OllamaChatModel.builder().baseUrl(stub.getBaseUrl()).modelName("llama3.1")
+					.timeout(Duration.ofSeconds(30)).temperature(0.0).build();
+			// No chat memory: cached answers must not depend on the conversation
+			RagBot assistant = AiServices.builder(RagBot.class).chatLanguageModel(model)
+					.contentRetriever(contentRetriever).build();
+
+			// Near-duplicate questions with the same retrieved context share one generation
+			cache.setContentRetriever(contentRetriever);
+			RagBot cachingAssistant = cache.wrap(RagBot.class, assistant);
+
+			String answer = cachingAssistant.chat("who is Nelly?");
+			long start = System.nanoTime();
+			String cachedAnswer = cachingAssistant.chat("Who is Nelly");
+			logger.info("RAG answer: {}; cached answer after {} ms, {} s generation time saved", answer,
+					(System.nanoTime() - start) / 1_000_000, cache.getSavedSeconds());
+
+			assertEquals(answer, cachedAnswer);
+			assertEquals(1, cache.getHitCount());
+			assertEquals(1, stub.getRequestCount());
+		}
+	}
+
+	private static String generate(String answer) {
+		try {
+			Thread.sleep(100);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return answer;
+	}
+}
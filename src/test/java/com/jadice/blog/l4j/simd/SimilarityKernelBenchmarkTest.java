@@ -0,0 +1,96 @@
+package com.jadice.blog.l4j.simd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Checks the SIMD kernel against the scalar one. The benchmark logs their
+ * speed at the dimension of BGE small (384) and larger ones.
+ */
+@Slf4j
+public class SimilarityKernelBenchmarkTest {
+
+	private static final int[] DIMENSIONS = { 384, 768, 1024, 4096 };
+	private static final int VECTORS = 2_000;
+
+	private final SimilarityKernel scalar = SimilarityKernels.scalar();
+	private final SimilarityKernel simd = new VectorApiSimilarityKernel();
+
+	@Test
+	public void testThat_simdKernelMatchesScalarKernel() {
+		logger.info("----- testThat_simdKernelMatchesScalarKernel");
+
+		Random random = new Random(1);
+		// odd lengths and offsets exercise the tail loops
+		for (int length : new int[] { 1, 7, 31, 384, 1001 }) {
+			float[] a = randomVector(random, length + 3);
+			float[] b = randomVector(random, length + 5);
+			assertEquals(scalar.dot(a, 3, b, 5, length), simd.dot(a, 3, b, 5, length), 1e-3f * length);
+			assertEquals(scalar.squaredL2(a, 3, b, 5, length), simd.squaredL2(a, 3, b, 5, length), 1e-3f * length);
+			assertEquals(scalar.cosine(a, 3, b, 5, length), simd.cosine(a, 3, b, 5, length), 1e-4f);
+			byte[] codes = new byte[length + 2];
+			random.nextBytes(codes);
+			assertEquals(scalar.dot(codes, 2, b, length), simd.dot(codes, 2, b, length), 1e-3f * length);
+		}
+		assertEquals(0, simd.cosine(new float[8], randomVector(random, 8)));
+
+		float[] query = randomVector(random, 384);
+		FloatBuffer buffer = ByteBuffer.allocateDirect(2 * 384 * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN)
+				.asFloatBuffer();
+		buffer.put(384, query);
+		float[] scratch = SimilarityKernels.scratch(384);
+		assertEquals(scalar.dot(query, query), SimilarityKernels.dot(buffer, 384, query, scratch), 1e-2f);
+		assertEquals(scalar.dot(query, query), SimilarityKernels.dot(buffer, 384, buffer, 384, 384, scratch), 1e-2f);
+	}
+
+	@Test
+	@Tag("benchmark")
+	public void testThat_kernelSpeedsAreMeasured() {
+		logger.info("----- testThat_kernelSpeedsAreMeasured");
+
+		Random random = new Random(2);
+		for (int dimension : DIMENSIONS) {
+			float[] vectors = randomVector(random, VECTORS * dimension);
+			float[] query = randomVector(random, dimension);
+
+			long scalarNanos = measure(scalar, vectors, query, dimension);
+			long simdNanos = measure(simd, vectors, query, dimension);
+			logger.info("dim {}: scalar {} ns, {} {} ns per cosine ({}x)", dimension, scalarNanos / VECTORS, simd,
+					simdNanos / VECTORS, String.format("%.1f", (double) scalarNanos / simdNanos));
+		}
+	}
+
+	/**
+	 * @return the best time of several scans over all vectors
+	 */
+	private static long measure(SimilarityKernel kernel, float[] vectors, float[] query, int dimension) {
+		long best = Long.MAX_VALUE;
+		float sink = 0;
+		for (int run = 0; run < 30; run++) {
+			long start = System.nanoTime();
+			for (int v = 0; v < VECTORS; v++) {
+				sink += kernel.cosine(vectors, v * dimension, query, 0, dimension);
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		logger.trace("sink {}", sink);
+		return best;
+	}
+
+	private static float[] randomVector(Random random, int length) {
+		float[] vector = new float[length];
+		for (int i = 0; i < length; i++) {
+			vector[i] = (float) random.nextGaussian();
+		}
+		return vector;
+	}
+}
@@ -0,0 +1,229 @@
+package com.jadice.blog.l4j.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.loader.FileSystemDocumentLoader;
+import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.bgesmallenv15q.BgeSmallEnV15QuantizedEmbeddingModel;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Compares the HNSW store with the exact scan of the mapped store regarding
+ * recall@k and latency, and tests concurrent inserts and persistence of the
+ * graph.
+ */
+@Slf4j
+public class HnswEmbeddingStoreTest {
+
+	private static final int K = 10;
+
+	@TempDir
+	private Path directory;
+
+	@Test
+	public void testThat_recallOnLargeTestDocumentsIsHigh() throws Exception {
+		logger.info("----- testThat_recallOnLargeTestDocumentsIsHigh");
+
+		EmbeddingModel embeddingModel = new BgeSmallEnV15QuantizedEmbeddingModel();
+		List<Document> documents = FileSystemDocumentLoader.loadDocuments(
+				new File(System.getProperty("user.dir"), "/src/test/resources/testdocs-large").toPath());
+		DocumentSplitter splitter = DocumentSplitters.recursive(300, 0);
+		List<TextSegment> segments = new ArrayList<>();
+		for (Document document : documents) {
+			segments.addAll(splitter.split(document));
+		}
+		List<Embedding> embeddings = embeddingModel.embedAll(segments).content();
+		int dimension = embeddings.get(0).dimension();
+		logger.info("{} segments embedded", segments.size());
+
+		// queries: the beginning of every 10th segment
+		List<Embedding> queries = new ArrayList<>();
+		for (int i = 0; i < segments.size(); i += 10) {
+			String text = segments.get(i).text();
+			queries.add(embeddingModel.embed(text.substring(0, Math.min(120, text.length()))).content());
+		}
+
+		try (MappedEmbeddingStore exact = MappedEmbeddingStore.open(directory.resolve("exact"), dimension);
+				HnswEmbeddingStore hnsw = HnswEmbeddingStore.open(directory.resolve("hnsw"), dimension, 16, 200,
+						64)) {
+			List<String> ids = exact.addAll(embeddings, segments);
+			long start = System.nanoTime();
+			for (int i = 0; i < embeddings.size(); i++) {
+				hnsw.add(ids.get(i), embeddings.get(i));
+			}
+			logger.info("HNSW index built in {} ms", (System.nanoTime() - start) / 1_000_000);
+
+			double recall = report("testdocs-large", exact, hnsw, queries);
+			assertTrue(recall >= 0.9, "Recall@" + K + " too low: " + recall);
+		}
+	}
+
+	@Test
+	public void testThat_concurrentInsertsAndSearchesWorkAndGraphIsPersisted() throws Exception {
+		logger.info("----- testThat_concurrentInsertsAndSearchesWorkAndGraphIsPersisted");
+
+		int dimension = 64;
+		Random random = new Random(11);
+		List<Embedding> embeddings = clusteredEmbeddings(random, 20_000, dimension);
+		List<Embedding> queries = clusteredEmbeddings(random, 200, dimension);
+
+		List<List<EmbeddingMatch<TextSegment>>> before = new ArrayList<>();
+		try (HnswEmbeddingStore hnsw = HnswEmbeddingStore.open(directory, dimension, 16, 100, 100)) {
+			AtomicBoolean inserting = new AtomicBoolean(true);
+			try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+				Future<?> searcher = executor.submit(() -> {
+					int searches = 0;
+					while (inserting.get()) {
+						hnsw.search(EmbeddingSearchRequest.builder().queryEmbedding(queries.get(searches % 200))
+								.maxResults(K).build());
+						searches++;
+						// lets the inserters run, also with a single carrier thread
+						Thread.yield();
+					}
+					logger.info("{} searches while inserting", searches);
+					return null;
+				});
+				List<Future<?>> inserters = new ArrayList<>();
+				for (int t = 0; t < 4; t++) {
+					List<Embedding> part = embeddings.subList(t * 5_000, (t + 1) * 5_000);
+					inserters.add(executor.submit(() -> hnsw.addAll(part)));
+				}
+				for (Future<?> inserter : inserters) {
+					inserter.get();
+				}
+				inserting.set(false);
+				searcher.get();
+			}
+			assertEquals(embeddings.size(), hnsw.size());
+
+			try (MappedEmbeddingStore exact = MappedEmbeddingStore.open(directory.resolve("exact"), dimension)) {
+				exact.addAll(embeddings);
+				// both stores generate their own ids
+				double recall = recall(exact, hnsw, queries, EmbeddingMatch::embedding);
+				logger.info("Recall@{} after concurrent inserts: {}", K, recall);
+				assertTrue(recall >= 0.9, "Recall@" + K + " too low: " + recall);
+			}
+
+			EmbeddingSearchRequest limited = EmbeddingSearchRequest.builder().queryEmbedding(queries.get(0))
+					.maxResults(3).minScore(0.0).build();
+			assertEquals(3, hnsw.search(limited).matches().size());
+			EmbeddingSearchRequest strict = EmbeddingSearchRequest.builder().queryEmbedding(queries.get(0))
+					.maxResults(K).minScore(0.999).build();
+			assertTrue(hnsw.search(strict).matches().stream().allMatch(m -> m.score() >= 0.999));
+
+			for (Embedding query : queries) {
+				before.add(hnsw.search(EmbeddingSearchRequest.builder().queryEmbedding(query).maxResults(K).build())
+						.matches());
+			}
+		}
+
+		try (HnswEmbeddingStore reopened = HnswEmbeddingStore.open(directory, dimension, 16, 100, 100)) {
+			for (int i = 0; i < queries.size(); i++) {
+				List<EmbeddingMatch<TextSegment>> after = reopened.search(
+						EmbeddingSearchRequest.builder().queryEmbedding(queries.get(i)).maxResults(K).build())
+						.matches();
+				assertEquals(before.get(i).stream().map(EmbeddingMatch::embeddingId).toList(),
+						after.stream().map(EmbeddingMatch::embeddingId).toList());
+			}
+		}
+	}
+
+	/**
+	 * Logs recall@k and mean latencies of both stores, which must share the
+	 * embedding ids.
+	 */
+	private double report(String name, EmbeddingStore<TextSegment> exact, EmbeddingStore<TextSegment> hnsw,
+			List<Embedding> queries) {
+		long exactNanos = 0;
+		long hnswNanos = 0;
+		for (int run = 0; run < 2; run++) {
+			exactNanos = 0;
+			hnswNanos = 0;
+			for (Embedding query : queries) {
+				EmbeddingSearchRequest request = EmbeddingSearchRequest.builder().queryEmbedding(query).maxResults(K)
+						.build();
+				long start = System.nanoTime();
+				exact.search(request);
+				exactNanos += System.nanoTime() - start;
+				start = System.nanoTime();
+				hnsw.search(request);
+				hnswNanos += System.nanoTime() - start;
+			}
+		}
+		double recall = recall(exact, hnsw, queries, EmbeddingMatch::embeddingId);
+		logger.info("{}: recall@{} {}, mean latency exact {} µs, hnsw {} µs", name, K, recall,
+				exactNanos / queries.size() / 1_000, hnswNanos / queries.size() / 1_000);
+		return recall;
+	}
+
+	/**
+	 * @param key identifies matches across both stores; each exact match is found
+	 *            at most once, also if several matches share a key
+	 */
+	private static double recall(EmbeddingStore<TextSegment> exact, EmbeddingStore<TextSegment> approximate,
+			List<Embedding> queries, Function<EmbeddingMatch<TextSegment>, ?> key) {
+		int found = 0;
+		int total = 0;
+		for (Embedding query : queries) {
+			EmbeddingSearchRequest request = EmbeddingSearchRequest.builder().queryEmbedding(query).maxResults(K)
+					.build();
+			List<Object> expected = new ArrayList<>(exact.search(request).matches().stream().map(key).toList());
+			total += expected.size();
+			for (EmbeddingMatch<TextSegment> match : approximate.search(request).matches()) {
+				if (expected.remove(key.apply(match))) {
+					found++;
+				}
+			}
+		}
+		return (double) found / total;
+	}
+
+	/**
+	 * Normalized vectors around random cluster centers, closer to real embeddings
+	 * than uniformly random ones.
+	 */
+	private static List<Embedding> clusteredEmbeddings(Random random, int count, int dimension) {
+		Random centers = new Random(1);
+		float[][] center = new float[50][dimension];
+		for (float[] c : center) {
+			for (int d = 0; d < dimension; d++) {
+				c[d] = (float) centers.nextGaussian();
+			}
+		}
+		List<Embedding> embeddings = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			float[] c = center[random.nextInt(center.length)];
+			float[] vector = new float[dimension];
+			for (int d = 0; d < dimension; d++) {
+				vector[d] = c[d] + (float) (random.nextGaussian() * 0.5);
+			}
+			Embedding embedding = Embedding.from(vector);
+			embedding.normalize();
+			embeddings.add(embedding);
+		}
+		return embeddings;
+	}
+}
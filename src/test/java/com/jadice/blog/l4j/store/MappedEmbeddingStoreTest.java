@@ -0,0 +1,187 @@
+package com.jadice.blog.l4j.store;
+
+import static dev.langchain4j.store.embedding.filter.MetadataFilterBuilder.metadataKey;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tests the memory-mapped embedding store against langchain4j's in-memory
+ * store.
+ */
+@Slf4j
+public class MappedEmbeddingStoreTest {
+
+	private static final int DIMENSION = 384;
+	private static final int ENTRIES = 5_000;
+
+	@TempDir
+	private Path directory;
+
+	@Test
+	public void testThat_searchMatchesInMemoryStore() throws Exception {
+		logger.info("----- testThat_searchMatchesInMemoryStore");
+
+		Random random = new Random(42);
+		List<Embedding> embeddings = randomEmbeddings(random, ENTRIES);
+		List<TextSegment> segments = segments(ENTRIES);
+
+		InMemoryEmbeddingStore<TextSegment> reference = new InMemoryEmbeddingStore<>();
+		try (MappedEmbeddingStore store = MappedEmbeddingStore.open(directory, DIMENSION)) {
+			List<String> ids = store.addAll(embeddings, segments);
+			for (int i = 0; i < ENTRIES; i++) {
+				reference.add(ids.get(i), embeddings.get(i));
+			}
+
+			for (int q = 0; q < 20; q++) {
+				EmbeddingSearchRequest request = EmbeddingSearchRequest.builder()
+						.queryEmbedding(randomEmbeddings(random, 1).get(0)).maxResults(10).build();
+				List<String> expected = reference.search(request).matches().stream()
+						.map(EmbeddingMatch::embeddingId).toList();
+				List<EmbeddingMatch<TextSegment>> actual = store.search(request).matches();
+				assertEquals(expected, actual.stream().map(EmbeddingMatch::embeddingId).toList());
+				assertEquals(segments.get(ids.indexOf(actual.get(0).embeddingId())).text(),
+						actual.get(0).embedded().text());
+			}
+		}
+	}
+
+	@Test
+	public void testThat_storeSurvivesReopen() throws Exception {
+		logger.info("----- testThat_storeSurvivesReopen");
+
+		List<Embedding> embeddings = randomEmbeddings(new Random(7), 100);
+		List<TextSegment> segments = segments(100);
+		List<String> ids;
+		try (MappedEmbeddingStore store = MappedEmbeddingStore.open(directory, DIMENSION)) {
+			ids = store.addAll(embeddings, segments);
+			store.remove(ids.get(3));
+		}
+
+		try (MappedEmbeddingStore store = MappedEmbeddingStore.open(directory, DIMENSION)) {
+			assertEquals(99, store.size());
+
+			EmbeddingMatch<TextSegment> match = store.search(
+					EmbeddingSearchRequest.builder().queryEmbedding(embeddings.get(5)).maxResults(1).build())
+					.matches().get(0);
+			assertEquals(ids.get(5), match.embeddingId());
+			assertEquals(1.0, match.score(), 1e-5);
+			assertEquals("Segment 5", match.embedded().text());
+			assertEquals(5, match.embedded().metadata().getInteger("index"));
+			assertEquals("file-1.txt", match.embedded().metadata().getString("file_name"));
+
+			assertTrue(store.search(
+					EmbeddingSearchRequest.builder().queryEmbedding(embeddings.get(3)).maxResults(1).build())
+					.matches().stream().noneMatch(m -> m.embeddingId().equals(ids.get(3))), "Removed entry found");
+		}
+
+		assertThrows(IOException.class, () -> MappedEmbeddingStore.open(directory, DIMENSION * 2));
+	}
+
+	@Test
+	public void testThat_filterAndRemoveByFilterWork() throws Exception {
+		logger.info("----- testThat_filterAndRemoveByFilterWork");
+
+		List<Embedding> embeddings = randomEmbeddings(new Random(3), 200);
+		try (MappedEmbeddingStore store = MappedEmbeddingStore.open(directory, DIMENSION)) {
+			store.addAll(embeddings, segments(200));
+
+			List<EmbeddingMatch<TextSegment>> matches = store.search(EmbeddingSearchRequest.builder()
+					.queryEmbedding(embeddings.get(0)).maxResults(200)
+					.filter(metadataKey("file_name").isEqualTo("file-2.txt")).build()).matches();
+			assertEquals(50, matches.size());
+			assertTrue(matches.stream().allMatch(m -> m.embedded().metadata().getString("file_name").equals(
+					"file-2.txt")));
+
+			store.removeAll(metadataKey("file_name").isEqualTo("file-2.txt"));
+			assertEquals(150, store.size());
+
+			store.removeAll();
+			assertEquals(0, store.size());
+			store.addAll(embeddings.subList(0, 10), segments(10));
+		}
+
+		try (MappedEmbeddingStore store = MappedEmbeddingStore.open(directory, DIMENSION)) {
+			assertEquals(10, store.size());
+		}
+	}
+
+	@Test
+	public void testThat_filesGrowWithStore() throws Exception {
+		logger.info("----- testThat_filesGrowWithStore");
+
+		Path vectors = directory.resolve(MappedEmbeddingStore.VECTOR_FILE);
+		Path segments = directory.resolve(MappedEmbeddingStore.SEGMENT_FILE);
+		List<Embedding> embeddings = randomEmbeddings(new Random(11), ENTRIES);
+		List<String> ids = new ArrayList<>();
+		try (MappedEmbeddingStore store = MappedEmbeddingStore.open(directory, DIMENSION)) {
+			ids.addAll(store.addAll(embeddings.subList(0, 10), segments(10)));
+			assertTrue(Files.size(vectors) <= 1 << 20, "Vector file has " + Files.size(vectors) + " bytes");
+			assertTrue(Files.size(segments) <= 1 << 20, "Segment file has " + Files.size(segments) + " bytes");
+
+			// the mappings are grown while adding
+			for (int i = 10; i < ENTRIES; i += 100) {
+				int end = Math.min(ENTRIES, i + 100);
+				ids.addAll(store.addAll(embeddings.subList(i, end), segments(end - i)));
+			}
+		}
+		long vectorBytes = (long) ENTRIES * DIMENSION * Float.BYTES;
+		logger.info("{} embedding(s): vector file {} KB, segment file {} KB", ENTRIES, Files.size(vectors) / 1024,
+				Files.size(segments) / 1024);
+		assertTrue(Files.size(vectors) < vectorBytes * 2, "Vector file has " + Files.size(vectors) + " bytes");
+
+		try (MappedEmbeddingStore store = MappedEmbeddingStore.open(directory, DIMENSION)) {
+			assertEquals(ENTRIES, store.size());
+			for (int i : new int[] { 0, 9, 10, 2_731, ENTRIES - 1 }) {
+				EmbeddingMatch<TextSegment> match = store.search(
+						EmbeddingSearchRequest.builder().queryEmbedding(embeddings.get(i)).maxResults(1).build())
+						.matches().get(0);
+				assertEquals(ids.get(i), match.embeddingId());
+				assertEquals(1.0, match.score(), 1e-5);
+			}
+		}
+	}
+
+	private static List<Embedding> randomEmbeddings(Random random, int count) {
+		List<Embedding> embeddings = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			float[] vector = new float[DIMENSION];
+			for (int d = 0; d < DIMENSION; d++) {
+				vector[d] = (float) random.nextGaussian();
+			}
+			Embedding embedding = Embedding.from(vector);
+			embedding.normalize();
+			embeddings.add(embedding);
+		}
+		return embeddings;
+	}
+
+	private static List<TextSegment> segments(int count) {
+		List<TextSegment> segments = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Metadata metadata = new Metadata();
+			metadata.put("file_name", "file-" + (i % 4) + ".txt");
+			metadata.put("index", i);
+			segments.add(TextSegment.from("Segment " + i, metadata));
+		}
+		return segments;
+	}
+}
@@ -0,0 +1,179 @@
+package com.jadice.blog.l4j.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.jadice.blog.l4j.store.QuantizedEmbeddingStore.Quantization;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.loader.FileSystemDocumentLoader;
+import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.bgesmallenv15q.BgeSmallEnV15QuantizedEmbeddingModel;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Compares the int8 and binary quantized stores with the
+ * {@link InMemoryEmbeddingStore} regarding memory use, latency and recall@k,
+ * and tests modifications and reopening.
+ */
+@Slf4j
+public class QuantizedEmbeddingStoreTest {
+
+	private static final int K = 10;
+
+	@TempDir
+	private Path directory;
+
+	@Test
+	public void testThat_quantizedStoresUseLessMemoryWithHighRecall() throws Exception {
+		logger.info("----- testThat_quantizedStoresUseLessMemoryWithHighRecall");
+
+		EmbeddingModel embeddingModel = new BgeSmallEnV15QuantizedEmbeddingModel();
+		List<Document> documents = FileSystemDocumentLoader.loadDocuments(
+				new File(System.getProperty("user.dir"), "/src/test/resources/testdocs-large").toPath());
+		DocumentSplitter splitter = DocumentSplitters.recursive(300, 0);
+		List<TextSegment> segments = new ArrayList<>();
+		for (Document document : documents) {
+			segments.addAll(splitter.split(document));
+		}
+		List<Embedding> embeddings = embeddingModel.embedAll(segments).content();
+		int dimension = embeddings.get(0).dimension();
+
+		// queries: the beginning of every 10th segment
+		List<Embedding> queries = new ArrayList<>();
+		for (int i = 0; i < segments.size(); i += 10) {
+			String text = segments.get(i).text();
+			queries.add(embeddingModel.embed(text.substring(0, Math.min(120, text.length()))).content());
+		}
+
+		InMemoryEmbeddingStore<TextSegment> inMemory = new InMemoryEmbeddingStore<>();
+		List<String> ids = inMemory.addAll(embeddings, segments);
+		long floatBytes = (long) embeddings.size() * dimension * Float.BYTES;
+		long inMemoryNanos = meanLatency(inMemory, queries);
+		logger.info("{} segments, in-memory: {} KB vectors, mean latency {} µs", segments.size(), floatBytes / 1024,
+				inMemoryNanos / 1_000);
+
+		for (Quantization quantization : Quantization.values()) {
+			try (QuantizedEmbeddingStore quantized = QuantizedEmbeddingStore
+					.open(directory.resolve(quantization.name()), dimension, quantization)) {
+				quantized.addAll(ids, embeddings, segments);
+				long nanos = meanLatency(quantized, queries);
+				double recall = recall(inMemory, quantized, queries);
+				logger.info("{}: {} KB on heap, mean latency {} µs, recall@{} {} (oversampling {})", quantization,
+						quantized.getQuantizedBytes() / 1024, nanos / 1_000, K, recall, quantized.getOversampling());
+
+				assertTrue(quantized.getQuantizedBytes() < floatBytes / 3, "Quantized vectors not smaller");
+				assertTrue(recall >= (quantization == Quantization.INT8 ? 0.95 : 0.8),
+						"Recall@" + K + " too low: " + recall);
+			}
+		}
+	}
+
+	@Test
+	public void testThat_modificationsAndReopeningKeepCodesInSync() throws Exception {
+		logger.info("----- testThat_modificationsAndReopeningKeepCodesInSync");
+
+		int dimension = 96;
+		Random random = new Random(5);
+		List<Embedding> embeddings = randomEmbeddings(random, 2_000, dimension);
+
+		for (Quantization quantization : Quantization.values()) {
+			Path storeDirectory = directory.resolve(quantization.name());
+			List<String> ids;
+			try (QuantizedEmbeddingStore store = QuantizedEmbeddingStore.open(storeDirectory, dimension,
+					quantization)) {
+				ids = store.addAll(embeddings);
+				assertEquals(ids.get(7), best(store, embeddings.get(7)).embeddingId());
+
+				store.removeAll(List.of(ids.get(7)));
+				assertTrue(!ids.get(7).equals(best(store, embeddings.get(7)).embeddingId()));
+
+				// replacing an entry re-encodes it
+				store.add(ids.get(8), embeddings.get(9));
+				assertEquals(1999, store.size());
+			}
+
+			try (QuantizedEmbeddingStore reopened = QuantizedEmbeddingStore.open(storeDirectory, dimension,
+					quantization)) {
+				assertEquals(1999, reopened.size());
+				assertEquals(ids.get(42), best(reopened, embeddings.get(42)).embeddingId());
+				assertEquals(Set.of(ids.get(8), ids.get(9)), new HashSet<>(reopened
+						.search(EmbeddingSearchRequest.builder().queryEmbedding(embeddings.get(9)).maxResults(2).build())
+						.matches().stream().map(EmbeddingMatch::embeddingId).toList()));
+
+				reopened.removeAll();
+				assertEquals(0, reopened.size());
+				String id = reopened.add(embeddings.get(3));
+				assertEquals(id, best(reopened, embeddings.get(3)).embeddingId());
+			}
+		}
+	}
+
+	private static EmbeddingMatch<TextSegment> best(EmbeddingStore<TextSegment> store, Embedding query) {
+		return store.search(EmbeddingSearchRequest.builder().queryEmbedding(query).maxResults(1).build()).matches()
+				.get(0);
+	}
+
+	private static long meanLatency(EmbeddingStore<TextSegment> store, List<Embedding> queries) {
+		long nanos = 0;
+		for (int run = 0; run < 3; run++) {
+			nanos = 0;
+			for (Embedding query : queries) {
+				long start = System.nanoTime();
+				store.search(EmbeddingSearchRequest.builder().queryEmbedding(query).maxResults(K).build());
+				nanos += System.nanoTime() - start;
+			}
+		}
+		return nanos / queries.size();
+	}
+
+	private static double recall(EmbeddingStore<TextSegment> exact, EmbeddingStore<TextSegment> approximate,
+			List<Embedding> queries) {
+		int found = 0;
+		int total = 0;
+		for (Embedding query : queries) {
+			EmbeddingSearchRequest request = EmbeddingSearchRequest.builder().queryEmbedding(query).maxResults(K)
+					.build();
+			Set<String> expected = new HashSet<>();
+			exact.search(request).matches().forEach(m -> expected.add(m.embeddingId()));
+			for (EmbeddingMatch<TextSegment> match : approximate.search(request).matches()) {
+				if (expected.contains(match.embeddingId())) {
+					found++;
+				}
+			}
+			total += expected.size();
+		}
+		return (double) found / total;
+	}
+
+	private static List<Embedding> randomEmbeddings(Random random, int count, int dimension) {
+		List<Embedding> embeddings = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			float[] vector = new float[dimension];
+			for (int d = 0; d < dimension; d++) {
+				vector[d] = (float) random.nextGaussian();
+			}
+			embeddings.add(Embedding.from(vector));
+		}
+		return embeddings;
+	}
+}
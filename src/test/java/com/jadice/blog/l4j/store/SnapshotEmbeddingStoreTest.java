@@ -0,0 +1,163 @@
+package com.jadice.blog.l4j.store;
+
+import static dev.langchain4j.store.embedding.filter.MetadataFilterBuilder.metadataKey;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tests snapshots of a {@link MappedEmbeddingStore}: restored results and the
+ * verification of format and model identity. The restore time is logged.
+ */
+@Slf4j
+public class SnapshotEmbeddingStoreTest {
+
+	private static final int DIMENSION = 384;
+	private static final int ENTRIES = 50_000;
+	private static final String MODEL_ID = "test-model";
+
+	private final EmbeddingModel embeddingModel = model(1);
+
+	@TempDir
+	private Path directory;
+
+	@Test
+	public void testThat_restoredSnapshotAnswersLikeTheStore() throws Exception {
+		logger.info("----- testThat_restoredSnapshotAnswersLikeTheStore");
+
+		Random random = new Random(42);
+		Path snapshot = directory.resolve("store.snapshot");
+		List<EmbeddingSearchRequest> requests = new ArrayList<>();
+		for (int q = 0; q < 20; q++) {
+			requests.add(EmbeddingSearchRequest.builder().queryEmbedding(randomEmbeddings(random, 1).get(0))
+					.maxResults(10).build());
+		}
+		requests.add(EmbeddingSearchRequest.builder().queryEmbedding(randomEmbeddings(random, 1).get(0))
+				.maxResults(20).filter(metadataKey("file_name").isEqualTo("file-2.txt")).build());
+
+		List<List<EmbeddingMatch<TextSegment>>> expected = new ArrayList<>();
+		try (MappedEmbeddingStore store = MappedEmbeddingStore.open(directory.resolve("store"), DIMENSION)) {
+			List<String> ids = store.addAll(randomEmbeddings(random, ENTRIES), segments(ENTRIES));
+			store.removeAll(ids.subList(0, 100));
+			for (EmbeddingSearchRequest request : requests) {
+				expected.add(store.search(request).matches());
+			}
+			SnapshotEmbeddingStore.write(snapshot, MODEL_ID, embeddingModel, store);
+		}
+
+		long start = System.nanoTime();
+		try (SnapshotEmbeddingStore restored = SnapshotEmbeddingStore.open(snapshot, MODEL_ID, embeddingModel)) {
+			restored.search(requests.get(0));
+			long restoreMillis = (System.nanoTime() - start) / 1_000_000;
+			logger.info("Restored {} embedding(s) ({} MB) and answered the first query in {} ms", restored.size(),
+					Files.size(snapshot) >> 20, restoreMillis);
+			assertEquals(ENTRIES - 100, restored.size());
+
+			for (int q = 0; q < requests.size(); q++) {
+				List<EmbeddingMatch<TextSegment>> actual = restored.search(requests.get(q)).matches();
+				assertEquals(expected.get(q).size(), actual.size());
+				for (int i = 0; i < actual.size(); i++) {
+					EmbeddingMatch<TextSegment> match = expected.get(q).get(i);
+					assertEquals(match.embeddingId(), actual.get(i).embeddingId());
+					assertEquals(match.score(), actual.get(i).score(), 1e-6);
+					assertEquals(match.embedded(), actual.get(i).embedded());
+				}
+			}
+			assertThrows(UnsupportedOperationException.class, () -> restored.add(Embedding.from(new float[DIMENSION])));
+		}
+	}
+
+	@Test
+	public void testThat_snapshotIsVerified() throws Exception {
+		logger.info("----- testThat_snapshotIsVerified");
+
+		Path snapshot = directory.resolve("store.snapshot");
+		List<Embedding> embeddings = randomEmbeddings(new Random(7), 100);
+		List<String> ids = embeddings.stream().map(e -> UUID.randomUUID().toString()).toList();
+		SnapshotEmbeddingStore.write(snapshot, MODEL_ID, embeddingModel, ids, embeddings, segments(100));
+		try (SnapshotEmbeddingStore restored = SnapshotEmbeddingStore.open(snapshot, MODEL_ID, embeddingModel)) {
+			EmbeddingMatch<TextSegment> match = restored.search(
+					EmbeddingSearchRequest.builder().queryEmbedding(embeddings.get(5)).maxResults(1).build())
+					.matches().get(0);
+			assertEquals(ids.get(5), match.embeddingId());
+			assertEquals(5, match.embedded().metadata().getInteger("index"));
+			assertEquals(5L * Integer.MAX_VALUE, match.embedded().metadata().getLong("offset"));
+			assertEquals(0.5, match.embedded().metadata().getDouble("weight"));
+		}
+
+		// another model id, another model under the same id
+		assertThrows(IOException.class, () -> SnapshotEmbeddingStore.open(snapshot, "other-model", embeddingModel));
+		assertThrows(IOException.class, () -> SnapshotEmbeddingStore.open(snapshot, MODEL_ID, model(2)));
+
+		// truncated and foreign files
+		Path truncated = Files.copy(snapshot, directory.resolve("truncated.snapshot"));
+		try (FileChannel channel = FileChannel.open(truncated, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 10);
+		}
+		assertThrows(IOException.class, () -> SnapshotEmbeddingStore.open(truncated, MODEL_ID, embeddingModel));
+		Path foreign = Files.writeString(directory.resolve("foreign.snapshot"), "x".repeat(1000));
+		assertThrows(IOException.class, () -> SnapshotEmbeddingStore.open(foreign, MODEL_ID, embeddingModel));
+	}
+
+	/**
+	 * @return a fake embedding model with pseudo-random embeddings depending on
+	 *         the seed and the text
+	 */
+	private static EmbeddingModel model(long seed) {
+		return new EmbeddingModel() {
+			@Override
+			public Response<List<Embedding>> embedAll(List<TextSegment> segments) {
+				return Response.from(segments.stream()
+						.map(s -> randomEmbeddings(new Random(seed * 31 + s.text().hashCode()), 1).get(0)).toList());
+			}
+		};
+	}
+
+	private static List<Embedding> randomEmbeddings(Random random, int count) {
+		List<Embedding> embeddings = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			float[] vector = new float[DIMENSION];
+			for (int d = 0; d < DIMENSION; d++) {
+				vector[d] = (float) random.nextGaussian();
+			}
+			Embedding embedding = Embedding.from(vector);
+			embedding.normalize();
+			embeddings.add(embedding);
+		}
+		return embeddings;
+	}
+
+	private static List<TextSegment> segments(int count) {
+		List<TextSegment> segments = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Metadata metadata = new Metadata();
+			metadata.put("file_name", "file-" + (i % 4) + ".txt");
+			metadata.put("index", i);
+			metadata.put("offset", i * (long) Integer.MAX_VALUE);
+			metadata.put("weight", 0.5);
+			segments.add(TextSegment.from("Segment " + i, metadata));
+		}
+		return segments;
+	}
+}
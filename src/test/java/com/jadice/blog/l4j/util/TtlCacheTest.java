@@ -0,0 +1,141 @@
+package com.jadice.blog.l4j.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public class TtlCacheTest {
+
+	@Test
+	public void testThat_entriesExpireAfterTtl() throws Exception {
+		logger.info("----- testThat_entriesExpireAfterTtl");
+
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		TtlCache<String, Integer> cache = new TtlCache<>("test", Duration.ofMillis(200), meterRegistry, "test.cache");
+		AtomicInteger loads = new AtomicInteger();
+
+		assertEquals(1, cache.get("key", k -> loads.incrementAndGet()));
+		assertEquals(1, cache.get("key", k -> loads.incrementAndGet()));
+		Thread.sleep(300);
+		assertEquals(2, cache.get("key", k -> loads.incrementAndGet()));
+		assertEquals(1, meterRegistry.get("test.cache").tag("result", "hit").counter().count());
+		assertEquals(2, meterRegistry.get("test.cache").tag("result", "miss").counter().count());
+
+		// a ttl of zero disables caching
+		TtlCache<String, Integer> disabled = new TtlCache<>("disabled", Duration.ZERO, meterRegistry, "test.cache");
+		disabled.get("key", k -> loads.incrementAndGet());
+		disabled.get("key", k -> loads.incrementAndGet());
+		assertEquals(4, loads.get());
+	}
+
+	@Test
+	public void testThat_concurrentMissesShareOneLoad() throws Exception {
+		logger.info("----- testThat_concurrentMissesShareOneLoad");
+
+		TtlCache<String, Object> cache = new TtlCache<>("test", Duration.ofMinutes(1), new SimpleMeterRegistry(),
+				"test.cache");
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Object value = new Object();
+
+		List<Future<Object>> results = new ArrayList<>();
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (int i = 0; i < 16; i++) {
+				results.add(executor.submit(() -> cache.get("key", k -> {
+					loads.incrementAndGet();
+					loading.countDown();
+					release.await();
+					return value;
+				})));
+			}
+			assertTrue(loading.await(10, TimeUnit.SECONDS));
+			// let the other callers reach the cache
+			Thread.sleep(100);
+			release.countDown();
+			for (Future<Object> result : results) {
+				assertSame(value, result.get(10, TimeUnit.SECONDS));
+			}
+		}
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void testThat_failedLoadsAreNotCached() throws Exception {
+		logger.info("----- testThat_failedLoadsAreNotCached");
+
+		TtlCache<String, Integer> cache = new TtlCache<>("test", Duration.ofMinutes(1), new SimpleMeterRegistry(),
+				"test.cache");
+		assertThrows(IllegalStateException.class, () -> cache.get("key", k -> {
+			throw new IllegalStateException("Backend not available");
+		}));
+		assertEquals(1, cache.get("key", k -> 1));
+
+		// errors complete the load too, so waiting callers do not hang
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch fail = new CountDownLatch(1);
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			Future<Integer> owner = executor.submit(() -> cache.get("error", k -> {
+				loading.countDown();
+				fail.await();
+				throw new AssertionError("Load failed");
+			}));
+			assertTrue(loading.await(10, TimeUnit.SECONDS));
+			Future<Integer> waiter = executor.submit(() -> cache.get("error", k -> 2));
+			// let the waiter reach the running load
+			Thread.sleep(100);
+			fail.countDown();
+
+			assertTrue(assertThrows(ExecutionException.class, () -> owner.get(10, TimeUnit.SECONDS))
+					.getCause() instanceof AssertionError);
+			assertTrue(assertThrows(ExecutionException.class, () -> waiter.get(10, TimeUnit.SECONDS))
+					.getCause() instanceof AssertionError);
+		}
+		assertEquals(3, cache.get("error", k -> 3));
+	}
+
+	@Test
+	public void testThat_invalidateDuringLoadDiscardsLoadedValue() throws Exception {
+		logger.info("----- testThat_invalidateDuringLoadDiscardsLoadedValue");
+
+		TtlCache<String, Integer> cache = new TtlCache<>("test", Duration.ofMinutes(1), new SimpleMeterRegistry(),
+				"test.cache");
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			Future<Integer> stale = executor.submit(() -> cache.get("key", k -> {
+				loading.countDown();
+				release.await();
+				return 1;
+			}));
+			assertTrue(loading.await(10, TimeUnit.SECONDS));
+			cache.invalidate("key");
+			release.countDown();
+			assertEquals(1, stale.get(10, TimeUnit.SECONDS));
+		}
+		// the value loaded before the invalidation is not used
+		assertEquals(2, cache.get("key", k -> 2));
+		assertEquals(2, cache.get("key", k -> 3));
+
+		cache.invalidateAll();
+		assertEquals(4, cache.get("key", k -> 4));
+	}
+}